@@ -0,0 +1,311 @@
+package org.mark.llamacpp.crawler;
+
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+
+import java.io.IOException;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.Duration;
+import java.util.HexFormat;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Stream;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+
+/**
+ * 	HuggingFace接口的响应缓存。
+ * 	内存和磁盘各一份，过期后带If-None-Match重新验证，返回304时继续使用原来的内容；
+ * 	同一个地址的并发请求只发出一次。只缓存2xx的响应。
+ * 	每个不同的搜索地址都会产生一个文件，启动时和之后每写入一定数量的文件，在后台清理过旧的文件并限制总大小。
+ */
+final class HttpResponseCache {
+
+	private static final Logger logger = LoggerFactory.getLogger(HttpResponseCache.class);
+
+	/**
+	 * 	内存中最多缓存的响应数，超过时丢弃最早获取的
+	 */
+	private static final int MAX_MEMORY_ENTRIES = 512;
+
+	/**
+	 * 	需要保留的响应头，搜索分页用
+	 */
+	private static final List<String> KEPT_HEADERS = List.of("X-Next-Cursor", "Link");
+
+	/**
+	 * 	磁盘上的文件超过这个时间没有更新就删除
+	 */
+	private static final long MAX_DISK_AGE_MILLIS = Duration.ofDays(7).toMillis();
+
+	/**
+	 * 	磁盘缓存的总大小上限，超过时从最久没有更新的文件开始删除
+	 */
+	private static final long MAX_DISK_BYTES = 64L * 1024 * 1024;
+
+	/**
+	 * 	每写入多少个文件清理一次
+	 */
+	private static final int SWEEP_EVERY_STORES = 256;
+
+	/**
+	 * 	一次缓存的响应。
+	 * @param status
+	 * @param body
+	 * @param etag
+	 * @param headers 保留的响应头
+	 * @param fetchedAt 获取或最后一次验证的时间
+	 */
+	record Entry(int status, String body, String etag, Map<String, String> headers, long fetchedAt) {
+
+		String header(String name) {
+			return this.headers == null ? null : this.headers.get(name);
+		}
+	}
+
+	private final HttpClient client;
+
+	private final Path dir;
+
+	private final Map<String, Entry> memory = new ConcurrentHashMap<>();
+
+	private final Map<String, CompletableFuture<Entry>> inflight = new ConcurrentHashMap<>();
+
+	private final AtomicInteger storesSinceSweep = new AtomicInteger();
+
+	private final AtomicBoolean sweeping = new AtomicBoolean();
+
+
+	HttpResponseCache(HttpClient client, Path dir) {
+		this.client = client;
+		this.dir = dir;
+		this.sweepInBackground();
+	}
+
+	HttpResponseCache(HttpClient client) {
+		this(client, Paths.get("cache", "hf"));
+	}
+
+	/**
+	 * 	GET请求，ttl内直接返回缓存。非2xx的响应原样返回，不缓存。
+	 * @param uri
+	 * @param headers 请求头
+	 * @param timeout
+	 * @param ttl 缓存有效期，0表示每次都重新验证
+	 * @return
+	 * @throws IOException
+	 * @throws InterruptedException
+	 */
+	Entry get(URI uri, Map<String, String> headers, Duration timeout, Duration ttl) throws IOException, InterruptedException {
+		String key = cacheKey(uri, headers.get("Authorization"));
+		Entry cached = this.lookup(key);
+		if (cached != null && System.currentTimeMillis() - cached.fetchedAt < ttl.toMillis()) {
+			return cached;
+		}
+		CompletableFuture<Entry> mine = new CompletableFuture<>();
+		CompletableFuture<Entry> running = this.inflight.putIfAbsent(key, mine);
+		if (running != null) {
+			return await(running);
+		}
+		try {
+			Entry e = this.fetch(uri, headers, timeout, cached);
+			if (e.status >= 200 && e.status < 300) {
+				this.store(key, uri, e);
+			}
+			mine.complete(e);
+			return e;
+		} catch (IOException | InterruptedException | RuntimeException ex) {
+			mine.completeExceptionally(ex);
+			throw ex;
+		} finally {
+			this.inflight.remove(key, mine);
+		}
+	}
+
+	private Entry fetch(URI uri, Map<String, String> headers, Duration timeout, Entry cached) throws IOException, InterruptedException {
+		HttpRequest.Builder builder = HttpRequest.newBuilder().uri(uri).timeout(timeout).GET();
+		headers.forEach(builder::header);
+		if (cached != null && cached.etag != null) {
+			builder.header("If-None-Match", cached.etag);
+		}
+		HttpResponse<String> response = this.client.send(builder.build(), HttpResponse.BodyHandlers.ofString(StandardCharsets.UTF_8));
+		long now = System.currentTimeMillis();
+		if (response.statusCode() == 304 && cached != null) {
+			return new Entry(cached.status, cached.body, cached.etag, cached.headers, now);
+		}
+		Map<String, String> kept = new LinkedHashMap<>();
+		for (String name : KEPT_HEADERS) {
+			response.headers().firstValue(name).ifPresent(v -> kept.put(name, v));
+		}
+		String etag = response.headers().firstValue("ETag").orElse(null);
+		return new Entry(response.statusCode(), response.body() == null ? "" : response.body(), etag, kept, now);
+	}
+
+	private Entry lookup(String key) {
+		Entry e = this.memory.get(key);
+		if (e != null) {
+			return e;
+		}
+		Path file = this.dir.resolve(key + ".json");
+		if (!Files.isRegularFile(file)) {
+			return null;
+		}
+		try {
+			JsonObject obj = JsonParser.parseString(Files.readString(file, StandardCharsets.UTF_8)).getAsJsonObject();
+			Map<String, String> headers = new LinkedHashMap<>();
+			if (obj.has("headers") && obj.get("headers").isJsonObject()) {
+				obj.getAsJsonObject("headers").entrySet().forEach(h -> headers.put(h.getKey(), h.getValue().getAsString()));
+			}
+			e = new Entry(obj.get("status").getAsInt(), obj.get("body").getAsString(),
+					obj.has("etag") && !obj.get("etag").isJsonNull() ? obj.get("etag").getAsString() : null, headers,
+					obj.get("fetchedAt").getAsLong());
+			this.remember(key, e);
+			return e;
+		} catch (Exception ex) {
+			logger.info("读取HF响应缓存失败，忽略: {}", file, ex);
+			return null;
+		}
+	}
+
+	private void store(String key, URI uri, Entry e) {
+		this.remember(key, e);
+		JsonObject obj = new JsonObject();
+		obj.addProperty("url", uri.toString());
+		obj.addProperty("status", e.status);
+		obj.addProperty("etag", e.etag);
+		obj.addProperty("fetchedAt", e.fetchedAt);
+		JsonObject headers = new JsonObject();
+		e.headers.forEach(headers::addProperty);
+		obj.add("headers", headers);
+		obj.addProperty("body", e.body);
+		try {
+			Files.createDirectories(this.dir);
+			Path file = this.dir.resolve(key + ".json");
+			Path tmp = this.dir.resolve(key + ".json.tmp");
+			Files.writeString(tmp, obj.toString(), StandardCharsets.UTF_8);
+			Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		} catch (IOException ex) {
+			logger.info("写入HF响应缓存失败: {}", uri, ex);
+		}
+		if (this.storesSinceSweep.incrementAndGet() >= SWEEP_EVERY_STORES) {
+			this.storesSinceSweep.set(0);
+			this.sweepInBackground();
+		}
+	}
+
+	private void sweepInBackground() {
+		if (!this.sweeping.compareAndSet(false, true)) {
+			return;
+		}
+		Thread.ofVirtual().name("hf-cache-sweep").start(() -> {
+			try {
+				this.sweep();
+			} finally {
+				this.sweeping.set(false);
+			}
+		});
+	}
+
+	/**
+	 * 	删除超过MAX_DISK_AGE_MILLIS没有更新的文件，剩余的总大小超过MAX_DISK_BYTES时从最旧的开始删除。
+	 * 	文件每次获取或重新验证后都会重写，修改时间就是最后一次使用网络的时间。
+	 */
+	void sweep() {
+		if (!Files.isDirectory(this.dir)) {
+			return;
+		}
+		record CacheFile(Path path, long modified, long size) {
+		}
+		List<CacheFile> files;
+		try (Stream<Path> list = Files.list(this.dir)) {
+			files = list.filter(p -> p.getFileName().toString().endsWith(".json")).map(p -> {
+				try {
+					return new CacheFile(p, Files.getLastModifiedTime(p).toMillis(), Files.size(p));
+				} catch (IOException e) {
+					return null;
+				}
+			}).filter(f -> f != null).sorted((a, b) -> Long.compare(b.modified, a.modified)).toList();
+		} catch (IOException e) {
+			logger.info("清理HF响应缓存失败: {}", this.dir, e);
+			return;
+		}
+		long now = System.currentTimeMillis();
+		long total = 0;
+		int deleted = 0;
+		for (CacheFile f : files) {
+			total += f.size;
+			if (now - f.modified > MAX_DISK_AGE_MILLIS || total > MAX_DISK_BYTES) {
+				try {
+					Files.deleteIfExists(f.path);
+					deleted++;
+				} catch (IOException e) {
+					// 下次再删
+				}
+			}
+		}
+		if (deleted > 0) {
+			logger.info("已清理HF响应缓存文件 {} 个", deleted);
+		}
+	}
+
+	private void remember(String key, Entry e) {
+		if (this.memory.size() >= MAX_MEMORY_ENTRIES && !this.memory.containsKey(key)) {
+			this.memory.entrySet().stream().min((a, b) -> Long.compare(a.getValue().fetchedAt, b.getValue().fetchedAt))
+					.ifPresent(oldest -> this.memory.remove(oldest.getKey()));
+		}
+		this.memory.put(key, e);
+	}
+
+	private static Entry await(CompletableFuture<Entry> running) throws IOException, InterruptedException {
+		try {
+			return running.get();
+		} catch (ExecutionException e) {
+			Throwable cause = e.getCause();
+			if (cause instanceof IOException io) {
+				throw io;
+			}
+			if (cause instanceof InterruptedException ie) {
+				throw ie;
+			}
+			if (cause instanceof RuntimeException re) {
+				throw re;
+			}
+			throw new IOException(cause);
+		}
+	}
+
+	/**
+	 * 	地址和令牌一起决定缓存文件名，不同令牌能看到的私有仓库不同。
+	 */
+	private static String cacheKey(URI uri, String authorization) {
+		try {
+			MessageDigest md = MessageDigest.getInstance("SHA-256");
+			md.update(uri.toString().getBytes(StandardCharsets.UTF_8));
+			if (authorization != null) {
+				md.update((byte) 0);
+				md.update(authorization.getBytes(StandardCharsets.UTF_8));
+			}
+			return HexFormat.of().formatHex(md.digest(), 0, 16);
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+}
@@ -9,17 +9,22 @@ import java.io.IOException;
 import java.net.URI;
 import java.net.URLEncoder;
 import java.net.http.HttpClient;
-import java.net.http.HttpRequest;
-import java.net.http.HttpResponse;
 import java.nio.charset.StandardCharsets;
 import java.time.Duration;
 import java.util.ArrayList;
+import java.util.LinkedHashMap;
 import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Locale;
+import java.util.Map;
 import java.util.Objects;
 import java.util.Optional;
 import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
 
 
 /**
@@ -38,6 +43,26 @@ public final class HuggingFaceModelCrawler {
 	 */
 	private static final int HF_SEARCH_PAGE_SIZE = 30;
 
+	/**
+	 * 	同时获取文件列表的仓库数
+	 */
+	private static final int MAX_PARALLEL_TREE_FETCHES = 6;
+
+	private static final Duration MODEL_INFO_TTL = Duration.ofMinutes(5);
+	private static final Duration TREE_AT_COMMIT_TTL = Duration.ofDays(1);
+	private static final Duration SEARCH_TTL = Duration.ofMinutes(2);
+
+	private static final String USER_AGENT = "hf-model-crawler/0.0.1 (+https://huggingface.co)";
+
+	/**
+	 * 	所有请求共用一个客户端（连接池和TLS会话）。不设置连接超时，
+	 * 	请求上的超时从发出请求开始计算，包含建立连接，调用方传入的timeoutSeconds因此对连接同样有效
+	 */
+	private static final HttpClient CLIENT = HttpClient.newBuilder()
+			.followRedirects(HttpClient.Redirect.NORMAL).build();
+
+	private static final HttpResponseCache CACHE = new HttpResponseCache(CLIENT);
+
 	public record GGUFFileInfo(String path, Long size, String lfsOid, Long lfsSize, String downloadUrl) {
 	}
 
@@ -51,6 +76,13 @@ public final class HuggingFaceModelCrawler {
 	public record ModelSearchResult(String query, List<ModelSearchHit> hits) {
 	}
 
+	/**
+	 * 	共用的HTTP客户端，读取仓库中文件的其他请求也用它
+	 */
+	public static HttpClient sharedClient() {
+		return CLIENT;
+	}
+
 	public static GGUFCrawlResult crawlGGUFFiles(String modelUrlOrRepoId) throws IOException, InterruptedException {
 		return crawlGGUFFiles(modelUrlOrRepoId, 20);
 	}
@@ -113,6 +145,47 @@ public final class HuggingFaceModelCrawler {
 		return new GGUFCrawlResult(repoId, revision, ggufFiles, treeError);
 	}
 
+	/**
+	 * 	同时获取多个仓库的GGUF文件列表，单个仓库失败时在treeError中返回原因。
+	 * @param inputs 仓库ID或地址
+	 * @param timeoutSeconds
+	 * @param baseUrlOrChoice
+	 * @return 按输入顺序，键为输入
+	 * @throws InterruptedException
+	 */
+	public static Map<String, GGUFCrawlResult> crawlGGUFFiles(List<String> inputs, int timeoutSeconds, String baseUrlOrChoice)
+			throws InterruptedException {
+		Map<String, GGUFCrawlResult> results = new LinkedHashMap<>();
+		if (inputs == null || inputs.isEmpty())
+			return results;
+		Semaphore permits = new Semaphore(MAX_PARALLEL_TREE_FETCHES);
+		Map<String, Future<GGUFCrawlResult>> futures = new LinkedHashMap<>();
+		try (ExecutorService pool = Executors.newVirtualThreadPerTaskExecutor()) {
+			for (String input : inputs) {
+				if (input == null || input.isBlank() || futures.containsKey(input.trim()))
+					continue;
+				String in = input.trim();
+				futures.put(in, pool.submit(() -> {
+					permits.acquire();
+					try {
+						return crawlGGUFFiles(in, timeoutSeconds, baseUrlOrChoice);
+					} finally {
+						permits.release();
+					}
+				}));
+			}
+			for (Map.Entry<String, Future<GGUFCrawlResult>> e : futures.entrySet()) {
+				try {
+					results.put(e.getKey(), e.getValue().get());
+				} catch (ExecutionException ex) {
+					Throwable cause = ex.getCause() == null ? ex : ex.getCause();
+					results.put(e.getKey(), new GGUFCrawlResult(normalizeToRepoId(e.getKey()), null, List.of(), cause.getMessage()));
+				}
+			}
+		}
+		return results;
+	}
+
 	public static ModelSearchResult searchModels(String query) throws IOException, InterruptedException {
 		return searchModels(query, 30, 20);
 	}
@@ -175,27 +248,10 @@ public final class HuggingFaceModelCrawler {
 
 	private static JsonObject fetchModelInfo(String baseUrl, String repoId, int timeoutSeconds)
 			throws IOException, InterruptedException {
-		HttpClient client = HttpClient.newBuilder().connectTimeout(Duration.ofSeconds(timeoutSeconds))
-				.followRedirects(HttpClient.Redirect.NORMAL).build();
-
 		URI uri = URI.create(baseUrl + "/api/models/" + repoId);
-		HttpRequest.Builder requestBuilder = HttpRequest.newBuilder().uri(uri)
-				.timeout(Duration.ofSeconds(timeoutSeconds))
-				.header("User-Agent", "hf-model-crawler/0.0.1 (+https://huggingface.co)")
-				.header("Accept", "application/json");
-
-		String token = System.getenv("HF_TOKEN");
-		if (token != null && !token.isBlank()) {
-			requestBuilder.header("Authorization", "Bearer " + token.trim());
-		}
-
-		HttpResponse<String> response = client.send(requestBuilder.GET().build(),
-				HttpResponse.BodyHandlers.ofString(StandardCharsets.UTF_8));
-		if (response.statusCode() < 200 || response.statusCode() >= 300) {
-			String bodyPreview = response.body() == null ? "" : response.body();
-			if (bodyPreview.length() > 800)
-				bodyPreview = bodyPreview.substring(0, 800) + "...";
-			throw new IOException("请求失败: HTTP " + response.statusCode() + " " + uri + "\n" + bodyPreview);
+		HttpResponseCache.Entry response = CACHE.get(uri, requestHeaders(), Duration.ofSeconds(timeoutSeconds), MODEL_INFO_TTL);
+		if (response.status() < 200 || response.status() >= 300) {
+			throw new IOException("请求失败: HTTP " + response.status() + " " + uri + "\n" + bodyPreview(response.body()));
 		}
 
 		JsonElement root = JsonParser.parseString(response.body());
@@ -206,40 +262,21 @@ public final class HuggingFaceModelCrawler {
 
 	private static JsonArray fetchRepoTree(String baseUrl, String repoId, String revision, int timeoutSeconds)
 			throws IOException, InterruptedException {
-		HttpClient client = HttpClient.newBuilder().connectTimeout(Duration.ofSeconds(timeoutSeconds))
-				.followRedirects(HttpClient.Redirect.NORMAL).build();
+		// 固定提交的文件列表不会变化
+		Duration ttl = looksLikeSha(revision) ? TREE_AT_COMMIT_TTL : MODEL_INFO_TTL;
+		Duration timeout = Duration.ofSeconds(timeoutSeconds);
 		URI uri = URI.create(baseUrl + "/api/models/" + repoId + "/tree/" + revision + "?recursive=1");
-		HttpRequest.Builder requestBuilder = HttpRequest.newBuilder().uri(uri)
-				.timeout(Duration.ofSeconds(timeoutSeconds))
-				.header("User-Agent", "hf-model-crawler/0.0.1 (+https://huggingface.co)")
-				.header("Accept", "application/json");
-		String token = System.getenv("HF_TOKEN");
-		if (token != null && !token.isBlank()) {
-			requestBuilder.header("Authorization", "Bearer " + token.trim());
-		}
-		HttpResponse<String> response = client.send(requestBuilder.GET().build(),
-				HttpResponse.BodyHandlers.ofString(StandardCharsets.UTF_8));
-		if (response.statusCode() < 200 || response.statusCode() >= 300) {
-			String bodyPreview = response.body() == null ? "" : response.body();
-			if (bodyPreview.length() > 800)
-				bodyPreview = bodyPreview.substring(0, 800) + "...";
+		HttpResponseCache.Entry response = CACHE.get(uri, requestHeaders(), timeout, ttl);
+		if (response.status() < 200 || response.status() >= 300) {
 			URI fallbackUri = URI.create(baseUrl + "/api/models/" + repoId + "/tree/" + revision);
-			HttpRequest.Builder fallbackBuilder = HttpRequest.newBuilder().uri(fallbackUri)
-					.timeout(Duration.ofSeconds(timeoutSeconds))
-					.header("User-Agent", "hf-model-crawler/0.0.1 (+https://huggingface.co)")
-					.header("Accept", "application/json");
-			if (token != null && !token.isBlank()) {
-				fallbackBuilder.header("Authorization", "Bearer " + token.trim());
-			}
-			HttpResponse<String> fallbackResponse = client.send(fallbackBuilder.GET().build(),
-					HttpResponse.BodyHandlers.ofString(StandardCharsets.UTF_8));
-			if (fallbackResponse.statusCode() >= 200 && fallbackResponse.statusCode() < 300) {
+			HttpResponseCache.Entry fallbackResponse = CACHE.get(fallbackUri, requestHeaders(), timeout, ttl);
+			if (fallbackResponse.status() >= 200 && fallbackResponse.status() < 300) {
 				JsonElement fallbackRoot = JsonParser.parseString(fallbackResponse.body());
 				if (fallbackRoot.isJsonArray())
 					return fallbackRoot.getAsJsonArray();
 				return new JsonArray();
 			}
-			throw new IOException("请求失败: HTTP " + response.statusCode() + " " + uri + "\n" + bodyPreview);
+			throw new IOException("请求失败: HTTP " + response.status() + " " + uri + "\n" + bodyPreview(response.body()));
 		}
 		JsonElement root = JsonParser.parseString(response.body());
 		if (!root.isJsonArray())
@@ -252,9 +289,6 @@ public final class HuggingFaceModelCrawler {
 
 	private static SearchApiPage fetchModelsSearchApiPage(String baseUrl, String query, String cursor, int limit,
 			int timeoutSeconds) throws IOException, InterruptedException {
-		HttpClient client = HttpClient.newBuilder().connectTimeout(Duration.ofSeconds(timeoutSeconds))
-				.followRedirects(HttpClient.Redirect.NORMAL).build();
-
 		String q = URLEncoder.encode(query, StandardCharsets.UTF_8).replace("+", "%20");
 		StringBuilder url = new StringBuilder();
 		url.append(baseUrl).append("/api/models?search=").append(q).append("&filter=gguf&full=true&limit=")
@@ -264,34 +298,38 @@ public final class HuggingFaceModelCrawler {
 			url.append("&cursor=").append(c);
 		}
 		URI uri = URI.create(url.toString());
-		HttpRequest.Builder requestBuilder = HttpRequest.newBuilder().uri(uri)
-				.timeout(Duration.ofSeconds(timeoutSeconds))
-				.header("User-Agent", "hf-model-crawler/0.0.1 (+https://huggingface.co)")
-				.header("Accept", "application/json");
-
-		String token = System.getenv("HF_TOKEN");
-		if (token != null && !token.isBlank()) {
-			requestBuilder.header("Authorization", "Bearer " + token.trim());
-		}
-
-		HttpResponse<String> response = client.send(requestBuilder.GET().build(),
-				HttpResponse.BodyHandlers.ofString(StandardCharsets.UTF_8));
-		if (response.statusCode() < 200 || response.statusCode() >= 300) {
-			String bodyPreview = response.body() == null ? "" : response.body();
-			if (bodyPreview.length() > 800)
-				bodyPreview = bodyPreview.substring(0, 800) + "...";
-			throw new IOException("请求失败: HTTP " + response.statusCode() + " " + uri + "\n" + bodyPreview);
+		HttpResponseCache.Entry response = CACHE.get(uri, requestHeaders(), Duration.ofSeconds(timeoutSeconds), SEARCH_TTL);
+		if (response.status() < 200 || response.status() >= 300) {
+			throw new IOException("请求失败: HTTP " + response.status() + " " + uri + "\n" + bodyPreview(response.body()));
 		}
 
-		JsonElement root = JsonParser.parseString(response.body() == null ? "" : response.body());
+		JsonElement root = JsonParser.parseString(response.body());
 		JsonArray models = root != null && root.isJsonArray() ? root.getAsJsonArray() : new JsonArray();
-		String nextCursor = response.headers().firstValue("X-Next-Cursor").orElse(null);
+		String nextCursor = response.header("X-Next-Cursor");
 		if (nextCursor == null || nextCursor.isBlank()) {
-			nextCursor = parseNextCursorFromLinkHeader(response.headers().firstValue("Link").orElse(null));
+			nextCursor = parseNextCursorFromLinkHeader(response.header("Link"));
 		}
 		return new SearchApiPage(models, nextCursor);
 	}
 
+	private static Map<String, String> requestHeaders() {
+		Map<String, String> headers = new LinkedHashMap<>();
+		headers.put("User-Agent", USER_AGENT);
+		headers.put("Accept", "application/json");
+		String token = System.getenv("HF_TOKEN");
+		if (token != null && !token.isBlank()) {
+			headers.put("Authorization", "Bearer " + token.trim());
+		}
+		return headers;
+	}
+
+	private static String bodyPreview(String body) {
+		String bodyPreview = body == null ? "" : body;
+		if (bodyPreview.length() > 800)
+			bodyPreview = bodyPreview.substring(0, 800) + "...";
+		return bodyPreview;
+	}
+
 	private static void collectModelSearchHits(JsonArray models, int limit, Set<String> seen, List<ModelSearchHit> hits,
 			String baseUrl) {
 		if (models == null || models.isEmpty())
@@ -627,9 +665,21 @@ public final class HuggingFaceModelCrawler {
 			String v = env.trim();
 			if (v.endsWith("/"))
 				v = v.substring(0, v.length() - 1);
-			if (v.equalsIgnoreCase(HF_BASE) || v.equalsIgnoreCase(HF_MIRROR_BASE))
+			if (v.equalsIgnoreCase(HF_BASE) || v.equalsIgnoreCase(HF_MIRROR_BASE) || isLoopbackBaseUrl(v))
 				return v;
 		}
 		return HF_MIRROR_BASE;
 	}
+
+	/**
+	 * 	本机地址，用于在本地搭建的兼容服务上调试
+	 */
+	private static boolean isLoopbackBaseUrl(String baseUrl) {
+		try {
+			String host = URI.create(baseUrl).getHost();
+			return host != null && (host.equalsIgnoreCase("localhost") || host.equals("127.0.0.1") || host.equals("[::1]"));
+		} catch (Exception e) {
+			return false;
+		}
+	}
 }
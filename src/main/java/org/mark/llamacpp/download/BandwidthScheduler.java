@@ -0,0 +1,294 @@
+package org.mark.llamacpp.download;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * 	全部下载任务共享的带宽和连接调度。
+ * 	带宽用令牌桶限制总速度，连接数有全局上限；有等待时，优先级高的任务先得到令牌和连接，
+ * 	同一优先级按权重分配（每个任务按已用字节除以权重排队，用得少的先来）。
+ * 	下载线程是虚拟线程，这里用ReentrantLock而不是synchronized，避免等待时占住载体线程。
+ */
+public class BandwidthScheduler {
+
+	/**
+	 * 	不做任何限制的调度器，单独使用BasicDownloader时的默认值。
+	 */
+	public static final BandwidthScheduler UNLIMITED = new BandwidthScheduler(0, Integer.MAX_VALUE);
+
+	/**
+	 * 	令牌桶最多积攒多长时间的流量
+	 */
+	private static final long BURST_NANOS = TimeUnit.MILLISECONDS.toNanos(250);
+
+	private static final long MIN_BURST_BYTES = 64 * 1024;
+
+	/**
+	 * 	等待时的最长睡眠，防止错过唤醒
+	 */
+	private static final long MAX_WAIT_NANOS = TimeUnit.MILLISECONDS.toNanos(200);
+
+	/**
+	 * 	一个下载任务在调度器中的份额。
+	 */
+	public static final class Share {
+		private final BandwidthScheduler owner;
+		private volatile int priority;
+		private volatile int weight;
+		/**
+		 * 	按权重折算后已经消耗的字节数，只在owner的锁内读写
+		 */
+		private double pass;
+		private final AtomicLong bytes = new AtomicLong();
+
+		private Share(BandwidthScheduler owner, int priority, int weight) {
+			this.owner = owner;
+			this.priority = priority;
+			this.weight = Math.max(1, weight);
+		}
+
+		public int getPriority() {
+			return this.priority;
+		}
+
+		public int getWeight() {
+			return this.weight;
+		}
+
+		/**
+		 * 	调整优先级和权重，正在等待的请求立即按新的值排队。
+		 * @param priority
+		 * @param weight
+		 */
+		public void update(int priority, int weight) {
+			this.priority = priority;
+			this.weight = Math.max(1, weight);
+			this.owner.wakeUp();
+		}
+
+		/**
+		 * 	经过这个份额的总字节数。
+		 * @return
+		 */
+		public long getBytes() {
+			return this.bytes.get();
+		}
+
+		/**
+		 * 	占用一个连接，达到全局上限时等待。
+		 * @throws InterruptedException
+		 */
+		public void acquireConnection() throws InterruptedException {
+			this.owner.acquireConnection(this);
+		}
+
+		public void releaseConnection() {
+			this.owner.releaseConnection();
+		}
+
+		/**
+		 * 	消耗读到的字节数，超过限速时等待。
+		 * @param n
+		 * @throws InterruptedException
+		 */
+		public void consume(int n) throws InterruptedException {
+			this.bytes.addAndGet(n);
+			this.owner.consume(this, n);
+		}
+	}
+
+	/**
+	 * 	排队中的请求
+	 */
+	private static final class Waiter {
+		private final Share share;
+		private final long seq;
+
+		private Waiter(Share share, long seq) {
+			this.share = share;
+			this.seq = seq;
+		}
+	}
+
+	private final ReentrantLock lock = new ReentrantLock();
+	private final Condition changed = this.lock.newCondition();
+	private final List<Waiter> tokenWaiters = new ArrayList<>();
+	private final List<Waiter> connectionWaiters = new ArrayList<>();
+	private volatile long bytesPerSecond;
+	private volatile int maxConnections;
+	private int connections;
+	private long seq;
+	private double tokens;
+	private long lastRefillNanos = System.nanoTime();
+	/**
+	 * 	最近一次发放令牌时的pass，新加入排队的份额从这里开始，不会因为之前闲置而独占带宽
+	 */
+	private double virtualTime;
+
+	/**
+	 *
+	 * @param bytesPerSecond 总速度上限，0表示不限
+	 * @param maxConnections 总连接数上限
+	 */
+	public BandwidthScheduler(long bytesPerSecond, int maxConnections) {
+		this.bytesPerSecond = Math.max(0, bytesPerSecond);
+		this.maxConnections = Math.max(1, maxConnections);
+	}
+
+	/**
+	 * 	为一个任务创建份额。
+	 * @param priority 数值越大越优先
+	 * @param weight 同一优先级内的带宽权重
+	 * @return
+	 */
+	public Share newShare(int priority, int weight) {
+		return new Share(this, priority, weight);
+	}
+
+	public long getBytesPerSecond() {
+		return this.bytesPerSecond;
+	}
+
+	public void setBytesPerSecond(long bytesPerSecond) {
+		this.bytesPerSecond = Math.max(0, bytesPerSecond);
+		this.wakeUp();
+	}
+
+	public int getMaxConnections() {
+		return this.maxConnections;
+	}
+
+	public void setMaxConnections(int maxConnections) {
+		this.maxConnections = Math.max(1, maxConnections);
+		this.wakeUp();
+	}
+
+	/**
+	 * 	当前占用的连接数。
+	 * @return
+	 */
+	public int getConnections() {
+		this.lock.lock();
+		try {
+			return this.connections;
+		} finally {
+			this.lock.unlock();
+		}
+	}
+
+	/**
+	 * 	正在等待连接或令牌的请求数。
+	 * @return
+	 */
+	public int getWaiting() {
+		this.lock.lock();
+		try {
+			return this.connectionWaiters.size() + this.tokenWaiters.size();
+		} finally {
+			this.lock.unlock();
+		}
+	}
+
+	private void acquireConnection(Share share) throws InterruptedException {
+		this.lock.lock();
+		try {
+			Waiter w = new Waiter(share, this.seq++);
+			this.connectionWaiters.add(w);
+			try {
+				while (this.connections >= this.maxConnections || best(this.connectionWaiters) != w) {
+					this.changed.awaitNanos(MAX_WAIT_NANOS);
+				}
+				this.connections++;
+			} finally {
+				this.connectionWaiters.remove(w);
+				this.changed.signalAll();
+			}
+		} finally {
+			this.lock.unlock();
+		}
+	}
+
+	private void releaseConnection() {
+		this.lock.lock();
+		try {
+			this.connections = Math.max(0, this.connections - 1);
+			this.changed.signalAll();
+		} finally {
+			this.lock.unlock();
+		}
+	}
+
+	private void consume(Share share, int n) throws InterruptedException {
+		if (n <= 0 || this.bytesPerSecond <= 0) {
+			return;
+		}
+		this.lock.lock();
+		try {
+			if (share.pass < this.virtualTime) {
+				share.pass = this.virtualTime;
+			}
+			Waiter w = new Waiter(share, this.seq++);
+			this.tokenWaiters.add(w);
+			try {
+				while (true) {
+					long rate = this.bytesPerSecond;
+					if (rate <= 0) {
+						break;
+					}
+					this.refill(rate);
+					if (best(this.tokenWaiters) == w && this.tokens > 0) {
+						// 允许透支，欠下的令牌由后面的请求等待补足
+						this.tokens -= n;
+						break;
+					}
+					long waitNanos = this.tokens > 0 ? MAX_WAIT_NANOS
+							: Math.min(MAX_WAIT_NANOS, (long) ((1 - this.tokens) * 1e9 / rate));
+					this.changed.awaitNanos(Math.max(1, waitNanos));
+				}
+				share.pass += (double) n / share.weight;
+				this.virtualTime = share.pass;
+			} finally {
+				this.tokenWaiters.remove(w);
+				this.changed.signalAll();
+			}
+		} finally {
+			this.lock.unlock();
+		}
+	}
+
+	private void refill(long rate) {
+		long now = System.nanoTime();
+		long burst = Math.max(MIN_BURST_BYTES, rate * BURST_NANOS / 1_000_000_000L);
+		this.tokens = Math.min(burst, this.tokens + (now - this.lastRefillNanos) * (double) rate / 1e9);
+		this.lastRefillNanos = now;
+	}
+
+	private void wakeUp() {
+		this.lock.lock();
+		try {
+			this.changed.signalAll();
+		} finally {
+			this.lock.unlock();
+		}
+	}
+
+	/**
+	 * 	优先级高的在前，同优先级pass小的在前，再按到达顺序。
+	 */
+	private static Waiter best(List<Waiter> waiters) {
+		Waiter best = null;
+		for (Waiter w : waiters) {
+			if (best == null
+					|| w.share.priority > best.share.priority
+					|| (w.share.priority == best.share.priority && w.share.pass < best.share.pass)
+					|| (w.share.priority == best.share.priority && w.share.pass == best.share.pass && w.seq < best.seq)) {
+				best = w;
+			}
+		}
+		return best;
+	}
+}
@@ -13,30 +13,44 @@ import java.net.http.HttpClient;
 import java.net.http.HttpRequest;
 import java.net.http.HttpResponse;
 import java.net.http.HttpResponse.BodyHandlers;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
 import java.time.Duration;
 import java.util.ArrayList;
-import java.util.Comparator;
 import java.util.List;
+import java.util.Locale;
 import java.util.Map;
 import java.util.Objects;
 import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+import java.util.zip.CRC32C;
 
+import org.mark.llamacpp.download.struct.ConnectionTuner;
 import org.mark.llamacpp.download.struct.DownloadProgress;
 import org.mark.llamacpp.download.struct.DownloadState;
+import org.mark.llamacpp.download.struct.MirrorSet;
 import org.mark.llamacpp.download.struct.Part;
 import org.mark.llamacpp.download.struct.PartDownloadTask;
-import org.mark.llamacpp.download.struct.PartWithFile;
+import org.mark.llamacpp.download.struct.RangeJournal;
+import org.mark.llamacpp.download.struct.RangeScheduler;
+import org.mark.llamacpp.download.struct.Sha256Verifier;
 
 /**
  * 	基本下载器的实现。本来想自己改的，做了一半背疼。画了个工作流程让AI自己做了。
@@ -48,6 +62,41 @@ public class BasicDownloader {
 	 */
 	private static final String DOWNLOADING_SUFFIX = "downloading";
 	
+	/**
+	 * 	多线程下载时连接数的上限
+	 */
+	private static final int MAX_CONNECTIONS = 16;
+	
+	/**
+	 * 	单个分段的最大长度
+	 */
+	private static final long MAX_CHUNK_BYTES = 64L * 1024 * 1024;
+	
+	/**
+	 * 	拆分正在下载的分段时，每一半的最小长度
+	 */
+	private static final long MIN_STEAL_BYTES = 2L * 1024 * 1024;
+	
+	/**
+	 * 	探测镜像时单个请求的超时
+	 */
+	private static final Duration MIRROR_PROBE_TIMEOUT = Duration.ofSeconds(5);
+	
+	/**
+	 * 	调整连接数的采样间隔
+	 */
+	private static final long TUNE_INTERVAL_MS = 2_000;
+	
+	/**
+	 * 	边下载边计算哈希时，没有新完成的数据块时的等待间隔
+	 */
+	private static final long HASH_POLL_MS = 200;
+	
+	/**
+	 * 	发现损坏的数据块后最多重新下载几轮
+	 */
+	private static final int MAX_REPAIR_ROUNDS = 3;
+	
 	/**
 	 * 	输入的原始地址
 	 */
@@ -89,6 +138,24 @@ public class BasicDownloader {
 	private final AtomicBoolean stopRequested = new AtomicBoolean(false);
 	private final Set<AutoCloseable> activeResources = ConcurrentHashMap.newKeySet();
 	private volatile ExecutorService activePool;
+	private volatile BandwidthScheduler.Share share = BandwidthScheduler.UNLIMITED.newShare(0, 1);
+	private volatile boolean mirrorRacing = false;
+	private volatile MirrorSet mirrors;
+	/**
+	 * 	调用方指定的SHA-256（LFS oid）
+	 */
+	private volatile String expectedSha256;
+	/**
+	 * 	HuggingFace在响应头x-linked-etag中返回的LFS文件SHA-256
+	 */
+	private volatile String linkedSha256;
+	private volatile Sha256Verifier verifier;
+	private volatile String sha256;
+	private volatile Consumer<ByteBuffer> headerListener;
+	/**
+	 * 	预览时读到的文件开头，分段下载开始时写入目标文件，不再重复下载
+	 */
+	private volatile byte[] headerPrefix;
 	
 	
 	
@@ -156,6 +223,66 @@ public class BasicDownloader {
 		this.userAgent = Objects.requireNonNull(userAgent, "userAgent");
 	}
 	
+	/**
+	 * 	设置在全局带宽调度器中的份额，用于限速、连接数上限和优先级。
+	 * @param share
+	 */
+	public void setBandwidthShare(BandwidthScheduler.Share share) {
+		this.share = Objects.requireNonNull(share, "share cannot be null");
+	}
+	
+	/**
+	 * 	多线程下载时是否同时使用其他站点上的同一个文件（HuggingFace、hf-mirror、ModelScope）。
+	 * @param mirrorRacing
+	 */
+	public void setMirrorRacing(boolean mirrorRacing) {
+		this.mirrorRacing = mirrorRacing;
+	}
+	
+	/**
+	 * 	当前下载使用的各镜像统计，没有多线程下载时为空。
+	 * @return
+	 */
+	public List<Map<String, Object>> getMirrorStats() {
+		MirrorSet set = this.mirrors;
+		return set == null ? List.of() : set.snapshot();
+	}
+	
+	/**
+	 * 	期望的SHA-256。下载时边写入边计算整个文件的哈希，完成后校验；
+	 * 	没有指定时使用HuggingFace响应头中的LFS哈希，两者都没有时不计算。
+	 * @param expectedSha256
+	 */
+	public void setExpectedSha256(String expectedSha256) {
+		this.expectedSha256 = Sha256Verifier.normalize(expectedSha256);
+	}
+	
+	/**
+	 * 	设置后，GGUF文件在正式下载之前先用Range请求读取头部（键值区和张量信息表）交给listener，
+	 * 	这样不用等整个文件下载完就能看到模型信息。服务器不支持Range或者读取失败时不调用。
+	 * @param headerListener
+	 */
+	public void setHeaderListener(Consumer<ByteBuffer> headerListener) {
+		this.headerListener = headerListener;
+	}
+	
+	/**
+	 * 	校验通过的SHA-256，没有校验时为null。
+	 * @return
+	 */
+	public String getSha256() {
+		return this.sha256;
+	}
+	
+	/**
+	 * 	已经计算过哈希的字节数。
+	 * @return
+	 */
+	public long getHashedBytes() {
+		Sha256Verifier v = this.verifier;
+		return v == null ? 0 : v.getHashedBytes();
+	}
+	
 	public URI getSourceUri() {
 		return this.sourceUri;
 	}
@@ -273,17 +400,24 @@ public class BasicDownloader {
 			ensureParentDirectory(downloadingTargetFile);
 			Files.deleteIfExists(this.targetFile);
 			Files.deleteIfExists(downloadingTargetFile);
+			Files.deleteIfExists(RangeJournal.journalFile(downloadingTargetFile));
 			deletePartFiles(downloadingTargetFile);
+			this.publishHeader();
 			
 			this.state = DownloadState.DOWNLOADING;
 			if (this.rangeSupported && this.parallelism > 1) {
 				this.downloadMultipart(downloadingTargetFile);
 			} else {
-				this.downloadSingle(downloadingTargetFile);
+				this.share.acquireConnection();
+				try {
+					this.downloadSingle(downloadingTargetFile);
+				} finally {
+					this.share.releaseConnection();
+				}
 			}
 			
 			this.state = DownloadState.VERIFYING;
-			this.verifyIntegrity();
+			this.verifyIntegrity(downloadingTargetFile);
 			
 			Path finalFile = removeLastExtension(downloadingTargetFile);
 			Files.move(downloadingTargetFile, finalFile, StandardCopyOption.REPLACE_EXISTING);
@@ -320,6 +454,8 @@ public class BasicDownloader {
 	 */
 	public void resume(long existingDownloadedBytes) throws IOException, URISyntaxException, InterruptedException {
 		this.resetStop();
+		this.verifier = null;
+		this.sha256 = null;
 		this.downloadedBytes.set(existingDownloadedBytes);
 		this.startedAtNanos = System.nanoTime();
 		this.finishedAtNanos = 0;
@@ -340,16 +476,22 @@ public class BasicDownloader {
 					Files.move(this.targetFile, downloadingTargetFile, StandardCopyOption.REPLACE_EXISTING);
 				}
 			}
+			this.publishHeader();
 			
 			this.state = DownloadState.DOWNLOADING;
 			if (this.rangeSupported && this.parallelism > 1) {
 				this.resumeMultipart(downloadingTargetFile);
 			} else {
-				this.resumeSingle(downloadingTargetFile);
+				this.share.acquireConnection();
+				try {
+					this.resumeSingle(downloadingTargetFile);
+				} finally {
+					this.share.releaseConnection();
+				}
 			}
 			
 			this.state = DownloadState.VERIFYING;
-			this.verifyIntegrity();
+			this.verifyIntegrity(downloadingTargetFile);
 			
 			Path finalFile = removeLastExtension(downloadingTargetFile);
 			Files.move(downloadingTargetFile, finalFile, StandardCopyOption.REPLACE_EXISTING);
@@ -440,6 +582,8 @@ public class BasicDownloader {
 	 * 	重置进度
 	 */
 	private void resetProgress() {
+		this.verifier = null;
+		this.sha256 = null;
 		this.downloadedBytes.set(0);
 		this.partsTotal.set(0);
 		this.partsCompleted.set(0);
@@ -494,6 +638,7 @@ public class BasicDownloader {
 			if (existingFileSize >= this.contentLength) {
 				if (existingFileSize == this.contentLength) {
 					this.downloadedBytes.set(existingFileSize);
+					this.verifier = this.hashExisting(targetFile, existingFileSize);
 					this.partsCompleted.set(1);
 					return;
 				}
@@ -525,6 +670,9 @@ public class BasicDownloader {
 				downloadSingle(targetFile);
 				return;
 			}
+			// 已有的部分先读一遍算进哈希，后面的数据边写边算
+			Sha256Verifier hasher = this.hashExisting(targetFile, existingFileSize);
+			this.verifier = hasher;
 
 			try (InputStream in = new BufferedInputStream(response.body());
 					OutputStream out = new BufferedOutputStream(new FileOutputStream(targetFile.toString(), true))) {
@@ -535,7 +683,11 @@ public class BasicDownloader {
 				try {
 					while ((read = in.read(buffer)) != -1) {
 						this.checkStop();
+						this.share.consume(read);
 						out.write(buffer, 0, read);
+						if (hasher != null) {
+							hasher.update(buffer, 0, read);
+						}
 						this.downloadedBytes.addAndGet(read);
 					}
 				} catch (IOException e) {
@@ -578,113 +730,27 @@ public class BasicDownloader {
 	}
 	
 	/**
-	 * 	多线程断点续传
+	 * 	多线程断点续传。根据进度日志只下载缺失的块。
 	 * @throws IOException
 	 * @throws InterruptedException
 	 */
 	private void resumeMultipart(Path targetFile) throws IOException, InterruptedException {
-		this.downloadedBytes.set(0);
-		List<Part> parts = splitParts(this.contentLength, this.parallelism, this.minPartSizeBytes);
-		this.partsTotal.set(parts.size());
-		this.partsCompleted.set(0);
-		
-		// 检查已存在的分片文件
-		List<Path> partFiles = new ArrayList<>();
-		int completedParts = 0;
-		
-		for (int i = 0; i < parts.size(); i++) {
-			Path partFile = targetFile.resolveSibling(targetFile.getFileName().toString() + ".part" + i);
-			partFiles.add(partFile);
-			Part part = parts.get(i);
-			if (Files.exists(partFile)) {
-				long partSize = Files.size(partFile);
-				if (partSize == part.length()) {
-					// 分片已完成
-					completedParts++;
-					this.downloadedBytes.addAndGet(partSize);
-					this.partsCompleted.incrementAndGet();
-				} else if (partSize > 0 && partSize < part.length()) {
-					this.downloadedBytes.addAndGet(partSize);
-				} else {
-					// 分片不完整，需要重新下载
-					Files.deleteIfExists(partFile);
-				}
-			} else {
-				// 分片不存在，需要下载
-			}
+		RangeJournal journal = null;
+		if (Files.isRegularFile(targetFile) && Files.size(targetFile) == this.contentLength) {
+			journal = RangeJournal.load(targetFile, this.contentLength, this.etag);
 		}
-		
-		// 如果所有分片都已完成，直接合并
-		if (completedParts == parts.size()) {
-			this.state = DownloadState.MERGING;
-			this.mergeParts(parts, partFiles, targetFile);
-			
-			for (Path p : partFiles) {
-				Files.deleteIfExists(p);
-			}
-			
-			long size = Files.size(targetFile);
-			if (size != this.contentLength) {
-				throw new IOException("下载文件大小不匹配，期望: " + this.contentLength + " 实际: " + size);
-			}
+		// 旧版本按分片文件保存进度，这些文件无法复用
+		deletePartFiles(targetFile);
+		if (journal == null) {
+			// 没有可用的进度日志，重新下载
+			Files.deleteIfExists(targetFile);
+			Files.deleteIfExists(RangeJournal.journalFile(targetFile));
+			this.downloadedBytes.set(0);
+			this.downloadMultipart(targetFile);
 			return;
 		}
-		
-		// 确保目标文件存在并预分配空间
-		if (!Files.exists(targetFile)) {
-			this.preAllocateTargetFile(targetFile, this.contentLength);
-		}
-		
-		// 下载剩余的分片
-		ExecutorService pool = Executors.newVirtualThreadPerTaskExecutor();
-		this.activePool = pool;
-		try {
-			List<Future<Void>> futures = new ArrayList<>();
-			for (int i = 0; i < parts.size(); i++) {
-				Part part = parts.get(i);
-				Path partFile = partFiles.get(i);
-				
-				// 跳过已完成的分片
-				if (Files.exists(partFile) && Files.size(partFile) == part.length()) {
-					continue;
-				}
-				
-				futures.add(pool.submit(new PartDownloadTask(this.httpClient, this.finalUri, this.userAgent, this.requestTimeout, part, partFile, this.maxRetries, this.downloadedBytes, this.partsCompleted, this.stopRequested, this.activeResources)));
-			}
-			
-			for (Future<Void> f : futures) {
-				try {
-					f.get();
-				} catch (ExecutionException e) {
-					Throwable cause = e.getCause();
-					if (cause instanceof InterruptedException ie) {
-						throw ie;
-					}
-					if (cause instanceof IOException io) {
-						throw io;
-					}
-					if (cause instanceof RuntimeException re) {
-						throw re;
-					}
-					throw new IOException(cause);
-				}
-			}
-		} finally {
-			pool.shutdownNow();
-			this.activePool = null;
-		}
-		
-		this.state = DownloadState.MERGING;
-		this.mergeParts(parts, partFiles, targetFile);
-		
-		for (Path p : partFiles) {
-			Files.deleteIfExists(p);
-		}
-		
-		long size = Files.size(targetFile);
-		if (size != this.contentLength) {
-			throw new IOException("下载文件大小不匹配，期望: " + this.contentLength + " 实际: " + size);
-		}
+		this.downloadedBytes.set(journal.completedBytes());
+		this.downloadRanges(targetFile, journal);
 	}
 	
 	/**
@@ -708,6 +774,7 @@ public class BasicDownloader {
 			
 			HttpResponse<Void> response = this.httpClient.send(head, BodyHandlers.discarding());
 			int code = response.statusCode();
+			this.captureLinkedSha256(response.headers().map());
 			
 			if (code == 405 || code == 501) {
 				this.checkStop();
@@ -805,6 +872,64 @@ public class BasicDownloader {
 	}
 	
 	
+	/**
+	 * 	读取GGUF头部并交给headerListener，读到的数据留给分段下载直接写入文件。失败时不影响下载。
+	 * @throws InterruptedException
+	 */
+	private void publishHeader() throws InterruptedException {
+		this.headerPrefix = null;
+		Consumer<ByteBuffer> listener = this.headerListener;
+		String name = this.targetFile.getFileName().toString().toLowerCase(Locale.ROOT);
+		if (listener == null || !this.rangeSupported || !name.endsWith(".gguf")) {
+			return;
+		}
+		try {
+			ByteBuffer header = RemoteGGUFHeader.fetch(this::fetchRange, this.contentLength, RemoteGGUFHeader.PROBE_BYTES);
+			if (header != null) {
+				byte[] prefix = new byte[header.remaining()];
+				header.duplicate().get(prefix);
+				this.headerPrefix = prefix;
+				listener.accept(header.asReadOnlyBuffer());
+			}
+		} catch (IOException | RuntimeException e) {
+			// 忽略，模型信息等下载完成后再读取
+		}
+	}
+	
+	/**
+	 * 	读取一段字节到内存，占用一个连接名额并计入带宽。
+	 * @param start
+	 * @param end 包含
+	 * @return
+	 * @throws IOException
+	 * @throws InterruptedException
+	 */
+	private byte[] fetchRange(long start, long end) throws IOException, InterruptedException {
+		this.checkStop();
+		HttpRequest get = HttpRequest.newBuilder()
+				.uri(this.finalUri)
+				.timeout(this.requestTimeout)
+				.header("User-Agent", this.userAgent)
+				.header("Range", "bytes=" + start + "-" + end)
+				.GET()
+				.build();
+		this.share.acquireConnection();
+		try {
+			HttpResponse<byte[]> resp = this.httpClient.send(get, BodyHandlers.ofByteArray());
+			if (resp.statusCode() != 206) {
+				throw new IOException("读取GGUF头部失败，HTTP状态码: " + resp.statusCode());
+			}
+			byte[] body = resp.body();
+			if (body.length != end - start + 1) {
+				throw new IOException("读取GGUF头部失败，返回的长度不正确: " + body.length);
+			}
+			this.share.consume(body.length);
+			return body;
+		} finally {
+			this.share.releaseConnection();
+		}
+	}
+	
 	/**
 	 * 	不支持端点续传，只能单独下载。
 	 * @throws IOException
@@ -813,6 +938,12 @@ public class BasicDownloader {
 	private void downloadSingle(Path targetFile) throws IOException, InterruptedException {
 		this.partsTotal.set(1);
 		this.partsCompleted.set(0);
+		// 预览时已经读到的开头直接写入，只请求剩下的部分
+		byte[] prefix = this.rangeSupported ? this.headerPrefix : null;
+		this.headerPrefix = null;
+		if (prefix != null && (prefix.length == 0 || prefix.length >= this.contentLength)) {
+			prefix = null;
+		}
 
 		long backoffMillis = 200;
 		int attempt = 0;
@@ -822,30 +953,57 @@ public class BasicDownloader {
 
 			this.downloadedBytes.set(0);
 			Files.deleteIfExists(targetFile);
+			Sha256Verifier hasher = this.newVerifier();
+			this.verifier = hasher;
 
-			HttpRequest get = HttpRequest.newBuilder()
+			HttpRequest.Builder builder = HttpRequest.newBuilder()
 					.uri(this.finalUri)
 					.timeout(this.requestTimeout)
 					.header("User-Agent", this.userAgent)
-					.GET()
-					.build();
+					.GET();
+			if (prefix != null) {
+				builder.header("Range", "bytes=" + prefix.length + "-");
+			}
+			HttpRequest get = builder.build();
 
 			try {
 				HttpResponse<InputStream> response = this.httpClient.send(get, BodyHandlers.ofInputStream());
 				if (response.statusCode() != 200 && response.statusCode() != 206) {
+					response.body().close();
 					throw new IOException("下载失败，HTTP状态码: " + response.statusCode());
 				}
+				// 服务器忽略Range返回整个文件时从头写
+				String contentRange = firstHeaderValue(response.headers().map(), "content-range");
+				boolean continued = prefix != null && response.statusCode() == 206
+						&& contentRange != null && contentRange.trim().startsWith("bytes " + prefix.length + "-");
+				if (prefix != null && response.statusCode() == 206 && !continued) {
+					// 重试时改为下载整个文件
+					prefix = null;
+					response.body().close();
+					throw new IOException("下载失败，返回的区间不正确: " + contentRange);
+				}
 
 				try (InputStream in = new BufferedInputStream(response.body());
 						OutputStream out = new BufferedOutputStream(new FileOutputStream(targetFile.toString(), false))) {
 					this.activeResources.add(in);
 					this.activeResources.add(out);
+					if (continued) {
+						out.write(prefix);
+						if (hasher != null) {
+							hasher.update(prefix, 0, prefix.length);
+						}
+						this.downloadedBytes.addAndGet(prefix.length);
+					}
 					byte[] buffer = new byte[1024 * 256];
 					int read;
 					try {
 						while ((read = in.read(buffer)) != -1) {
 							this.checkStop();
+							this.share.consume(read);
 							out.write(buffer, 0, read);
+							if (hasher != null) {
+								hasher.update(buffer, 0, read);
+							}
 							this.downloadedBytes.addAndGet(read);
 						}
 					} catch (IOException e) {
@@ -889,58 +1047,355 @@ public class BasicDownloader {
 	 * @throws InterruptedException
 	 */
 	private void downloadMultipart(Path targetFile) throws IOException, InterruptedException {
-		List<Part> parts = splitParts(this.contentLength, this.parallelism, this.minPartSizeBytes);
-		this.partsTotal.set(parts.size());
-		this.partsCompleted.set(0);
 		this.preAllocateTargetFile(targetFile, this.contentLength);
+		RangeJournal journal = RangeJournal.create(targetFile, this.contentLength, RangeJournal.DEFAULT_BLOCK_SIZE, this.etag);
+		journal.flush(null);
+		this.downloadRanges(targetFile, journal);
+	}
+	
+	/**
+	 * 	并发下载日志中缺失的区间，每个区间按偏移直接写入目标文件，不需要合并。
+	 * @param targetFile
+	 * @param journal
+	 * @throws IOException
+	 * @throws InterruptedException
+	 */
+	private void downloadRanges(Path targetFile, RangeJournal journal) throws IOException, InterruptedException {
+		this.seedHeaderBlocks(targetFile, journal);
+		MirrorSet mirrorSet = this.prepareMirrors();
+		this.mirrors = mirrorSet;
+		Sha256Verifier hasher = this.newVerifier();
+		this.verifier = hasher;
+		Set<Integer> corrupt = new TreeSet<>();
+		for (int round = 0; ; round++) {
+			this.fetchMissing(targetFile, journal, hasher);
+			if (!journal.isAllComplete()) {
+				throw new IOException("下载未完成，仍有缺失的数据块");
+			}
+			if (hasher == null) {
+				break;
+			}
+			// 算完剩下的部分，读回时发现损坏的块会重新标记为未完成
+			try (FileChannel in = FileChannel.open(targetFile, StandardOpenOption.READ)) {
+				hasher.advance(in, journal);
+			}
+			corrupt.addAll(hasher.getCorruptBlocks());
+			if (journal.isAllComplete()) {
+				try {
+					this.sha256 = hasher.verify(this.contentLength);
+					break;
+				} catch (IOException e) {
+					// 整个文件的哈希不一致，逐块核对CRC32C，只重新下载不一致的块
+					List<Integer> failed;
+					try (FileChannel in = FileChannel.open(targetFile, StandardOpenOption.READ)) {
+						failed = journal.recheck(in);
+					}
+					if (failed.isEmpty()) {
+						// 每个块都与接收时一致，说明收到的数据本身就不对，只能整个重新下载
+						Files.deleteIfExists(targetFile);
+						journal.delete();
+						throw e;
+					}
+					corrupt.addAll(failed);
+					hasher = this.newVerifier();
+					this.verifier = hasher;
+				}
+			}
+			this.saveJournal(targetFile, journal);
+			if (round + 1 >= MAX_REPAIR_ROUNDS) {
+				throw new IOException("数据块多次损坏，已放弃: " + corrupt);
+			}
+			this.downloadedBytes.set(journal.completedBytes());
+		}
+		journal.delete();
 		
-		List<Path> partFiles = new ArrayList<>();
-		for (int i = 0; i < parts.size(); i++) {
-			partFiles.add(targetFile.resolveSibling(targetFile.getFileName().toString() + ".part" + i));
+		long size = Files.size(targetFile);
+		if (size != this.contentLength) {
+			throw new IOException("下载文件大小不匹配，期望: " + this.contentLength + " 实际: " + size);
+		}
+	}
+	
+	/**
+	 * 	把预览时读到的文件开头写入目标文件，完整覆盖的块直接标记完成并记录CRC32C，这部分不再重复下载。
+	 * @param targetFile
+	 * @param journal
+	 * @throws IOException
+	 */
+	private void seedHeaderBlocks(Path targetFile, RangeJournal journal) throws IOException {
+		byte[] prefix = this.headerPrefix;
+		this.headerPrefix = null;
+		if (prefix == null || prefix.length == 0) {
+			return;
 		}
+		CRC32C crc = new CRC32C();
+		int seeded = 0;
+		try (FileChannel channel = FileChannel.open(targetFile, StandardOpenOption.WRITE)) {
+			for (int block = 0; block < journal.getBlockCount(); block++) {
+				long start = journal.blockStart(block);
+				long end = journal.blockEnd(block);
+				if (end >= prefix.length) {
+					break;
+				}
+				if (journal.isComplete(block)) {
+					continue;
+				}
+				int length = (int) (end - start + 1);
+				// 数据从文件开头读取，数组下标就是文件中的偏移
+				ByteBuffer buf = ByteBuffer.wrap(prefix, (int) start, length);
+				while (buf.hasRemaining()) {
+					channel.write(buf, buf.position());
+				}
+				crc.reset();
+				crc.update(prefix, (int) start, length);
+				journal.markComplete(block, (int) crc.getValue());
+				this.downloadedBytes.addAndGet(length);
+				seeded++;
+			}
+			if (seeded > 0) {
+				journal.flush(channel);
+			}
+		}
+	}
+	
+	/**
+	 * 	下载日志中缺失的区间。需要校验SHA-256时，另开一个线程跟着已完成的连续前缀计算哈希。
+	 * @param targetFile
+	 * @param journal
+	 * @param hasher 可以为null
+	 * @throws IOException
+	 * @throws InterruptedException
+	 */
+	private void fetchMissing(Path targetFile, RangeJournal journal, Sha256Verifier hasher) throws IOException, InterruptedException {
+		List<Part> missing = journal.missingRanges();
+		long remaining = 0;
+		for (Part r : missing) {
+			remaining += r.length();
+		}
+		int maxConnections = Math.max(this.parallelism, Math.min(MAX_CONNECTIONS, this.parallelism * 2));
+		// 切得比连接数多几倍，快的连接可以多领几段
+		long chunkSize = Math.min(MAX_CHUNK_BYTES, Math.max(this.minPartSizeBytes, remaining / ((long) maxConnections * 4)));
+		RangeScheduler scheduler = new RangeScheduler(splitParts(missing, chunkSize, journal.getBlockSize()), journal.getBlockSize(), MIN_STEAL_BYTES, this.partsTotal);
+		this.partsCompleted.set(0);
+		ConnectionTuner tuner = new ConnectionTuner(this.parallelism, 1, maxConnections);
+		scheduler.setTargetWorkers(tuner.getTarget());
 		
 		ExecutorService pool = Executors.newVirtualThreadPerTaskExecutor();
 		this.activePool = pool;
-		try {
-			List<Future<Void>> futures = new ArrayList<>();
-			for (int i = 0; i < parts.size(); i++) {
-				Part part = parts.get(i);
-				Path partFile = partFiles.get(i);
-				futures.add(pool.submit(new PartDownloadTask(this.httpClient, this.finalUri, this.userAgent, this.requestTimeout, part, partFile, this.maxRetries, this.downloadedBytes, this.partsCompleted, this.stopRequested, this.activeResources)));
+		AtomicBoolean fetching = new AtomicBoolean(true);
+		try (FileChannel channel = FileChannel.open(targetFile, StandardOpenOption.WRITE)) {
+			if (hasher != null) {
+				pool.submit(() -> this.hashWhileFetching(targetFile, journal, hasher, fetching));
+			}
+			CompletionService<Void> completion = new ExecutorCompletionService<>(pool);
+			int running = 0;
+			for (int i = 0; i < tuner.getTarget() && scheduler.hasWork(); i++) {
+				scheduler.addWorker();
+				completion.submit(this.newPartTask(scheduler, channel, journal));
+				running++;
 			}
 			
-			for (Future<Void> f : futures) {
-				try {
-					f.get();
-				} catch (ExecutionException e) {
-					Throwable cause = e.getCause();
-					if (cause instanceof InterruptedException ie) {
-						throw ie;
-					}
-					if (cause instanceof IOException io) {
-						throw io;
-					}
-					if (cause instanceof RuntimeException re) {
-						throw re;
+			tuner.update(this.downloadedBytes.get(), System.nanoTime());
+			while (running > 0) {
+				Future<Void> f = completion.poll(TUNE_INTERVAL_MS, TimeUnit.MILLISECONDS);
+				if (f != null) {
+					running--;
+					try {
+						f.get();
+					} catch (ExecutionException e) {
+						Throwable cause = e.getCause();
+						if (cause instanceof InterruptedException ie) {
+							throw ie;
+						}
+						if (cause instanceof IOException io) {
+							throw io;
+						}
+						if (cause instanceof RuntimeException re) {
+							throw re;
+						}
+						throw new IOException(cause);
 					}
-					throw new IOException(cause);
+					continue;
+				}
+				
+				// 按实测吞吐增减连接，多出来的连接领取下一段时自行退出
+				int target = tuner.update(this.downloadedBytes.get(), System.nanoTime());
+				scheduler.setTargetWorkers(target);
+				while (scheduler.getWorkers() < target && scheduler.hasWork()) {
+					scheduler.addWorker();
+					completion.submit(this.newPartTask(scheduler, channel, journal));
+					running++;
 				}
 			}
 		} finally {
+			fetching.set(false);
 			pool.shutdownNow();
 			this.activePool = null;
+			this.saveJournal(targetFile, journal);
+		}
+	}
+	
+	/**
+	 * 	下载过程中持续计算已完成前缀的哈希。用单独的只读通道，线程被中断时不会关掉写入用的通道。
+	 */
+	private Void hashWhileFetching(Path targetFile, RangeJournal journal, Sha256Verifier hasher, AtomicBoolean fetching) throws IOException, InterruptedException {
+		try (FileChannel in = FileChannel.open(targetFile, StandardOpenOption.READ)) {
+			while (fetching.get() && !this.stopRequested.get()) {
+				if (hasher.advance(in, journal) == 0) {
+					Thread.sleep(HASH_POLL_MS);
+				}
+			}
+		}
+		return null;
+	}
+	
+	/**
+	 * 	需要校验时创建哈希计算器。
+	 * @return 没有期望的SHA-256时返回null
+	 */
+	private Sha256Verifier newVerifier() {
+		String expected = this.expectedSha256 != null ? this.expectedSha256 : this.linkedSha256;
+		return expected == null ? null : new Sha256Verifier(expected);
+	}
+	
+	/**
+	 * 	从文件读出已有的数据算进哈希。
+	 * @return 没有期望的SHA-256时返回null
+	 */
+	private Sha256Verifier hashExisting(Path file, long length) throws IOException {
+		Sha256Verifier hasher = this.newVerifier();
+		if (hasher != null && length > 0) {
+			try (FileChannel in = FileChannel.open(file, StandardOpenOption.READ)) {
+				hasher.updateFrom(in, length);
+			}
+		}
+		return hasher;
+	}
+	
+	/**
+	 * 	HuggingFace对LFS文件的HEAD响应在x-linked-etag中给出文件的SHA-256。
+	 * @param headers
+	 */
+	private void captureLinkedSha256(Map<String, List<String>> headers) {
+		String linked = Sha256Verifier.normalize(firstHeaderValue(headers, "x-linked-etag"));
+		if (linked != null) {
+			this.linkedSha256 = linked;
+		}
+	}
+	
+	private PartDownloadTask newPartTask(RangeScheduler scheduler, FileChannel channel, RangeJournal journal) {
+		return new PartDownloadTask(this.httpClient, this.mirrors, this.userAgent, this.requestTimeout, scheduler, channel, journal, this.maxRetries, this.downloadedBytes, this.partsCompleted, this.stopRequested, this.activeResources, this.share);
+	}
+	
+	/**
+	 * 	准备下载地址。开启镜像竞速时并发探测其他站点上的同一个文件，大小一致且LFS哈希（有的话）一致的才会加入。
+	 * @return
+	 * @throws InterruptedException
+	 */
+	private MirrorSet prepareMirrors() throws InterruptedException {
+		MirrorSet set = MirrorSet.of(this.finalUri, MirrorCandidates.label(this.sourceUri));
+		if (!this.mirrorRacing) {
+			return set;
+		}
+		List<URI> candidates = MirrorCandidates.alternatives(this.sourceUri);
+		if (candidates.isEmpty()) {
+			return set;
 		}
 		
-		this.state = DownloadState.MERGING;
-		this.mergeParts(parts, partFiles, targetFile);
-		
-		for (Path p : partFiles) {
-			Files.deleteIfExists(p);
+		List<Callable<MirrorProbe>> probes = new ArrayList<>();
+		probes.add(() -> this.probeMirror(this.sourceUri));
+		for (URI c : candidates) {
+			probes.add(() -> this.probeMirror(c));
+		}
+		List<MirrorProbe> results = new ArrayList<>();
+		try (ExecutorService pool = Executors.newVirtualThreadPerTaskExecutor()) {
+			for (Future<MirrorProbe> f : pool.invokeAll(probes, MIRROR_PROBE_TIMEOUT.toMillis() * 2, TimeUnit.MILLISECONDS)) {
+				MirrorProbe r = null;
+				try {
+					r = f.isCancelled() ? null : f.get();
+				} catch (ExecutionException ignored) {
+				}
+				results.add(r);
+			}
 		}
 		
-		long size = Files.size(targetFile);
-		if (size != this.contentLength) {
-			throw new IOException("下载文件大小不匹配，期望: " + this.contentLength + " 实际: " + size);
+		MirrorProbe primary = results.get(0);
+		String expectedOid = primary != null ? primary.linkedEtag() : null;
+		for (int i = 1; i < results.size(); i++) {
+			MirrorProbe r = results.get(i);
+			if (r == null || r.total() != this.contentLength) {
+				continue;
+			}
+			if (expectedOid != null && r.linkedEtag() != null && !expectedOid.equalsIgnoreCase(r.linkedEtag())) {
+				continue;
+			}
+			set.add(r.finalUri(), MirrorCandidates.label(candidates.get(i - 1)));
+		}
+		return set;
+	}
+	
+	/**
+	 * 	镜像探测结果：跟随重定向后的地址、文件大小、LFS哈希（HuggingFace的x-linked-etag）
+	 */
+	private record MirrorProbe(URI finalUri, long total, String linkedEtag) {
+	}
+	
+	/**
+	 * 	用Range请求探测一个地址，返回null表示不可用或不支持分段下载。
+	 * @param start
+	 * @return
+	 */
+	private MirrorProbe probeMirror(URI start) throws IOException, InterruptedException {
+		URI current = start;
+		String linkedEtag = null;
+		for (int i = 0; i < this.maxRedirects; i++) {
+			HttpRequest get = HttpRequest.newBuilder()
+					.uri(current)
+					.timeout(MIRROR_PROBE_TIMEOUT)
+					.header("User-Agent", this.userAgent)
+					.header("Range", "bytes=0-0")
+					.GET()
+					.build();
+			HttpResponse<Void> response = this.httpClient.send(get, BodyHandlers.discarding());
+			Map<String, List<String>> headers = response.headers().map();
+			if (linkedEtag == null) {
+				String v = firstHeaderValue(headers, "x-linked-etag");
+				linkedEtag = v != null ? normalizeEtag(v) : null;
+			}
+			int code = response.statusCode();
+			if (code >= 300 && code <= 399) {
+				String location = firstHeaderValue(headers, "location");
+				if (location == null || location.isBlank()) {
+					return null;
+				}
+				current = current.resolve(location);
+				continue;
+			}
+			if (code != 206) {
+				return null;
+			}
+			String contentRange = firstHeaderValue(headers, "content-range");
+			Long total = contentRange != null ? parseTotalFromContentRange(contentRange) : null;
+			return total == null ? null : new MirrorProbe(current, total, linkedEtag);
+		}
+		return null;
+	}
+	
+	/**
+	 * 	暂停、失败或完成时保存进度日志。
+	 * 	下载中的通道可能已经因为中断而关闭，这里重新打开目标文件刷盘；暂停时当前线程带有中断标记，先清除再恢复。
+	 * @param targetFile
+	 * @param journal
+	 */
+	private void saveJournal(Path targetFile, RangeJournal journal) {
+		boolean interrupted = Thread.interrupted();
+		try (FileChannel fc = FileChannel.open(targetFile, StandardOpenOption.WRITE)) {
+			journal.flush(fc);
+		} catch (IOException ignored) {
+			// 日志没有保存只会让下次续传多下载一部分
+		} finally {
+			if (interrupted) {
+				Thread.currentThread().interrupt();
+			}
 		}
 	}
 	
@@ -957,46 +1412,31 @@ public class BasicDownloader {
 	}
 	
 	/**
-	 * 	将下载后的文件合并。
-	 * @param parts
-	 * @param partFiles
-	 * @param target
+	 * 	校验。先确认远程文件没有变化，再比较下载过程中算出的SHA-256。
+	 * 	分段下载在downloadRanges中已经比较过，哈希不一致时按块重新下载；
+	 * 	单线程下载无法确定是哪一段出错，删除下载中的文件，下次重新下载。
+	 * @param downloadingTargetFile
 	 * @throws IOException
+	 * @throws InterruptedException
 	 */
-	private void mergeParts(List<Part> parts, List<Path> partFiles, Path target) throws IOException {
-		List<PartWithFile> ordered = new ArrayList<>();
-		for (int i = 0; i < parts.size(); i++) {
-			ordered.add(new PartWithFile(parts.get(i), partFiles.get(i)));
-		}
-		ordered.sort(Comparator.comparingLong(p -> p.getPart().getStartInclusive()));
+	private void verifyIntegrity(Path downloadingTargetFile) throws IOException, InterruptedException {
+		this.checkStop();
+		this.verifyEtag();
 		
-		try (RandomAccessFile raf = new RandomAccessFile(target.toString(), "rw")) {
-			for (PartWithFile pwf : ordered) {
-				long expected = pwf.getPart().length();
-				long actual = Files.size(pwf.getFile());
-				if (actual != expected) {
-					throw new IOException("分片大小不匹配: " + pwf.getFile().getFileName() + " 期望: " + expected + " 实际: " + actual);
-				}
-				
-				raf.seek(pwf.getPart().getStartInclusive());
-				try (InputStream in = new BufferedInputStream(Files.newInputStream(pwf.getFile()))) {
-					byte[] buffer = new byte[1024 * 256];
-					int read;
-					while ((read = in.read(buffer)) != -1) {
-						raf.write(buffer, 0, read);
-					}
-				}
-			}
+		Sha256Verifier hasher = this.verifier;
+		if (hasher == null || this.sha256 != null) {
+			return;
+		}
+		try {
+			this.sha256 = hasher.verify(this.contentLength);
+		} catch (IOException e) {
+			Files.deleteIfExists(downloadingTargetFile);
+			Files.deleteIfExists(RangeJournal.journalFile(downloadingTargetFile));
+			throw e;
 		}
 	}
 	
-	/**
-	 * 	校验
-	 * @throws IOException
-	 * @throws InterruptedException
-	 */
-	private void verifyIntegrity() throws IOException, InterruptedException {
-		this.checkStop();
+	private void verifyEtag() throws IOException, InterruptedException {
 		if (this.etag == null || this.etag.isBlank()) {
 			return;
 		}
@@ -1134,28 +1574,23 @@ public class BasicDownloader {
 		return name;
 	}
 	
-	private static List<Part> splitParts(long size, int parallelism, long minPartSizeBytes) {
-		if (size <= 0) {
-			throw new IllegalArgumentException("size must be > 0");
-		}
-		
-		long suggestedParts = (size + minPartSizeBytes - 1) / minPartSizeBytes;
-		int parts = (int) Math.max(1, Math.min(parallelism, Math.min(suggestedParts, 64)));
-		
-		List<Part> result = new ArrayList<>(parts);
-		long start = 0;
-		for (int i = 0; i < parts; i++) {
-			long remaining = size - start;
-			long partSize = remaining / (parts - i);
-			if (partSize <= 0) {
-				partSize = remaining;
-			}
-			long end = start + partSize - 1;
-			if (i == parts - 1) {
-				end = size - 1;
+	/**
+	 * 	把缺失的区间切成固定大小的小段，分段边界与日志的块对齐。
+	 * @param ranges
+	 * @param chunkSize
+	 * @param blockSize
+	 * @return
+	 */
+	private static List<Part> splitParts(List<Part> ranges, long chunkSize, long blockSize) {
+		long size = Math.max(blockSize, (chunkSize + blockSize - 1) / blockSize * blockSize);
+		List<Part> result = new ArrayList<>();
+		for (Part r : ranges) {
+			long start = r.getStartInclusive();
+			while (start <= r.getEndInclusive()) {
+				long end = Math.min(r.getEndInclusive(), start + size - 1);
+				result.add(new Part(start, end));
+				start = end + 1;
 			}
-			result.add(new Part(start, end));
-			start = end + 1;
 		}
 		return result;
 	}
@@ -0,0 +1,101 @@
+package org.mark.llamacpp.download;
+
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+
+/**
+ * 多文件下载任务（一个量化版本的全部分卷和mmproj）。
+ * <p>
+ * 各个文件仍然是独立的下载任务，但作为一组调度：整组只占一个同时下载名额，共用一个带宽份额。
+ * 文件先下载到模型目录旁边以点开头的临时目录里（模型扫描会忽略这类目录），
+ * 全部下载并校验完成后整体改名为目标目录，模型列表里不会出现只下载了一部分的模型。
+ */
+public class DownloadBundle {
+
+	/**
+	 * 一个待下载的文件
+	 * @param url 下载地址
+	 * @param fileName 保存的文件名
+	 * @param sha256 LFS oid，可以为null
+	 * @param size 文件大小，未知时为0
+	 */
+	public record FileSpec(String url, String fileName, String sha256, long size) {
+	}
+
+	private final String bundleId;
+	private final String name;
+	private final String repoId;
+	private final String revision;
+	private final String stagingDir;
+	private final String targetDir;
+	private final List<String> taskIds = new ArrayList<>();
+	private final LocalDateTime createdAt;
+	private boolean completed;
+	private String errorMessage;
+
+	public DownloadBundle(String name, String repoId, String revision, Path targetDir) {
+		this.bundleId = UUID.randomUUID().toString();
+		this.name = name;
+		this.repoId = repoId;
+		this.revision = revision;
+		Path target = targetDir.toAbsolutePath().normalize();
+		this.targetDir = target.toString();
+		this.stagingDir = target.resolveSibling("." + target.getFileName() + ".bundle-" + this.bundleId.substring(0, 8)).toString();
+		this.createdAt = LocalDateTime.now();
+	}
+
+	public String getBundleId() {
+		return bundleId;
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	public String getRepoId() {
+		return repoId;
+	}
+
+	public String getRevision() {
+		return revision;
+	}
+
+	public Path getStagingDir() {
+		return Paths.get(stagingDir);
+	}
+
+	public Path getTargetDir() {
+		return Paths.get(targetDir);
+	}
+
+	public List<String> getTaskIds() {
+		return taskIds;
+	}
+
+	public LocalDateTime getCreatedAt() {
+		return createdAt;
+	}
+
+	/**
+	 * 是否已经全部下载完成并移动到目标目录
+	 */
+	public boolean isCompleted() {
+		return completed;
+	}
+
+	public void setCompleted(boolean completed) {
+		this.completed = completed;
+	}
+
+	public String getErrorMessage() {
+		return errorMessage;
+	}
+
+	public void setErrorMessage(String errorMessage) {
+		this.errorMessage = errorMessage;
+	}
+}
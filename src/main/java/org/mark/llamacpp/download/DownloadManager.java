@@ -1,11 +1,16 @@
 package org.mark.llamacpp.download;
 
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.AtomicMoveNotSupportedException;
 import java.nio.file.DirectoryStream;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
 import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Objects;
@@ -15,30 +20,60 @@ import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Matcher;
+import java.util.stream.Stream;
 
 import org.mark.llamacpp.download.struct.DownloadProgress;
 import org.mark.llamacpp.download.struct.DownloadState;
+import org.mark.llamacpp.download.struct.RangeJournal;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 /**
  * 下载管理器，用于管理下载任务，支持任务状态持久化和恢复
- * 限制同时运行的下载任务为4个，使用线程池执行任务
+ * 同时运行的任务数、总连接数和总带宽都有上限，等待中的任务按优先级启动
  */
 public class DownloadManager {
     
 	private static final Logger logger = LoggerFactory.getLogger(DownloadManager.class);
 
     private static final DownloadManager INSTANCE = new DownloadManager();
-    private static final int MAX_CONCURRENT_DOWNLOADS = 4;
+    private static final int DEFAULT_MAX_CONCURRENT_DOWNLOADS = 4;
+    private static final int DEFAULT_MAX_CONNECTIONS = 16;
+    /**
+     * 每隔多少次进度刷新把进度写入任务日志
+     */
+    private static final int PROGRESS_PERSIST_TICKS = 5;
     
     private final TaskRepository repository;
     private final Map<String, DownloadProgressListener> listeners = new ConcurrentHashMap<>();
     private final ScheduledExecutorService scheduler = Executors.newScheduledThreadPool(2);
-    private final ExecutorService downloadExecutor = Executors.newFixedThreadPool(MAX_CONCURRENT_DOWNLOADS);
+    private final ExecutorService downloadExecutor = Executors.newVirtualThreadPerTaskExecutor();
     private final AtomicInteger activeDownloads = new AtomicInteger(0);
+    private final AtomicLong progressTicks = new AtomicLong(0);
     private final Map<String, DownloadTask> pendingTasks = new ConcurrentHashMap<>();
+    private final BandwidthScheduler bandwidth = new BandwidthScheduler(0, DEFAULT_MAX_CONNECTIONS);
+    private volatile int maxConcurrentDownloads = DEFAULT_MAX_CONCURRENT_DOWNLOADS;
+    /**
+     * 正在下载的下载组及其正在下载的文件数，以下三项只在持有this锁时读写
+     */
+    private final Map<String, Integer> runningBundles = new HashMap<>();
+    private int runningBundleTasks;
+    /**
+     * 同一组的文件共用一个带宽份额
+     */
+    private final Map<String, BandwidthScheduler.Share> bundleShares = new HashMap<>();
+    /**
+     * 下载中模型的目录项，由GGUF头部生成，下载完成后移除
+     */
+    private final Map<String, Map<String, Object>> previews = new ConcurrentHashMap<>();
+    /**
+     * 是否已经恢复过未完成的任务
+     */
+    private final AtomicBoolean resumed = new AtomicBoolean(false);
     
     public static DownloadManager getInstance() {
         return INSTANCE;
@@ -56,8 +91,12 @@ public class DownloadManager {
 		// 启动进度监控定时任务
 		this.scheduler.scheduleAtFixedRate(this::updateAllTasksProgress, 1, 1, TimeUnit.SECONDS);
 
-		// 恢复未完成的任务
-		this.resumePendingTasks();
+		// 上次退出时文件已经全部完成、但还没移到模型目录的下载组
+		for (DownloadBundle bundle : this.repository.getAllBundles()) {
+			this.completeBundleIfReady(bundle.getBundleId());
+		}
+
+		// 未完成的任务等调用方设置好全局上限后再恢复，见resumePendingTasks
 		
 		// 添加WebSocket监听器
 		this.addProgressListener(new DownloadWebSocketListener());
@@ -85,12 +124,26 @@ public class DownloadManager {
 	}
 	
 	public String createTask(String url, String path, String fileName, DownloadTask.DownloadTaskType type) {
+		return createTask(url, path, fileName, type, null);
+	}
+	
+	/**
+	 * 创建下载任务
+	 * @param url 下载URL
+	 * @param path 保存路径
+	 * @param fileName 文件名（可选）
+	 * @param type 任务类型
+	 * @param expectedSha256 期望的SHA-256（可选），下载完成后校验文件内容
+	 * @return 任务ID
+	 */
+	public String createTask(String url, String path, String fileName, DownloadTask.DownloadTaskType type, String expectedSha256) {
 		Objects.requireNonNull(url, "URL不能为空");
 		Objects.requireNonNull(path, "路径不能为空");
 
 		Path targetPath = Paths.get(path);
 		DownloadTask task = new DownloadTask(url, targetPath, fileName);
 		task.setType(type);
+		task.setExpectedSha256(expectedSha256);
 
 		// 保存任务到仓库
 		this.repository.saveTask(task);
@@ -98,16 +151,9 @@ public class DownloadManager {
 		// 通知监听器
 		notifyTaskCreated(task);
 
-		// 如果当前活跃下载任务数未达到上限，则立即开始下载
-		if (this.activeDownloads.get() < MAX_CONCURRENT_DOWNLOADS) {
-			startDownload(task);
-		} else {
-			// 否则将任务加入等待队列
-			this.pendingTasks.put(task.getTaskId(), task);
-			task.setState(DownloadState.IDLE);
-			this.repository.saveTask(task);
-			logger.info("任务 " + task.getTaskId() + " 已加入等待队列，当前活跃下载数: " + activeDownloads.get());
-		}
+		// 加入等待队列，有空位时立即开始下载
+		this.pendingTasks.put(task.getTaskId(), task);
+		this.dispatch();
 
 		return task.getTaskId();
 	}
@@ -181,14 +227,9 @@ public class DownloadManager {
 
 			task.setPaused(false);
 
-			// 如果当前活跃下载任务数未达到上限，则立即开始下载
-			if (this.activeDownloads.get() < MAX_CONCURRENT_DOWNLOADS) {
-				startDownload(task);
-			} else {
-				// 否则将任务加入等待队列
-				this.pendingTasks.put(task.getTaskId(), task);
-				logger.info("任务 " + task.getTaskId() + " 已加入等待队列，当前活跃下载数: " + this.activeDownloads.get());
-			}
+			// 加入等待队列，有空位时立即开始下载
+			this.pendingTasks.put(task.getTaskId(), task);
+			this.dispatch();
 
 			// 通知监听器
 			notifyTaskResumed(task);
@@ -209,6 +250,16 @@ public class DownloadManager {
 		if (task == null) {
 			return false;
 		}
+		// 未完成的下载组缺了任何一个文件都无法使用，删除其中一个任务时整组删除
+		DownloadBundle bundle = this.repository.getBundle(task.getBundleId());
+		if (bundle != null && !bundle.isCompleted()) {
+			return this.deleteBundle(bundle.getBundleId());
+		}
+		return this.deleteTask(task);
+	}
+	
+	private boolean deleteTask(DownloadTask task) {
+		String taskId = task.getTaskId();
 
 		// 如果任务正在下载，先暂停
 		if (task.getState() == DownloadState.DOWNLOADING) {
@@ -232,6 +283,7 @@ public class DownloadManager {
 
 		// 从等待队列中移除
 		this.pendingTasks.remove(taskId);
+		this.removePreview(taskId);
 
 		// 从仓库中删除
 		this.repository.deleteTask(taskId);
@@ -265,6 +317,9 @@ public class DownloadManager {
 		try {
 			Files.deleteIfExists(target);
 			Files.deleteIfExists(downloadingTarget);
+			Path journal = RangeJournal.journalFile(downloadingTarget);
+			Files.deleteIfExists(journal);
+			Files.deleteIfExists(journal.resolveSibling(journal.getFileName().toString() + ".tmp"));
 		} catch (IOException ignored) {
 		}
 		
@@ -332,6 +387,8 @@ public class DownloadManager {
 	private void startDownload(DownloadTask task) {
 		// 增加活跃下载计数
 		this.activeDownloads.incrementAndGet();
+		BandwidthScheduler.Share share = this.acquireShare(task);
+		task.setBandwidthShare(share);
 
 		// 使用线程池执行下载任务
 		this.downloadExecutor.submit(() -> {
@@ -342,6 +399,14 @@ public class DownloadManager {
 
 				// 创建下载器
 				BasicDownloader downloader = new BasicDownloader(task.getUrl(), task.getFullTargetPath());
+				downloader.setBandwidthShare(share);
+				// 模型文件可以同时从HuggingFace、hf-mirror和ModelScope下载
+				downloader.setMirrorRacing(task.getType() == DownloadTask.DownloadTaskType.GGUF_MODEL);
+				downloader.setExpectedSha256(task.getExpectedSha256());
+				if (task.getType() == DownloadTask.DownloadTaskType.GGUF_MODEL && !this.previews.containsKey(task.getTaskId())) {
+					// 先读取GGUF头部，不用等下载完成就能看到模型信息和显存估算
+					downloader.setHeaderListener(header -> this.publishPreview(task, header, downloader.getContentLength()));
+				}
 				task.setDownloader(downloader);
 
 				// 检查是否可以断点续传
@@ -389,6 +454,11 @@ public class DownloadManager {
 				task.setState(DownloadState.COMPLETED);
 				this.repository.saveTask(task);
 				notifyTaskCompleted(task);
+				if (task.getBundleId() != null) {
+					this.completeBundleIfReady(task.getBundleId());
+				} else {
+					this.removePreview(task.getTaskId());
+				}
 
 			} catch (Exception e) {
 				// 检查是否是暂停导致的异常
@@ -403,11 +473,12 @@ public class DownloadManager {
 				}
 			} finally {
 				// 减少活跃下载计数
-				this.activeDownloads.decrementAndGet();
+				this.releaseSlot(task);
 				task.setDownloadThread(null);
+				task.setBandwidthShare(null);
 
 				// 尝试启动等待队列中的任务
-				processPendingTasks();
+				this.dispatch();
 			}
 		});
 	}
@@ -431,25 +502,8 @@ public class DownloadManager {
 		// 检查目标文件是否存在
 		java.nio.file.Path targetPath = task.getFullTargetPath();
 		java.nio.file.Path downloadingTargetPath = targetPath.resolveSibling(targetPath.getFileName().toString() + ".downloading");
+		// 多线程下载直接写入下载中的文件，进度记录在同目录的日志里，没有这个文件就无法续传
 		if (!java.nio.file.Files.exists(targetPath) && !java.nio.file.Files.exists(downloadingTargetPath)) {
-			// 对于多线程下载，检查是否有分片文件
-			if (task.isRangeSupported() && task.getPartsTotal() > 1) {
-				String fileName = targetPath.getFileName().toString();
-				String downloadingFileName = downloadingTargetPath.getFileName().toString();
-				java.nio.file.Path parentDir = targetPath.getParent();
-				if (parentDir != null) {
-					boolean hasAnyPart = false;
-					for (int i = 0; i < task.getPartsTotal(); i++) {
-						java.nio.file.Path partFile = parentDir.resolve(fileName + ".part" + i);
-						java.nio.file.Path downloadingPartFile = parentDir.resolve(downloadingFileName + ".part" + i);
-						if (java.nio.file.Files.exists(partFile) || java.nio.file.Files.exists(downloadingPartFile)) {
-							hasAnyPart = true;
-							break;
-						}
-					}
-					return hasAnyPart;
-				}
-			}
 			return false;
 		}
 		
@@ -457,25 +511,319 @@ public class DownloadManager {
 	}
     
 	/**
-	 * 处理等待队列中的任务
+	 * 启动等待队列中的任务。任务加入队列、结束、调整优先级或修改上限时调用，
+	 * 每次按优先级从高到低、同优先级先创建先启动，直到达到同时下载数上限。
 	 */
-	private void processPendingTasks() {
-		while (this.activeDownloads.get() < MAX_CONCURRENT_DOWNLOADS && !this.pendingTasks.isEmpty()) {
-			// 获取等待队列中的第一个任务
-			String taskId = this.pendingTasks.keySet().iterator().next();
-			DownloadTask task = this.pendingTasks.remove(taskId);
-
-			if (task != null && task.getState() == DownloadState.IDLE) {
+	private synchronized void dispatch() {
+		// 同组已经有文件在下载时，其余文件不占用新的名额
+		for (String bundleId : new ArrayList<>(this.runningBundles.keySet())) {
+			this.startBundleMembers(bundleId);
+		}
+		while (this.usedSlots() < this.maxConcurrentDownloads && !this.pendingTasks.isEmpty()) {
+			DownloadTask next = null;
+			for (DownloadTask task : this.pendingTasks.values()) {
+				if (next == null || task.getPriority() > next.getPriority()
+						|| (task.getPriority() == next.getPriority() && task.getCreatedAt().isBefore(next.getCreatedAt()))) {
+					next = task;
+				}
+			}
+			this.pendingTasks.remove(next.getTaskId());
+			if (next.getState() == DownloadState.IDLE || next.getState() == DownloadState.FAILED) {
+				startDownload(next);
+				logger.info("从等待队列启动任务: " + next.getTaskId() + ", 当前活跃下载数: " + this.activeDownloads.get());
+				if (next.getBundleId() != null) {
+					this.startBundleMembers(next.getBundleId());
+				}
+			}
+		}
+	}
+	
+	/**
+	 * 占用的同时下载名额：单独的任务各占一个，一个下载组不论有几个文件在下载只占一个。
+	 */
+	private synchronized int usedSlots() {
+		return this.activeDownloads.get() - this.runningBundleTasks + this.runningBundles.size();
+	}
+	
+	/**
+	 * 启动等待队列中属于该组的其他文件
+	 */
+	private synchronized void startBundleMembers(String bundleId) {
+		for (DownloadTask task : new ArrayList<>(this.pendingTasks.values())) {
+			if (!bundleId.equals(task.getBundleId())) {
+				continue;
+			}
+			this.pendingTasks.remove(task.getTaskId());
+			if (task.getState() == DownloadState.IDLE || task.getState() == DownloadState.FAILED) {
 				startDownload(task);
-				logger.info("从等待队列启动任务: " + task.getTaskId() + ", 当前活跃下载数: " + this.activeDownloads.get());
 			}
 		}
 	}
+	
+	/**
+	 * 为即将开始的任务分配带宽份额并登记名额，同组的任务共用第一个任务的份额
+	 */
+	private synchronized BandwidthScheduler.Share acquireShare(DownloadTask task) {
+		String bundleId = task.getBundleId();
+		if (bundleId == null) {
+			return this.bandwidth.newShare(task.getPriority(), task.getWeight());
+		}
+		this.runningBundles.merge(bundleId, 1, Integer::sum);
+		this.runningBundleTasks++;
+		return this.bundleShares.computeIfAbsent(bundleId, k -> this.bandwidth.newShare(task.getPriority(), task.getWeight()));
+	}
+	
+	/**
+	 * 任务结束，释放名额
+	 */
+	private synchronized void releaseSlot(DownloadTask task) {
+		this.activeDownloads.decrementAndGet();
+		String bundleId = task.getBundleId();
+		if (bundleId == null) {
+			return;
+		}
+		this.runningBundleTasks--;
+		Integer left = this.runningBundles.merge(bundleId, -1, Integer::sum);
+		if (left == null || left <= 0) {
+			this.runningBundles.remove(bundleId);
+			this.bundleShares.remove(bundleId);
+		}
+	}
+	
+	/**
+	 * 创建多文件下载组。各文件先下载到临时目录，全部完成后整体移动到目标目录。
+	 * @param name 显示名称
+	 * @param repoId 仓库
+	 * @param revision 版本
+	 * @param targetDir 最终的模型目录，必须不存在或为空
+	 * @param files 要下载的文件
+	 * @return 下载组
+	 * @throws IOException
+	 */
+	public DownloadBundle createBundle(String name, String repoId, String revision, Path targetDir, List<DownloadBundle.FileSpec> files) throws IOException {
+		if (files == null || files.isEmpty()) {
+			throw new IllegalArgumentException("下载组中没有文件");
+		}
+		DownloadBundle bundle = new DownloadBundle(name, repoId, revision, targetDir);
+		Files.createDirectories(bundle.getStagingDir());
+		
+		List<DownloadTask> created = new ArrayList<>();
+		for (DownloadBundle.FileSpec f : files) {
+			DownloadTask task = new DownloadTask(f.url(), bundle.getStagingDir(), f.fileName());
+			task.setType(DownloadTask.DownloadTaskType.GGUF_MODEL);
+			task.setExpectedSha256(f.sha256());
+			task.setBundleId(bundle.getBundleId());
+			if (f.size() > 0) {
+				task.setTotalBytes(f.size());
+			}
+			bundle.getTaskIds().add(task.getTaskId());
+			created.add(task);
+		}
+		// 先保存下载组，任务不会引用不存在的组
+		this.repository.saveBundle(bundle);
+		for (DownloadTask task : created) {
+			this.repository.saveTask(task);
+			notifyTaskCreated(task);
+			this.pendingTasks.put(task.getTaskId(), task);
+		}
+		this.dispatch();
+		return bundle;
+	}
+	
+	public DownloadBundle getBundle(String bundleId) {
+		return this.repository.getBundle(bundleId);
+	}
+	
+	public List<DownloadBundle> getAllBundles() {
+		return this.repository.getAllBundles();
+	}
+	
+	/**
+	 * 下载组中仍然存在的任务
+	 */
+	public List<DownloadTask> getBundleTasks(DownloadBundle bundle) {
+		List<DownloadTask> out = new ArrayList<>();
+		for (String id : bundle.getTaskIds()) {
+			DownloadTask task = this.repository.getTask(id);
+			if (task != null) {
+				out.add(task);
+			}
+		}
+		return out;
+	}
+	
+	/**
+	 * 暂停整组
+	 */
+	public boolean pauseBundle(String bundleId) {
+		DownloadBundle bundle = this.repository.getBundle(bundleId);
+		if (bundle == null) {
+			return false;
+		}
+		for (DownloadTask task : this.getBundleTasks(bundle)) {
+			if (this.pendingTasks.remove(task.getTaskId()) != null) {
+				task.setPaused(true);
+				notifyTaskPaused(task);
+			}
+			this.pause(task.getTaskId());
+		}
+		return true;
+	}
+	
+	/**
+	 * 恢复整组
+	 */
+	public boolean resumeBundle(String bundleId) {
+		DownloadBundle bundle = this.repository.getBundle(bundleId);
+		if (bundle == null) {
+			return false;
+		}
+		for (DownloadTask task : this.getBundleTasks(bundle)) {
+			this.resume(task.getTaskId());
+		}
+		return true;
+	}
+	
+	/**
+	 * 删除整组的任务记录。未完成的组同时删除临时目录；已完成的组只删除记录，不动模型目录。
+	 */
+	public boolean deleteBundle(String bundleId) {
+		DownloadBundle bundle = this.repository.getBundle(bundleId);
+		if (bundle == null) {
+			return false;
+		}
+		for (DownloadTask task : this.getBundleTasks(bundle)) {
+			this.deleteTask(task);
+		}
+		if (!bundle.isCompleted()) {
+			deleteDirectoryTree(bundle.getStagingDir());
+		}
+		this.repository.deleteBundle(bundleId);
+		return true;
+	}
+	
+	/**
+	 * 全部文件下载完成后，把临时目录整体改名为模型目录。
+	 * 各文件在下载时已经按LFS哈希校验过，这里再核对一遍文件是否齐全、大小是否一致。
+	 */
+	private synchronized void completeBundleIfReady(String bundleId) {
+		DownloadBundle bundle = this.repository.getBundle(bundleId);
+		if (bundle == null || bundle.isCompleted()) {
+			return;
+		}
+		List<DownloadTask> members = this.getBundleTasks(bundle);
+		if (members.size() != bundle.getTaskIds().size()) {
+			return;
+		}
+		for (DownloadTask task : members) {
+			if (task.getState() != DownloadState.COMPLETED) {
+				return;
+			}
+		}
+		Path staging = bundle.getStagingDir();
+		Path target = bundle.getTargetDir();
+		try {
+			for (DownloadTask task : members) {
+				Path file = task.getFullTargetPath();
+				if (!Files.isRegularFile(file)) {
+					throw new IOException("文件不存在: " + file.getFileName());
+				}
+				if (task.getTotalBytes() > 0 && Files.size(file) != task.getTotalBytes()) {
+					throw new IOException("文件大小不一致: " + file.getFileName());
+				}
+			}
+			if (Files.isDirectory(target)) {
+				deleteEmptyDirectory(target);
+				if (Files.exists(target)) {
+					throw new IOException("目标目录已存在且非空: " + target);
+				}
+			}
+			Files.createDirectories(target.getParent());
+			try {
+				Files.move(staging, target, StandardCopyOption.ATOMIC_MOVE);
+			} catch (AtomicMoveNotSupportedException e) {
+				Files.move(staging, target);
+			}
+			bundle.setCompleted(true);
+			bundle.setErrorMessage(null);
+			for (DownloadTask task : members) {
+				this.removePreview(task.getTaskId());
+			}
+			logger.info("下载组已完成: " + bundle.getName() + " -> " + target);
+		} catch (IOException e) {
+			bundle.setErrorMessage("移动到模型目录失败: " + e.getMessage());
+			logger.info("下载组移动到模型目录失败: {}", e.getMessage());
+		}
+		this.repository.saveBundle(bundle);
+		if (bundle.isCompleted()) {
+			this.notifyBundleCompleted(bundle);
+		}
+	}
+	
+	private static void deleteDirectoryTree(Path dir) {
+		if (dir == null || !Files.isDirectory(dir)) {
+			return;
+		}
+		try (Stream<Path> paths = Files.walk(dir)) {
+			paths.sorted(Comparator.reverseOrder()).forEach(p -> {
+				try {
+					Files.deleteIfExists(p);
+				} catch (IOException ignored) {
+				}
+			});
+		} catch (IOException ignored) {
+		}
+	}
+	
+	/**
+	 * 调整任务的优先级和带宽权重。正在下载的任务立即生效，等待中的任务按新的优先级排队。
+	 * @param taskId 任务ID
+	 * @param priority 优先级，数值越大越优先
+	 * @param weight 同一优先级内的带宽权重
+	 * @return 任务是否存在
+	 */
+	public boolean setPriority(String taskId, int priority, int weight) {
+		DownloadTask task = this.repository.getTask(taskId);
+		if (task == null) {
+			return false;
+		}
+		task.setPriority(priority);
+		task.setWeight(weight);
+		BandwidthScheduler.Share share = task.getBandwidthShare();
+		if (share != null) {
+			share.update(task.getPriority(), task.getWeight());
+		}
+		this.repository.saveTask(task);
+		this.dispatch();
+		return true;
+	}
+	
+	/**
+	 * 设置全局上限
+	 * @param maxConcurrent 同时下载的任务数
+	 * @param maxConnections 所有任务的总连接数
+	 * @param bytesPerSecond 总带宽，0表示不限
+	 */
+	public void setLimits(int maxConcurrent, int maxConnections, long bytesPerSecond) {
+		this.maxConcurrentDownloads = Math.max(1, maxConcurrent);
+		this.bandwidth.setMaxConnections(maxConnections);
+		this.bandwidth.setBytesPerSecond(bytesPerSecond);
+		this.dispatch();
+	}
+	
+	/**
+	 * 获取全局带宽调度器
+	 */
+	public BandwidthScheduler getBandwidthScheduler() {
+		return this.bandwidth;
+	}
     
 	/**
 	 * 更新所有任务的进度
 	 */
 	private void updateAllTasksProgress() {
+		// 进度每隔几秒追加到任务日志，崩溃后能显示接近实际的进度
+		boolean persistProgress = this.progressTicks.incrementAndGet() % PROGRESS_PERSIST_TICKS == 0;
 		for (DownloadTask task : repository.getAllTasks()) {
 			if (task.getState() == DownloadState.DOWNLOADING && task.getDownloader() != null) {
 				DownloadProgress progress = task.getDownloader().getProgress();
@@ -487,41 +835,115 @@ public class DownloadManager {
 
 				// 通知进度更新
 				notifyProgressUpdated(task, progress);
+				if (persistProgress) {
+					this.repository.saveProgress(task);
+				}
 			}
 		}
 	}
     
 	/**
-	 * 恢复未完成的任务
+	 * 恢复上次未完成的任务。调用方先用setLimits设置好带宽和连接数上限再调用，
+	 * 否则恢复的任务会按默认上限开始下载。只有第一次调用有效。
 	 */
-	private void resumePendingTasks() {
-		List<DownloadTask> unfinishedTasks = new ArrayList<>();
+	public void resumePendingTasks() {
+		if (!this.resumed.compareAndSet(false, true)) {
+			return;
+		}
 		for (DownloadTask task : repository.getAllTasks()) {
 			if (task.getState() == DownloadState.IDLE
 					|| task.getState() == DownloadState.FAILED) {
-				unfinishedTasks.add(task);
+				this.pendingTasks.put(task.getTaskId(), task);
+				logger.info("恢复任务: " + task.getTaskId());
 			}
 		}
-
-		// 按照创建时间排序，先创建的任务优先恢复
-		unfinishedTasks.sort((t1, t2) -> t1.getCreatedAt().compareTo(t2.getCreatedAt()));
-
-		// 启动前MAX_CONCURRENT_DOWNLOADS个任务
-		int startedCount = 0;
-		for (DownloadTask task : unfinishedTasks) {
-			if (startedCount >= MAX_CONCURRENT_DOWNLOADS) {
-				pendingTasks.put(task.getTaskId(), task);
-				logger.info("任务 " + task.getTaskId() + " 已加入等待队列");
-			} else {
-				startDownload(task);
-				startedCount++;
-				logger.info("恢复任务: " + task.getTaskId());
+		this.dispatch();
+	}
+    
+	/**
+	 * 下载中模型的目录项，还没有读到GGUF头部的任务不包含在内。
+	 * @return
+	 */
+	public List<Map<String, Object>> getModelPreviews() {
+		return new ArrayList<>(this.previews.values());
+	}
+	
+	/**
+	 * 获取指定任务的模型目录项
+	 * @param taskId 任务ID
+	 * @return 还没有读到头部时返回null
+	 */
+	public Map<String, Object> getModelPreview(String taskId) {
+		return taskId == null ? null : this.previews.get(taskId);
+	}
+	
+	/**
+	 * 根据GGUF头部生成下载中的模型目录项。分卷模型只处理第一卷，同一目录下其他分卷的大小计入权重。
+	 */
+	private void publishPreview(DownloadTask task, ByteBuffer header, long fileSize) {
+		long extraBytes = 0;
+		Matcher m = ModelPreview.SPLIT_PATTERN.matcher(task.getFileName());
+		if (m.matches()) {
+			if (Integer.parseInt(m.group(2)) != 1) {
+				return;
 			}
+			for (DownloadTask other : this.repository.getAllTasks()) {
+				Matcher o = ModelPreview.SPLIT_PATTERN.matcher(other.getFileName());
+				if (other != task && o.matches() && o.group(1).equals(m.group(1)) && o.group(3).equals(m.group(3))
+						&& other.getTargetPath().equals(task.getTargetPath())) {
+					extraBytes += Math.max(0, other.getTotalBytes());
+				}
+			}
+		}
+		DownloadBundle bundle = this.repository.getBundle(task.getBundleId());
+		String path = bundle != null ? bundle.getTargetDir().toString() : task.getFullTargetPath().toString();
+		try {
+			Map<String, Object> preview = ModelPreview.build(task, header, fileSize, extraBytes, path);
+			this.previews.put(task.getTaskId(), preview);
+			this.notifyModelPreview(task, preview);
+		} catch (IOException | RuntimeException e) {
+			logger.info("解析GGUF头部失败: {} {}", task.getFileName(), e.getMessage());
+		}
+	}
+	
+	private void removePreview(String taskId) {
+		if (this.previews.remove(taskId) != null) {
+			this.notifyModelPreviewRemoved(taskId);
 		}
 	}
     
     // 通知方法
     
+    private void notifyModelPreview(DownloadTask task, Map<String, Object> preview) {
+        for (DownloadProgressListener listener : listeners.values()) {
+            try {
+                listener.onModelPreview(task, preview);
+            } catch (Exception e) {
+                logger.info("通知监听器失败: {}", e);
+            }
+        }
+    }
+    
+    private void notifyModelPreviewRemoved(String taskId) {
+        for (DownloadProgressListener listener : listeners.values()) {
+            try {
+                listener.onModelPreviewRemoved(taskId);
+            } catch (Exception e) {
+                logger.info("通知监听器失败: {}", e);
+            }
+        }
+    }
+    
+    private void notifyBundleCompleted(DownloadBundle bundle) {
+        for (DownloadProgressListener listener : listeners.values()) {
+            try {
+                listener.onBundleCompleted(bundle);
+            } catch (Exception e) {
+                logger.info("通知监听器失败: {}", e);
+            }
+        }
+    }
+    
     private void notifyTaskCreated(DownloadTask task) {
         for (DownloadProgressListener listener : listeners.values()) {
             try {
@@ -620,7 +1042,7 @@ public class DownloadManager {
      * 获取最大并发下载数
      */
     public int getMaxConcurrentDownloads() {
-        return MAX_CONCURRENT_DOWNLOADS;
+        return this.maxConcurrentDownloads;
     }
     
     /**
@@ -655,5 +1077,8 @@ public class DownloadManager {
             scheduler.shutdownNow();
             Thread.currentThread().interrupt();
         }
+        
+        // 把任务日志压缩成快照
+        repository.close();
     }
 }
@@ -1,5 +1,7 @@
 package org.mark.llamacpp.download;
 
+import java.util.Map;
+
 import org.mark.llamacpp.download.struct.DownloadProgress;
 import org.mark.llamacpp.download.struct.DownloadState;
 
@@ -47,4 +49,26 @@ public interface DownloadProgressListener {
      * @param task 下载任务
      */
     void onTaskResumed(DownloadTask task);
+    
+    /**
+     * 当多文件下载组全部完成并移动到模型目录时调用
+     * @param bundle 下载组
+     */
+    default void onBundleCompleted(DownloadBundle bundle) {
+    }
+    
+    /**
+     * 当读到GGUF头部、生成下载中的模型目录项时调用
+     * @param task 下载任务
+     * @param preview 目录项
+     */
+    default void onModelPreview(DownloadTask task, Map<String, Object> preview) {
+    }
+    
+    /**
+     * 当下载中的模型目录项被移除（下载完成或任务删除）时调用
+     * @param taskId 任务ID
+     */
+    default void onModelPreviewRemoved(String taskId) {
+    }
 }
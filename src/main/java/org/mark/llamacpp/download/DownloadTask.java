@@ -34,7 +34,24 @@ public class DownloadTask {
     private String finalUri;
     private String etag;
     private boolean rangeSupported;
+    /**
+     * 优先级，数值越大越优先
+     */
+    private int priority;
+    /**
+     * 同一优先级内的带宽权重
+     */
+    private int weight = 1;
+    /**
+     * 期望的SHA-256（HuggingFace的LFS oid），为空时不校验内容
+     */
+    private String expectedSha256;
+    /**
+     * 所属的多文件下载组，单独的任务为null
+     */
+    private String bundleId;
     private transient BasicDownloader downloader;
+    private transient BandwidthScheduler.Share bandwidthShare;
     private transient Thread downloadThread;
     private volatile boolean paused;
     
@@ -171,6 +188,50 @@ public class DownloadTask {
         this.updatedAt = LocalDateTime.now();
     }
     
+    public int getPriority() {
+        return priority;
+    }
+    
+    public void setPriority(int priority) {
+        this.priority = priority;
+        this.updatedAt = LocalDateTime.now();
+    }
+    
+    public int getWeight() {
+        return Math.max(1, weight);
+    }
+    
+    public void setWeight(int weight) {
+        this.weight = Math.max(1, weight);
+        this.updatedAt = LocalDateTime.now();
+    }
+    
+    public String getExpectedSha256() {
+        return expectedSha256;
+    }
+    
+    public void setExpectedSha256(String expectedSha256) {
+        this.expectedSha256 = expectedSha256;
+        this.updatedAt = LocalDateTime.now();
+    }
+    
+    public String getBundleId() {
+        return bundleId;
+    }
+    
+    public void setBundleId(String bundleId) {
+        this.bundleId = bundleId;
+        this.updatedAt = LocalDateTime.now();
+    }
+    
+    public BandwidthScheduler.Share getBandwidthShare() {
+        return bandwidthShare;
+    }
+    
+    public void setBandwidthShare(BandwidthScheduler.Share bandwidthShare) {
+        this.bandwidthShare = bandwidthShare;
+    }
+    
     public BasicDownloader getDownloader() {
         return downloader;
     }
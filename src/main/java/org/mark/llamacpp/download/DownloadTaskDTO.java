@@ -26,6 +26,10 @@ public class DownloadTaskDTO {
     private String finalUri;
     private String etag;
     private boolean rangeSupported;
+    private int priority;
+    private int weight;
+    private String expectedSha256;
+    private String bundleId;
     
     public DownloadTaskDTO() {
         this.taskId = null;
@@ -55,6 +59,10 @@ public class DownloadTaskDTO {
         this.finalUri = task.getFinalUri();
         this.etag = task.getEtag();
         this.rangeSupported = task.isRangeSupported();
+        this.priority = task.getPriority();
+        this.weight = task.getWeight();
+        this.expectedSha256 = task.getExpectedSha256();
+        this.bundleId = task.getBundleId();
     }
     
     public String getTaskId() {
@@ -178,6 +186,10 @@ public class DownloadTaskDTO {
             task.setFinalUri(finalUri);
             task.setEtag(etag);
             task.setRangeSupported(rangeSupported);
+            task.setPriority(priority);
+            task.setWeight(weight);
+            task.setExpectedSha256(expectedSha256);
+            task.setBundleId(bundleId);
             
         } catch (Exception e) {
             throw new RuntimeException("无法将DTO转换为DownloadTask", e);
@@ -1,7 +1,12 @@
 package org.mark.llamacpp.download;
 
+import java.util.List;
+import java.util.Map;
+
 import org.mark.llamacpp.download.struct.DownloadProgress;
 import org.mark.llamacpp.download.struct.DownloadState;
+import org.mark.llamacpp.server.LlamaServerManager;
+import org.mark.llamacpp.server.struct.ModelCatalogDelta;
 import org.mark.llamacpp.server.websocket.WebSocketManager;
 
 /**
@@ -108,4 +113,23 @@ public class DownloadWebSocketListener implements DownloadProgressListener {
             task.getErrorMessage()
         );
     }
+    
+    @Override
+    public void onBundleCompleted(DownloadBundle bundle) {
+        // 整组移动到模型目录后立即登记，不必等待目录监听
+        ModelCatalogDelta delta = LlamaServerManager.getInstance().refreshDirectories(List.of(bundle.getTargetDir()));
+        webSocketManager.sendModelCatalogEvent(delta);
+        webSocketManager.sendDownloadBundleEvent(bundle.getBundleId(), bundle.getName(), DownloadState.COMPLETED.toString(),
+                bundle.getTargetDir().toString(), bundle.getErrorMessage());
+    }
+    
+    @Override
+    public void onModelPreview(DownloadTask task, Map<String, Object> preview) {
+        webSocketManager.sendModelDownloadingEvent(task.getTaskId(), preview);
+    }
+    
+    @Override
+    public void onModelPreviewRemoved(String taskId) {
+        webSocketManager.sendModelDownloadingEvent(taskId, null);
+    }
 }
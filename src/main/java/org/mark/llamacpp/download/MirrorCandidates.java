@@ -0,0 +1,93 @@
+package org.mark.llamacpp.download;
+
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * 	同一个模型文件在不同站点上的地址。
+ * 	支持huggingface.co、hf-mirror.com和modelscope.cn的resolve地址，三者的仓库路径相同，
+ * 	只是ModelScope的地址多一层models，默认分支叫master而不是main。
+ */
+public final class MirrorCandidates {
+
+	private static final String HF_BASE = "https://huggingface.co";
+	private static final String HF_MIRROR_BASE = "https://hf-mirror.com";
+	private static final String MODELSCOPE_BASE = "https://www.modelscope.cn/models";
+
+	private MirrorCandidates() {
+
+	}
+
+	/**
+	 * 	返回同一个文件在其他站点上的地址，不包含source本身。无法识别的地址返回空列表。
+	 * @param source
+	 * @return
+	 */
+	public static List<URI> alternatives(URI source) {
+		List<URI> out = new ArrayList<>();
+		if (source == null || source.getHost() == null || source.getRawPath() == null) {
+			return out;
+		}
+		String host = source.getHost().toLowerCase(Locale.ROOT);
+		String path = source.getRawPath();
+
+		// 解析出 owner/repo、分支和文件路径
+		String repoPath;
+		String revision;
+		String filePath;
+		boolean fromModelScope;
+		String[] seg = path.split("/", -1);
+		if (host.equals("hf-mirror.com") || host.equals("huggingface.co") || host.endsWith(".huggingface.co")) {
+			// /{owner}/{repo}/resolve/{rev}/{file...}
+			if (seg.length < 6 || !"resolve".equals(seg[3])) {
+				return out;
+			}
+			repoPath = seg[1] + "/" + seg[2];
+			revision = seg[4];
+			filePath = String.join("/", Arrays.copyOfRange(seg, 5, seg.length));
+			fromModelScope = false;
+		} else if (host.equals("modelscope.cn") || host.endsWith(".modelscope.cn")) {
+			// /models/{owner}/{repo}/resolve/{rev}/{file...}
+			if (seg.length < 7 || !"models".equals(seg[1]) || !"resolve".equals(seg[4])) {
+				return out;
+			}
+			repoPath = seg[2] + "/" + seg[3];
+			revision = seg[5];
+			filePath = String.join("/", Arrays.copyOfRange(seg, 6, seg.length));
+			fromModelScope = true;
+		} else {
+			return out;
+		}
+		if (filePath.isEmpty()) {
+			return out;
+		}
+
+		String hfRevision = fromModelScope && "master".equals(revision) ? "main" : revision;
+		String msRevision = !fromModelScope && "main".equals(revision) ? "master" : revision;
+		String query = source.getRawQuery() != null ? "?" + source.getRawQuery() : "";
+		List<String> all = List.of(
+				HF_BASE + "/" + repoPath + "/resolve/" + hfRevision + "/" + filePath + query,
+				HF_MIRROR_BASE + "/" + repoPath + "/resolve/" + hfRevision + "/" + filePath + query,
+				MODELSCOPE_BASE + "/" + repoPath + "/resolve/" + msRevision + "/" + filePath);
+		for (String s : all) {
+			URI u = URI.create(s);
+			if (!u.getHost().equalsIgnoreCase(source.getHost())) {
+				out.add(u);
+			}
+		}
+		return out;
+	}
+
+	/**
+	 * 	用于展示的站点名称。
+	 * @param uri
+	 * @return
+	 */
+	public static String label(URI uri) {
+		String host = uri == null ? null : uri.getHost();
+		return host == null ? "unknown" : host.toLowerCase(Locale.ROOT);
+	}
+}
@@ -0,0 +1,166 @@
+package org.mark.llamacpp.download;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.regex.Pattern;
+
+import org.mark.llamacpp.gguf.GGUFMetaData;
+import org.mark.llamacpp.gguf.GGUFMetaDataReader;
+import org.mark.llamacpp.gguf.GGUFTensorIndex;
+import org.mark.llamacpp.server.LlamaServerManager;
+import org.mark.llamacpp.server.tools.VramEstimator;
+import org.mark.llamacpp.server.tools.VramEstimator.Estimate;
+import org.mark.llamacpp.server.tools.VramEstimator.KvCacheType;
+
+/**
+ * 	下载中模型的目录项，只根据GGUF头部（键值区和张量信息表）生成。
+ * 	包含元数据、推断的能力和几个常用上下文下的显存估算，文件下载完成前就可以准备启动参数，
+ * 	或者取消显存放不下的量化版本。
+ */
+final class ModelPreview {
+
+	private static final long MIB = 1024L * 1024;
+
+	/**
+	 * 	分卷文件名，例如 model-00001-of-00003.gguf
+	 */
+	static final Pattern SPLIT_PATTERN = Pattern.compile("^(.*)-(\\d{5})-of-(\\d{5})\\.gguf$", Pattern.CASE_INSENSITIVE);
+
+	/**
+	 * 	估算的上下文长度，超过训练长度的不估算
+	 */
+	private static final List<Integer> CONTEXTS = List.of(4096, 8192, 16384, 32768, 65536, 131072);
+
+	private static final List<KvCacheType[]> KV_TYPES = List.of(
+			new KvCacheType[] { KvCacheType.F16, KvCacheType.F16 },
+			new KvCacheType[] { KvCacheType.Q8_0, KvCacheType.Q8_0 });
+
+	/**
+	 * 	元数据中超过这个长度的数组只保留长度
+	 */
+	private static final int MAX_ARRAY_ELEMENTS = 64;
+
+	private ModelPreview() {
+
+	}
+
+	/**
+	 * 	生成下载中的目录项。
+	 * @param task
+	 * @param header 从文件开头读取的字节
+	 * @param fileSize 这个文件的大小
+	 * @param extraWeightsBytes 同一模型其他分卷的大小
+	 * @param path 下载完成后模型所在的位置
+	 * @return
+	 * @throws IOException
+	 */
+	static Map<String, Object> build(DownloadTask task, ByteBuffer header, long fileSize, long extraWeightsBytes, String path)
+			throws IOException {
+		Map<String, Object> meta = GGUFMetaDataReader.read(header);
+		GGUFTensorIndex index = GGUFTensorIndex.parseHeader(header, task.getFileName(), fileSize);
+		if (meta.isEmpty() || index == null) {
+			throw new IOException("不是有效的GGUF文件: " + task.getFileName());
+		}
+		String architecture = asString(meta.get("general.architecture"));
+		String name = asString(meta.get("general.name"));
+		String baseName = asString(meta.get("general.basename"));
+		Object fileType = meta.get("general.file_type");
+		Object ctx = architecture == null ? null : meta.get(architecture + ".context_length");
+		String template = asString(meta.get("tokenizer.chat_template"));
+		boolean mmproj = "clip".equalsIgnoreCase(architecture) || "mmproj".equalsIgnoreCase(asString(meta.get("general.type")));
+
+		Map<String, Object> item = new LinkedHashMap<>();
+		item.put("taskId", task.getTaskId());
+		item.put("bundleId", task.getBundleId());
+		item.put("state", "downloading");
+		item.put("fileName", task.getFileName());
+		item.put("path", path);
+		item.put("name", name != null ? name : task.getFileName());
+		item.put("architecture", architecture);
+		item.put("quantization", fileType instanceof Number ? GGUFMetaData.fileTypeToQuantizationName(((Number) fileType).intValue()) : null);
+		item.put("contextLength", ctx instanceof Number ? ((Number) ctx).longValue() : null);
+		item.put("sizeLabel", asString(meta.get("general.size_label")));
+		item.put("size", fileSize + Math.max(0, extraWeightsBytes));
+		item.put("tensorCount", index.getTensors().size());
+		item.put("headerBytes", index.getDataOffset());
+		item.put("isMmproj", mmproj);
+		if (!mmproj) {
+			List<String> names = new ArrayList<>();
+			names.add(task.getFileName());
+			names.add(name == null ? "" : name);
+			names.add(baseName == null ? "" : baseName);
+			item.put("capabilities", LlamaServerManager.resolveModelType(names, architecture, template));
+			item.put("vram", estimate(header, fileSize, extraWeightsBytes, ctx instanceof Number ? ((Number) ctx).longValue() : 0));
+		}
+		item.put("metadata", compact(meta));
+		item.put("updatedAt", System.currentTimeMillis());
+		return item;
+	}
+
+	/**
+	 * 	开启flash attention、单个槽位时几个上下文长度下的显存估算。
+	 */
+	private static Map<String, Object> estimate(ByteBuffer header, long fileSize, long extraWeightsBytes, long trainContext)
+			throws IOException {
+		List<Integer> contexts = new ArrayList<>();
+		for (int c : CONTEXTS) {
+			if (trainContext <= 0 ? c <= 32768 : c <= trainContext) {
+				contexts.add(c);
+			}
+		}
+		if (trainContext > 0 && trainContext < CONTEXTS.get(0)) {
+			contexts.add((int) trainContext);
+		}
+		List<Estimate> estimates = VramEstimator.estimateFromHeader(header, fileSize, extraWeightsBytes, contexts, KV_TYPES, true);
+		List<Map<String, Object>> points = new ArrayList<>(estimates.size());
+		for (Estimate e : estimates) {
+			Map<String, Object> p = new LinkedHashMap<>();
+			p.put("ctx", e.contextLength());
+			p.put("cacheTypeK", e.kvCacheTypeK().id());
+			p.put("cacheTypeV", e.kvCacheTypeV().id());
+			p.put("kvBytes", e.kvCacheBytes());
+			p.put("overheadBytes", e.runtimeOverheadBytes());
+			p.put("totalBytes", e.totalBytes());
+			p.put("totalMiB", e.totalBytes() / MIB);
+			points.add(p);
+		}
+		Map<String, Object> out = new LinkedHashMap<>();
+		if (!estimates.isEmpty()) {
+			Estimate first = estimates.get(0);
+			out.put("weightsBytes", first.modelWeightsBytes());
+			out.put("nLayer", first.nLayer());
+			out.put("kvLayerCount", first.kvLayerCount());
+		}
+		out.put("flashAttention", true);
+		out.put("points", points);
+		return out;
+	}
+
+	/**
+	 * 	去掉词表之类的大数组，只保留长度。
+	 */
+	private static Map<String, Object> compact(Map<String, Object> meta) {
+		Map<String, Object> out = new TreeMap<>();
+		for (Map.Entry<String, Object> e : meta.entrySet()) {
+			if (e.getValue() instanceof List<?> list && list.size() > MAX_ARRAY_ELEMENTS) {
+				out.put(e.getKey() + ".size", list.size());
+			} else {
+				out.put(e.getKey(), e.getValue());
+			}
+		}
+		return out;
+	}
+
+	private static String asString(Object o) {
+		if (o == null) {
+			return null;
+		}
+		String s = String.valueOf(o).trim();
+		return s.isEmpty() ? null : s;
+	}
+}
@@ -0,0 +1,199 @@
+package org.mark.llamacpp.download;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.net.http.HttpResponse.BodyHandlers;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.mark.llamacpp.gguf.GGUFTensorIndex;
+
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * 	用HTTP Range请求读取远程GGUF文件的头部（键值区和张量信息表），不下载张量数据。
+ * 	头部的大小事先不知道，先读一段，解析不完整时加倍再读，只请求还没有读到的部分。
+ */
+public final class RemoteGGUFHeader {
+
+	/**
+	 * 	第一次读取的字节数
+	 */
+	public static final int PROBE_BYTES = 4 * 1024 * 1024;
+
+	/**
+	 * 	最多读取的字节数，与本地读取张量清单时映射的大小一致
+	 */
+	public static final int MAX_BYTES = 64 * 1024 * 1024;
+
+	/**
+	 * 	自检服务解析Range请求头
+	 */
+	private static final Pattern RANGE = Pattern.compile("bytes=(\\d+)-(\\d*)");
+
+	/**
+	 * 	读取文件中的一段。
+	 */
+	@FunctionalInterface
+	public interface RangeReader {
+		/**
+		 * 	读取[start, end]，文件比end短时返回实际读到的字节。
+		 * @param start
+		 * @param end 包含
+		 * @return
+		 * @throws IOException
+		 * @throws InterruptedException
+		 */
+		byte[] read(long start, long end) throws IOException, InterruptedException;
+	}
+
+	private RemoteGGUFHeader() {
+
+	}
+
+	/**
+	 * 	从文件开头读取，直到覆盖整个张量信息表。
+	 * @param reader
+	 * @param contentLength 文件大小，未知时传0
+	 * @param probeBytes 第一次读取的字节数
+	 * @return 不是GGUF文件或头部超过上限时返回null
+	 * @throws IOException
+	 * @throws InterruptedException
+	 */
+	public static ByteBuffer fetch(RangeReader reader, long contentLength, int probeBytes) throws IOException, InterruptedException {
+		long limit = contentLength > 0 ? Math.min(contentLength, MAX_BYTES) : MAX_BYTES;
+		long size = Math.min(Math.max(probeBytes, 4096), limit);
+		byte[] data = new byte[0];
+		while (true) {
+			byte[] more = reader.read(data.length, size - 1);
+			byte[] merged = Arrays.copyOf(data, data.length + more.length);
+			System.arraycopy(more, 0, merged, data.length, more.length);
+			data = merged;
+			ByteBuffer buffer = ByteBuffer.wrap(data);
+			try {
+				long fileSize = contentLength > 0 ? contentLength : data.length;
+				return GGUFTensorIndex.parseHeader(buffer, "header", fileSize) == null ? null : buffer;
+			} catch (BufferUnderflowException e) {
+				// 词表很大时头部会超过第一次读取的大小
+			}
+			if (data.length < size || size >= limit) {
+				return null;
+			}
+			size = Math.min(size * 2, limit);
+		}
+	}
+
+	/**
+	 * 	自检：在本机起一个只提供文件头部的HTTP服务，通过Range逐段读取，与直接读取本地文件的结果对比。
+	 * 	用法：RemoteGGUFHeader &lt;model.gguf&gt; [第一次读取的字节数]
+	 * @param argv
+	 * @throws Exception
+	 */
+	public static void main(String[] argv) throws Exception {
+		if (argv == null || argv.length == 0) {
+			System.err.println("用法: RemoteGGUFHeader <model.gguf> [probeBytes]");
+			System.exit(2);
+		}
+		File file = new File(argv[0]);
+		int probeBytes = argv.length > 1 ? Integer.parseInt(argv[1]) : 4096;
+		GGUFTensorIndex local = GGUFTensorIndex.read(file);
+		if (local == null) {
+			System.err.println("不是GGUF文件: " + file);
+			System.exit(2);
+		}
+		// 只提供到张量数据开始处为止的内容，读取超出这个范围说明解析没有在头部结束
+		long contentLength = file.length();
+		byte[] prefix = new byte[(int) Math.min(contentLength, local.getDataOffset())];
+		try (InputStream in = new FileInputStream(file)) {
+			in.readNBytes(prefix, 0, prefix.length);
+		}
+		AtomicInteger requests = new AtomicInteger();
+		HttpServer server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+		server.createContext("/model.gguf", exchange -> {
+			requests.incrementAndGet();
+			Matcher m = RANGE.matcher(String.valueOf(exchange.getRequestHeaders().getFirst("Range")));
+			long start = m.matches() ? Long.parseLong(m.group(1)) : 0;
+			long end = m.matches() && !m.group(2).isEmpty() ? Long.parseLong(m.group(2)) : contentLength - 1;
+			if (start >= prefix.length) {
+				exchange.sendResponseHeaders(416, -1);
+				exchange.close();
+				return;
+			}
+			end = Math.min(end, prefix.length - 1);
+			exchange.getResponseHeaders().set("Content-Range", "bytes " + start + "-" + end + "/" + contentLength);
+			exchange.sendResponseHeaders(206, end - start + 1);
+			try (OutputStream out = exchange.getResponseBody()) {
+				out.write(prefix, (int) start, (int) (end - start + 1));
+			}
+		});
+		server.start();
+		try {
+			URI uri = URI.create("http://" + server.getAddress().getHostString() + ":" + server.getAddress().getPort() + "/model.gguf");
+			HttpClient client = HttpClient.newHttpClient();
+			ByteBuffer header = fetch(http(client, uri, Duration.ofSeconds(10), "gguf-header-check", null), contentLength, probeBytes);
+			GGUFTensorIndex remote = header == null ? null : GGUFTensorIndex.parseHeader(header, file.getName(), contentLength);
+			boolean ok = remote != null
+					&& remote.getDataOffset() == local.getDataOffset()
+					&& remote.getTensors().size() == local.getTensors().size()
+					&& remote.getTensorDataBytes() == local.getTensorDataBytes();
+			System.out.println("requests=" + requests.get());
+			System.out.println("header_bytes=" + (header == null ? 0 : header.capacity()));
+			System.out.println("data_offset=" + local.getDataOffset() + (remote == null ? "" : "/" + remote.getDataOffset()));
+			System.out.println("tensors=" + local.getTensors().size() + (remote == null ? "" : "/" + remote.getTensors().size()));
+			System.out.println(ok ? "OK" : "MISMATCH");
+			if (!ok) {
+				System.exit(1);
+			}
+		} finally {
+			server.stop(0);
+		}
+	}
+
+	/**
+	 * 	通过HTTP读取的RangeReader。client需要自动跟随跳转。
+	 * @param client
+	 * @param uri
+	 * @param timeout
+	 * @param userAgent
+	 * @param token Bearer token，可以为null
+	 * @return
+	 */
+	public static RangeReader http(HttpClient client, URI uri, Duration timeout, String userAgent, String token) {
+		return (start, end) -> {
+			HttpRequest.Builder builder = HttpRequest.newBuilder()
+					.uri(uri)
+					.timeout(timeout)
+					.header("User-Agent", userAgent)
+					.header("Range", "bytes=" + start + "-" + end)
+					.GET();
+			if (token != null && !token.isBlank()) {
+				builder.header("Authorization", "Bearer " + token.trim());
+			}
+			HttpResponse<InputStream> resp = client.send(builder.build(), BodyHandlers.ofInputStream());
+			try (InputStream in = resp.body()) {
+				if (resp.statusCode() == 416) {
+					return new byte[0];
+				}
+				if (resp.statusCode() != 206) {
+					// 不支持Range的服务器会返回整个文件，不能读下去
+					throw new IOException("读取GGUF头部失败，HTTP状态码: " + resp.statusCode() + " " + uri);
+				}
+				return in.readNBytes((int) (end - start + 1));
+			}
+		};
+	}
+}
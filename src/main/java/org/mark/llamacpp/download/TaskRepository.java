@@ -14,9 +14,12 @@ import java.io.BufferedReader;
 import java.io.BufferedWriter;
 import java.io.IOException;
 import java.lang.reflect.Type;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
 import java.nio.file.StandardOpenOption;
 import java.time.LocalDateTime;
 import java.time.format.DateTimeFormatter;
@@ -31,6 +34,10 @@ import org.slf4j.LoggerFactory;
 
 /**
  * 任务仓库，负责任务的持久化存储和恢复
+ * <p>
+ * 任务的变更以一行一条的JSON追加到 downloads/tasks.journal，每次只写被修改的那个任务；
+ * 日志积累到一定条数后，把全部任务压缩成快照 downloads/tasks.json 并清空日志。
+ * 启动时先读快照再重放日志，进程崩溃时最后一行写了一半也只丢这一条。
  */
 public class TaskRepository {
 
@@ -40,9 +47,45 @@ public class TaskRepository {
     private static final String TASKS_FILE = "tasks.json";
     private static final Path REPOSITORY_PATH = Paths.get(REPOSITORY_DIR);
     private static final Path TASKS_FILE_PATH = REPOSITORY_PATH.resolve(TASKS_FILE);
+    private static final String JOURNAL_FILE = "tasks.journal";
+    private static final Path JOURNAL_FILE_PATH = REPOSITORY_PATH.resolve(JOURNAL_FILE);
+    private static final String BUNDLES_FILE = "bundles.json";
+    private static final Path BUNDLES_FILE_PATH = REPOSITORY_PATH.resolve(BUNDLES_FILE);
+    
+    /**
+     * 日志达到多少条后压缩成快照
+     */
+    private static final int COMPACT_THRESHOLD = 1000;
+    
+    private static final String OP_PUT = "put";
+    private static final String OP_PROGRESS = "progress";
+    private static final String OP_DELETE = "delete";
+    
+    /**
+     * 日志中的一条记录
+     */
+    private static class JournalEntry {
+        private String op;
+        private String taskId;
+        private DownloadTaskDTO task;
+        private Long downloadedBytes;
+        private Integer partsTotal;
+        private Integer partsCompleted;
+    }
     
     private final Map<String, DownloadTask> tasks = new ConcurrentHashMap<>();
+    /**
+     * 多文件下载组，数量少且很少变化，整体写入文件
+     */
+    private final Map<String, DownloadBundle> bundles = new ConcurrentHashMap<>();
     private final Gson gson;
+    /**
+     * 日志使用单行格式
+     */
+    private final Gson journalGson;
+    private final Object journalLock = new Object();
+    private BufferedWriter journalWriter;
+    private int journalEntries;
     
     public TaskRepository() {
         // 创建Gson实例，支持LocalDateTime的序列化/反序列化
@@ -51,6 +94,9 @@ public class TaskRepository {
                 .registerTypeAdapter(LocalDateTime.class, new LocalDateTimeAdapter())
                 .setPrettyPrinting()
                 .create();
+        this.journalGson = new GsonBuilder()
+                .registerTypeAdapter(LocalDateTime.class, new LocalDateTimeAdapter())
+                .create();
         
         // 确保仓库目录存在
         try {
@@ -61,16 +107,45 @@ public class TaskRepository {
         	logger.info("无法创建下载仓库目录: {}", e);
         }
         
-        // 加载已保存的任务
+        // 加载已保存的任务，重放日志后立即压缩，日志从空开始
         loadTasks();
+        replayJournal();
+        compact();
+        loadBundles();
     }
     
     /**
      * 添加或更新任务
      */
     public void saveTask(DownloadTask task) {
-        tasks.put(task.getTaskId(), task);
-        persistTasks();
+        // 快照、更新和写日志在同一把锁内完成，日志行的顺序与状态变化的顺序一致，
+        // 否则进度刷新和状态切换并发时，较旧的快照可能写在较新的后面，重放时恢复成旧状态
+        synchronized (journalLock) {
+            tasks.put(task.getTaskId(), task);
+            JournalEntry entry = new JournalEntry();
+            entry.op = OP_PUT;
+            entry.taskId = task.getTaskId();
+            entry.task = new DownloadTaskDTO(task);
+            append(entry);
+        }
+    }
+    
+    /**
+     * 只记录下载进度，比saveTask写入的内容少，适合周期性调用
+     */
+    public void saveProgress(DownloadTask task) {
+        synchronized (journalLock) {
+            if (!tasks.containsKey(task.getTaskId())) {
+                return;
+            }
+            JournalEntry entry = new JournalEntry();
+            entry.op = OP_PROGRESS;
+            entry.taskId = task.getTaskId();
+            entry.downloadedBytes = task.getDownloadedBytes();
+            entry.partsTotal = task.getPartsTotal();
+            entry.partsCompleted = task.getPartsCompleted();
+            append(entry);
+        }
     }
     
     /**
@@ -91,31 +166,229 @@ public class TaskRepository {
      * 删除任务
      */
     public void deleteTask(String taskId) {
-        tasks.remove(taskId);
-        persistTasks();
-    }
-    
-    /**
-     * 将任务持久化到文件
-     */
-    private void persistTasks() {
-        try (BufferedWriter writer = Files.newBufferedWriter(
-                TASKS_FILE_PATH,
-                StandardOpenOption.CREATE,
-                StandardOpenOption.TRUNCATE_EXISTING)) {
-            
-            // 将DownloadTask转换为DTO再序列化
-            List<DownloadTaskDTO> dtos = tasks.values().stream()
-                    .map(DownloadTaskDTO::new)
-                    .collect(java.util.stream.Collectors.toList());
-            
-            String json = gson.toJson(dtos);
-            writer.write(json);
+        synchronized (journalLock) {
+            tasks.remove(taskId);
+            JournalEntry entry = new JournalEntry();
+            entry.op = OP_DELETE;
+            entry.taskId = taskId;
+            append(entry);
+        }
+    }
+    
+    /**
+     * 添加或更新下载组
+     */
+    public void saveBundle(DownloadBundle bundle) {
+        bundles.put(bundle.getBundleId(), bundle);
+        persistBundles();
+    }
+    
+    public DownloadBundle getBundle(String bundleId) {
+        return bundleId == null ? null : bundles.get(bundleId);
+    }
+    
+    public List<DownloadBundle> getAllBundles() {
+        return new ArrayList<>(bundles.values());
+    }
+    
+    public void deleteBundle(String bundleId) {
+        if (bundles.remove(bundleId) != null) {
+            persistBundles();
+        }
+    }
+    
+    private synchronized void persistBundles() {
+        Path tmp = BUNDLES_FILE_PATH.resolveSibling(BUNDLES_FILE + ".tmp");
+        try {
+            Files.writeString(tmp, gson.toJson(new ArrayList<>(bundles.values())), StandardCharsets.UTF_8);
+            try {
+                Files.move(tmp, BUNDLES_FILE_PATH, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(tmp, BUNDLES_FILE_PATH, StandardCopyOption.REPLACE_EXISTING);
+            }
+        } catch (IOException e) {
+            logger.info("保存下载组失败: {}", e);
+        }
+    }
+    
+    private void loadBundles() {
+        if (!Files.exists(BUNDLES_FILE_PATH)) {
+            return;
+        }
+        try {
+            DownloadBundle[] loaded = gson.fromJson(Files.readString(BUNDLES_FILE_PATH, StandardCharsets.UTF_8), DownloadBundle[].class);
+            if (loaded != null) {
+                for (DownloadBundle b : loaded) {
+                    if (b != null && b.getBundleId() != null) {
+                        bundles.put(b.getBundleId(), b);
+                    }
+                }
+            }
+        } catch (IOException | JsonParseException e) {
+            logger.info("加载下载组失败: {}", e);
+        }
+    }
+    
+    /**
+     * 压缩日志并关闭文件
+     */
+    public void close() {
+        synchronized (journalLock) {
+            compact();
+            closeJournalWriter();
+        }
+    }
+    
+    /**
+     * 追加一条日志，条数达到阈值时压缩。调用方持有journalLock
+     */
+    private void append(JournalEntry entry) {
+        synchronized (journalLock) {
+            try {
+                if (journalWriter == null) {
+                    journalWriter = Files.newBufferedWriter(
+                            JOURNAL_FILE_PATH,
+                            StandardCharsets.UTF_8,
+                            StandardOpenOption.CREATE,
+                            StandardOpenOption.APPEND);
+                }
+                journalWriter.write(journalGson.toJson(entry));
+                journalWriter.write('\n');
+                journalWriter.flush();
+                journalEntries++;
+            } catch (IOException e) {
+                logger.info("写入任务日志失败: {}", e);
+                closeJournalWriter();
+            }
+            if (journalEntries >= COMPACT_THRESHOLD) {
+                compact();
+            }
+        }
+    }
+    
+    /**
+     * 把全部任务写成快照，再清空日志。
+     * 快照先写到临时文件再原子替换；替换成功后才清空日志，中途崩溃时重放旧日志的结果也是一样的。
+     */
+    private void compact() {
+        synchronized (journalLock) {
+            Path tmp = TASKS_FILE_PATH.resolveSibling(TASKS_FILE + ".tmp");
+            try {
+                // 将DownloadTask转换为DTO再序列化
+                List<DownloadTaskDTO> dtos = tasks.values().stream()
+                        .map(DownloadTaskDTO::new)
+                        .collect(java.util.stream.Collectors.toList());
+                Files.writeString(tmp, gson.toJson(dtos), StandardCharsets.UTF_8);
+                try {
+                    Files.move(tmp, TASKS_FILE_PATH, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+                } catch (AtomicMoveNotSupportedException e) {
+                    Files.move(tmp, TASKS_FILE_PATH, StandardCopyOption.REPLACE_EXISTING);
+                }
+                
+                closeJournalWriter();
+                Files.deleteIfExists(JOURNAL_FILE_PATH);
+                journalEntries = 0;
+            } catch (IOException e) {
+                logger.info("保存任务失败: {}", e);
+            }
+        }
+    }
+    
+    private void closeJournalWriter() {
+        if (journalWriter != null) {
+            try {
+                journalWriter.close();
+            } catch (IOException ignored) {
+            }
+            journalWriter = null;
+        }
+    }
+    
+    /**
+     * 在快照的基础上重放日志，无法解析的行（通常是崩溃时写了一半的最后一行）跳过
+     */
+    private void replayJournal() {
+        if (!Files.exists(JOURNAL_FILE_PATH)) {
+            return;
+        }
+        int applied = 0;
+        int skipped = 0;
+        try (BufferedReader reader = Files.newBufferedReader(JOURNAL_FILE_PATH, StandardCharsets.UTF_8)) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (line.isBlank()) {
+                    continue;
+                }
+                JournalEntry entry;
+                try {
+                    entry = journalGson.fromJson(line, JournalEntry.class);
+                } catch (JsonParseException e) {
+                    skipped++;
+                    continue;
+                }
+                if (entry == null || entry.op == null || entry.taskId == null) {
+                    skipped++;
+                    continue;
+                }
+                try {
+                    applyEntry(entry);
+                    applied++;
+                } catch (RuntimeException e) {
+                    skipped++;
+                }
+            }
         } catch (IOException e) {
-            logger.info("保存任务失败: {}", e);
+            logger.info("读取任务日志失败: {}", e);
+        }
+        if (skipped > 0) {
+            logger.info("任务日志中有{}条记录无法解析，已跳过", skipped);
+        }
+        logger.info("已重放任务日志: {} 条", applied);
+    }
+    
+    private void applyEntry(JournalEntry entry) {
+        switch (entry.op) {
+            case OP_PUT -> {
+                if (entry.task != null) {
+                    tasks.put(entry.taskId, restore(entry.task.toDownloadTask()));
+                }
+            }
+            case OP_PROGRESS -> {
+                DownloadTask task = tasks.get(entry.taskId);
+                if (task != null) {
+                    if (entry.downloadedBytes != null) {
+                        task.setDownloadedBytes(entry.downloadedBytes);
+                    }
+                    if (entry.partsTotal != null) {
+                        task.setPartsTotal(entry.partsTotal);
+                    }
+                    if (entry.partsCompleted != null) {
+                        task.setPartsCompleted(entry.partsCompleted);
+                    }
+                }
+            }
+            case OP_DELETE -> tasks.remove(entry.taskId);
+            default -> {
+            }
         }
     }
     
+    /**
+     * 恢复任务状态，重置transient字段
+     */
+    private static DownloadTask restore(DownloadTask task) {
+        task.setDownloader(null);
+        task.setDownloadThread(null);
+        task.setPaused(false);
+        
+        // 如果任务正在下载或暂停中，重置为准备状态
+        if (task.getState() == DownloadState.DOWNLOADING ||
+            task.getState() == DownloadState.PREPARING) {
+            task.setState(DownloadState.IDLE);
+        }
+        return task;
+    }
+    
     /**
      * 从文件加载任务
      */
@@ -130,19 +403,7 @@ public class TaskRepository {
                 DownloadTaskDTO[] loadedDTOs = gson.fromJson(reader, DownloadTaskDTO[].class);
                 if (loadedDTOs != null) {
                     for (DownloadTaskDTO dto : loadedDTOs) {
-                        DownloadTask task = dto.toDownloadTask();
-                        
-                        // 恢复任务状态，重置transient字段
-                        task.setDownloader(null);
-                        task.setDownloadThread(null);
-                        task.setPaused(false);
-                        
-                        // 如果任务正在下载或暂停中，重置为准备状态
-                        if (task.getState() == DownloadState.DOWNLOADING ||
-                            task.getState() == DownloadState.PREPARING) {
-                            task.setState(DownloadState.IDLE);
-                        }
-                        
+                        DownloadTask task = restore(dto.toDownloadTask());
                         tasks.put(task.getTaskId(), task);
                     }
                 }
@@ -0,0 +1,111 @@
+package org.mark.llamacpp.download.struct;
+
+/**
+ * 	根据实测吞吐调整连接数。
+ * 	每次只增减一条连接，观察下一个采样周期的总速度：增加后速度没有明显提升就撤回，
+ * 	减少后速度明显下降就恢复。撤回后保持一段时间再继续试探，以适应网络状况的变化。
+ */
+public final class ConnectionTuner {
+
+	/**
+	 * 	认为有明显变化的比例
+	 */
+	private static final double GAIN = 0.10;
+
+	/**
+	 * 	撤回后保持不动的采样次数
+	 */
+	private static final int HOLD_SAMPLES = 5;
+
+	private final int min;
+	private final int max;
+	private int target;
+	private long lastBytes = -1;
+	private long lastNanos;
+	/**
+	 * 	上次调整之前的速度，字节/秒
+	 */
+	private double baseline;
+	/**
+	 * 	上次调整的方向，尚未评估时为+1或-1
+	 */
+	private int pending;
+	/**
+	 * 	调整后先跳过一次采样，让新连接度过起步阶段
+	 */
+	private boolean settling;
+	private int hold;
+	private double lastRate;
+
+	public ConnectionTuner(int initial, int min, int max) {
+		this.min = Math.max(1, min);
+		this.max = Math.max(this.min, max);
+		this.target = Math.max(this.min, Math.min(this.max, initial));
+	}
+
+	public int getTarget() {
+		return this.target;
+	}
+
+	/**
+	 * 	最近一个采样周期的总速度，字节/秒。
+	 * @return
+	 */
+	public double getLastRate() {
+		return this.lastRate;
+	}
+
+	/**
+	 * 	输入累计下载字节数，返回新的期望连接数。
+	 * @param totalBytes
+	 * @param nowNanos
+	 * @return
+	 */
+	public int update(long totalBytes, long nowNanos) {
+		if (this.lastBytes < 0 || nowNanos <= this.lastNanos) {
+			this.lastBytes = totalBytes;
+			this.lastNanos = nowNanos;
+			return this.target;
+		}
+		double rate = (totalBytes - this.lastBytes) * 1e9 / (nowNanos - this.lastNanos);
+		this.lastBytes = totalBytes;
+		this.lastNanos = nowNanos;
+		this.lastRate = rate;
+
+		if (this.settling) {
+			this.settling = false;
+			return this.target;
+		}
+		if (this.pending > 0 && rate < this.baseline * (1 + GAIN)) {
+			// 多一条连接没有带来明显提升
+			this.target--;
+			this.pending = 0;
+			this.hold = HOLD_SAMPLES;
+			return this.target;
+		}
+		if (this.pending < 0 && rate < this.baseline * (1 - GAIN)) {
+			// 少一条连接明显变慢
+			this.target++;
+			this.pending = 0;
+			this.hold = HOLD_SAMPLES;
+			return this.target;
+		}
+		this.pending = 0;
+		if (this.hold > 0) {
+			this.hold--;
+			return this.target;
+		}
+
+		this.baseline = rate;
+		if (this.target < this.max) {
+			this.target++;
+			this.pending = 1;
+			this.settling = true;
+		} else if (this.target > this.min) {
+			this.target--;
+			this.pending = -1;
+			this.settling = true;
+		}
+		return this.target;
+	}
+}
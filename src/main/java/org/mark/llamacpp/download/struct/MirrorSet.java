@@ -0,0 +1,231 @@
+package org.mark.llamacpp.download.struct;
+
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * 	同一个文件的多个下载地址。
+ * 	每个区间下载前从这里选一个地址：还没测过速的地址先各分一段，之后按实测的单连接速度加权随机分配；
+ * 	连续失败或明显慢于最快地址的镜像在下载过程中被剔除，至少保留一个。
+ */
+public final class MirrorSet {
+
+	/**
+	 * 	连续失败多少次后剔除
+	 */
+	private static final int MAX_CONSECUTIVE_FAILURES = 3;
+
+	/**
+	 * 	测速至少需要的字节数
+	 */
+	private static final long MIN_SAMPLE_BYTES = 8L * 1024 * 1024;
+
+	/**
+	 * 	单连接速度低于最快镜像的这个比例时剔除
+	 */
+	private static final double SLOW_RATIO = 0.125;
+
+	/**
+	 * 	一个下载地址及其统计。
+	 */
+	public static final class Mirror {
+		private final URI uri;
+		private final String name;
+		private long bytes;
+		private long nanos;
+		private int assigned;
+		private int consecutiveFailures;
+		private int failures;
+		private boolean dropped;
+		private String dropReason;
+
+		private Mirror(URI uri, String name) {
+			this.uri = uri;
+			this.name = name;
+		}
+
+		public URI getUri() {
+			return this.uri;
+		}
+
+		public String getName() {
+			return this.name;
+		}
+
+		/**
+		 * 	单连接的平均速度，字节/秒，没有样本时为0。
+		 */
+		private double rate() {
+			return this.nanos <= 0 ? 0 : this.bytes * 1e9 / this.nanos;
+		}
+	}
+
+	private final List<Mirror> mirrors = new ArrayList<>();
+
+	/**
+	 * 	只有一个地址的集合。
+	 * @param uri
+	 * @param name
+	 * @return
+	 */
+	public static MirrorSet of(URI uri, String name) {
+		MirrorSet set = new MirrorSet();
+		set.add(uri, name);
+		return set;
+	}
+
+	public synchronized void add(URI uri, String name) {
+		this.mirrors.add(new Mirror(uri, name));
+	}
+
+	public synchronized int size() {
+		return this.mirrors.size();
+	}
+
+	/**
+	 * 	为下一段选择一个地址。
+	 * @return
+	 */
+	public synchronized Mirror pick() {
+		this.dropSlow();
+		List<Mirror> alive = new ArrayList<>();
+		for (Mirror m : this.mirrors) {
+			if (!m.dropped) {
+				alive.add(m);
+			}
+		}
+		// 先让每个镜像都跑一段，用来测速
+		for (Mirror m : alive) {
+			if (m.assigned == 0) {
+				m.assigned++;
+				return m;
+			}
+		}
+		// 还在测速中的镜像按已测镜像的平均速度估计
+		double known = 0;
+		int knownCount = 0;
+		for (Mirror m : alive) {
+			if (m.bytes >= MIN_SAMPLE_BYTES) {
+				known += m.rate();
+				knownCount++;
+			}
+		}
+		double fallback = knownCount > 0 ? known / knownCount : 1;
+		double total = 0;
+		double[] weights = new double[alive.size()];
+		for (int i = 0; i < alive.size(); i++) {
+			Mirror m = alive.get(i);
+			weights[i] = Math.max(1, m.bytes >= MIN_SAMPLE_BYTES ? m.rate() : fallback);
+			total += weights[i];
+		}
+		double r = ThreadLocalRandom.current().nextDouble(total);
+		for (int i = 0; i < alive.size(); i++) {
+			r -= weights[i];
+			if (r < 0) {
+				alive.get(i).assigned++;
+				return alive.get(i);
+			}
+		}
+		Mirror last = alive.get(alive.size() - 1);
+		last.assigned++;
+		return last;
+	}
+
+	/**
+	 * 	记录一次传输。
+	 * @param mirror
+	 * @param bytes
+	 * @param nanos
+	 */
+	public synchronized void recordTransfer(Mirror mirror, long bytes, long nanos) {
+		mirror.bytes += bytes;
+		mirror.nanos += Math.max(0, nanos);
+		if (bytes > 0) {
+			mirror.consecutiveFailures = 0;
+		}
+	}
+
+	/**
+	 * 	记录一次失败，连续失败过多时剔除。
+	 * @param mirror
+	 */
+	public synchronized void recordFailure(Mirror mirror) {
+		mirror.failures++;
+		mirror.consecutiveFailures++;
+		if (mirror.consecutiveFailures >= MAX_CONSECUTIVE_FAILURES) {
+			this.drop(mirror, "连续失败" + mirror.consecutiveFailures + "次");
+		}
+	}
+
+	/**
+	 * 	剔除返回了错误内容的镜像。
+	 * @param mirror
+	 * @param reason
+	 */
+	public synchronized void reject(Mirror mirror, String reason) {
+		this.drop(mirror, reason);
+	}
+
+	/**
+	 * 	各镜像的统计，用于展示。
+	 * @return
+	 */
+	public synchronized List<Map<String, Object>> snapshot() {
+		List<Map<String, Object>> out = new ArrayList<>();
+		for (Mirror m : this.mirrors) {
+			Map<String, Object> item = new LinkedHashMap<>();
+			item.put("name", m.name);
+			item.put("bytes", m.bytes);
+			item.put("bytesPerSecond", (long) m.rate());
+			item.put("ranges", m.assigned);
+			item.put("failures", m.failures);
+			item.put("dropped", m.dropped);
+			if (m.dropReason != null) {
+				item.put("dropReason", m.dropReason);
+			}
+			out.add(item);
+		}
+		return out;
+	}
+
+	private void dropSlow() {
+		double best = 0;
+		for (Mirror m : this.mirrors) {
+			if (!m.dropped && m.bytes >= MIN_SAMPLE_BYTES) {
+				best = Math.max(best, m.rate());
+			}
+		}
+		if (best <= 0) {
+			return;
+		}
+		for (Mirror m : this.mirrors) {
+			if (!m.dropped && m.bytes >= MIN_SAMPLE_BYTES && m.rate() < best * SLOW_RATIO) {
+				this.drop(m, "速度过慢");
+			}
+		}
+	}
+
+	/**
+	 * 	剔除镜像，最后一个可用的镜像不会被剔除。
+	 */
+	private void drop(Mirror mirror, String reason) {
+		if (mirror.dropped) {
+			return;
+		}
+		int alive = 0;
+		for (Mirror m : this.mirrors) {
+			if (!m.dropped) {
+				alive++;
+			}
+		}
+		if (alive <= 1) {
+			return;
+		}
+		mirror.dropped = true;
+		mirror.dropReason = reason;
+	}
+}
@@ -1,98 +1,105 @@
 package org.mark.llamacpp.download.struct;
 
-import java.io.BufferedInputStream;
-import java.io.BufferedOutputStream;
-import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.OutputStream;
-import java.net.URI;
 import java.net.http.HttpClient;
 import java.net.http.HttpRequest;
 import java.net.http.HttpResponse;
 import java.net.http.HttpResponse.BodyHandlers;
-import java.nio.file.Files;
-import java.nio.file.Path;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.time.Duration;
 import java.util.Set;
 import java.util.concurrent.Callable;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32C;
 
+import org.mark.llamacpp.download.BandwidthScheduler;
+
+/**
+ * 	下载连接。从调度器领取区间，按偏移直接写入预分配的目标文件，直到没有可领取的区间为止。
+ * 	区间的起点与日志的块对齐，每写满一个块就在日志中标记并记录这个块的CRC32C，重试时从第一个未完成的块继续。
+ * 	每次请求从镜像集合中选择地址，并把实测速度和失败情况反馈回去。
+ */
 public final class PartDownloadTask implements Callable<Void> {
 	private final HttpClient httpClient;
-	private final URI uri;
+	private final MirrorSet mirrors;
 	private final String userAgent;
 	private final Duration timeout;
-	private final Part part;
-	private final Path partFile;
+	private final RangeScheduler scheduler;
+	private final FileChannel channel;
+	private final RangeJournal journal;
 	private final int maxRetries;
 	private final AtomicLong downloadedBytes;
 	private final AtomicInteger partsCompleted;
 	private final AtomicBoolean stopRequested;
 	private final Set<AutoCloseable> activeResources;
-	private final long expectedBytes;
-	private long existingBytesAtAttemptStart;
+	private final BandwidthScheduler.Share share;
 
 	public PartDownloadTask(
 			HttpClient httpClient,
-			URI uri,
+			MirrorSet mirrors,
 			String userAgent,
 			Duration timeout,
-			Part part,
-			Path partFile,
+			RangeScheduler scheduler,
+			FileChannel channel,
+			RangeJournal journal,
 			int maxRetries,
 			AtomicLong downloadedBytes,
 			AtomicInteger partsCompleted,
 			AtomicBoolean stopRequested,
-			Set<AutoCloseable> activeResources) {
+			Set<AutoCloseable> activeResources,
+			BandwidthScheduler.Share share) {
 		this.httpClient = httpClient;
-		this.uri = uri;
+		this.mirrors = mirrors;
 		this.userAgent = userAgent;
 		this.timeout = timeout;
-		this.part = part;
-		this.partFile = partFile;
+		this.scheduler = scheduler;
+		this.channel = channel;
+		this.journal = journal;
 		this.maxRetries = maxRetries;
 		this.downloadedBytes = downloadedBytes;
 		this.partsCompleted = partsCompleted;
 		this.stopRequested = stopRequested;
 		this.activeResources = activeResources;
-		this.expectedBytes = part.length();
+		this.share = share;
 	}
 
 	@Override
 	public Void call() throws Exception {
-		ensureParentDirectory(this.partFile);
+		while (true) {
+			this.checkStop();
+			RangeScheduler.Lease lease = this.scheduler.acquire();
+			if (lease == null) {
+				return null;
+			}
+			this.downloadLease(lease);
+			this.scheduler.release(lease);
+			this.partsCompleted.incrementAndGet();
+		}
+	}
 
+	private void downloadLease(RangeScheduler.Lease lease) throws Exception {
 		long backoffMillis = 200;
 		int attempt = 0;
 		while (true) {
 			this.checkStop();
 			attempt++;
-			long bytesThisAttempt = 0;
 			try {
-				bytesThisAttempt = this.downloadOnce();
-				this.partsCompleted.incrementAndGet();
-				return null;
+				this.downloadOnce(lease);
+				return;
 			} catch (InterruptedException e) {
 				throw e;
 			} catch (IOException e) {
 				if (this.stopRequested.get() || Thread.currentThread().isInterrupted()) {
 					throw new InterruptedException("下载已暂停");
 				}
-				long rollbackBytes = bytesThisAttempt;
-				if (e instanceof PartDownloadException pde) {
-					rollbackBytes = pde.getBytesWritten();
-				}
-				if (rollbackBytes > 0) {
-					this.downloadedBytes.addAndGet(-rollbackBytes);
+				// 未写满的块不计入进度，下次从块的起点重新下载
+				if (e instanceof PartDownloadException pde && pde.getBytesWritten() > 0) {
+					this.downloadedBytes.addAndGet(-pde.getBytesWritten());
 				}
-				if (this.existingBytesAtAttemptStart > 0) {
-					this.downloadedBytes.addAndGet(-this.existingBytesAtAttemptStart);
-				}
-				Files.deleteIfExists(this.partFile);
-				this.existingBytesAtAttemptStart = 0;
 				if (attempt > this.maxRetries) {
 					throw e;
 				}
@@ -102,49 +109,98 @@ public final class PartDownloadTask implements Callable<Void> {
 		}
 	}
 
-	private long downloadOnce() throws IOException, InterruptedException {
+	private void downloadOnce(RangeScheduler.Lease lease) throws IOException, InterruptedException {
 		this.checkStop();
 
-		long existing = 0;
-		if (Files.exists(this.partFile)) {
-			existing = Files.size(this.partFile);
-			if (existing >= this.expectedBytes) {
-				return 0;
-			}
+		long startInclusive = lease.getPosition();
+		long endInclusive = lease.getEndInclusive();
+		if (startInclusive > endInclusive) {
+			return;
 		}
-		this.existingBytesAtAttemptStart = existing;
 
-		long startInclusive = this.part.getStartInclusive() + existing;
-		if (startInclusive > this.part.getEndInclusive()) {
-			return 0;
+		this.share.acquireConnection();
+		MirrorSet.Mirror mirror = this.mirrors.pick();
+		try {
+			this.transfer(mirror, lease, startInclusive, endInclusive);
+		} catch (IOException e) {
+			if (!this.stopRequested.get() && !Thread.currentThread().isInterrupted()) {
+				this.mirrors.recordFailure(mirror);
+			}
+			throw e;
+		} finally {
+			this.share.releaseConnection();
 		}
+	}
 
+	private void transfer(MirrorSet.Mirror mirror, RangeScheduler.Lease lease, long startInclusive, long endInclusive) throws IOException, InterruptedException {
+		long startedNanos = System.nanoTime();
 		HttpRequest request = HttpRequest.newBuilder()
-				.uri(this.uri)
+				.uri(mirror.getUri())
 				.timeout(this.timeout)
 				.header("User-Agent", this.userAgent)
-				.header("Range", "bytes=" + startInclusive + "-" + this.part.getEndInclusive())
+				.header("Range", "bytes=" + startInclusive + "-" + endInclusive)
 				.GET()
 				.build();
 
 		HttpResponse<InputStream> response = this.httpClient.send(request, BodyHandlers.ofInputStream());
 		if (response.statusCode() != 206) {
+			closeQuietly(response.body());
 			throw new IOException("分片下载失败，HTTP状态码: " + response.statusCode());
 		}
+		// 镜像返回的文件大小不一致时说明不是同一个文件
+		long total = parseContentRangeTotal(response.headers().firstValue("content-range").orElse(null));
+		if (total >= 0 && total != this.journal.getContentLength()) {
+			closeQuietly(response.body());
+			this.mirrors.reject(mirror, "文件大小不一致: " + total);
+			throw new IOException("镜像 " + mirror.getName() + " 的文件大小不一致，期望: " + this.journal.getContentLength() + " 实际: " + total);
+		}
 
-		long bytesWritten = 0;
-		try (InputStream in = new BufferedInputStream(response.body());
-				OutputStream out = new BufferedOutputStream(new FileOutputStream(this.partFile.toString(), existing > 0))) {
+		int block = this.journal.blockOf(startInclusive);
+		long position = startInclusive;
+		// 当前未写满的块的起点，回滚进度时使用
+		long blockStart = startInclusive;
+		CRC32C crc = new CRC32C();
+		try (InputStream in = response.body()) {
 			this.activeResources.add(in);
-			this.activeResources.add(out);
 			byte[] buffer = new byte[1024 * 256];
+			ByteBuffer bb = ByteBuffer.wrap(buffer);
 			int read;
 			try {
+				long sampleNanos = startedNanos;
 				while ((read = in.read(buffer)) != -1) {
 					this.checkStop();
-					out.write(buffer, 0, read);
-					bytesWritten += read;
-					this.downloadedBytes.addAndGet(read);
+					// 测速不包括限速等待的时间
+					long now = System.nanoTime();
+					this.mirrors.recordTransfer(mirror, read, now - sampleNanos);
+					this.share.consume(read);
+					sampleNanos = System.nanoTime();
+					// 区间的后半段可能已经被其他连接拆走，只写自己领取到的部分
+					int allowed = lease.claim(position, read);
+					bb.clear().limit(allowed);
+					while (bb.hasRemaining()) {
+						this.channel.write(bb, position + bb.position());
+					}
+					this.downloadedBytes.addAndGet(allowed);
+
+					// 按块累计校验和，标记已经写满的块
+					int off = 0;
+					while (off < allowed) {
+						long blockLimit = this.journal.blockEnd(block) + 1;
+						int n = (int) Math.min(allowed - off, blockLimit - position);
+						crc.update(buffer, off, n);
+						off += n;
+						position += n;
+						if (position == blockLimit) {
+							this.journal.markComplete(block, (int) crc.getValue());
+							crc.reset();
+							block++;
+							blockStart = position;
+						}
+					}
+					this.journal.flushIfDue(this.channel);
+					if (position > lease.getEndInclusive()) {
+						break;
+					}
 				}
 			} catch (IOException e) {
 				if (this.stopRequested.get() || Thread.currentThread().isInterrupted()) {
@@ -153,23 +209,32 @@ public final class PartDownloadTask implements Callable<Void> {
 				throw e;
 			} finally {
 				this.activeResources.remove(in);
-				this.activeResources.remove(out);
 			}
 		} catch (IOException e) {
-			throw new PartDownloadException(e, bytesWritten);
+			lease.rewind(blockStart);
+			throw new PartDownloadException(e, Math.max(0, position - blockStart));
 		}
 
-		long actual = Files.size(this.partFile);
-		if (actual != this.expectedBytes) {
-			throw new IOException("分片大小不匹配，期望: " + this.expectedBytes + " 实际: " + actual);
+		long expectedEnd = lease.getEndInclusive();
+		if (position != expectedEnd + 1) {
+			lease.rewind(blockStart);
+			throw new PartDownloadException(new IOException("分片下载字节数不匹配，期望结束于: " + expectedEnd
+					+ " 实际: " + (position - 1)), Math.max(0, position - blockStart));
 		}
-
-		long expectedWritten = this.expectedBytes - existing;
-		if (bytesWritten != expectedWritten) {
-			throw new IOException("分片下载字节数不匹配，期望: " + expectedWritten + " 实际: " + bytesWritten);
+	}
+	private static long parseContentRangeTotal(String contentRange) {
+		if (contentRange == null) {
+			return -1;
+		}
+		int slash = contentRange.lastIndexOf('/');
+		if (slash < 0 || slash == contentRange.length() - 1) {
+			return -1;
+		}
+		try {
+			return Long.parseLong(contentRange.substring(slash + 1).trim());
+		} catch (NumberFormatException e) {
+			return -1;
 		}
-
-		return bytesWritten;
 	}
 
 	private void checkStop() throws InterruptedException {
@@ -178,11 +243,13 @@ public final class PartDownloadTask implements Callable<Void> {
 		}
 	}
 
-	private static void ensureParentDirectory(Path targetFile) throws IOException {
-		Path parent = targetFile.toAbsolutePath().getParent();
-		if (parent != null) {
-			Files.createDirectories(parent);
+	/**
+	 * 	丢弃不用的响应体，释放连接。关闭失败不影响随后抛出的错误
+	 */
+	private static void closeQuietly(InputStream in) {
+		try {
+			in.close();
+		} catch (IOException ignore) {
 		}
 	}
 }
-
@@ -0,0 +1,386 @@
+package org.mark.llamacpp.download.struct;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.BitSet;
+import java.util.List;
+import java.util.Objects;
+import java.util.zip.CRC32C;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonSyntaxException;
+
+/**
+ * 	分段下载的进度日志。
+ * 	把文件按固定大小切成块，用位图记录已经完整写入目标文件的块，
+ * 	暂停、恢复或进程崩溃后根据位图只下载缺失的部分。
+ * 	写日志前先把目标文件的数据刷到磁盘，所以日志里标记完成的块一定已经落盘。
+ * 	每个块还记录接收时的CRC32C，校验SHA-256时读回的数据与之不符说明这个块在磁盘上已经损坏，需要重新下载。
+ */
+public final class RangeJournal {
+
+	/**
+	 * 	日志文件的后缀名，与下载中的文件放在一起
+	 */
+	public static final String SUFFIX = ".journal";
+
+	/**
+	 * 	默认块大小
+	 */
+	public static final long DEFAULT_BLOCK_SIZE = 1024L * 1024;
+
+	/**
+	 * 	两次落盘之间的最小间隔
+	 */
+	private static final long FLUSH_INTERVAL_MS = 2_000;
+
+	private static final int VERSION = 2;
+
+	/**
+	 * 	仍然可以读取的旧版本，没有块校验和
+	 */
+	private static final int VERSION_NO_CRC = 1;
+
+	private static final Gson GSON = new Gson();
+
+	/**
+	 * 	持久化的内容。
+	 */
+	private static final class State {
+		private int version;
+		private long contentLength;
+		private long blockSize;
+		private String etag;
+		private String bitmap;
+		/**
+		 * 	每个块的CRC32C，按块序号排列的大端int
+		 */
+		private String crcs;
+		/**
+		 * 	记录了CRC32C的块
+		 */
+		private String crcBitmap;
+	}
+
+	private final Path file;
+	private final long contentLength;
+	private final long blockSize;
+	private final String etag;
+	private final int blockCount;
+	private final BitSet completed;
+	private final int[] crcs;
+	private final BitSet crcKnown;
+	private final Object flushLock = new Object();
+	private long lastFlushMillis;
+	private boolean dirty;
+
+	private RangeJournal(Path file, long contentLength, long blockSize, String etag, BitSet completed, int[] crcs, BitSet crcKnown) {
+		this.file = file;
+		this.contentLength = contentLength;
+		this.blockSize = blockSize;
+		this.etag = etag;
+		this.blockCount = (int) ((contentLength + blockSize - 1) / blockSize);
+		this.completed = completed;
+		this.crcs = crcs != null && crcs.length == this.blockCount ? crcs : new int[this.blockCount];
+		this.crcKnown = crcs != null && crcs.length == this.blockCount ? crcKnown : new BitSet();
+		this.lastFlushMillis = System.currentTimeMillis();
+	}
+
+	/**
+	 * 	下载中的文件对应的日志文件。
+	 * @param downloadingFile
+	 * @return
+	 */
+	public static Path journalFile(Path downloadingFile) {
+		return downloadingFile.resolveSibling(downloadingFile.getFileName().toString() + SUFFIX);
+	}
+
+	/**
+	 * 	创建一个空的日志，调用flush之前不会写入磁盘。
+	 * @param downloadingFile
+	 * @param contentLength
+	 * @param blockSize
+	 * @param etag
+	 * @return
+	 */
+	public static RangeJournal create(Path downloadingFile, long contentLength, long blockSize, String etag) {
+		if (contentLength <= 0) {
+			throw new IllegalArgumentException("contentLength must be > 0");
+		}
+		if (blockSize <= 0) {
+			throw new IllegalArgumentException("blockSize must be > 0");
+		}
+		return new RangeJournal(journalFile(downloadingFile), contentLength, blockSize, etag, new BitSet(), null, null);
+	}
+
+	/**
+	 * 	读取已有的日志。文件不存在、损坏、大小或ETag与远程文件不一致时返回null。
+	 * @param downloadingFile
+	 * @param contentLength
+	 * @param etag
+	 * @return
+	 */
+	public static RangeJournal load(Path downloadingFile, long contentLength, String etag) {
+		Path file = journalFile(downloadingFile);
+		if (!Files.isRegularFile(file)) {
+			return null;
+		}
+		try {
+			State s = GSON.fromJson(Files.readString(file, StandardCharsets.UTF_8), State.class);
+			if (s == null || (s.version != VERSION && s.version != VERSION_NO_CRC) || s.contentLength != contentLength || s.blockSize <= 0) {
+				return null;
+			}
+			if (etag != null && s.etag != null && !Objects.equals(normalize(etag), normalize(s.etag))) {
+				return null;
+			}
+			BitSet bits = s.bitmap == null ? new BitSet() : BitSet.valueOf(Base64.getDecoder().decode(s.bitmap));
+			int[] crcs = null;
+			BitSet crcKnown = null;
+			if (s.crcs != null && s.crcBitmap != null) {
+				ByteBuffer buf = ByteBuffer.wrap(Base64.getDecoder().decode(s.crcs));
+				crcs = new int[buf.remaining() / Integer.BYTES];
+				buf.asIntBuffer().get(crcs);
+				crcKnown = BitSet.valueOf(Base64.getDecoder().decode(s.crcBitmap));
+			}
+			return new RangeJournal(file, contentLength, s.blockSize, s.etag != null ? s.etag : etag, bits, crcs, crcKnown);
+		} catch (IOException | JsonSyntaxException | IllegalArgumentException e) {
+			return null;
+		}
+	}
+
+	public long getContentLength() {
+		return this.contentLength;
+	}
+
+	public long getBlockSize() {
+		return this.blockSize;
+	}
+
+	public int getBlockCount() {
+		return this.blockCount;
+	}
+
+	public long blockStart(int block) {
+		return block * this.blockSize;
+	}
+
+	public long blockEnd(int block) {
+		return Math.min(this.contentLength, (block + 1) * this.blockSize) - 1;
+	}
+
+	/**
+	 * 	某个偏移所在的块。
+	 * @param offset
+	 * @return
+	 */
+	public int blockOf(long offset) {
+		return (int) (offset / this.blockSize);
+	}
+
+	public synchronized boolean isComplete(int block) {
+		return this.completed.get(block);
+	}
+
+	public synchronized void markComplete(int block) {
+		if (!this.completed.get(block)) {
+			this.completed.set(block);
+			this.dirty = true;
+		}
+	}
+
+	/**
+	 * 	标记块已完成，并记录接收到的数据的CRC32C。
+	 * @param block
+	 * @param crc
+	 */
+	public synchronized void markComplete(int block, int crc) {
+		this.crcs[block] = crc;
+		this.crcKnown.set(block);
+		this.completed.set(block);
+		this.dirty = true;
+	}
+
+	/**
+	 * 	块的数据已损坏，重新标记为未完成。
+	 * @param block
+	 */
+	public synchronized void markIncomplete(int block) {
+		this.completed.clear(block);
+		this.crcKnown.clear(block);
+		this.dirty = true;
+	}
+
+	/**
+	 * 	块接收时的CRC32C，没有记录时返回null。
+	 * @param block
+	 * @return
+	 */
+	public synchronized Integer getCrc(int block) {
+		return this.crcKnown.get(block) ? this.crcs[block] : null;
+	}
+
+	/**
+	 * 	把所有已完成的块读回来与记录的CRC32C比较，不一致或没有记录的块重新标记为未完成。
+	 * @param channel 目标文件的只读通道
+	 * @return 重新标记的块，全部一致时为空
+	 * @throws IOException
+	 */
+	public List<Integer> recheck(FileChannel channel) throws IOException {
+		List<Integer> failed = new ArrayList<>();
+		ByteBuffer buf = ByteBuffer.allocateDirect((int) this.blockSize);
+		CRC32C crc = new CRC32C();
+		for (int block = 0; block < this.blockCount; block++) {
+			Integer recorded = this.getCrc(block);
+			if (recorded == null) {
+				// 旧版本日志中的块没有校验和，无法确认是否完好
+				if (this.isComplete(block)) {
+					this.markIncomplete(block);
+					failed.add(block);
+				}
+				continue;
+			}
+			long start = this.blockStart(block);
+			buf.clear().limit((int) (this.blockEnd(block) - start + 1));
+			long pos = start;
+			while (buf.hasRemaining()) {
+				int n = channel.read(buf, pos);
+				if (n < 0) {
+					throw new IOException("读取文件时遇到意外的结尾: " + pos);
+				}
+				pos += n;
+			}
+			buf.flip();
+			crc.reset();
+			crc.update(buf);
+			if ((int) crc.getValue() != recorded) {
+				this.markIncomplete(block);
+				failed.add(block);
+			}
+		}
+		return failed;
+	}
+
+	/**
+	 * 	从文件开头起连续完成的块数。
+	 * @return
+	 */
+	public synchronized int completedPrefixBlocks() {
+		return Math.min(this.blockCount, this.completed.nextClearBit(0));
+	}
+
+	public synchronized boolean isAllComplete() {
+		return this.completed.nextClearBit(0) >= this.blockCount;
+	}
+
+	/**
+	 * 	已完成的字节数。
+	 * @return
+	 */
+	public synchronized long completedBytes() {
+		long total = 0;
+		for (int i = this.completed.nextSetBit(0); i >= 0 && i < this.blockCount; i = this.completed.nextSetBit(i + 1)) {
+			total += this.blockEnd(i) - this.blockStart(i) + 1;
+		}
+		return total;
+	}
+
+	/**
+	 * 	未完成的连续区间。
+	 * @return
+	 */
+	public synchronized List<Part> missingRanges() {
+		List<Part> out = new ArrayList<>();
+		int i = this.completed.nextClearBit(0);
+		while (i < this.blockCount) {
+			int next = this.completed.nextSetBit(i);
+			int end = next < 0 ? this.blockCount : Math.min(next, this.blockCount);
+			out.add(new Part(this.blockStart(i), this.blockEnd(end - 1)));
+			i = this.completed.nextClearBit(end);
+		}
+		return out;
+	}
+
+	/**
+	 * 	距离上次落盘超过间隔时才写入。
+	 * @param data 目标文件的通道
+	 * @throws IOException
+	 */
+	public void flushIfDue(FileChannel data) throws IOException {
+		synchronized (this) {
+			if (!this.dirty || System.currentTimeMillis() - this.lastFlushMillis < FLUSH_INTERVAL_MS) {
+				return;
+			}
+		}
+		this.flush(data);
+	}
+
+	/**
+	 * 	先把目标文件的数据刷到磁盘，再原子地写入日志。
+	 * @param data 目标文件的通道，为null时不刷数据
+	 * @throws IOException
+	 */
+	public void flush(FileChannel data) throws IOException {
+		// 整个过程串行，避免较旧的快照覆盖较新的
+		synchronized (this.flushLock) {
+			byte[] snapshot;
+			byte[] crcSnapshot;
+			byte[] crcKnownSnapshot;
+			synchronized (this) {
+				snapshot = this.completed.toByteArray();
+				ByteBuffer buf = ByteBuffer.allocate(this.crcs.length * Integer.BYTES);
+				buf.asIntBuffer().put(this.crcs);
+				crcSnapshot = buf.array();
+				crcKnownSnapshot = this.crcKnown.toByteArray();
+				this.dirty = false;
+				this.lastFlushMillis = System.currentTimeMillis();
+			}
+			// 先取快照再刷数据：快照中的块在取快照前已经写完，刷盘后一定完整
+			if (data != null && data.isOpen()) {
+				data.force(false);
+			}
+			State s = new State();
+			s.version = VERSION;
+			s.contentLength = this.contentLength;
+			s.blockSize = this.blockSize;
+			s.etag = this.etag;
+			s.bitmap = Base64.getEncoder().encodeToString(snapshot);
+			s.crcs = Base64.getEncoder().encodeToString(crcSnapshot);
+			s.crcBitmap = Base64.getEncoder().encodeToString(crcKnownSnapshot);
+
+			Path tmp = this.file.resolveSibling(this.file.getFileName().toString() + ".tmp");
+			Files.writeString(tmp, GSON.toJson(s), StandardCharsets.UTF_8);
+			try {
+				Files.move(tmp, this.file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+			} catch (AtomicMoveNotSupportedException e) {
+				Files.move(tmp, this.file, StandardCopyOption.REPLACE_EXISTING);
+			}
+		}
+	}
+
+	/**
+	 * 	删除日志文件。
+	 * @throws IOException
+	 */
+	public void delete() throws IOException {
+		Files.deleteIfExists(this.file);
+	}
+
+	private static String normalize(String etag) {
+		String t = etag.trim();
+		if (t.startsWith("W/")) {
+			t = t.substring(2).trim();
+		}
+		if (t.startsWith("\"") && t.endsWith("\"") && t.length() >= 2) {
+			t = t.substring(1, t.length() - 1);
+		}
+		return t;
+	}
+}
@@ -0,0 +1,186 @@
+package org.mark.llamacpp.download.struct;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 	多线程下载的区间调度。
+ * 	待下载的区间按块对齐切成小段放在共享队列里，空闲的连接从队列领取；
+ * 	队列空了以后，从剩余最多的连接手里把后半段拆出来接着下载，避免整个下载被最慢的一段拖住。
+ * 	连接数可以在下载过程中调整，多出来的连接领取下一段之前退出。
+ */
+public final class RangeScheduler {
+
+	/**
+	 * 	一个连接正在下载的区间。
+	 * 	position之前的字节已经由持有者领取（写入中或已写入），只有position之后的部分可以被拆走。
+	 */
+	public static final class Lease {
+		private final long startInclusive;
+		private long position;
+		private long endInclusive;
+
+		private Lease(long startInclusive, long endInclusive) {
+			this.startInclusive = startInclusive;
+			this.position = startInclusive;
+			this.endInclusive = endInclusive;
+		}
+
+		public long getStartInclusive() {
+			return this.startInclusive;
+		}
+
+		public synchronized long getPosition() {
+			return this.position;
+		}
+
+		public synchronized long getEndInclusive() {
+			return this.endInclusive;
+		}
+
+		/**
+		 * 	在pos处领取最多n个字节，返回实际可写入的字节数。区间被拆分后可能小于n，为0表示已经到达结尾。
+		 * @param pos
+		 * @param n
+		 * @return
+		 */
+		public synchronized int claim(long pos, int n) {
+			int allowed = (int) Math.max(0, Math.min(n, this.endInclusive + 1 - pos));
+			this.position = pos + allowed;
+			return allowed;
+		}
+
+		/**
+		 * 	下载失败后退回到pos，重试时从这里开始。
+		 * @param pos
+		 */
+		public synchronized void rewind(long pos) {
+			this.position = Math.max(this.startInclusive, Math.min(pos, this.position));
+		}
+
+		private synchronized long remaining() {
+			return this.endInclusive + 1 - this.position;
+		}
+
+		/**
+		 * 	把尚未领取的部分从中间按块对齐拆开，返回后半段。
+		 */
+		private synchronized Lease splitTail(long blockSize) {
+			long half = this.position + (this.endInclusive + 1 - this.position) / 2;
+			long mid = (half + blockSize - 1) / blockSize * blockSize;
+			if (mid <= this.position || mid > this.endInclusive) {
+				return null;
+			}
+			Lease tail = new Lease(mid, this.endInclusive);
+			this.endInclusive = mid - 1;
+			return tail;
+		}
+	}
+
+	private final Deque<Part> pending;
+	private final Set<Lease> active = new LinkedHashSet<>();
+	private final long blockSize;
+	private final long minStealBytes;
+	private final AtomicInteger partsTotal;
+	private int workers;
+	private int targetWorkers;
+	private int steals;
+
+	/**
+	 *
+	 * @param chunks 待下载的区间，起点必须与块对齐
+	 * @param blockSize 块大小，拆分点与之对齐
+	 * @param minStealBytes 拆分后每一半至少这么大才值得再开一个请求
+	 * @param partsTotal 分段总数，拆分时增加
+	 */
+	public RangeScheduler(List<Part> chunks, long blockSize, long minStealBytes, AtomicInteger partsTotal) {
+		this.pending = new ArrayDeque<>(chunks);
+		this.blockSize = blockSize;
+		this.minStealBytes = Math.max(blockSize, minStealBytes);
+		this.partsTotal = partsTotal;
+		this.partsTotal.set(chunks.size());
+	}
+
+	/**
+	 * 	登记一个新的连接。
+	 */
+	public synchronized void addWorker() {
+		this.workers++;
+	}
+
+	public synchronized int getWorkers() {
+		return this.workers;
+	}
+
+	public synchronized int getSteals() {
+		return this.steals;
+	}
+
+	/**
+	 * 	设置期望的连接数，多出来的连接在领取下一段时退出。
+	 * @param target
+	 */
+	public synchronized void setTargetWorkers(int target) {
+		this.targetWorkers = Math.max(1, target);
+	}
+
+	/**
+	 * 	领取下一段。返回null时调用方应当退出：没有剩余的工作，或者连接数超过了期望值。
+	 * @return
+	 */
+	public synchronized Lease acquire() {
+		if (this.targetWorkers > 0 && this.workers > this.targetWorkers) {
+			this.workers--;
+			return null;
+		}
+		Part next = this.pending.poll();
+		if (next != null) {
+			Lease lease = new Lease(next.getStartInclusive(), next.getEndInclusive());
+			this.active.add(lease);
+			return lease;
+		}
+		Lease victim = this.largestStealable();
+		Lease tail = victim != null ? victim.splitTail(this.blockSize) : null;
+		if (tail == null) {
+			this.workers--;
+			return null;
+		}
+		this.active.add(tail);
+		this.steals++;
+		this.partsTotal.incrementAndGet();
+		return tail;
+	}
+
+	/**
+	 * 	区间下载完成。
+	 * @param lease
+	 */
+	public synchronized void release(Lease lease) {
+		this.active.remove(lease);
+	}
+
+	/**
+	 * 	是否还有新连接能领取到的工作。
+	 * @return
+	 */
+	public synchronized boolean hasWork() {
+		return !this.pending.isEmpty() || this.largestStealable() != null;
+	}
+
+	private Lease largestStealable() {
+		Lease best = null;
+		long bestRemaining = 2 * this.minStealBytes - 1;
+		for (Lease l : this.active) {
+			long r = l.remaining();
+			if (r > bestRemaining) {
+				best = l;
+				bestRemaining = r;
+			}
+		}
+		return best;
+	}
+}
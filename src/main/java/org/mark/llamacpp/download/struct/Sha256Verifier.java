@@ -0,0 +1,186 @@
+package org.mark.llamacpp.download.struct;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.Locale;
+import java.util.zip.CRC32C;
+
+/**
+ * 	边下载边计算整个文件的SHA-256。
+ * 	哈希只能按顺序计算，多线程下载时各区间乱序完成，这里只处理从文件开头起连续完成的部分：
+ * 	每当前缀变长，就把新完成的块从文件读回来（刚写入的数据还在页缓存里）累加到摘要中。
+ * 	读回的块与接收时记录的CRC32C不一致时，把它在日志中重新标记为未完成，等待重新下载，前缀停在这个块之前。
+ */
+public final class Sha256Verifier {
+
+	private final MessageDigest digest;
+	private final String expected;
+	private long hashedBytes;
+	private int hashedBlocks;
+	private final List<Integer> corruptBlocks = new ArrayList<>();
+	private ByteBuffer buffer;
+
+	/**
+	 *
+	 * @param expected 期望的SHA-256，十六进制
+	 */
+	public Sha256Verifier(String expected) {
+		try {
+			this.digest = MessageDigest.getInstance("SHA-256");
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
+		}
+		this.expected = normalize(expected);
+	}
+
+	/**
+	 * 	看起来像SHA-256的十六进制串时返回小写形式，否则返回null。
+	 * @param value
+	 * @return
+	 */
+	public static String normalize(String value) {
+		if (value == null) {
+			return null;
+		}
+		String v = value.trim();
+		if (v.startsWith("W/")) {
+			v = v.substring(2).trim();
+		}
+		if (v.startsWith("\"") && v.endsWith("\"") && v.length() >= 2) {
+			v = v.substring(1, v.length() - 1);
+		}
+		if (v.regionMatches(true, 0, "sha256:", 0, 7)) {
+			v = v.substring(7);
+		}
+		if (v.length() != 64) {
+			return null;
+		}
+		for (int i = 0; i < v.length(); i++) {
+			if (Character.digit(v.charAt(i), 16) < 0) {
+				return null;
+			}
+		}
+		return v.toLowerCase(Locale.ROOT);
+	}
+
+	public String getExpected() {
+		return this.expected;
+	}
+
+	public synchronized long getHashedBytes() {
+		return this.hashedBytes;
+	}
+
+	/**
+	 * 	累加顺序写入的数据，单线程下载时使用。
+	 * @param data
+	 * @param offset
+	 * @param length
+	 */
+	public synchronized void update(byte[] data, int offset, int length) {
+		this.digest.update(data, offset, length);
+		this.hashedBytes += length;
+	}
+
+	/**
+	 * 	累加文件中已经存在的前length个字节，单线程续传时使用。
+	 * @param channel
+	 * @param length
+	 * @throws IOException
+	 */
+	public synchronized void updateFrom(FileChannel channel, long length) throws IOException {
+		ByteBuffer buf = this.buffer(1024 * 1024);
+		while (this.hashedBytes < length) {
+			buf.clear().limit((int) Math.min(buf.capacity(), length - this.hashedBytes));
+			readFully(channel, buf, this.hashedBytes);
+			buf.flip();
+			this.digest.update(buf);
+			this.hashedBytes += buf.limit();
+		}
+	}
+
+	/**
+	 * 	把日志中新完成的连续前缀累加到摘要中。
+	 * @param channel 目标文件的只读通道
+	 * @param journal
+	 * @return 本次处理的字节数，发现损坏的块时为-1
+	 * @throws IOException
+	 */
+	public synchronized long advance(FileChannel channel, RangeJournal journal) throws IOException {
+		long before = this.hashedBytes;
+		ByteBuffer buf = this.buffer((int) journal.getBlockSize());
+		CRC32C crc = new CRC32C();
+		int prefix = journal.completedPrefixBlocks();
+		while (this.hashedBlocks < prefix) {
+			int block = this.hashedBlocks;
+			long start = journal.blockStart(block);
+			int length = (int) (journal.blockEnd(block) - start + 1);
+			buf.clear().limit(length);
+			readFully(channel, buf, start);
+			buf.flip();
+			Integer recorded = journal.getCrc(block);
+			if (recorded != null) {
+				crc.reset();
+				crc.update(buf);
+				buf.rewind();
+				if ((int) crc.getValue() != recorded) {
+					journal.markIncomplete(block);
+					this.corruptBlocks.add(block);
+					return -1;
+				}
+			}
+			this.digest.update(buf);
+			this.hashedBytes += length;
+			this.hashedBlocks++;
+		}
+		return this.hashedBytes - before;
+	}
+
+	/**
+	 * 	因为读回的数据与接收时不一致而重新下载的块。
+	 * @return
+	 */
+	public synchronized List<Integer> getCorruptBlocks() {
+		return new ArrayList<>(this.corruptBlocks);
+	}
+
+	/**
+	 * 	结束计算并与期望值比较。
+	 * @return 实际的SHA-256
+	 * @throws IOException 不一致时
+	 */
+	public synchronized String verify(long contentLength) throws IOException {
+		if (this.hashedBytes != contentLength) {
+			throw new IOException("SHA-256未覆盖整个文件，已计算: " + this.hashedBytes + " 文件大小: " + contentLength);
+		}
+		String actual = HexFormat.of().formatHex(this.digest.digest());
+		if (this.expected != null && !this.expected.equals(actual)) {
+			throw new IOException("SHA-256校验失败，期望: " + this.expected + " 实际: " + actual);
+		}
+		return actual;
+	}
+
+	private ByteBuffer buffer(int size) {
+		if (this.buffer == null || this.buffer.capacity() < size) {
+			this.buffer = ByteBuffer.allocateDirect(size);
+		}
+		return this.buffer;
+	}
+
+	private static void readFully(FileChannel channel, ByteBuffer buf, long position) throws IOException {
+		long pos = position;
+		while (buf.hasRemaining()) {
+			int n = channel.read(buf, pos);
+			if (n < 0) {
+				throw new IOException("读取文件时遇到意外的结尾: " + pos);
+			}
+			pos += n;
+		}
+	}
+}
@@ -20,6 +20,11 @@ public class GGUFBundle {
 	private File primaryFile;
 	private List<File> splitFiles = new ArrayList<>();
 	private File mmprojFile;
+	
+	/**
+	 * 	分卷的总数，单文件模型为1。
+	 */
+	private int totalParts = 1;
 
 	public GGUFBundle(File inputFile) {
 		if (!inputFile.exists()) {
@@ -44,6 +49,7 @@ public class GGUFBundle {
 			String baseName = matcher.group(1);
 			// int currentPart = Integer.parseInt(matcher.group(2));
 			int totalParts = Integer.parseInt(matcher.group(3));
+			this.totalParts = totalParts;
 
 			this.primaryFile = new File(directory, String.format("%s-00001-of-%05d.gguf", baseName, totalParts));
 
@@ -112,6 +118,18 @@ public class GGUFBundle {
 	public File getMmprojFile() {
 		return mmprojFile;
 	}
+	
+	public int getTotalParts() {
+		return totalParts;
+	}
+	
+	/**
+	 * 	分卷是否已经全部就位（下载/拷贝中的分卷模型会缺少部分文件）。
+	 * @return
+	 */
+	public boolean isComplete() {
+		return splitFiles.size() >= totalParts;
+	}
 
 	public long getTotalFileSize() {
 		long size = 0;
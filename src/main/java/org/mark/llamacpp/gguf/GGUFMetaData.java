@@ -206,7 +206,7 @@ public class GGUFMetaData {
         return null;
     }
     
-    private static String fileTypeToQuantizationName(int fileType) {
+    public static String fileTypeToQuantizationName(int fileType) {
     	return switch (fileType) {
     	case 0 -> "F32";
     	case 1 -> "F16";
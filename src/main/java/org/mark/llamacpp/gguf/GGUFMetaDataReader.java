@@ -11,17 +11,47 @@ public class GGUFMetaDataReader {
             long size = channel.size();
             long mapSize = Math.min(size, 64L * 1024 * 1024);
             java.nio.ByteBuffer buffer = channel.map(java.nio.channels.FileChannel.MapMode.READ_ONLY, 0, mapSize);
-            buffer.order(java.nio.ByteOrder.LITTLE_ENDIAN);
-            byte[] magic = new byte[4];
-            buffer.get(magic);
-            String m = new String(magic, java.nio.charset.StandardCharsets.US_ASCII);
-            if (!"GGUF".equals(m)) {
-                return java.util.Collections.emptyMap();
+            java.util.Map<String, Object> metadata = read(buffer);
+            if (metadata.isEmpty()) {
+                return metadata;
             }
-            buffer.getInt();
-            buffer.getLong();
-            long kvCount = buffer.getLong();
-            java.util.Map<String, Object> metadata = new java.util.HashMap<>();
+            metadata.put("file.name", file.getName());
+            metadata.put("file.path", file.getAbsolutePath());
+            return metadata;
+        } catch (Exception e) {
+            return java.util.Collections.emptyMap();
+        }
+    }
+
+    /**
+     * 从文件开头的一段字节读取元数据，不是GGUF时返回空Map。
+     * 字节不够时抛出BufferUnderflowException，调用方可以读取更多后重试。
+     */
+    public static java.util.Map<String, Object> read(java.nio.ByteBuffer header) {
+        return read(header, false);
+    }
+
+    /**
+     * 只读取文件开头一小段时使用：返回截断之前已经读到的键值，general.*和架构参数通常排在词表之前。
+     */
+    public static java.util.Map<String, Object> readPartial(java.nio.ByteBuffer header) {
+        return read(header, true);
+    }
+
+    private static java.util.Map<String, Object> read(java.nio.ByteBuffer header, boolean partial) {
+        java.nio.ByteBuffer buffer = header.duplicate();
+        buffer.order(java.nio.ByteOrder.LITTLE_ENDIAN);
+        byte[] magic = new byte[4];
+        buffer.get(magic);
+        String m = new String(magic, java.nio.charset.StandardCharsets.US_ASCII);
+        if (!"GGUF".equals(m)) {
+            return new java.util.HashMap<>();
+        }
+        buffer.getInt();
+        buffer.getLong();
+        long kvCount = buffer.getLong();
+        java.util.Map<String, Object> metadata = new java.util.HashMap<>();
+        try {
             for (long i = 0; i < kvCount; i++) {
                 String key = readString(buffer);
                 int type = buffer.getInt();
@@ -37,12 +67,12 @@ public class GGUFMetaDataReader {
                     metadata.put(key, value);
                 }
             }
-            metadata.put("file.name", file.getName());
-            metadata.put("file.path", file.getAbsolutePath());
-            return metadata;
-        } catch (Exception e) {
-            return java.util.Collections.emptyMap();
+        } catch (java.nio.BufferUnderflowException e) {
+            if (!partial) {
+                throw e;
+            }
         }
+        return metadata;
     }
 
     private static String readString(java.nio.ByteBuffer buffer) {
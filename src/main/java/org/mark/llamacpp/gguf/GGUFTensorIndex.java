@@ -0,0 +1,377 @@
+package org.mark.llamacpp.gguf;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * 	单个GGUF文件的张量清单。
+ * 	从映射的张量信息表中读取名称、类型、形状和偏移，张量字节数由相邻偏移计算（包含对齐填充）。
+ */
+public class GGUFTensorIndex {
+
+	/**
+	 * 	先映射的头部大小，词表特别大时再扩大。
+	 */
+	private static final long INITIAL_MAP_SIZE = 64L * 1024 * 1024;
+
+	private static final Pattern[] LAYER_INDEX_PATTERNS = {
+			Pattern.compile("(?:^|\\.)(?:blk|block|blocks|layer|layers)\\.(\\d+)\\.", Pattern.CASE_INSENSITIVE),
+			Pattern.compile("(?:^|\\.)(?:model\\.)?layers\\.(\\d+)\\.", Pattern.CASE_INSENSITIVE),
+			Pattern.compile("(?:^|\\.)transformer\\.h\\.(\\d+)\\.", Pattern.CASE_INSENSITIVE),
+			Pattern.compile("(?:^|\\.)decoder\\.layers\\.(\\d+)\\.", Pattern.CASE_INSENSITIVE),
+			Pattern.compile("(?:^|\\.)h\\.(\\d+)\\.", Pattern.CASE_INSENSITIVE),
+	};
+
+	/**
+	 * 	单个张量的信息。
+	 */
+	public static class Tensor {
+		private String name;
+		private int type;
+		private long[] shape;
+		private long offset;
+		private long bytes;
+		/**
+		 * 	所在的层，不属于任何层时为-1
+		 */
+		private int layer;
+
+		public String getName() {
+			return name;
+		}
+
+		public int getType() {
+			return type;
+		}
+
+		public String getTypeName() {
+			return ggmlTypeName(this.type);
+		}
+
+		public long[] getShape() {
+			return shape;
+		}
+
+		public long getElements() {
+			long n = 1;
+			for (long d : this.shape) {
+				n *= d;
+			}
+			return n;
+		}
+
+		public long getOffset() {
+			return offset;
+		}
+
+		public long getBytes() {
+			return bytes;
+		}
+
+		public int getLayer() {
+			return layer;
+		}
+	}
+
+	private String fileName;
+
+	private String filePath;
+
+	private long fileSize;
+
+	private long lastModified;
+
+	private long alignment;
+
+	/**
+	 * 	张量数据区在文件中的起始位置
+	 */
+	private long dataOffset;
+
+	private List<Tensor> tensors;
+
+
+	private GGUFTensorIndex() {
+
+	}
+
+	/**
+	 * 	读取文件的张量清单，不是GGUF文件时返回null。
+	 * @param file
+	 * @return
+	 * @throws IOException
+	 */
+	public static GGUFTensorIndex read(File file) throws IOException {
+		if (file == null || !file.isFile()) {
+			return null;
+		}
+		try (RandomAccessFile raf = new RandomAccessFile(file, "r"); FileChannel channel = raf.getChannel()) {
+			long size = channel.size();
+			try {
+				return read(file, channel, Math.min(size, INITIAL_MAP_SIZE));
+			} catch (BufferUnderflowException | IllegalArgumentException e) {
+				if (size <= INITIAL_MAP_SIZE) {
+					throw new IOException("GGUF头部不完整: " + file.getName());
+				}
+			}
+			try {
+				return read(file, channel, Math.min(size, Integer.MAX_VALUE));
+			} catch (BufferUnderflowException | IllegalArgumentException e) {
+				throw new IOException("GGUF头部无法解析: " + file.getName());
+			}
+		}
+	}
+
+	private static GGUFTensorIndex read(File file, FileChannel channel, long mapSize) throws IOException {
+		MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, mapSize);
+		return parse(buffer, file.getName(), file.getAbsolutePath(), channel.size(), file.lastModified());
+	}
+
+	/**
+	 * 	从文件开头的一段字节解析张量清单，用于文件还没有下载完的时候。
+	 * @param header 从文件开头读取的字节
+	 * @param fileName
+	 * @param fileSize 文件的完整大小
+	 * @return 不是GGUF文件时返回null
+	 * @throws BufferUnderflowException header没有覆盖到张量信息表结束时
+	 */
+	public static GGUFTensorIndex parseHeader(ByteBuffer header, String fileName, long fileSize) {
+		return parse(header.duplicate(), fileName, null, fileSize, 0);
+	}
+
+	private static GGUFTensorIndex parse(ByteBuffer buffer, String fileName, String filePath, long fileSize, long lastModified) {
+		buffer.order(ByteOrder.LITTLE_ENDIAN);
+
+		byte[] magic = new byte[4];
+		buffer.get(magic);
+		if (!"GGUF".equals(new String(magic, StandardCharsets.US_ASCII))) {
+			return null;
+		}
+		buffer.getInt();
+		long tensorCount = buffer.getLong();
+		long kvCount = buffer.getLong();
+
+		long alignment = 32;
+		for (long i = 0; i < kvCount; i++) {
+			String key = readString(buffer);
+			int type = buffer.getInt();
+			if ("general.alignment".equals(key) && (type == 4 || type == 5)) {
+				long a = buffer.getInt() & 0xFFFFFFFFL;
+				if (a > 0) {
+					alignment = a;
+				}
+			} else {
+				skipValue(buffer, type);
+			}
+		}
+
+		int count = (int) Math.min(Math.max(tensorCount, 0), Integer.MAX_VALUE);
+		List<Tensor> tensors = new ArrayList<>(count);
+		for (int i = 0; i < count; i++) {
+			Tensor t = new Tensor();
+			t.name = readString(buffer);
+			int nDims = buffer.getInt();
+			t.shape = new long[Math.max(nDims, 0)];
+			for (int d = 0; d < nDims; d++) {
+				t.shape[d] = buffer.getLong();
+			}
+			t.type = buffer.getInt();
+			t.offset = buffer.getLong();
+			t.layer = parseLayerIndex(t.name);
+			tensors.add(t);
+		}
+
+		long pos = buffer.position();
+		long dataOffset = pos % alignment == 0 ? pos : pos + (alignment - pos % alignment);
+		long dataLen = Math.max(0, fileSize - dataOffset);
+
+		// 按偏移排序后，相邻偏移之差就是张量实际占用的字节数
+		Tensor[] sorted = tensors.toArray(new Tensor[0]);
+		Arrays.sort(sorted, (a, b) -> Long.compare(a.offset, b.offset));
+		for (int i = 0; i < sorted.length; i++) {
+			long next = i + 1 < sorted.length ? sorted[i + 1].offset : dataLen;
+			sorted[i].bytes = Math.max(0, next - sorted[i].offset);
+		}
+
+		GGUFTensorIndex index = new GGUFTensorIndex();
+		index.fileName = fileName;
+		index.filePath = filePath;
+		index.fileSize = fileSize;
+		index.lastModified = lastModified;
+		index.alignment = alignment;
+		index.dataOffset = dataOffset;
+		index.tensors = tensors;
+		return index;
+	}
+
+	/**
+	 * 	判断索引是否仍然对应磁盘上的文件。
+	 * @param file
+	 * @return
+	 */
+	public boolean matches(File file) {
+		return file != null && file.length() == this.fileSize && file.lastModified() == this.lastModified;
+	}
+
+	/**
+	 * 	全部张量数据的字节数。
+	 * @return
+	 */
+	public long getTensorDataBytes() {
+		long sum = 0;
+		for (Tensor t : this.tensors) {
+			sum += t.bytes;
+		}
+		return sum;
+	}
+
+	public String getFileName() {
+		return fileName;
+	}
+
+	public String getFilePath() {
+		return filePath;
+	}
+
+	public long getFileSize() {
+		return fileSize;
+	}
+
+	public long getLastModified() {
+		return lastModified;
+	}
+
+	public long getAlignment() {
+		return alignment;
+	}
+
+	public long getDataOffset() {
+		return dataOffset;
+	}
+
+	public List<Tensor> getTensors() {
+		return tensors == null ? Collections.emptyList() : Collections.unmodifiableList(tensors);
+	}
+
+	/**
+	 * 	从张量名称中解析层号，例如 blk.12.attn_q.weight。
+	 * @param tensorName
+	 * @return 不属于任何层时返回-1
+	 */
+	public static int parseLayerIndex(String tensorName) {
+		if (tensorName == null || tensorName.isBlank()) {
+			return -1;
+		}
+		for (Pattern p : LAYER_INDEX_PATTERNS) {
+			Matcher m = p.matcher(tensorName);
+			if (!m.find()) {
+				continue;
+			}
+			try {
+				return Integer.parseInt(m.group(1));
+			} catch (Exception e) {
+				return -1;
+			}
+		}
+		return -1;
+	}
+
+	public static String ggmlTypeName(int id) {
+		return switch (id) {
+		case 0 -> "F32";
+		case 1 -> "F16";
+		case 2 -> "Q4_0";
+		case 3 -> "Q4_1";
+		case 4 -> "Q4_2";
+		case 5 -> "Q4_3";
+		case 6 -> "Q5_0";
+		case 7 -> "Q5_1";
+		case 8 -> "Q8_0";
+		case 9 -> "Q8_1";
+		case 10 -> "Q2_K";
+		case 11 -> "Q3_K";
+		case 12 -> "Q4_K";
+		case 13 -> "Q5_K";
+		case 14 -> "Q6_K";
+		case 15 -> "Q8_K";
+		case 16 -> "IQ2_XXS";
+		case 17 -> "IQ2_XS";
+		case 18 -> "IQ3_XXS";
+		case 19 -> "IQ1_S";
+		case 20 -> "IQ4_NL";
+		case 21 -> "IQ3_S";
+		case 22 -> "IQ2_S";
+		case 23 -> "IQ4_XS";
+		case 24 -> "I8";
+		case 25 -> "I16";
+		case 26 -> "I32";
+		case 27 -> "I64";
+		case 28 -> "F64";
+		case 29 -> "IQ1_M";
+		case 30 -> "BF16";
+		case 34 -> "TQ1_0";
+		case 35 -> "TQ2_0";
+		case 39 -> "MXFP4";
+		default -> "UNKNOWN(" + id + ")";
+		};
+	}
+
+	private static String readString(ByteBuffer buffer) {
+		long len = buffer.getLong();
+		byte[] bytes = new byte[(int) len];
+		buffer.get(bytes);
+		return new String(bytes, StandardCharsets.UTF_8);
+	}
+
+	/**
+	 * 	跳过n个字节。只读到头部的一部分时越界抛出BufferUnderflowException，调用方据此读取更多
+	 */
+	private static void skip(ByteBuffer buffer, long n) {
+		if (n < 0 || n > buffer.remaining()) {
+			throw new BufferUnderflowException();
+		}
+		buffer.position(buffer.position() + (int) n);
+	}
+
+	private static void skipValue(ByteBuffer buffer, int type) {
+		switch (type) {
+		case 0, 1, 7 -> skip(buffer, 1);
+		case 2, 3 -> skip(buffer, 2);
+		case 4, 5, 6 -> skip(buffer, 4);
+		case 10, 11, 12 -> skip(buffer, 8);
+		case 8 -> skip(buffer, buffer.getLong());
+		case 9 -> {
+			int t = buffer.getInt();
+			long len = buffer.getLong();
+			int fixed = switch (t) {
+			case 0, 1, 7 -> 1;
+			case 2, 3 -> 2;
+			case 4, 5, 6 -> 4;
+			case 10, 11, 12 -> 8;
+			default -> -1;
+			};
+			if (fixed > 0) {
+				skip(buffer, fixed * len);
+			} else {
+				for (long i = 0; i < len; i++) {
+					skipValue(buffer, t);
+				}
+			}
+		}
+		default -> throw new IllegalArgumentException("Unknown GGUF value type: " + type);
+		}
+	}
+}
@@ -4,6 +4,7 @@ import com.google.gson.JsonElement;
 import com.google.gson.JsonObject;
 import com.google.gson.Gson;
 
+import java.nio.charset.StandardCharsets;
 import java.security.SecureRandom;
 import java.util.ArrayList;
 import java.util.Base64;
@@ -20,6 +21,7 @@ import org.mark.llamacpp.gguf.GGUFMetaData;
 import org.mark.llamacpp.gguf.GGUFModel;
 import org.mark.llamacpp.server.LlamaCppProcess;
 import org.mark.llamacpp.server.LlamaServerManager;
+import org.mark.llamacpp.server.ModelCatalogSnapshot;
 import org.mark.llamacpp.server.tools.ParamTool;
 
 import io.netty.channel.ChannelHandlerContext;
@@ -126,56 +128,9 @@ public class LMStudioWebSocketHandler extends SimpleChannelInboundHandler<WebSoc
      */
     private void handleListDownloadedModelsRpc(ChannelHandlerContext ctx, int callId) {
         try {
-            LlamaServerManager manager = LlamaServerManager.getInstance();
-            List<GGUFModel> models = manager.listModel(false);
-            List<Map<String, Object>> result = new ArrayList<>();
-            for (GGUFModel model : models) {
-                if (model == null) continue;
-                GGUFMetaData md = model.getPrimaryModel();
-                if (md == null) continue;
-
-                String modelId = model.getModelId();
-                
-                JsonObject caps = manager.getModelCapabilities(modelId);
-                
-                String architecture = md.getArchitecture();
-                boolean vision = model.getMmproj() != null;
-                String type = ParamTool.parseJsonBoolean(caps, "embedding", false) ? "embedding" : "llm";
-                String quantName = model.getQuantizationType();
-                Integer bits = resolveQuantBits(quantName);
-
-                String baseName = fileNameToBaseName(md.getFileName());
-                String modelKey = modelId;
-
-                Map<String, Object> item = new LinkedHashMap<>();
-                item.put("type", type);
-                item.put("modelKey", modelKey);
-                item.put("format", "gguf");
-                item.put("publisher", "GGUF");
-                item.put("displayName", baseNameToDisplayName(baseName));
-                item.put("path", modelId);
-                item.put("sizeBytes", model.getSize());
-                item.put("architecture", architecture);
-
-                Map<String, Object> quant = new LinkedHashMap<>();
-                quant.put("bits", bits);
-                quant.put("name", quantName);
-                item.put("quantization", quant);
-                // 这个功能中，只有非嵌入模型才会显示这些东西。
-                if (!"embedding".equals(type)) {
-                    item.put("paramsString", resolveParamsString(baseName));
-                    item.put("vision", vision);
-                    item.put("trainedForToolUse", ParamTool.parseJsonBoolean(caps, "tools", false));
-                }
-                item.put("maxContextLength", md.getContextLength());
-                result.add(item);
-            }
-
-            Map<String, Object> resp = new LinkedHashMap<>();
-            resp.put("type", "rpcResult");
-            resp.put("callId", callId);
-            resp.put("result", result);
-            ctx.channel().writeAndFlush(new TextWebSocketFrame(gson.toJson(resp)));
+            // 模型列表在目录快照上只序列化一次，这里只拼接callId
+            String result = ModelCatalogSnapshot.current().view("lmstudio.downloaded", LMStudioWebSocketHandler::buildDownloadedModels).asString();
+            ctx.channel().writeAndFlush(new TextWebSocketFrame("{\"type\":\"rpcResult\",\"callId\":" + callId + ",\"result\":" + result + "}"));
         } catch (Exception e) {
             Map<String, Object> resp = new LinkedHashMap<>();
             resp.put("type", "rpcResult");
@@ -185,6 +140,59 @@ public class LMStudioWebSocketHandler extends SimpleChannelInboundHandler<WebSoc
         }
     }
     
+    /**
+     * 	在目录快照上构建listDownloadedModels的结果。
+     * @param snapshot
+     * @return
+     */
+    private static byte[] buildDownloadedModels(ModelCatalogSnapshot snapshot) {
+        LlamaServerManager manager = LlamaServerManager.getInstance();
+        List<Map<String, Object>> result = new ArrayList<>();
+        for (GGUFModel model : snapshot.getModels()) {
+            if (model == null) continue;
+            GGUFMetaData md = model.getPrimaryModel();
+            if (md == null) continue;
+
+            String modelId = model.getModelId();
+            
+            JsonObject caps = manager.getModelCapabilities(modelId);
+            
+            String architecture = md.getArchitecture();
+            boolean vision = model.getMmproj() != null;
+            String type = ParamTool.parseJsonBoolean(caps, "embedding", false) ? "embedding" : "llm";
+            String quantName = model.getQuantizationType();
+            Integer bits = resolveQuantBits(quantName);
+
+            String baseName = fileNameToBaseName(md.getFileName());
+            String modelKey = modelId;
+
+            Map<String, Object> item = new LinkedHashMap<>();
+            item.put("type", type);
+            item.put("modelKey", modelKey);
+            item.put("format", "gguf");
+            item.put("publisher", "GGUF");
+            item.put("displayName", baseNameToDisplayName(baseName));
+            item.put("path", modelId);
+            item.put("sizeBytes", model.getSize());
+            item.put("architecture", architecture);
+
+            Map<String, Object> quant = new LinkedHashMap<>();
+            quant.put("bits", bits);
+            quant.put("name", quantName);
+            item.put("quantization", quant);
+            // 这个功能中，只有非嵌入模型才会显示这些东西。
+            if (!"embedding".equals(type)) {
+                item.put("paramsString", resolveParamsString(baseName));
+                item.put("vision", vision);
+                item.put("trainedForToolUse", ParamTool.parseJsonBoolean(caps, "tools", false));
+            }
+            item.put("maxContextLength", md.getContextLength());
+            result.add(item);
+        }
+
+        return gson.toJson(result).getBytes(StandardCharsets.UTF_8);
+    }
+    
     
     /**
      * 	查询已加载的模型，处理报文：{"type":"rpcCall","endpoint":"listLoaded","callId":0}
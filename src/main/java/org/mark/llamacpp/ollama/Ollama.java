@@ -254,6 +254,29 @@ public class Ollama {
 		});
 	}
 	
+	/**
+	 * 	发送已经序列化好的JSON消息，带上ETag。
+	 * @param ctx
+	 * @param status
+	 * @param content
+	 * @param etag
+	 */
+	public static void sendOllamaJsonBytes(ChannelHandlerContext ctx, HttpResponseStatus status, byte[] content, String etag) {
+		FullHttpResponse response = new DefaultFullHttpResponse(HttpVersion.HTTP_1_1, status);
+		response.headers().set(HttpHeaderNames.CONTENT_TYPE, "application/json; charset=UTF-8");
+		response.headers().set(HttpHeaderNames.CONTENT_LENGTH, content.length);
+		response.headers().set(HttpHeaderNames.DATE, ParamTool.getDate());
+		response.headers().set(HttpHeaderNames.ETAG, etag);
+		response.content().writeBytes(content);
+		
+		ctx.writeAndFlush(response).addListener(new ChannelFutureListener() {
+			@Override
+			public void operationComplete(ChannelFuture future) {
+				ctx.close();
+			}
+		});
+	}
+	
 	/**
 	 * 	发送JSON消息，但是响应头中带chunked。
 	 * @param ctx
@@ -8,11 +8,13 @@ import java.util.Map;
 
 import org.mark.llamacpp.gguf.GGUFModel;
 import org.mark.llamacpp.server.LlamaCppProcess;
-import org.mark.llamacpp.server.LlamaServerManager;
+import org.mark.llamacpp.server.LlamaServer;
+import org.mark.llamacpp.server.ModelCatalogSnapshot;
 import org.mark.llamacpp.server.tools.ParamTool;
 
 import io.netty.channel.ChannelHandlerContext;
 import io.netty.handler.codec.http.FullHttpRequest;
+import io.netty.handler.codec.http.HttpHeaderNames;
 import io.netty.handler.codec.http.HttpMethod;
 import io.netty.handler.codec.http.HttpResponseStatus;
 
@@ -38,14 +40,23 @@ public class OllamaTagsService {
 			return;
 		}
 		
-		LlamaServerManager manager = LlamaServerManager.getInstance();
-		Map<String, LlamaCppProcess> loaded = manager.getLoadedProcesses();
-		manager.listModel();
+		// 列表在目录快照上只序列化一次，摘要也只计算一次
+		ModelCatalogSnapshot.View view = ModelCatalogSnapshot.current().view("ollama.tags", OllamaTagsService::buildModelList);
+		sendView(ctx, request, view);
+	}
+	
+	/**
+	 * 	在目录快照上构建/api/tags的响应。
+	 * @param snapshot
+	 * @return
+	 */
+	private static Map<String, Object> buildModelList(ModelCatalogSnapshot snapshot) {
+		Map<String, LlamaCppProcess> loaded = snapshot.getLoaded();
 		
 		List<Map<String, Object>> models = new ArrayList<>();
 		for (Map.Entry<String, LlamaCppProcess> entry : loaded.entrySet()) {
 			String modelId = entry.getKey();
-			GGUFModel model = manager.findModelById(modelId);
+			GGUFModel model = snapshot.findModel(modelId);
 			
 			Map<String, Object> item = new HashMap<>();
 			item.put("name", modelId);
@@ -80,8 +91,11 @@ public class OllamaTagsService {
 		
 		Map<String, Object> resp = new HashMap<>();
 		resp.put("models", models);
+		// 扩展字段：模型目录是否仍在后台加载，以及目录版本
+		resp.put("partial", snapshot.isPartial());
+		resp.put("catalog_version", snapshot.getCatalogVersion());
 		
-		Ollama.sendOllamaJson(ctx, HttpResponseStatus.OK, resp);
+		return resp;
 	}
 	
 	
@@ -96,14 +110,22 @@ public class OllamaTagsService {
 			return;
 		}
 		
-		LlamaServerManager manager = LlamaServerManager.getInstance();
-		Map<String, LlamaCppProcess> loaded = manager.getLoadedProcesses();
-		manager.listModel();
+		ModelCatalogSnapshot.View view = ModelCatalogSnapshot.current().view("ollama.ps", OllamaTagsService::buildLoadedModelList);
+		sendView(ctx, request, view);
+	}
+	
+	/**
+	 * 	在目录快照上构建/api/ps的响应。
+	 * @param snapshot
+	 * @return
+	 */
+	private static Map<String, Object> buildLoadedModelList(ModelCatalogSnapshot snapshot) {
+		Map<String, LlamaCppProcess> loaded = snapshot.getLoaded();
 		
 		List<Map<String, Object>> models = new ArrayList<>();
 		for (Map.Entry<String, LlamaCppProcess> entry : loaded.entrySet()) {
 			String modelId = entry.getKey();
-			GGUFModel model = manager.findModelById(modelId);
+			GGUFModel model = snapshot.findModel(modelId);
 			
 			Map<String, Object> item = new HashMap<>();
 			item.put("name", modelId);
@@ -143,6 +165,20 @@ public class OllamaTagsService {
 		Map<String, Object> resp = new HashMap<>();
 		resp.put("models", models);
 		
-		Ollama.sendOllamaJson(ctx, HttpResponseStatus.OK, resp);
+		return resp;
+	}
+	
+	/**
+	 * 	写出快照视图，客户端缓存未过期时返回304。
+	 * @param ctx
+	 * @param request
+	 * @param view
+	 */
+	private static void sendView(ChannelHandlerContext ctx, FullHttpRequest request, ModelCatalogSnapshot.View view) {
+		if (LlamaServer.etagMatches(request.headers().get(HttpHeaderNames.IF_NONE_MATCH), view.getEtag())) {
+			LlamaServer.sendNotModifiedResponse(ctx, view.getEtag());
+			return;
+		}
+		Ollama.sendOllamaJsonBytes(ctx, HttpResponseStatus.OK, view.getBytes(), view.getEtag());
 	}
 }
@@ -34,6 +34,7 @@ public class ConfigManager {
     private static final String CONFIG_DIR = "config";
     private static final String MODELS_CONFIG_FILE = CONFIG_DIR + "/models.json";
     private static final String LAUNCH_CONFIG_FILE = CONFIG_DIR + "/launch_config.json";
+    private static final String TUNE_SUGGESTIONS_FILE = CONFIG_DIR + "/tune_suggestions.json";
     
     private final Gson gson;
 
@@ -42,6 +43,7 @@ public class ConfigManager {
 
     private final Object modelsFileLock = new Object();
     private final Object launchFileLock = new Object();
+    private final Object tuneFileLock = new Object();
     
     private ConfigManager() {
         // 创建Gson实例，设置美观格式化
@@ -154,6 +156,39 @@ public class ConfigManager {
         }
     }
     
+    /**
+     * 保存参数调优得到的启动建议，覆盖该模型之前的建议
+     * @param modelId 模型ID
+     * @param suggestions 建议列表
+     * @return 是否保存成功
+     */
+    public boolean saveTuneSuggestions(String modelId, List<Map<String, Object>> suggestions) {
+        synchronized (tuneFileLock) {
+            try {
+                Map<String, List<Map<String, Object>>> all = loadAllTuneSuggestionsUnsafe();
+                all.put(modelId, suggestions);
+                writeJsonFileAtomic(TUNE_SUGGESTIONS_FILE, all);
+                logger.info("调优建议已保存到: {}", TUNE_SUGGESTIONS_FILE);
+                return true;
+            } catch (IOException e) {
+                logger.info("保存调优建议失败: {}", e);
+                return false;
+            }
+        }
+    }
+    
+    /**
+     * 加载指定模型的启动建议
+     * @param modelId 模型ID
+     * @return 建议列表，不存在时返回空列表
+     */
+    public List<Map<String, Object>> loadTuneSuggestions(String modelId) {
+        synchronized (tuneFileLock) {
+            List<Map<String, Object>> list = loadAllTuneSuggestionsUnsafe().get(modelId);
+            return list != null ? list : List.of();
+        }
+    }
+    
 //    /**
 //     * 将GGUFModel转换为可序列化的Map
 //     * @param model GGUFModel对象
@@ -328,6 +363,22 @@ public class ConfigManager {
         }
     }
 
+    private Map<String, List<Map<String, Object>>> loadAllTuneSuggestionsUnsafe() {
+        File configFile = new File(TUNE_SUGGESTIONS_FILE);
+        if (!configFile.exists()) {
+            return new HashMap<>();
+        }
+
+        try (FileReader reader = new FileReader(configFile)) {
+            Type mapType = new TypeToken<Map<String, List<Map<String, Object>>>>() {}.getType();
+            Map<String, List<Map<String, Object>>> all = gson.fromJson(reader, mapType);
+            return all != null ? all : new HashMap<>();
+        } catch (IOException | JsonSyntaxException e) {
+        	logger.info("加载调优建议失败: {}", e.getMessage());
+            return new HashMap<>();
+        }
+    }
+
     private void writeJsonFileAtomic(String filePath, Object data) throws IOException {
         Path target = Paths.get(filePath);
         Path parent = target.getParent();
@@ -15,6 +15,7 @@ import java.util.Map;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.function.Consumer;
 
+import org.mark.llamacpp.server.metrics.LlamaLogMetrics;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -66,6 +67,11 @@ public class LlamaCppProcess {
 	 */
 	private final AtomicBoolean isRunning = new AtomicBoolean(false);
 	
+	/**
+	 * 	从输出中解析的性能数据和最近的输出行
+	 */
+	private final LlamaLogMetrics logMetrics;
+	
 	/**
 	 * 	输出处理器
 	 */
@@ -96,6 +102,15 @@ public class LlamaCppProcess {
 		this.name = name;
 		this.cmd = cmd;
 		this.llamaBinPath = llamaBinPath;
+		this.logMetrics = new LlamaLogMetrics(name);
+	}
+	
+	/**
+	 * 	获取从输出中解析的性能数据
+	 * @return
+	 */
+	public LlamaLogMetrics getLogMetrics() {
+		return this.logMetrics;
 	}
 	
 	/**
@@ -312,11 +327,14 @@ public class LlamaCppProcess {
 	 * 启动输出读取线程
 	 */
 	private void startOutputReaders() {
-		// 标准输出读取线程
-		this.outputThread = new Thread(() -> {
+		// 标准输出读取线程（错误流已合并），用虚拟线程，阻塞读取时不占用平台线程。
+		// 线程名会出现在日志行里，控制台日志按它区分模型
+		this.outputThread = Thread.ofVirtual().name(this.name).unstarted(() -> {
 			try (BufferedReader reader = new BufferedReader(new InputStreamReader(this.process.getInputStream()))) {
 				String line;
 				while ((line = reader.readLine()) != null && this.isRunning.get()) {
+					// 记录并解析性能数据
+					this.logMetrics.accept(line);
 					// 将输出的内容转给处理器
 					if (this.outputHandler != null) {
 						this.outputHandler.accept(line);
@@ -332,7 +350,6 @@ public class LlamaCppProcess {
 				}
 			}
 		});
-		this.outputThread.setDaemon(true);
 		this.outputThread.start();
 	}
 	
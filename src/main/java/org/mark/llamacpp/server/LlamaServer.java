@@ -1,7 +1,6 @@
 package org.mark.llamacpp.server;
 
 import java.io.File;
-import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.PrintStream;
 import java.io.RandomAccessFile;
@@ -23,6 +22,9 @@ import org.mark.llamacpp.server.channel.DocsRouterHandler;
 import org.mark.llamacpp.server.channel.FileDownloadRouterHandler;
 import org.mark.llamacpp.server.channel.OpenAIRouterHandler;
 import org.mark.llamacpp.server.io.ConsoleBroadcastOutputStream;
+import org.mark.llamacpp.server.io.ConsoleLogStore;
+import org.mark.llamacpp.server.metrics.LinuxSystemCollector;
+import org.mark.llamacpp.server.metrics.MetricsStore;
 import org.mark.llamacpp.server.mcp.McpClientService;
 import org.mark.llamacpp.server.struct.LlamaCppConfig;
 import org.mark.llamacpp.server.struct.LlamaCppDataStruct;
@@ -73,9 +75,10 @@ public class LlamaServer {
 	public static void main(String[] args) {
 		// 这里重定向输出流
 		try {
-			Files.createDirectories(CONSOLE_LOG_PATH.getParent());
-			ConsoleBroadcastOutputStream out = new ConsoleBroadcastOutputStream(
-					new FileOutputStream(CONSOLE_LOG_PATH.toFile(), true), StandardCharsets.UTF_8);
+			ConsoleLogStore store = new ConsoleLogStore(CONSOLE_LOG_DIR, CONSOLE_LOG_PATH);
+			consoleLog = store;
+			ConsoleBroadcastOutputStream out = new ConsoleBroadcastOutputStream(store, StandardCharsets.UTF_8);
+			consoleCapture = out;
 			PrintStream ps = new PrintStream(out, true, StandardCharsets.UTF_8.name());
 			System.setOut(ps);
 			System.setErr(ps);
@@ -97,21 +100,11 @@ public class LlamaServer {
 		logger.info("正在加载启动配置...");
 		configManager.loadAllLaunchConfigs();
 
-		// 初始化LlamaServerManager并预加载模型列表
+		// 初始化LlamaServerManager
 		logger.info("正在初始化模型管理器...");
 		LlamaServerManager serverManager = LlamaServerManager.getInstance();
 
-		// 预加载模型列表，这会同时保存模型信息到配置文件
-		logger.info("正在扫描模型目录...");
-		serverManager.listModel();
-
-		try {
-			McpClientService.getInstance().initializeFromRegistry();
-		} catch (Exception e) {
-			logger.info("MCP初始化失败: {}", e.getMessage());
-		}
-
-		logger.info("系统初始化完成，启动Web服务器...");
+		logger.info("启动Web服务器...");
 
 		Thread t1 = new Thread(() -> {
 			LlamaServer.bindOpenAI(webPort);
@@ -138,6 +131,24 @@ public class LlamaServer {
 				logger.info("启动Ollama兼容服务失败: {}", e.getMessage());
 			}
 		}
+		
+		// 模型列表在后台加载（先读缓存索引，再全量扫描校验），完成后开始监听模型目录
+		logger.info("正在后台扫描模型目录...");
+		serverManager.loadCatalogInBackground();
+
+		try {
+			McpClientService.getInstance().initializeFromRegistry();
+		} catch (Exception e) {
+			logger.info("MCP初始化失败: {}", e.getMessage());
+		}
+
+		// 时序数据：定时保存到cache/metrics；Linux上系统监控不需要子进程，随服务启动
+		MetricsStore.getInstance().start();
+		if (LinuxSystemCollector.isSupported()) {
+			SystemMonitorService.getInstance().start(10);
+		}
+
+		logger.info("系统初始化完成");
 
 		// 尝试创建系统托盘
 		createWindowsSystemTray();
@@ -199,10 +210,19 @@ public class LlamaServer {
 	
 	
 	/**
-	 * 	日志的路径
+	 * 	旧版本的日志路径，启动时迁移到分段目录
 	 */
 	private static final Path CONSOLE_LOG_PATH = Paths.get("logs", "console.log");
 	
+	/**
+	 * 	分段日志的目录
+	 */
+	private static final Path CONSOLE_LOG_DIR = Paths.get("logs", "console");
+	
+	private static volatile ConsoleBroadcastOutputStream consoleCapture;
+	
+	private static volatile ConsoleLogStore consoleLog;
+	
 	/**
 	 * 	WebSocket地址
 	 */
@@ -215,6 +235,15 @@ public class LlamaServer {
 	private static int anthropicPort = DEFAULT_ANTHROPIC_PORT;
 	
 	private static String downloadDirectory = DEFAULT_DOWNLOAD_DIRECTORY;
+	
+	private static volatile int downloadMaxConcurrent = 4;
+	
+	private static volatile int downloadMaxConnections = 16;
+	
+	/**
+	 * 	下载总带宽，KiB/s，0表示不限
+	 */
+	private static volatile long downloadMaxBandwidthKBps = 0;
 
 	private static final Object APPLICATION_CONFIG_LOCK = new Object();
 	
@@ -295,6 +324,15 @@ public class LlamaServer {
 			if (download.has("directory")) {
 				downloadDirectory = download.get("directory").getAsString();
 			}
+			if (download.has("maxConcurrent")) {
+				downloadMaxConcurrent = download.get("maxConcurrent").getAsInt();
+			}
+			if (download.has("maxConnections")) {
+				downloadMaxConnections = download.get("maxConnections").getAsInt();
+			}
+			if (download.has("maxBandwidthKBps")) {
+				downloadMaxBandwidthKBps = download.get("maxBandwidthKBps").getAsLong();
+			}
 		}
 
 		if (root.has("security")) {
@@ -351,6 +389,9 @@ public class LlamaServer {
 	
 				JsonObject download = new JsonObject();
 				download.addProperty("directory", downloadDirectory);
+				download.addProperty("maxConcurrent", downloadMaxConcurrent);
+				download.addProperty("maxConnections", downloadMaxConnections);
+				download.addProperty("maxBandwidthKBps", downloadMaxBandwidthKBps);
 				root.add("download", download);
 				
 				JsonObject security = new JsonObject();
@@ -443,6 +484,33 @@ public class LlamaServer {
         LlamaServer.downloadDirectory = downloadDirectory;
     }
     
+    public static int getDownloadMaxConcurrent() {
+        return downloadMaxConcurrent;
+    }
+    
+    public static int getDownloadMaxConnections() {
+        return downloadMaxConnections;
+    }
+    
+    public static long getDownloadMaxBandwidthKBps() {
+        return downloadMaxBandwidthKBps;
+    }
+    
+    /**
+     * 设置下载的全局上限并保存配置
+     * @param maxConcurrent 同时下载的任务数
+     * @param maxConnections 总连接数
+     * @param maxBandwidthKBps 总带宽，KiB/s，0表示不限
+     */
+    public static void setDownloadLimits(int maxConcurrent, int maxConnections, long maxBandwidthKBps) {
+    	synchronized (APPLICATION_CONFIG_LOCK) {
+    		downloadMaxConcurrent = maxConcurrent;
+    		downloadMaxConnections = maxConnections;
+    		downloadMaxBandwidthKBps = maxBandwidthKBps;
+    		saveApplicationConfig();
+    	}
+    }
+    
     public static boolean isApiKeyValidationEnabled() {
     	return apiKeyValidationEnabled;
     }
@@ -647,6 +715,20 @@ public class LlamaServer {
         return CONSOLE_LOG_PATH;
     }
     
+    /**
+     * 分段保存的控制台日志，未重定向时为null
+     */
+    public static ConsoleLogStore getConsoleLog() {
+        return consoleLog;
+    }
+    
+    /**
+     * 控制台输出的捕获流，用于查看丢弃计数，未重定向时为null
+     */
+    public static ConsoleBroadcastOutputStream getConsoleCapture() {
+        return consoleCapture;
+    }
+    
     /**
      * 广播WebSocket消息
      */
@@ -654,6 +736,13 @@ public class LlamaServer {
         WebSocketManager.getInstance().broadcast(message);
     }
     
+    /**
+     * 向订阅了该主题的WebSocket连接广播消息
+     */
+    public static void broadcastWebSocketMessage(String topic, String message) {
+        WebSocketManager.getInstance().broadcast(topic, message, false);
+    }
+    
     /**
      * 获取当前WebSocket连接数
      */
@@ -683,8 +772,12 @@ public class LlamaServer {
         WebSocketManager.getInstance().sendModelStopEvent(modelId, success, message);
     }
     
-    public static void sendConsoleLineEvent(String modelId, String line) {
-        WebSocketManager.getInstance().sendConsoleLineEvent(modelId, line);
+    public static void sendModelCatalogReloadEvent(long version) {
+        WebSocketManager.getInstance().sendModelCatalogReloadEvent(version);
+    }
+    
+    public static void sendConsoleBatchEvent(String modelId, String text, int lines) {
+        WebSocketManager.getInstance().sendConsoleBatchEvent(modelId, text, lines);
     }
     
     public static void sendModelSlotsEvent(String modelId, com.google.gson.JsonArray slots) {
@@ -846,6 +939,16 @@ public class LlamaServer {
 		sendJsonResponseInternal(ctx, HttpResponseStatus.OK, data);
 	}
 
+	/**
+	 * 	发送指定状态码的JSON响应。
+	 * @param ctx
+	 * @param status
+	 * @param data
+	 */
+	public static void sendJsonResponse(ChannelHandlerContext ctx, HttpResponseStatus status, Object data) {
+		sendJsonResponseInternal(ctx, status == null ? HttpResponseStatus.OK : status, data);
+	}
+
 	private static void sendJsonResponseInternal(ChannelHandlerContext ctx, HttpResponseStatus status, Object data) {
 		String json = GSON.toJson(data);
 		byte[] content = json.getBytes(CharsetUtil.UTF_8);
@@ -864,6 +967,70 @@ public class LlamaServer {
 		});
 	}
 
+	/**
+	 * 	发送带ETag的JSON响应，客户端可以用If-None-Match做条件请求。
+	 * @param ctx
+	 * @param data
+	 * @param etag
+	 */
+	public static void sendJsonResponseWithEtag(ChannelHandlerContext ctx, Object data, String etag) {
+		byte[] content = GSON.toJson(data).getBytes(CharsetUtil.UTF_8);
+
+		FullHttpResponse response = new DefaultFullHttpResponse(HttpVersion.HTTP_1_1, HttpResponseStatus.OK);
+		response.headers().set(HttpHeaderNames.CONTENT_TYPE, "application/json; charset=UTF-8");
+		response.headers().set(HttpHeaderNames.CONTENT_LENGTH, content.length);
+		response.headers().set(HttpHeaderNames.ETAG, etag);
+		response.headers().set(HttpHeaderNames.CACHE_CONTROL, "no-cache");
+		setCorsHeaders(response.headers());
+		response.content().writeBytes(content);
+
+		ctx.writeAndFlush(response).addListener(new ChannelFutureListener() {
+			@Override
+			public void operationComplete(ChannelFuture future) {
+				ctx.close();
+			}
+		});
+	}
+	
+	/**
+	 * 	发送304响应。
+	 * @param ctx
+	 * @param etag
+	 */
+	public static void sendNotModifiedResponse(ChannelHandlerContext ctx, String etag) {
+		FullHttpResponse response = new DefaultFullHttpResponse(HttpVersion.HTTP_1_1, HttpResponseStatus.NOT_MODIFIED);
+		response.headers().set(HttpHeaderNames.ETAG, etag);
+		response.headers().set(HttpHeaderNames.CACHE_CONTROL, "no-cache");
+		setCorsHeaders(response.headers());
+
+		ctx.writeAndFlush(response).addListener(new ChannelFutureListener() {
+			@Override
+			public void operationComplete(ChannelFuture future) {
+				ctx.close();
+			}
+		});
+	}
+	
+	/**
+	 * 	判断If-None-Match是否命中给定的ETag。
+	 * @param ifNoneMatch
+	 * @param etag
+	 * @return
+	 */
+	public static boolean etagMatches(String ifNoneMatch, String etag) {
+		if (ifNoneMatch == null || ifNoneMatch.isBlank() || etag == null) {
+			return false;
+		}
+		String target = etag.startsWith("W/") ? etag.substring(2) : etag;
+		for (String part : ifNoneMatch.split(",")) {
+			String p = part.trim();
+			if ("*".equals(p)) return true;
+			if (p.startsWith("W/")) p = p.substring(2);
+			if (p.equals(target)) return true;
+		}
+		return false;
+	}
+
 	public static void sendExpressJsonResponse(ChannelHandlerContext ctx, HttpResponseStatus status, Object data, boolean allowAllMethods) {
 		String json = JsonUtil.toJson(data);
 		byte[] content = json.getBytes(CharsetUtil.UTF_8);
@@ -985,9 +1152,19 @@ public class LlamaServer {
      * @param text
      */
     public static  void sendTextResponse(ChannelHandlerContext ctx, String text) {
+		sendTextResponse(ctx, text, "text/plain; charset=UTF-8");
+	}
+	
+	/**
+	 * 	发送文本响应，使用指定的Content-Type
+	 * @param ctx
+	 * @param text
+	 * @param contentType
+	 */
+	public static void sendTextResponse(ChannelHandlerContext ctx, String text, String contentType) {
 		byte[] content = text.getBytes(StandardCharsets.UTF_8);
 		FullHttpResponse response = new DefaultFullHttpResponse(HttpVersion.HTTP_1_1, HttpResponseStatus.OK);
-		response.headers().set(HttpHeaderNames.CONTENT_TYPE, "text/plain; charset=UTF-8");
+		response.headers().set(HttpHeaderNames.CONTENT_TYPE, contentType);
 		response.headers().set(HttpHeaderNames.CONTENT_LENGTH, content.length);
 		setCorsHeaders(response.headers());
 		response.content().writeBytes(content);
@@ -9,20 +9,31 @@ import java.net.HttpURLConnection;
 import java.net.URI;
 import java.net.URL;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.FileVisitResult;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.Collection;
 import java.util.HashSet;
 import java.util.LinkedHashMap;
-import java.util.LinkedList;
+import java.util.LinkedHashSet;
+import java.util.Iterator;
 import java.util.List;
+import java.util.ListIterator;
 import java.util.Locale;
+import java.util.Objects;
 import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Callable;
 import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinWorkerThread;
 import java.util.concurrent.Future;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.ExecutorService;
@@ -31,13 +42,17 @@ import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.ScheduledThreadPoolExecutor;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
-import java.util.stream.Stream;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
 
 import org.mark.llamacpp.gguf.GGUFBundle;
 import org.mark.llamacpp.gguf.GGUFMetaData;
 import org.mark.llamacpp.gguf.GGUFModel;
 import org.mark.llamacpp.gguf.GGUFMetaDataReader;
+import org.mark.llamacpp.server.metrics.LlamaLogMetrics;
+import org.mark.llamacpp.server.metrics.MetricsStore;
 import org.mark.llamacpp.server.struct.ApiResponse;
+import org.mark.llamacpp.server.struct.ModelCatalogDelta;
 import org.mark.llamacpp.server.struct.ModelPathConfig;
 import org.mark.llamacpp.server.struct.ModelPathDataStruct;
 import org.mark.llamacpp.server.tools.CommandLineRunner;
@@ -51,6 +66,7 @@ import com.google.gson.JsonArray;
 import com.google.gson.JsonElement;
 import com.google.gson.JsonObject;
 import com.google.gson.JsonParser;
+import com.google.gson.reflect.TypeToken;
 
 /**
  * 	
@@ -77,6 +93,11 @@ public class LlamaServerManager {
 	 */
 	private final ConfigManager configManager = ConfigManager.getInstance();
 	
+	/**
+	 * 	模型扫描的并行度。扫描以IO为主（读GGUF头、写能力文件），所以比CPU核数大一些。
+	 */
+	private static final int SCAN_PARALLELISM = Math.max(4, Math.min(32, Runtime.getRuntime().availableProcessors() * 2));
+	
 	/**
 	 * 	单例
 	 */
@@ -97,9 +118,39 @@ public class LlamaServerManager {
 	
 	
 	/**
-	 * 	所有GGUF模型的列表
+	 * 	所有GGUF模型的列表。列表本身不可变，变化时构造新列表整体替换，读取方不需要加锁
+	 */
+	private volatile List<GGUFModel> list = List.of();
+	
+	/**
+	 * 	修改模型列表的锁，只在读取-修改-替换时持有，不包含扫描和解析GGUF头
+	 */
+	private final Object listLock = new Object();
+	
+	/**
+	 * 	模型目录的版本号，每次全量扫描或增量变化后递增。
+	 */
+	private final AtomicLong catalogVersion = new AtomicLong(0);
+	
+	/**
+	 * 	已加载模型的版本号，只在已加载的模型集合实际变化时递增。
+	 */
+	private final AtomicLong loadedVersion = new AtomicLong(0);
+	
+	/**
+	 * 	全量扫描的锁，保证同一时间只有一个扫描在进行。
+	 */
+	private final Object scanLock = new Object();
+	
+	/**
+	 * 	是否正在后台加载模型目录
+	 */
+	private volatile boolean catalogPartial = false;
+	
+	/**
+	 * 	模型索引缓存的文件名（位于缓存目录）
 	 */
-	private List<GGUFModel> list = new LinkedList<>();
+	private static final String CATALOG_INDEX_FILE = "model-index.json";
 	
 	/**
 	 * 已加载的模型进程列表
@@ -136,8 +187,27 @@ public class LlamaServerManager {
 	 */
 	private final ExecutorService executorService = Executors.newSingleThreadExecutor(Thread.ofVirtual().name("llama-loader-", 0).factory());
 	
+	/**
+	 * 	模型扫描用的线程池
+	 */
+	private final ForkJoinPool scanPool = new ForkJoinPool(SCAN_PARALLELISM, pool -> {
+		ForkJoinWorkerThread t = ForkJoinPool.defaultForkJoinWorkerThreadFactory.newThread(pool);
+		t.setName("model-scan-" + t.getPoolIndex());
+		return t;
+	}, null, false);
+	
+	/**
+	 * 	最近一次全量扫描的耗时统计
+	 */
+	private volatile Map<String, Object> lastScanStats = new LinkedHashMap<>();
+	
 	private final ScheduledExecutorService slotsScheduler = new ScheduledThreadPoolExecutor(1, Thread.ofVirtual().name("llama-slots-", 0).factory());
 	
+	/**
+	 * 	slot轮询时上一次读到的日志累计值，用来计算生成速度
+	 */
+	private final Map<String, double[]> lastLogCounters = new ConcurrentHashMap<>();
+	
 	/**
 	 *
 	 */
@@ -200,6 +270,32 @@ public class LlamaServerManager {
         return new ArrayList<>(this.modelPaths);
     }
 	
+	/**
+	 * 	把slot占用和这段时间的生成速度写入时序存储。速度由输出日志的累计值按两次轮询的差值计算
+	 */
+	private void recordSlotMetrics(String modelId, LlamaCppProcess process, int processing, int total) {
+		MetricsStore store = MetricsStore.getInstance();
+		store.record("slots.processing", modelId, processing);
+		store.record("slots.total", modelId, total);
+		if (process == null) {
+			return;
+		}
+		LlamaLogMetrics m = process.getLogMetrics();
+		double[] now = { m.getPromptTokens(), m.getPromptSeconds(), m.getGeneratedTokens(), m.getGeneratedSeconds(), m.getRequests() };
+		double[] prev = this.lastLogCounters.put(modelId, now);
+		if (prev == null) {
+			return;
+		}
+		if (now[1] > prev[1]) {
+			store.record("model.prompt_tps", modelId, (now[0] - prev[0]) / (now[1] - prev[1]));
+		}
+		if (now[3] > prev[3]) {
+			store.record("model.generation_tps", modelId, (now[2] - prev[2]) / (now[3] - prev[3]));
+		}
+		store.record("model.generated_tokens", modelId, Math.max(0, now[2] - prev[2]));
+		store.record("model.completed_requests", modelId, Math.max(0, now[4] - prev[4]));
+	}
+	
 	private void startSlotsPolling() {
 		this.slotsScheduler.scheduleAtFixedRate(() -> {
 			try {
@@ -224,6 +320,7 @@ public class LlamaServerManager {
 						continue;
 					}
 					JsonArray filtered = new JsonArray();
+					int processing = 0;
 					for (JsonElement el : slots) {
 						if (el == null || !el.isJsonObject()) {
 							continue;
@@ -242,9 +339,15 @@ public class LlamaServerManager {
 						out.addProperty("speculative", speculative);
 						out.addProperty("is_processing", isProcessing);
 						filtered.add(out);
+						if (isProcessing) {
+							processing++;
+						}
 					}
 					LlamaServer.sendModelSlotsEvent(modelId, filtered);
+					this.recordSlotMetrics(modelId, loaded.get(modelId), processing, filtered.size());
 				}
+				// 已经卸载的模型不再保留上次的计数
+				this.lastLogCounters.keySet().retainAll(loaded.keySet());
 			} catch (Exception e) {
 				logger.debug("轮询slots时发生错误: {}", e.getMessage());
 			}
@@ -266,74 +369,409 @@ public class LlamaServerManager {
 	 * @return
 	 */
     public List<GGUFModel> listModel(boolean reload) {
-        synchronized (this.list) {
-            // 如果列表是空的，就去检索
-            if(this.list.size() == 0 || reload) {
-                this.list.clear();
-                // 新建一个临时集合
-                List<ModelPathDataStruct> list = new ArrayList<>(this.modelPaths);
-                // 扫描默认目录
-                list.add(new ModelPathDataStruct(LlamaServer.getDefaultModelsPath(), "", ""));
-                
-                for (ModelPathDataStruct root : list) {
-                    if (root == null || root.getPath().trim().isEmpty()) continue;
-                    Path modelDir = Paths.get(root.getPath().trim());
-                    if (!Files.exists(modelDir) || !Files.isDirectory(modelDir)) {
-                        continue;
-                    }
-                    try (Stream<Path> paths = Files.walk(modelDir)) {
-                        List<Path> files = paths.filter(Files::isDirectory).sorted().toList();
-                        for (Path e : files) {
-                            GGUFModel model = this.handleDirectory(e);
-                            if (model != null) this.list.add(model);
+        List<GGUFModel> current = this.list;
+        // 列表不为空，或者后台正在加载目录时，直接返回当前已有的部分
+        if (!reload && (!current.isEmpty() || this.catalogPartial)) {
+			this.ensureCapabilitiesFilesExistForCurrentList();
+            return current;
+        }
+        // 扫描期间读取列表的请求拿到的是旧列表，不会被阻塞
+        synchronized (this.scanLock) {
+            List<GGUFModel> scanned = this.scanModelRoots();
+            this.applyPersistedModelSettings(scanned);
+            // 扫描完成后一次性替换，保证读到的是一致的快照
+            synchronized (this.listLock) {
+                this.list = List.copyOf(scanned);
+                this.catalogVersion.incrementAndGet();
+            }
+            this.saveCatalogIndex();
+        }
+        return this.list;
+    }
+    
+    /**
+     * 	在后台加载模型目录：先从缓存的索引恢复，再做一次全量扫描校验。
+     * 	期间列表接口返回已就绪的部分，并带上partial标记。
+     */
+    public void loadCatalogInBackground() {
+        this.catalogPartial = true;
+        Thread.ofVirtual().name("model-catalog-loader").start(() -> {
+            try {
+                List<GGUFModel> cached = this.readCatalogIndex();
+                if (!cached.isEmpty()) {
+                    this.applyPersistedModelSettings(cached);
+                    List<GGUFModel> restored = List.copyOf(cached);
+                    synchronized (this.listLock) {
+                        if (this.list.isEmpty()) {
+                            this.list = restored;
+                            this.catalogVersion.incrementAndGet();
                         }
-                    } catch (IOException e) {
-                        e.printStackTrace();
                     }
+                    logger.info("已从缓存索引恢复模型列表: {} 个", cached.size());
                 }
-                List<Map<String, Object>> persisted = this.configManager.loadModelsConfigCached();
-                Map<String, String> aliasMap = new HashMap<>();
-                Map<String, Boolean> favouriteMap = new HashMap<>();
-                for (Map<String, Object> rec : persisted) {
-                    if (rec == null) continue;
-                    Object id = rec.get("modelId");
-                    if (id == null) continue;
-                    String modelId = String.valueOf(id);
-                    Object alias = rec.get("alias");
-                    if (alias != null) {
-                        String a = String.valueOf(alias);
-                        if (!a.isEmpty()) aliasMap.put(modelId, a);
-                    }
-                    Object fav = rec.get("favourite");
-                    if (fav != null) {
-                        boolean v;
-                        if (fav instanceof Boolean) {
-                            v = (Boolean) fav;
-                        } else {
-                            v = Boolean.parseBoolean(String.valueOf(fav));
+                this.listModel(true);
+            } catch (Exception e) {
+                logger.info("后台加载模型列表失败", e);
+            } finally {
+                this.catalogPartial = false;
+            }
+            LlamaServer.sendModelCatalogReloadEvent(this.getCatalogVersion());
+            // 监听模型目录，之后的变化增量更新
+            ModelCatalogWatcher.getInstance().start();
+        });
+    }
+    
+    /**
+     * 	模型目录是否仍在后台加载（当前列表可能不完整）。
+     * @return
+     */
+    public boolean isCatalogPartial() {
+        return this.catalogPartial;
+    }
+    
+    private Path resolveCatalogIndexPath() {
+        return LlamaServer.getCachePath().resolve(CATALOG_INDEX_FILE);
+    }
+    
+    /**
+     * 	读取缓存的模型索引，丢弃主文件已经不存在的条目。
+     * @return
+     */
+    private List<GGUFModel> readCatalogIndex() {
+        List<GGUFModel> out = new ArrayList<>();
+        try {
+            Path file = this.resolveCatalogIndexPath();
+            if (!Files.isRegularFile(file)) {
+                return out;
+            }
+            String json = new String(Files.readAllBytes(file), StandardCharsets.UTF_8);
+            List<GGUFModel> cached = gson.fromJson(json, new TypeToken<List<GGUFModel>>() {}.getType());
+            if (cached == null) {
+                return out;
+            }
+            for (GGUFModel m : cached) {
+                if (m == null || m.getPrimaryModel() == null || m.getPrimaryModel().getFilePath() == null) continue;
+                if (!new File(m.getPrimaryModel().getFilePath()).isFile()) continue;
+                out.add(m);
+            }
+        } catch (Exception e) {
+            logger.info("读取模型索引缓存失败: {}", e.getMessage());
+        }
+        return out;
+    }
+    
+    /**
+     * 	把当前模型列表写入缓存索引，供下次启动快速恢复。
+     */
+    private void saveCatalogIndex() {
+        try {
+            List<GGUFModel> snapshot = this.list;
+            Path file = this.resolveCatalogIndexPath();
+            Path tmp = file.resolveSibling(CATALOG_INDEX_FILE + ".tmp");
+            Files.write(tmp, gson.toJson(snapshot).getBytes(StandardCharsets.UTF_8));
+            Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (Exception e) {
+            logger.info("保存模型索引缓存失败: {}", e.getMessage());
+        }
+    }
+    
+    /**
+     * 	并行扫描全部模型根目录。
+     * 	流程：目录发现 -> 分卷识别（GGUFBundle） -> 读取GGUF头 -> 生成能力文件，
+     * 	每个目录是一个独立任务，结果按目录顺序合并。
+     * @return
+     */
+    private List<GGUFModel> scanModelRoots() {
+        ScanStats stats = new ScanStats();
+        long start = System.nanoTime();
+        List<GGUFModel> result = new ArrayList<>();
+        // 1. 目录发现，每个根目录一个任务
+        List<Callable<List<Path>>> walkers = new ArrayList<>();
+        for (Path root : this.getModelRoots()) {
+            walkers.add(() -> {
+                return walkModelDirectories(root).stream().sorted().toList();
+            });
+        }
+        Set<Path> dirs = new LinkedHashSet<>();
+        for (Future<List<Path>> f : this.scanPool.invokeAll(walkers)) {
+            try {
+                dirs.addAll(f.get());
+            } catch (Exception e) {
+                logger.info("遍历模型目录失败: {}", e.getMessage());
+            }
+        }
+        stats.discoveryNanos = System.nanoTime() - start;
+        stats.directories = dirs.size();
+        
+        // 2~4. 分卷识别、读取头信息、生成能力文件
+        List<Callable<GGUFModel>> tasks = new ArrayList<>(dirs.size());
+        for (Path dir : dirs) {
+            tasks.add(() -> {
+                GGUFModel model = this.resolveDirectory(dir, stats);
+                if (model != null) {
+                    long t = System.nanoTime();
+                    this.ensureCapabilitiesFileExistsForModel(model);
+                    stats.capabilitiesNanos.add(System.nanoTime() - t);
+                }
+                return model;
+            });
+        }
+        for (Future<GGUFModel> f : this.scanPool.invokeAll(tasks)) {
+            try {
+                GGUFModel model = f.get();
+                if (model != null) result.add(model);
+            } catch (Exception e) {
+                logger.info("扫描模型目录失败: {}", e.getMessage());
+            }
+        }
+        stats.models = result.size();
+        stats.totalNanos = System.nanoTime() - start;
+        this.lastScanStats = stats.toMap();
+        logger.info("模型扫描完成: {}", this.lastScanStats);
+        return result;
+    }
+    
+    /**
+     * 	获取最近一次全量扫描的耗时统计。
+     * @return
+     */
+    public Map<String, Object> getLastScanStats() {
+        return this.lastScanStats;
+    }
+    
+    /**
+     * 	扫描过程中各阶段的耗时。除目录发现和总耗时是实际经过的时间外，其余阶段为各线程累计时间。
+     */
+    private static final class ScanStats {
+        private long discoveryNanos;
+        private final LongAdder bundleNanos = new LongAdder();
+        private final LongAdder headerNanos = new LongAdder();
+        private final LongAdder capabilitiesNanos = new LongAdder();
+        private long totalNanos;
+        private int directories;
+        private int models;
+        
+        private Map<String, Object> toMap() {
+            Map<String, Object> out = new LinkedHashMap<>();
+            out.put("directories", this.directories);
+            out.put("models", this.models);
+            out.put("parallelism", SCAN_PARALLELISM);
+            out.put("discoveryMs", TimeUnit.NANOSECONDS.toMillis(this.discoveryNanos));
+            out.put("bundleMs", TimeUnit.NANOSECONDS.toMillis(this.bundleNanos.sum()));
+            out.put("headerMs", TimeUnit.NANOSECONDS.toMillis(this.headerNanos.sum()));
+            out.put("capabilitiesMs", TimeUnit.NANOSECONDS.toMillis(this.capabilitiesNanos.sum()));
+            out.put("totalMs", TimeUnit.NANOSECONDS.toMillis(this.totalNanos));
+            out.put("finishedAt", System.currentTimeMillis());
+            return out;
+        }
+    }
+    
+    /**
+     * 	获取当前模型列表的副本，不触发扫描。
+     * @return
+     */
+    public List<GGUFModel> snapshotModels() {
+        return new ArrayList<>(this.list);
+    }
+    
+    /**
+     * 	遍历目录树，返回start及其全部子目录。以"."开头的目录连同整个子树一起跳过，
+     * 	目录监听使用同样的规则。
+     * @param start
+     * @return
+     * @throws IOException
+     */
+    static List<Path> walkModelDirectories(Path start) throws IOException {
+        List<Path> dirs = new ArrayList<>();
+        Files.walkFileTree(start, new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) {
+                Path name = dir.getFileName();
+                if (!dir.equals(start) && name != null && name.toString().startsWith(".")) {
+                    return FileVisitResult.SKIP_SUBTREE;
+                }
+                dirs.add(dir);
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFileFailed(Path file, IOException exc) {
+                return FileVisitResult.CONTINUE;
+            }
+        });
+        return dirs;
+    }
+    
+    /**
+     * 	获取全部存在的模型根目录（包含默认目录）。
+     * @return
+     */
+    public List<Path> getModelRoots() {
+        List<ModelPathDataStruct> list = new ArrayList<>(this.modelPaths);
+        // 扫描默认目录
+        list.add(new ModelPathDataStruct(LlamaServer.getDefaultModelsPath(), "", ""));
+        List<Path> roots = new ArrayList<>();
+        for (ModelPathDataStruct root : list) {
+            if (root == null || root.getPath() == null || root.getPath().trim().isEmpty()) continue;
+            Path modelDir = Paths.get(root.getPath().trim()).toAbsolutePath().normalize();
+            if (!Files.exists(modelDir) || !Files.isDirectory(modelDir)) {
+                continue;
+            }
+            if (!roots.contains(modelDir)) roots.add(modelDir);
+        }
+        return roots;
+    }
+    
+    /**
+     * 	获取当前模型目录的版本号。
+     * @return
+     */
+    public long getCatalogVersion() {
+        return this.catalogVersion.get();
+    }
+    
+    /**
+     * 	获取已加载模型的版本号。
+     * @return
+     */
+    public long getLoadedVersion() {
+        return this.loadedVersion.get();
+    }
+    
+    /**
+     * 	模型的属性（别名、偏好、能力）在原处被修改后调用，使依赖版本号的缓存失效。
+     * @return 新的版本号
+     */
+    public long markCatalogChanged() {
+        return this.catalogVersion.incrementAndGet();
+    }
+    
+    /**
+     * 	把配置文件中保存的别名和偏好设置应用到模型上。
+     * @param models
+     */
+    private void applyPersistedModelSettings(List<GGUFModel> models) {
+        List<Map<String, Object>> persisted = this.configManager.loadModelsConfigCached();
+        Map<String, String> aliasMap = new HashMap<>();
+        Map<String, Boolean> favouriteMap = new HashMap<>();
+        for (Map<String, Object> rec : persisted) {
+            if (rec == null) continue;
+            Object id = rec.get("modelId");
+            if (id == null) continue;
+            String modelId = String.valueOf(id);
+            Object alias = rec.get("alias");
+            if (alias != null) {
+                String a = String.valueOf(alias);
+                if (!a.isEmpty()) aliasMap.put(modelId, a);
+            }
+            Object fav = rec.get("favourite");
+            if (fav != null) {
+                boolean v;
+                if (fav instanceof Boolean) {
+                    v = (Boolean) fav;
+                } else {
+                    v = Boolean.parseBoolean(String.valueOf(fav));
+                }
+                favouriteMap.put(modelId, v);
+            }
+        }
+        for (GGUFModel m : models) {
+            String alias = aliasMap.get(m.getModelId());
+            if (alias != null && !alias.isEmpty()) {
+                m.setAlias(alias);
+            }
+            Boolean fav = favouriteMap.get(m.getModelId());
+            if (fav != null) {
+                m.setFavourite(fav);
+            }
+        }
+    }
+    
+    /**
+     * 	增量刷新指定的目录，只重新解析这些目录，而不是重新遍历全部模型根目录。
+     * 	已经不存在的目录会把其下的模型全部移除。
+     * @param dirs 发生变化的目录
+     * @return 本次刷新产生的增量
+     */
+    public ModelCatalogDelta refreshDirectories(Collection<Path> dirs) {
+        ModelCatalogDelta delta = new ModelCatalogDelta();
+        if (dirs == null || dirs.isEmpty()) {
+            delta.setVersion(this.catalogVersion.get());
+            return delta;
+        }
+        // 先在锁外解析各目录，读取GGUF头较慢，不应阻塞其它读写
+        Map<Path, GGUFModel> fresh = new LinkedHashMap<>();
+        for (Path raw : dirs) {
+            if (raw == null) continue;
+            Path dir = raw.toAbsolutePath().normalize();
+            GGUFModel m = Files.isDirectory(dir) ? this.handleDirectory(dir) : null;
+            if (m != null) {
+                this.applyPersistedModelSettings(List.of(m));
+            }
+            fresh.put(dir, m);
+        }
+        synchronized (this.listLock) {
+            List<GGUFModel> next = new ArrayList<>(this.list);
+            for (Map.Entry<Path, GGUFModel> e : fresh.entrySet()) {
+                Path dir = e.getKey();
+                GGUFModel model = e.getValue();
+                if (!Files.isDirectory(dir)) {
+                    // 目录被删除：移除该目录及其子目录下的全部模型
+                    Iterator<GGUFModel> it = next.iterator();
+                    while (it.hasNext()) {
+                        GGUFModel m = it.next();
+                        if (Paths.get(m.getPath()).toAbsolutePath().normalize().startsWith(dir)) {
+                            it.remove();
+                            delta.getRemoved().add(m);
                         }
-                        favouriteMap.put(modelId, v);
                     }
+                    continue;
                 }
-                for (GGUFModel m : this.list) {
-                    String alias = aliasMap.get(m.getModelId());
-                    if (alias != null && !alias.isEmpty()) {
-                        m.setAlias(alias);
-                    }
-                    Boolean fav = favouriteMap.get(m.getModelId());
-                    if (fav != null) {
-                        m.setFavourite(fav);
+                boolean found = false;
+                ListIterator<GGUFModel> it = next.listIterator();
+                while (it.hasNext()) {
+                    GGUFModel m = it.next();
+                    if (!Paths.get(m.getPath()).toAbsolutePath().normalize().equals(dir)) continue;
+                    found = true;
+                    if (model == null) {
+                        it.remove();
+                        delta.getRemoved().add(m);
+                    } else if (isModelFilesChanged(m, model)) {
+                        it.set(model);
+                        delta.getUpdated().add(model);
                     }
+                    break;
+                }
+                if (!found && model != null) {
+                    next.add(model);
+                    delta.getAdded().add(model);
                 }
-				this.ensureCapabilitiesFilesExistForCurrentList();
             }
-            // 如果集合不是空的，就直接返回。
-            else {
-				this.ensureCapabilitiesFilesExistForCurrentList();
-                return this.list;
+            if (!delta.isEmpty()) {
+                this.list = List.copyOf(next);
             }
+            delta.setVersion(delta.isEmpty() ? this.catalogVersion.get() : this.catalogVersion.incrementAndGet());
         }
-        return this.list;
+        if (!delta.isEmpty()) {
+            this.saveCatalogIndex();
+        }
+        return delta;
+    }
+    
+    /**
+     * 	判断同一目录下的模型文件是否发生了变化。
+     * @param a
+     * @param b
+     * @return
+     */
+    private static boolean isModelFilesChanged(GGUFModel a, GGUFModel b) {
+        if (a.getSize() != b.getSize()) return true;
+        String pa = a.getPrimaryModel() == null ? null : a.getPrimaryModel().getFileName();
+        String pb = b.getPrimaryModel() == null ? null : b.getPrimaryModel().getFileName();
+        if (!Objects.equals(pa, pb)) return true;
+        String ma = a.getMmproj() == null ? null : a.getMmproj().getFileName();
+        String mb = b.getMmproj() == null ? null : b.getMmproj().getFileName();
+        return !Objects.equals(ma, mb);
     }
     
     /**
@@ -391,12 +829,37 @@ public class LlamaServerManager {
 		String name = primaryMeta == null ? "" : primaryMeta.getName();
 		String modelName = model == null ? "" : model.getName();
 
-		String combined = String.join(" ",
-				safeLower(fileName),
-				safeLower(architecture),
-				safeLower(baseName),
-				safeLower(name),
-				safeLower(modelName));
+		String chatTemplate = "";
+		try {
+			if (primaryFile != null && primaryFile.exists() && primaryFile.isFile()) {
+				Map<String, Object> full = GGUFMetaDataReader.read(primaryFile);
+				Object tpl = full == null ? null : full.get("tokenizer.chat_template");
+				if (tpl != null) chatTemplate = String.valueOf(tpl);
+			}
+		} catch (Exception ignore) {
+		}
+
+		return resolveModelType(List.of(fileName, architecture == null ? "" : architecture, baseName == null ? "" : baseName,
+				name == null ? "" : name, modelName == null ? "" : modelName), architecture, chatTemplate);
+	}
+
+	/**
+	 * 	根据文件名、模型名、架构和聊天模板推断模型能力（rerank、embedding、tools、thinking）。
+	 * 	还没有下载完的模型只有头部元数据，也用这个规则。
+	 * @param names
+	 * @param architecture
+	 * @param chatTemplate
+	 * @return
+	 */
+	public static Map<String, Object> resolveModelType(List<String> names, String architecture, String chatTemplate) {
+		StringBuilder sb = new StringBuilder();
+		for (String n : names) {
+			if (sb.length() > 0) {
+				sb.append(' ');
+			}
+			sb.append(safeLower(n));
+		}
+		String combined = sb.toString();
 
 		boolean rerank = containsAny(combined,
 				"rerank", "re-rank", "reranker", "ranker", "cross-encoder", "crossencoder", "cross_encoder");
@@ -413,16 +876,6 @@ public class LlamaServerManager {
 			}
 		}
 
-		String chatTemplate = "";
-		try {
-			if (primaryFile != null && primaryFile.exists() && primaryFile.isFile()) {
-				Map<String, Object> full = GGUFMetaDataReader.read(primaryFile);
-				Object tpl = full == null ? null : full.get("tokenizer.chat_template");
-				if (tpl != null) chatTemplate = String.valueOf(tpl);
-			}
-		} catch (Exception ignore) {
-		}
-
 		String tplLower = safeLower(chatTemplate);
 		boolean tools = containsAny(tplLower, "tool_call", "tool_calls", "tools", "mcp", "function");
 		if (!tools && tplLower.contains("tool")) {
@@ -609,6 +1062,7 @@ public class LlamaServerManager {
 		synchronized (this.lockForCapabilitiesFile(id)) {
 			Files.write(filePath, saved.toString().getBytes(StandardCharsets.UTF_8));
 		}
+		this.markCatalogChanged();
 
 		JsonObject out = new JsonObject();
 		out.addProperty("modelId", id);
@@ -629,7 +1083,22 @@ public class LlamaServerManager {
      * @param path
      * @return
      */
-	private synchronized GGUFModel handleDirectory(Path path) {
+	private GGUFModel handleDirectory(Path path) {
+		GGUFModel model = this.resolveDirectory(path, null);
+		if (model != null) {
+			this.ensureCapabilitiesFileExistsForModel(model);
+		}
+		return model;
+	}
+	
+	/**
+	 * 	解析目录中的模型（分卷识别 + 读取GGUF头），不生成能力文件。
+	 * 	不持有共享状态，可以在扫描线程池中并行调用。
+	 * @param path
+	 * @param stats 耗时统计，可以为null
+	 * @return
+	 */
+	private GGUFModel resolveDirectory(Path path, ScanStats stats) {
 		File dir = path.toFile();
 		if (dir.getName().startsWith("."))
 			return null;
@@ -676,18 +1145,26 @@ public class LlamaServerManager {
 		if(seedFile == null) return null;
 		
 		try {
+			long t = System.nanoTime();
 			GGUFBundle bundle = new GGUFBundle(seedFile);
+			if (stats != null) {
+				stats.bundleNanos.add(System.nanoTime() - t);
+			}
+			// 分卷还没有全部就位（例如仍在下载），暂不加入列表
+			if (!bundle.isComplete()) {
+				logger.info("分卷文件不完整，跳过目录: {}", path);
+				return null;
+			}
 			
 			GGUFModel model = new GGUFModel(dir.getName(), dir.getAbsolutePath());
 			model.setAlias(dir.getName());
 			
+			t = System.nanoTime();
 			// 处理主模型文件
 			File primaryFile = bundle.getPrimaryFile();
-			GGUFMetaData primaryMeta = null;
 			if(primaryFile != null && primaryFile.exists()) {
 				GGUFMetaData md = GGUFMetaData.readFile(primaryFile);
 				if (md != null) {
-					primaryMeta = md;
 					model.setPrimaryModel(md);
 					// 将主模型元数据也添加到列表中，保持兼容性
 					model.addMetaData(md);
@@ -731,8 +1208,8 @@ public class LlamaServerManager {
 				}
 			}
 			
-			if (primaryFile != null && primaryFile.exists() && primaryFile.isFile()) {
-				this.ensureCapabilitiesFileExists(model, primaryFile, primaryMeta != null ? primaryMeta : model.getPrimaryModel());
+			if (stats != null) {
+				stats.headerNanos.add(System.nanoTime() - t);
 			}
 			
 			return model;
@@ -844,7 +1321,9 @@ public class LlamaServerManager {
 			boolean stopped = process.stop();
 			if (stopped) {
 				synchronized (this.processLock) {
-					this.loadedProcesses.remove(id);
+					if (this.loadedProcesses.remove(id) != null) {
+						this.loadedVersion.incrementAndGet();
+					}
 					this.modelPorts.remove(id);
 				}
 				this.loadedModelInfos.remove(id);
@@ -910,18 +1389,26 @@ public class LlamaServerManager {
 	 * @return
 	 */
 	public boolean loadModelAsyncFromCmd(String modelId, String llamaBinPath, List<String> device, Integer mg, boolean enbaleVision, String cmd, String extraParams, String chatTemplateFilePath) {
-		Map<String, Object> launchConfig = new HashMap<>();
-		launchConfig.put("llamaBinPath", llamaBinPath);
-		launchConfig.put("device", device);
-		launchConfig.put("mg", mg);
-		launchConfig.put("cmd", cmd);
-		launchConfig.put("extraParams", extraParams);
-		launchConfig.put("enableVision", enbaleVision);
-		
-		if (chatTemplateFilePath != null && !chatTemplateFilePath.trim().isEmpty()) {
-			launchConfig.put("chatTemplateFile", chatTemplateFilePath);
+		return this.loadModelAsyncFromCmd(modelId, llamaBinPath, device, mg, enbaleVision, cmd, extraParams, chatTemplateFilePath, true);
+	}
+	
+	/**
+	 * 	通过CMD命令启动llama-server进程，可以选择不保存启动配置（例如参数调优时的临时启动）。
+	 * @param modelId
+	 * @param llamaBinPath
+	 * @param device
+	 * @param mg
+	 * @param enbaleVision
+	 * @param cmd
+	 * @param extraParams
+	 * @param chatTemplateFilePath
+	 * @param saveLaunchConfig 是否写入launch_config.json
+	 * @return
+	 */
+	public boolean loadModelAsyncFromCmd(String modelId, String llamaBinPath, List<String> device, Integer mg, boolean enbaleVision, String cmd, String extraParams, String chatTemplateFilePath, boolean saveLaunchConfig) {
+		if (saveLaunchConfig) {
+			this.saveLaunchConfig(modelId, llamaBinPath, device, mg, enbaleVision, cmd, extraParams, chatTemplateFilePath);
 		}
-		this.configManager.saveLaunchConfig(modelId, launchConfig);
 
 		synchronized (this.processLock) {
 			if (this.loadedProcesses.containsKey(modelId)) {
@@ -976,6 +1463,21 @@ public class LlamaServerManager {
 		}
 	}
 	
+	private void saveLaunchConfig(String modelId, String llamaBinPath, List<String> device, Integer mg, boolean enbaleVision, String cmd, String extraParams, String chatTemplateFilePath) {
+		Map<String, Object> launchConfig = new HashMap<>();
+		launchConfig.put("llamaBinPath", llamaBinPath);
+		launchConfig.put("device", device);
+		launchConfig.put("mg", mg);
+		launchConfig.put("cmd", cmd);
+		launchConfig.put("extraParams", extraParams);
+		launchConfig.put("enableVision", enbaleVision);
+		
+		if (chatTemplateFilePath != null && !chatTemplateFilePath.trim().isEmpty()) {
+			launchConfig.put("chatTemplateFile", chatTemplateFilePath);
+		}
+		this.configManager.saveLaunchConfig(modelId, launchConfig);
+	}
+	
 	/**
 	 * 	后台启动llama-server进程。
 	 * @param modelId
@@ -1017,7 +1519,9 @@ public class LlamaServerManager {
 					logger.info("检测到模型进程异常终止: {}", line);
 					loadSuccess.set(false);
 					synchronized (this.processLock) {
-						this.loadedProcesses.remove(modelId);
+						if (this.loadedProcesses.remove(modelId) != null) {
+							this.loadedVersion.incrementAndGet();
+						}
 						this.modelPorts.remove(modelId);
 					}
 					LlamaServer.sendModelStopEvent(modelId, false, "模型进程异常终止: " + line);
@@ -1027,7 +1531,9 @@ public class LlamaServerManager {
 					logger.info("检测到模型进程异常终止: {}", line);
 					loadSuccess.set(false);
 					synchronized (this.processLock) {
-						this.loadedProcesses.remove(modelId);
+						if (this.loadedProcesses.remove(modelId) != null) {
+							this.loadedVersion.incrementAndGet();
+						}
 						this.modelPorts.remove(modelId);
 					}
 					latch.countDown();
@@ -1072,6 +1578,7 @@ public class LlamaServerManager {
 				if (loadSuccess.get()) {
 					synchronized (this.processLock) {
 						this.loadedProcesses.put(modelId, process);
+						this.loadedVersion.incrementAndGet();
 						this.modelPorts.put(modelId, port);
 					}
 					LlamaServer.sendModelLoadEvent(modelId, true, "模型加载成功", port);
@@ -1440,6 +1947,7 @@ public class LlamaServerManager {
 			out.addProperty("fetchedAt", System.currentTimeMillis());
 			out.add("items", items);
 
+			// 只是缓存信息，不改变已加载的模型，不更新loadedVersion，否则构建目录快照时调用这里会让快照立即失效
 			this.loadedModelInfos.put(id, out);
 			return out;
 		} catch (Exception e) {
@@ -1690,7 +2198,10 @@ public class LlamaServerManager {
 		}
 
 		synchronized (this.processLock) {
-			this.loadedProcesses.clear();
+			if (!this.loadedProcesses.isEmpty()) {
+				this.loadedProcesses.clear();
+				this.loadedVersion.incrementAndGet();
+			}
 			this.modelPorts.clear();
 		}
 
@@ -0,0 +1,157 @@
+package org.mark.llamacpp.server;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Function;
+
+import org.mark.llamacpp.gguf.GGUFModel;
+import org.mark.llamacpp.server.tools.JsonUtil;
+import org.mark.llamacpp.server.tools.ParamTool;
+
+/**
+ * 	不可变的模型目录快照。
+ * 	由目录版本、已加载模型版本和是否仍在后台加载三者决定，任何一个变化才重建。
+ * 	各兼容协议（OpenAI、Ollama、LM Studio）的列表接口在快照上注册自己的视图，
+ * 	视图在每个快照上只序列化一次，之后的请求直接写出缓存的字节。
+ */
+public final class ModelCatalogSnapshot {
+
+	/**
+	 * 	序列化好的视图。
+	 */
+	public static final class View {
+		private final byte[] bytes;
+		private final String etag;
+
+		private View(byte[] bytes) {
+			this.bytes = bytes;
+			this.etag = ParamTool.buildEtag(bytes);
+		}
+
+		/**
+		 * 	序列化后的内容，调用方不能修改。
+		 * @return
+		 */
+		public byte[] getBytes() {
+			return bytes;
+		}
+
+		public String getEtag() {
+			return etag;
+		}
+
+		public String asString() {
+			return new String(this.bytes, StandardCharsets.UTF_8);
+		}
+	}
+
+	private static final Object LOCK = new Object();
+
+	private static volatile ModelCatalogSnapshot current;
+
+	/**
+	 * 	获取当前快照，状态变化后才会重建。
+	 * @return
+	 */
+	public static ModelCatalogSnapshot current() {
+		LlamaServerManager manager = LlamaServerManager.getInstance();
+		ModelCatalogSnapshot snap = current;
+		if (snap != null && snap.isCurrent(manager)) {
+			return snap;
+		}
+		synchronized (LOCK) {
+			snap = current;
+			if (snap == null || !snap.isCurrent(manager)) {
+				// 先读版本再取数据，构建期间发生的变化会让下一次调用重建
+				long catalogVersion = manager.getCatalogVersion();
+				long loadedVersion = manager.getLoadedVersion();
+				boolean partial = manager.isCatalogPartial();
+				// 目录为空时触发一次扫描，与原先各接口调用listModel()的行为一致
+				manager.listModel(false);
+				snap = new ModelCatalogSnapshot(catalogVersion, loadedVersion, partial,
+						manager.snapshotModels(), manager.getLoadedProcesses());
+				current = snap;
+			}
+		}
+		return snap;
+	}
+
+	private final long catalogVersion;
+
+	private final long loadedVersion;
+
+	private final boolean partial;
+
+	private final List<GGUFModel> models;
+
+	private final Map<String, GGUFModel> modelsById;
+
+	private final Map<String, LlamaCppProcess> loaded;
+
+	private final Map<String, View> views = new ConcurrentHashMap<>();
+
+	private ModelCatalogSnapshot(long catalogVersion, long loadedVersion, boolean partial, List<GGUFModel> models,
+			Map<String, LlamaCppProcess> loaded) {
+		this.catalogVersion = catalogVersion;
+		this.loadedVersion = loadedVersion;
+		this.partial = partial;
+		this.models = Collections.unmodifiableList(models);
+		Map<String, GGUFModel> byId = new LinkedHashMap<>();
+		for (GGUFModel m : models) {
+			if (m != null && m.getModelId() != null) {
+				byId.putIfAbsent(m.getModelId(), m);
+			}
+		}
+		this.modelsById = Collections.unmodifiableMap(byId);
+		this.loaded = Collections.unmodifiableMap(new LinkedHashMap<>(loaded));
+	}
+
+	private boolean isCurrent(LlamaServerManager manager) {
+		return this.catalogVersion == manager.getCatalogVersion()
+				&& this.loadedVersion == manager.getLoadedVersion()
+				&& this.partial == manager.isCatalogPartial();
+	}
+
+	/**
+	 * 	获取指定名称的视图，不存在时用builder构建并序列化。
+	 * 	builder返回byte[]时直接使用，否则序列化为JSON。
+	 * @param name
+	 * @param builder
+	 * @return
+	 */
+	public View view(String name, Function<ModelCatalogSnapshot, Object> builder) {
+		return this.views.computeIfAbsent(name, k -> {
+			Object data = builder.apply(this);
+			byte[] bytes = data instanceof byte[] ? (byte[]) data : JsonUtil.toJson(data).getBytes(StandardCharsets.UTF_8);
+			return new View(bytes);
+		});
+	}
+
+	public long getCatalogVersion() {
+		return catalogVersion;
+	}
+
+	public long getLoadedVersion() {
+		return loadedVersion;
+	}
+
+	public boolean isPartial() {
+		return partial;
+	}
+
+	public List<GGUFModel> getModels() {
+		return models;
+	}
+
+	public GGUFModel findModel(String modelId) {
+		return modelId == null ? null : this.modelsById.get(modelId);
+	}
+
+	public Map<String, LlamaCppProcess> getLoaded() {
+		return loaded;
+	}
+}
@@ -0,0 +1,321 @@
+package org.mark.llamacpp.server;
+
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import org.mark.llamacpp.server.struct.ModelCatalogDelta;
+import org.mark.llamacpp.server.websocket.WebSocketManager;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * 	模型目录的文件系统监听。
+ * 	监听全部模型根目录（递归），把创建/修改/删除事件合并（防抖）后，
+ * 	只对发生变化的目录做增量解析，并通过WebSocket推送增量。
+ */
+public class ModelCatalogWatcher {
+
+	private static final Logger logger = LoggerFactory.getLogger(ModelCatalogWatcher.class);
+
+	/**
+	 * 	最后一个事件之后等待的时间，大文件拷贝/下载时会持续产生修改事件。
+	 */
+	private static final long DEBOUNCE_MS = 1500;
+
+	/**
+	 * 	持续有事件时，最长等待多久一定要处理一次。
+	 */
+	private static final long MAX_DELAY_MS = 10_000;
+
+	/**
+	 * 	单例
+	 */
+	private static volatile ModelCatalogWatcher instance;
+
+	/**
+	 * 	获取单例
+	 * @return
+	 */
+	public static ModelCatalogWatcher getInstance() {
+		if (instance == null) {
+			synchronized (ModelCatalogWatcher.class) {
+				if (instance == null) {
+					instance = new ModelCatalogWatcher();
+				}
+			}
+		}
+		return instance;
+	}
+
+	private final Object lock = new Object();
+
+	/**
+	 * 	WatchKey到目录的映射
+	 */
+	private final Map<WatchKey, Path> keys = new HashMap<>();
+
+	/**
+	 * 	当前监听的模型根目录
+	 */
+	private List<Path> roots = List.of();
+
+	/**
+	 * 	等待处理的目录
+	 */
+	private final Set<Path> pendingDirs = new LinkedHashSet<>();
+
+	/**
+	 * 	是否需要全量重新扫描（事件溢出时）
+	 */
+	private boolean pendingFullRescan = false;
+
+	/**
+	 * 	第一个未处理事件的时间
+	 */
+	private long firstPendingAt = 0;
+
+	private ScheduledFuture<?> flushFuture;
+
+	private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(Thread.ofVirtual().name("model-watch-flush-", 0).factory());
+
+	private WatchService watchService;
+
+	private Thread pollThread;
+
+	private volatile boolean started = false;
+
+	private ModelCatalogWatcher() {
+
+	}
+
+	/**
+	 * 	启动监听。
+	 */
+	public void start() {
+		synchronized (this.lock) {
+			if (this.started) {
+				return;
+			}
+			try {
+				this.watchService = FileSystems.getDefault().newWatchService();
+			} catch (IOException e) {
+				logger.info("创建模型目录监听失败: {}", e.getMessage());
+				return;
+			}
+			this.started = true;
+			this.registerRoots();
+			this.pollThread = Thread.ofVirtual().name("model-watch").start(this::pollLoop);
+		}
+		logger.info("模型目录监听已启动");
+	}
+
+	/**
+	 * 	停止监听。
+	 */
+	public void stop() {
+		synchronized (this.lock) {
+			if (!this.started) {
+				return;
+			}
+			this.started = false;
+			try {
+				this.watchService.close();
+			} catch (IOException ignore) {
+			}
+			this.keys.clear();
+			this.pendingDirs.clear();
+			if (this.flushFuture != null) {
+				this.flushFuture.cancel(false);
+			}
+		}
+	}
+
+	/**
+	 * 	模型根目录发生变化（添加/移除/修改路径）后，重新注册监听。
+	 */
+	public void refreshRoots() {
+		synchronized (this.lock) {
+			if (!this.started) {
+				return;
+			}
+			for (WatchKey key : this.keys.keySet()) {
+				key.cancel();
+			}
+			this.keys.clear();
+			this.registerRoots();
+		}
+	}
+
+	private void registerRoots() {
+		this.roots = LlamaServerManager.getInstance().getModelRoots();
+		for (Path root : this.roots) {
+			this.registerTree(root);
+		}
+	}
+
+	/**
+	 * 	递归注册目录，返回注册到的全部目录。隐藏目录的整个子树都不注册。
+	 * @param start
+	 * @return
+	 */
+	private List<Path> registerTree(Path start) {
+		List<Path> dirs = new ArrayList<>();
+		try {
+			dirs = LlamaServerManager.walkModelDirectories(start);
+		} catch (IOException e) {
+			logger.info("遍历模型目录失败 {}: {}", start, e.getMessage());
+		}
+		for (Path dir : dirs) {
+			try {
+				WatchKey key = dir.register(this.watchService,
+						StandardWatchEventKinds.ENTRY_CREATE,
+						StandardWatchEventKinds.ENTRY_DELETE,
+						StandardWatchEventKinds.ENTRY_MODIFY);
+				this.keys.put(key, dir);
+			} catch (Exception e) {
+				logger.info("注册模型目录监听失败 {}: {}", dir, e.getMessage());
+			}
+		}
+		return dirs;
+	}
+
+	private void pollLoop() {
+		while (this.started) {
+			WatchKey key;
+			try {
+				key = this.watchService.take();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				return;
+			} catch (ClosedWatchServiceException e) {
+				return;
+			}
+			synchronized (this.lock) {
+				Path dir = this.keys.get(key);
+				for (WatchEvent<?> event : key.pollEvents()) {
+					if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+						this.pendingFullRescan = true;
+						continue;
+					}
+					if (dir == null) {
+						continue;
+					}
+					Path child = dir.resolve((Path) event.context());
+					this.onEvent(event.kind(), dir, child);
+				}
+				if (!key.reset()) {
+					this.keys.remove(key);
+				}
+				this.scheduleFlush();
+			}
+		}
+	}
+
+	/**
+	 * 	把单个事件映射为需要重新解析的目录。
+	 * @param kind
+	 * @param dir
+	 * @param child
+	 */
+	private void onEvent(WatchEvent.Kind<?> kind, Path dir, Path child) {
+		if (this.isHidden(child)) {
+			return;
+		}
+		String name = child.getFileName() == null ? "" : child.getFileName().toString();
+		boolean gguf = name.toLowerCase(Locale.ROOT).endsWith(".gguf");
+		if (kind == StandardWatchEventKinds.ENTRY_CREATE && Files.isDirectory(child)) {
+			// 新目录（包括整体移动进来的目录树）
+			this.pendingDirs.addAll(this.registerTree(child));
+		} else if (kind == StandardWatchEventKinds.ENTRY_DELETE && !gguf) {
+			// 可能是目录被删除或移走
+			this.pendingDirs.add(child);
+		} else if (gguf) {
+			this.pendingDirs.add(dir);
+		}
+	}
+
+	/**
+	 * 	相对于所在的模型根目录，路径中任一层以"."开头即为隐藏。
+	 * @param path
+	 * @return
+	 */
+	private boolean isHidden(Path path) {
+		Path root = null;
+		for (Path r : this.roots) {
+			if (path.startsWith(r) && (root == null || r.getNameCount() > root.getNameCount())) {
+				root = r;
+			}
+		}
+		Iterable<Path> parts = root == null ? List.of(path.getFileName()) : root.relativize(path);
+		for (Path part : parts) {
+			if (part != null && part.toString().startsWith(".")) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private void scheduleFlush() {
+		if (this.pendingDirs.isEmpty() && !this.pendingFullRescan) {
+			return;
+		}
+		long now = System.currentTimeMillis();
+		if (this.firstPendingAt == 0) {
+			this.firstPendingAt = now;
+		}
+		if (this.flushFuture != null) {
+			this.flushFuture.cancel(false);
+		}
+		long delay = Math.min(DEBOUNCE_MS, Math.max(0, this.firstPendingAt + MAX_DELAY_MS - now));
+		this.flushFuture = this.scheduler.schedule(this::flush, delay, TimeUnit.MILLISECONDS);
+	}
+
+	private void flush() {
+		List<Path> dirs;
+		boolean fullRescan;
+		synchronized (this.lock) {
+			dirs = new ArrayList<>(this.pendingDirs);
+			fullRescan = this.pendingFullRescan;
+			this.pendingDirs.clear();
+			this.pendingFullRescan = false;
+			this.firstPendingAt = 0;
+			this.flushFuture = null;
+		}
+		LlamaServerManager manager = LlamaServerManager.getInstance();
+		try {
+			if (fullRescan) {
+				logger.info("模型目录监听事件溢出，执行全量扫描");
+				manager.listModel(true);
+				this.refreshRoots();
+				WebSocketManager.getInstance().sendModelCatalogReloadEvent(manager.getCatalogVersion());
+				return;
+			}
+			ModelCatalogDelta delta = manager.refreshDirectories(dirs);
+			if (!delta.isEmpty()) {
+				logger.info("模型目录增量更新: 新增 {}，更新 {}，移除 {}",
+						delta.getAdded().size(), delta.getUpdated().size(), delta.getRemoved().size());
+				WebSocketManager.getInstance().sendModelCatalogEvent(delta);
+			}
+		} catch (Exception e) {
+			logger.info("处理模型目录变化时发生错误", e);
+		}
+	}
+}
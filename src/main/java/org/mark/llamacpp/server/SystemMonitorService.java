@@ -1,8 +1,13 @@
 package org.mark.llamacpp.server;
 
 import com.google.gson.Gson;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonNull;
 import com.google.gson.JsonObject;
 
+import org.mark.llamacpp.server.metrics.LinuxSystemCollector;
+import org.mark.llamacpp.server.metrics.MetricsStore;
+import org.mark.llamacpp.server.websocket.WebSocketEvent;
 import org.mark.llamacpp.server.websocket.WebSocketManager;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -11,13 +16,18 @@ import java.io.BufferedReader;
 import java.io.File;
 import java.io.IOException;
 import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
 
 /**
  * 系统监控服务类
- * 负责定时执行系统监控脚本，获取系统性能数据，并通过WebSocket推送给前端
+ * 负责定时采集系统性能数据，并通过WebSocket推送给前端。
+ * Linux上直接读取/proc和/sys（包括每个模型进程和amdgpu），其他系统仍然执行监控脚本。
  */
 public class SystemMonitorService {
     
@@ -38,6 +48,12 @@ public class SystemMonitorService {
     // JSON解析器
     private final Gson gson;
     
+    // 最近一次采集的结果
+    private volatile LinuxSystemCollector.Snapshot lastSnapshot;
+    
+    // Linux上的采集器，不支持时为null
+    private final LinuxSystemCollector collector;
+    
     // 是否已启动
     private volatile boolean started = false;
     
@@ -49,10 +65,11 @@ public class SystemMonitorService {
         this.webSocketManager = WebSocketManager.getInstance();
         this.scheduler = Executors.newScheduledThreadPool(1);
         this.gson = new Gson();
+        this.collector = LinuxSystemCollector.isSupported() ? new LinuxSystemCollector() : null;
         
         // 检查脚本文件是否存在
         File scriptFile = new File(scriptPath);
-        if (!scriptFile.exists() || !scriptFile.canExecute()) {
+        if (this.collector == null && (!scriptFile.exists() || !scriptFile.canExecute())) {
             logger.info("系统监控脚本不存在或不可执行: {}", scriptPath);
             // 尝试设置执行权限
             if (scriptFile.exists()) {
@@ -97,11 +114,11 @@ public class SystemMonitorService {
         logger.info("启动系统监控服务，监控间隔: {} 秒", intervalSeconds);
         
         // 立即执行一次
-        scheduler.submit(this::executeMonitorScript);
+        scheduler.submit(this::collect);
         
         // 启动定时任务
         scheduler.scheduleAtFixedRate(
-            this::executeMonitorScript, 
+            this::collect, 
             intervalSeconds, 
             intervalSeconds, 
             TimeUnit.SECONDS
@@ -134,6 +151,65 @@ public class SystemMonitorService {
         }
     }
     
+    /**
+     * 采集一次并推送，Linux上读取/proc，否则执行脚本
+     */
+    private void collect() {
+        if (this.collector == null) {
+            this.executeMonitorScript();
+            return;
+        }
+        try {
+            List<LinuxSystemCollector.ProcessRef> refs = new ArrayList<>();
+            for (Map.Entry<String, LlamaCppProcess> e : LlamaServerManager.getInstance().getLoadedProcesses().entrySet()) {
+                refs.add(new LinuxSystemCollector.ProcessRef(e.getKey(), e.getValue().getPid()));
+            }
+            LinuxSystemCollector.Snapshot snapshot;
+            // 采集器保存着上次的值，手动触发和定时任务都在同一个线程里，这里只是防御
+            synchronized (this.collector) {
+                snapshot = this.collector.collect(refs);
+            }
+            this.lastSnapshot = snapshot;
+            this.recordMetrics(snapshot);
+            webSocketManager.broadcast(WebSocketEvent.SYSTEM, buildWebSocketMessage(snapshot), true);
+        } catch (Exception e) {
+            logger.info("采集系统监控数据时发生错误", e);
+        }
+    }
+    
+    /**
+     * 写入时序存储
+     */
+    private void recordMetrics(LinuxSystemCollector.Snapshot s) {
+        MetricsStore store = MetricsStore.getInstance();
+        long t = s.timestamp();
+        store.record("cpu.usage", t, s.cpuPercent());
+        store.record("memory.used_bytes", t, s.memUsedBytes());
+        store.record("memory.usage", t, s.memUsagePercent());
+        store.record("swap.used_bytes", t, s.swapTotalBytes() - s.swapFreeBytes());
+        store.record("load.1m", t, s.load1());
+        store.record("tcp.connections", t, s.tcpConnections());
+        for (LinuxSystemCollector.GpuStats g : s.gpus()) {
+            store.record(MetricsStore.key("gpu.busy", g.card()), t, g.busyPercent());
+            store.record(MetricsStore.key("gpu.vram_used_bytes", g.card()), t, g.vramUsedBytes());
+        }
+        for (LinuxSystemCollector.ProcessStats p : s.processes()) {
+            if (!p.alive()) {
+                continue;
+            }
+            store.record(MetricsStore.key("model.rss_bytes", p.name()), t, p.rssBytes());
+            store.record(MetricsStore.key("model.cpu", p.name()), t, p.cpuPercent());
+            store.record(MetricsStore.key("model.read_bytes_per_sec", p.name()), t, p.readBytesPerSecond());
+        }
+    }
+    
+    /**
+     * 最近一次从/proc采集的数据，没有采集过或不是Linux时为null
+     */
+    public LinuxSystemCollector.Snapshot getLastSnapshot() {
+        return lastSnapshot;
+    }
+    
     /**
      * 执行监控脚本并发送数据
      */
@@ -176,7 +252,7 @@ public class SystemMonitorService {
             String message = buildWebSocketMessage(systemData);
             
             // 通过WebSocket广播数据
-            webSocketManager.broadcast(message);
+            webSocketManager.broadcast(WebSocketEvent.SYSTEM, message, true);
             
             logger.info("系统监控数据已通过WebSocket推送");
             
@@ -288,12 +364,121 @@ public class SystemMonitorService {
         }
     }
     
+    /**
+     * 由/proc采集的结果构建WebSocket消息，字段与脚本版本一致，另外附带模型进程和每块GPU
+     */
+    private String buildWebSocketMessage(LinuxSystemCollector.Snapshot s) {
+        JsonObject msg = new JsonObject();
+        msg.addProperty("type", "systemMonitor");
+        msg.addProperty("timestamp", s.timestamp());
+        
+        JsonObject cpu = new JsonObject();
+        cpu.addProperty("usage_percent", Double.isNaN(s.cpuPercent()) ? 0 : round(s.cpuPercent()));
+        cpu.addProperty("count", s.cpuCount());
+        msg.add("cpu", cpu);
+        
+        JsonObject memory = new JsonObject();
+        memory.addProperty("used", formatBytes(s.memUsedBytes()));
+        memory.addProperty("total", formatBytes(s.memTotalBytes()));
+        memory.addProperty("usage_percent", round(s.memUsagePercent()));
+        memory.addProperty("used_bytes", s.memUsedBytes());
+        memory.addProperty("total_bytes", s.memTotalBytes());
+        memory.addProperty("swap_used_bytes", s.swapTotalBytes() - s.swapFreeBytes());
+        memory.addProperty("swap_total_bytes", s.swapTotalBytes());
+        msg.add("memory", memory);
+        
+        if (!s.gpus().isEmpty()) {
+            long used = 0, total = 0;
+            double busy = 0;
+            int busyCount = 0;
+            JsonArray cards = new JsonArray();
+            for (LinuxSystemCollector.GpuStats g : s.gpus()) {
+                used += g.vramUsedBytes();
+                total += g.vramTotalBytes();
+                if (!Double.isNaN(g.busyPercent())) {
+                    busy += g.busyPercent();
+                    busyCount++;
+                }
+                JsonObject card = new JsonObject();
+                card.addProperty("card", g.card());
+                card.addProperty("memory_used_bytes", g.vramUsedBytes());
+                card.addProperty("memory_total_bytes", g.vramTotalBytes());
+                addNumber(card, "usage_percent", g.busyPercent());
+                cards.add(card);
+            }
+            JsonObject gpu = new JsonObject();
+            addNumber(gpu, "usage_percent", busyCount == 0 ? Double.NaN : busy / busyCount);
+            gpu.addProperty("memory_used", formatBytes(used));
+            gpu.addProperty("memory_total", formatBytes(total));
+            addNumber(gpu, "memory_usage_percent", total <= 0 ? Double.NaN : used * 100.0 / total);
+            gpu.add("cards", cards);
+            msg.add("gpu", gpu);
+        }
+        
+        JsonObject load = new JsonObject();
+        addNumber(load, "1min", s.load1());
+        addNumber(load, "5min", s.load5());
+        addNumber(load, "15min", s.load15());
+        msg.add("load", load);
+        
+        JsonObject processes = new JsonObject();
+        processes.addProperty("count", s.processCount());
+        msg.add("processes", processes);
+        
+        JsonObject network = new JsonObject();
+        network.addProperty("tcp_connections", s.tcpConnections());
+        msg.add("network", network);
+        
+        JsonArray models = new JsonArray();
+        for (LinuxSystemCollector.ProcessStats p : s.processes()) {
+            JsonObject m = new JsonObject();
+            m.addProperty("modelId", p.name());
+            m.addProperty("pid", p.pid());
+            m.addProperty("alive", p.alive());
+            m.addProperty("rss_bytes", p.rssBytes());
+            m.addProperty("swap_bytes", p.swapBytes());
+            m.addProperty("threads", p.threads());
+            addNumber(m, "cpu_percent", p.cpuPercent());
+            addNumber(m, "read_bytes_per_sec", p.readBytesPerSecond());
+            addNumber(m, "write_bytes_per_sec", p.writeBytesPerSecond());
+            models.add(m);
+        }
+        msg.add("models", models);
+        return gson.toJson(msg);
+    }
+    
+    private static void addNumber(JsonObject obj, String key, double value) {
+        if (Double.isNaN(value)) {
+            obj.add(key, JsonNull.INSTANCE);
+        } else {
+            obj.addProperty(key, round(value));
+        }
+    }
+    
+    private static double round(double v) {
+        return Math.round(v * 10.0) / 10.0;
+    }
+    
+    /**
+     * 按free -h的习惯格式化，如 15.5Gi
+     */
+    private static String formatBytes(long bytes) {
+        String[] units = { "B", "Ki", "Mi", "Gi", "Ti" };
+        double v = bytes;
+        int i = 0;
+        while (v >= 1024 && i < units.length - 1) {
+            v /= 1024;
+            i++;
+        }
+        return i == 0 ? bytes + "B" : String.format(Locale.ROOT, "%.1f%s", v, units[i]);
+    }
+    
     /**
      * 手动触发一次监控
      */
     public void triggerMonitor() {
         if (started) {
-            scheduler.submit(this::executeMonitorScript);
+            scheduler.submit(this::collect);
             logger.info("手动触发系统监控");
         } else {
             logger.info("系统监控服务未启动，无法手动触发");
@@ -12,6 +12,7 @@ import org.mark.llamacpp.server.LlamaServer;
 import org.mark.llamacpp.server.controller.BaseController;
 import org.mark.llamacpp.server.controller.HuggingFaceController;
 import org.mark.llamacpp.server.controller.LlamacppController;
+import org.mark.llamacpp.server.controller.MetricsController;
 import org.mark.llamacpp.server.controller.ModelActionController;
 import org.mark.llamacpp.server.controller.ModelInfoController;
 import org.mark.llamacpp.server.controller.ModelPathController;
@@ -47,6 +48,7 @@ public class BasicRouterHandler extends SimpleChannelInboundHandler<FullHttpRequ
 	static {
 		pipeline.add(new HuggingFaceController());
 		pipeline.add(new LlamacppController());
+		pipeline.add(new MetricsController());
 		pipeline.add(new ModelActionController());
 		pipeline.add(new ModelInfoController());
 		pipeline.add(new ModelPathController());
@@ -203,6 +205,7 @@ public class BasicRouterHandler extends SimpleChannelInboundHandler<FullHttpRequ
 	 * @return
 	 */
 	private boolean isApiRequest(String uri) {
-		return uri != null && (uri.startsWith("/api/") || uri.startsWith("/v1") || uri.startsWith("/session") || uri.startsWith("/tokenize") || uri.startsWith("/apply-template"));
+		return uri != null && (uri.startsWith("/api/") || uri.startsWith("/v1") || uri.startsWith("/session") || uri.startsWith("/tokenize") || uri.startsWith("/apply-template")
+				|| uri.equals("/metrics") || uri.startsWith("/metrics?"));
 	}
 }
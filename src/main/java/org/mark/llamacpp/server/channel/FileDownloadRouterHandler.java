@@ -13,16 +13,22 @@ import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.stream.Stream;
 
+import org.mark.llamacpp.crawler.HuggingFaceModelCrawler;
+import org.mark.llamacpp.crawler.HuggingFaceModelCrawler.GGUFCrawlResult;
+import org.mark.llamacpp.crawler.HuggingFaceModelCrawler.GGUFFileInfo;
 import org.mark.llamacpp.download.struct.ModelDownloadRequest;
 import org.mark.llamacpp.server.LlamaServer;
 import org.mark.llamacpp.server.service.DownloadService;
 import org.mark.llamacpp.server.tools.JsonUtil;
 
+import com.google.gson.JsonObject;
+
 import io.netty.channel.ChannelHandlerContext;
 import io.netty.channel.SimpleChannelInboundHandler;
 import io.netty.handler.codec.http.FullHttpRequest;
 import io.netty.handler.codec.http.HttpMethod;
 import io.netty.handler.codec.http.HttpResponseStatus;
+import io.netty.handler.codec.http.QueryStringDecoder;
 import io.netty.util.CharsetUtil;
 import io.netty.util.ReferenceCountUtil;
 
@@ -85,6 +91,30 @@ public class FileDownloadRouterHandler extends SimpleChannelInboundHandler<FullH
 			this.handleModelDonwload(ctx, request);
 			return;
 		}
+		// 创建多文件下载组（一个量化版本的全部分卷和mmproj）
+		if (uri.startsWith("/api/downloads/bundle/create")) {
+			this.handleCreateBundle(ctx, request);
+			return;
+		}
+		// 列出下载组
+		if (uri.startsWith("/api/downloads/bundle/list")) {
+			LlamaServer.sendJsonResponse(ctx, downloadService.getAllBundles());
+			return;
+		}
+		// 暂停、恢复、删除下载组
+		if (uri.startsWith("/api/downloads/bundle/pause") || uri.startsWith("/api/downloads/bundle/resume")
+				|| uri.startsWith("/api/downloads/bundle/delete")) {
+			this.handleControlBundle(ctx, request, uri.substring("/api/downloads/bundle/".length()).split("[/?]")[0]);
+			return;
+		}
+		
+		// 下载中模型的元数据和显存估算
+		if (uri.startsWith("/api/downloads/previews")) {
+			Map<String, List<String>> params = new QueryStringDecoder(uri).parameters();
+			List<String> taskId = params.get("taskId");
+			LlamaServer.sendJsonResponse(ctx, downloadService.getModelPreviews(taskId == null || taskId.isEmpty() ? null : taskId.get(0)));
+			return;
+		}
 		
 		// 暂停指定的下载任务
 		if (uri.startsWith("/api/downloads/pause")) {
@@ -106,6 +136,16 @@ public class FileDownloadRouterHandler extends SimpleChannelInboundHandler<FullH
 			this.handleGetStats(ctx);
 			return;
 		}
+		// 调整任务优先级
+		if (uri.startsWith("/api/downloads/priority")) {
+			this.handleSetPriority(ctx, request);
+			return;
+		}
+		// 查询或修改全局上限
+		if (uri.startsWith("/api/downloads/limits")) {
+			this.handleDownloadLimits(ctx, request);
+			return;
+		}
 		// 获取下载路径
 		if (uri.startsWith("/api/downloads/path/get")) {
 			this.handleGetDownloadPath(ctx);
@@ -218,6 +258,8 @@ public class FileDownloadRouterHandler extends SimpleChannelInboundHandler<FullH
 				Files.createDirectories(targetDir);
 			}
 			
+			// lfsOid对应单个文件，只有一个下载地址时才能用来校验
+			String expectedSha256 = downloadUrl.length == 1 ? trimToNull(req.getLfsOid()) : null;
 			List<Map<String, Object>> taskResults = new ArrayList<>();
 			boolean allSuccess = true;
 			for (int i = 0; i < downloadUrl.length; i++) {
@@ -234,7 +276,7 @@ public class FileDownloadRouterHandler extends SimpleChannelInboundHandler<FullH
 //				if (i == 0) {
 //					fileName = sanitizeFileName(req.getName());
 //				}
-				Map<String, Object> r = downloadService.createModelDownloadTask(url, targetDir.toString(), null);
+				Map<String, Object> r = downloadService.createModelDownloadTask(url, targetDir.toString(), null, expectedSha256);
 				if (!Boolean.TRUE.equals(r.get("success"))) {
 					allSuccess = false;
 				}
@@ -253,6 +295,120 @@ public class FileDownloadRouterHandler extends SimpleChannelInboundHandler<FullH
 		}
 	}
 
+	/**
+	 * 	创建多文件下载组。解析仓库的文件列表，选出一个量化版本的全部文件，下载完成后整体登记到模型目录。
+	 * @param ctx
+	 * @param request
+	 */
+	private void handleCreateBundle(ChannelHandlerContext ctx, FullHttpRequest request) {
+		if (request.method() != HttpMethod.POST) {
+			LlamaServer.sendErrorResponse(ctx, HttpResponseStatus.BAD_REQUEST, "只支持POST请求");
+			return;
+		}
+		try {
+			String content = request.content().toString(CharsetUtil.UTF_8);
+			JsonObject requestData = JsonUtil.fromJson(content, JsonObject.class);
+			if (requestData == null) {
+				LlamaServer.sendErrorResponse(ctx, HttpResponseStatus.BAD_REQUEST, "请求体解析失败");
+				return;
+			}
+			String model = trimToNull(JsonUtil.getJsonString(requestData, "model", null));
+			String quant = trimToNull(JsonUtil.getJsonString(requestData, "quant", null));
+			String mmproj = trimToNull(JsonUtil.getJsonString(requestData, "mmproj", null));
+			String base = trimToNull(JsonUtil.getJsonString(requestData, "base", null));
+			List<String> files = new ArrayList<>();
+			if (requestData.has("files") && requestData.get("files").isJsonArray()) {
+				requestData.getAsJsonArray("files").forEach(e -> {
+					if (e != null && e.isJsonPrimitive()) {
+						files.add(e.getAsString().trim());
+					}
+				});
+			}
+			if (model == null) {
+				LlamaServer.sendErrorResponse(ctx, HttpResponseStatus.BAD_REQUEST, "model不能为空");
+				return;
+			}
+			if (quant == null && files.isEmpty()) {
+				LlamaServer.sendErrorResponse(ctx, HttpResponseStatus.BAD_REQUEST, "quant和files不能同时为空");
+				return;
+			}
+
+			GGUFCrawlResult crawl = HuggingFaceModelCrawler.crawlGGUFFiles(model, 20, base);
+			if (crawl.ggufFiles().isEmpty()) {
+				LlamaServer.sendErrorResponse(ctx, HttpResponseStatus.NOT_FOUND,
+						"仓库中没有GGUF文件" + (crawl.treeError() != null ? ": " + crawl.treeError() : ""));
+				return;
+			}
+			List<GGUFFileInfo> selected;
+			try {
+				selected = downloadService.selectBundleFiles(crawl, quant, files, mmproj);
+			} catch (IllegalArgumentException e) {
+				LlamaServer.sendErrorResponse(ctx, HttpResponseStatus.BAD_REQUEST, e.getMessage());
+				return;
+			}
+
+			// 与单文件下载相同的目录结构：模型目录/作者/模型名/量化版本
+			String[] repo = crawl.repoId().split("/", 2);
+			String safeAuthor = sanitizePathSegment(repo.length == 2 ? repo[0] : "unknown");
+			String safeModelId = sanitizePathSegment(repo.length == 2 ? repo[1] : repo[0]);
+			String variant = quant != null ? quant : normalizeVariantFolderName(selected.get(0).path().replaceFirst("(?i)-\\d{5}-of-\\d{5}\\.gguf$", ""));
+			String folderName = sanitizePathSegment(variant);
+			if (safeAuthor.isBlank() || safeModelId.isBlank() || folderName.isBlank()) {
+				LlamaServer.sendErrorResponse(ctx, HttpResponseStatus.BAD_REQUEST, "保存路径不合法");
+				return;
+			}
+			Path baseDir = Paths.get(LlamaServer.getDefaultModelsPath()).toAbsolutePath().normalize();
+			Path targetDir = baseDir.resolve(safeAuthor).resolve(safeModelId).resolve(folderName).toAbsolutePath().normalize();
+			if (!targetDir.startsWith(baseDir)) {
+				LlamaServer.sendErrorResponse(ctx, HttpResponseStatus.BAD_REQUEST, "保存路径不合法");
+				return;
+			}
+			if (Files.exists(targetDir)) {
+				try (Stream<Path> entries = Files.list(targetDir)) {
+					if (entries.findAny().isPresent()) {
+						LlamaServer.sendErrorResponse(ctx, HttpResponseStatus.CONFLICT, "目标目录已存在且非空");
+						return;
+					}
+				}
+			}
+
+			String name = crawl.repoId() + ":" + variant;
+			LlamaServer.sendJsonResponse(ctx, downloadService.createModelBundle(crawl, selected, name, targetDir));
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			LlamaServer.sendErrorResponse(ctx, HttpResponseStatus.INTERNAL_SERVER_ERROR, "请求被中断");
+		} catch (Exception e) {
+			e.printStackTrace();
+			LlamaServer.sendErrorResponse(ctx, HttpResponseStatus.INTERNAL_SERVER_ERROR,
+					"创建下载组失败: " + e.getMessage());
+		}
+	}
+
+	/**
+	 * 	暂停、恢复或删除下载组。
+	 * @param ctx
+	 * @param request
+	 * @param action
+	 */
+	private void handleControlBundle(ChannelHandlerContext ctx, FullHttpRequest request, String action) {
+		if (request.method() != HttpMethod.POST) {
+			LlamaServer.sendErrorResponse(ctx, HttpResponseStatus.BAD_REQUEST, "只支持POST请求");
+			return;
+		}
+		try {
+			String content = request.content().toString(CharsetUtil.UTF_8);
+			JsonObject requestData = JsonUtil.fromJson(content, JsonObject.class);
+			String bundleId = requestData == null ? null : trimToNull(JsonUtil.getJsonString(requestData, "bundleId", null));
+			if (bundleId == null) {
+				LlamaServer.sendErrorResponse(ctx, HttpResponseStatus.BAD_REQUEST, "bundleId不能为空");
+				return;
+			}
+			LlamaServer.sendJsonResponse(ctx, downloadService.controlBundle(bundleId, action));
+		} catch (Exception e) {
+			LlamaServer.sendErrorResponse(ctx, HttpResponseStatus.INTERNAL_SERVER_ERROR, "操作下载组失败: " + e.getMessage());
+		}
+	}
+
 	private static String trimToNull(String s) {
 		if (s == null) {
 			return null;
@@ -436,6 +592,69 @@ public class FileDownloadRouterHandler extends SimpleChannelInboundHandler<FullH
 		}
 	}
 
+	/**
+	 * 	处理调整任务优先级的请求：taskId、priority（越大越优先）、weight（同优先级内的带宽权重）
+	 * @param ctx
+	 * @param request
+	 */
+	private void handleSetPriority(ChannelHandlerContext ctx, FullHttpRequest request) {
+		if (request.method() != HttpMethod.POST) {
+			LlamaServer.sendErrorResponse(ctx, HttpResponseStatus.BAD_REQUEST, "只支持POST请求");
+			return;
+		}
+		try {
+			String content = request.content().toString(CharsetUtil.UTF_8);
+			JsonObject requestData = JsonUtil.fromJson(content, JsonObject.class);
+			String taskId = requestData == null ? null : JsonUtil.getJsonString(requestData, "taskId", null);
+			if (taskId == null || taskId.trim().isEmpty()) {
+				LlamaServer.sendErrorResponse(ctx, HttpResponseStatus.BAD_REQUEST, "任务ID不能为空");
+				return;
+			}
+			int priority = JsonUtil.getJsonInt(requestData, "priority", 0);
+			int weight = JsonUtil.getJsonInt(requestData, "weight", 1);
+			if (weight < 1) {
+				LlamaServer.sendErrorResponse(ctx, HttpResponseStatus.BAD_REQUEST, "weight必须大于0");
+				return;
+			}
+			var result = downloadService.setTaskPriority(taskId, priority, weight);
+			LlamaServer.sendJsonResponse(ctx, result);
+		} catch (Exception e) {
+			LlamaServer.sendErrorResponse(ctx, HttpResponseStatus.INTERNAL_SERVER_ERROR, "更新优先级失败: " + e.getMessage());
+		}
+	}
+	
+	/**
+	 * 	GET查询下载的全局上限，POST修改：maxConcurrent、maxConnections、maxBandwidthKBps（0表示不限）
+	 * @param ctx
+	 * @param request
+	 */
+	private void handleDownloadLimits(ChannelHandlerContext ctx, FullHttpRequest request) {
+		try {
+			if (request.method() == HttpMethod.GET) {
+				LlamaServer.sendJsonResponse(ctx, downloadService.getDownloadLimits());
+				return;
+			}
+			if (request.method() != HttpMethod.POST) {
+				LlamaServer.sendErrorResponse(ctx, HttpResponseStatus.BAD_REQUEST, "只支持GET或POST请求");
+				return;
+			}
+			String content = request.content().toString(CharsetUtil.UTF_8);
+			JsonObject requestData = JsonUtil.fromJson(content, JsonObject.class);
+			if (requestData == null) {
+				LlamaServer.sendErrorResponse(ctx, HttpResponseStatus.BAD_REQUEST, "请求体为空");
+				return;
+			}
+			Integer maxConcurrent = requestData.has("maxConcurrent") ? requestData.get("maxConcurrent").getAsInt() : null;
+			Integer maxConnections = requestData.has("maxConnections") ? requestData.get("maxConnections").getAsInt() : null;
+			Long maxBandwidthKBps = requestData.has("maxBandwidthKBps") ? requestData.get("maxBandwidthKBps").getAsLong() : null;
+			LlamaServer.sendJsonResponse(ctx, downloadService.updateDownloadLimits(maxConcurrent, maxConnections, maxBandwidthKBps));
+		} catch (IllegalArgumentException e) {
+			LlamaServer.sendErrorResponse(ctx, HttpResponseStatus.BAD_REQUEST, e.getMessage());
+		} catch (Exception e) {
+			LlamaServer.sendErrorResponse(ctx, HttpResponseStatus.INTERNAL_SERVER_ERROR, "修改下载上限失败: " + e.getMessage());
+		}
+	}
+
 	/**
 	 * 	处理获取下载路径请求
 	 * @param ctx
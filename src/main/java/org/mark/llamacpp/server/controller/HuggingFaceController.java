@@ -1,12 +1,15 @@
 package org.mark.llamacpp.server.controller;
 
+import java.util.List;
 import java.util.Map;
 
 import org.mark.llamacpp.crawler.HuggingFaceModelCrawler;
 import org.mark.llamacpp.server.LlamaServer;
 import org.mark.llamacpp.server.exception.RequestMethodException;
+import org.mark.llamacpp.server.service.QuantPickerService;
 import org.mark.llamacpp.server.struct.ApiResponse;
 import org.mark.llamacpp.server.tools.ParamTool;
+import org.mark.llamacpp.server.tools.VramEstimator.KvCacheType;
 
 import io.netty.channel.ChannelHandlerContext;
 import io.netty.handler.codec.http.FullHttpRequest;
@@ -30,6 +33,10 @@ public class HuggingFaceController implements BaseController {
 			this.handleHFSearchRequest(ctx, request);
 			return true;
 		}
+		if (uri.startsWith("/api/hf/quants")) {
+			this.handleHFQuantsRequest(ctx, request);
+			return true;
+		}
 		if (uri.startsWith("/api/hf/gguf")) {
 			this.handleHFGGUFRequest(ctx, request);
 			return true;
@@ -82,12 +89,19 @@ public class HuggingFaceController implements BaseController {
 			Map<String, String> params = ParamTool.getQueryParam(request.uri());
 			String input = firstNonBlank(params.get("model"), params.get("repoId"), params.get("modelUrl"), params.get("url"),
 					params.get("input"));
+			String models = params.get("models");
+			int timeoutSeconds = parseIntOrDefault(params.get("timeoutSeconds"), 20);
+			String base = firstNonBlank(params.get("base"), params.get("baseUrl"), params.get("host"));
+			// 多个仓库用逗号分隔，同时获取
+			if (models != null && !models.isBlank()) {
+				var results = HuggingFaceModelCrawler.crawlGGUFFiles(List.of(models.split(",")), timeoutSeconds, base);
+				LlamaServer.sendJsonResponse(ctx, ApiResponse.success(results));
+				return;
+			}
 			if (input == null || input.trim().isEmpty()) {
 				LlamaServer.sendJsonResponse(ctx, ApiResponse.error("缺少必需的model参数"));
 				return;
 			}
-			int timeoutSeconds = parseIntOrDefault(params.get("timeoutSeconds"), 20);
-			String base = firstNonBlank(params.get("base"), params.get("baseUrl"), params.get("host"));
 			var result = HuggingFaceModelCrawler.crawlGGUFFiles(input.trim(), timeoutSeconds, base);
 			LlamaServer.sendJsonResponse(ctx, ApiResponse.success(result));
 		} catch (InterruptedException e) {
@@ -97,6 +111,41 @@ public class HuggingFaceController implements BaseController {
 			LlamaServer.sendJsonResponse(ctx, ApiResponse.error("解析GGUF失败: " + e.getMessage()));
 		}
 	}
+	/**
+	 * 	下载前挑选量化版本：读取仓库中各GGUF的头部，估算指定上下文下的显存并排序。
+	 * @param ctx
+	 * @param request
+	 * @throws RequestMethodException
+	 */
+	private void handleHFQuantsRequest(ChannelHandlerContext ctx, FullHttpRequest request) throws RequestMethodException {
+		this.assertRequestMethod(request.method() != HttpMethod.GET, "只支持GET请求");
+		try {
+			Map<String, String> params = ParamTool.getQueryParam(request.uri());
+			String input = firstNonBlank(params.get("model"), params.get("repoId"), params.get("modelUrl"), params.get("url"),
+					params.get("input"));
+			if (input == null || input.trim().isEmpty()) {
+				LlamaServer.sendJsonResponse(ctx, ApiResponse.error("缺少必需的model参数"));
+				return;
+			}
+			int timeoutSeconds = parseIntOrDefault(params.get("timeoutSeconds"), 20);
+			String base = firstNonBlank(params.get("base"), params.get("baseUrl"), params.get("host"));
+			int contextLength = parseIntOrDefault(firstNonBlank(params.get("ctx"), params.get("contextLength")), 8192);
+			KvCacheType k = KvCacheType.from(firstNonBlank(params.get("cacheTypeK"), params.get("cacheType"), "f16"));
+			KvCacheType v = KvCacheType.from(firstNonBlank(params.get("cacheTypeV"), params.get("cacheType"), k.id()));
+			boolean flashAttention = !"false".equalsIgnoreCase(firstNonBlank(params.get("flashAttention"), "true"));
+			long budgetMiB = parseIntOrDefault(params.get("budgetMiB"), 0);
+			boolean enableVision = "true".equalsIgnoreCase(params.get("enableVision"));
+
+			var result = QuantPickerService.getInstance().pick(input.trim(), base, contextLength, k, v, flashAttention, budgetMiB,
+					enableVision, timeoutSeconds);
+			LlamaServer.sendJsonResponse(ctx, ApiResponse.success(result));
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			LlamaServer.sendJsonResponse(ctx, ApiResponse.error("请求被中断: " + e.getMessage()));
+		} catch (Exception e) {
+			LlamaServer.sendJsonResponse(ctx, ApiResponse.error("估算量化版本失败: " + e.getMessage()));
+		}
+	}
 	
 	
 	/**
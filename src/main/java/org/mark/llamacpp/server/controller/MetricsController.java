@@ -0,0 +1,171 @@
+package org.mark.llamacpp.server.controller;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.mark.llamacpp.server.LlamaServer;
+import org.mark.llamacpp.server.exception.RequestMethodException;
+import org.mark.llamacpp.server.metrics.MetricsStore;
+import org.mark.llamacpp.server.metrics.PrometheusExporter;
+import org.mark.llamacpp.server.struct.ApiResponse;
+import org.mark.llamacpp.server.tools.ParamTool;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.handler.codec.http.FullHttpRequest;
+import io.netty.handler.codec.http.HttpMethod;
+
+/**
+ * 	历史指标查询，以及给Prometheus采集的/metrics。
+ */
+public class MetricsController implements BaseController {
+
+	private static final Logger logger = LoggerFactory.getLogger(MetricsController.class);
+
+	/**
+	 * 	Prometheus文本格式0.0.4的Content-Type
+	 */
+	private static final String PROMETHEUS_CONTENT_TYPE = "text/plain; version=0.0.4; charset=utf-8";
+
+
+	public MetricsController() {
+
+	}
+
+	@Override
+	public boolean handleRequest(String uri, ChannelHandlerContext ctx, FullHttpRequest request) throws RequestMethodException {
+		// Prometheus采集
+		if (uri.equals("/metrics") || uri.startsWith("/metrics?")) {
+			this.handlePrometheusRequest(ctx, request);
+			return true;
+		}
+		// 列出所有序列
+		if (uri.startsWith("/api/metrics/series")) {
+			this.handleSeriesListRequest(ctx, request);
+			return true;
+		}
+		// 按时间范围查询
+		if (uri.startsWith("/api/metrics/query")) {
+			this.handleQueryRequest(ctx, request);
+			return true;
+		}
+		return false;
+	}
+
+	/**
+	 * 	Prometheus文本格式的指标，包括所有已加载模型的/metrics。上游抓取是异步的，不占用IO线程
+	 * @param ctx
+	 * @param request
+	 * @throws RequestMethodException
+	 */
+	private void handlePrometheusRequest(ChannelHandlerContext ctx, FullHttpRequest request) throws RequestMethodException {
+		this.assertRequestMethod(request.method() != HttpMethod.GET, "只支持GET请求");
+		PrometheusExporter.getInstance().scrape().whenComplete((text, e) -> {
+			if (e != null) {
+				logger.info("生成Prometheus指标时发生错误", e);
+				LlamaServer.sendJsonResponse(ctx, ApiResponse.error("生成指标失败: " + e.getMessage()));
+				return;
+			}
+			LlamaServer.sendTextResponse(ctx, text, PROMETHEUS_CONTENT_TYPE);
+		});
+	}
+
+	/**
+	 * 	列出所有序列和各分辨率的保留时长
+	 * @param ctx
+	 * @param request
+	 * @throws RequestMethodException
+	 */
+	private void handleSeriesListRequest(ChannelHandlerContext ctx, FullHttpRequest request) throws RequestMethodException {
+		this.assertRequestMethod(request.method() != HttpMethod.GET, "只支持GET请求");
+		try {
+			MetricsStore store = MetricsStore.getInstance();
+			Map<String, Object> data = new HashMap<>();
+			data.put("series", store.listSeries());
+			data.put("resolutions", store.getResolutions());
+			data.put("droppedSamples", store.getDroppedSamples());
+			LlamaServer.sendJsonResponse(ctx, ApiResponse.success(data));
+		} catch (Exception e) {
+			logger.info("列出时序序列时发生错误", e);
+			LlamaServer.sendJsonResponse(ctx, ApiResponse.error("列出时序序列失败: " + e.getMessage()));
+		}
+	}
+
+	/**
+	 * 	查询一个或多个序列。参数：series（逗号分隔），from、to（毫秒时间戳）或last（最近多少秒，默认3600），
+	 * 	maxPoints（默认500，决定使用哪种分辨率）。
+	 * @param ctx
+	 * @param request
+	 * @throws RequestMethodException
+	 */
+	private void handleQueryRequest(ChannelHandlerContext ctx, FullHttpRequest request) throws RequestMethodException {
+		this.assertRequestMethod(request.method() != HttpMethod.GET, "只支持GET请求");
+		try {
+			Map<String, String> params = ParamTool.getQueryParam(request.uri());
+			String series = params.get("series");
+			if (series == null || series.trim().isEmpty()) {
+				LlamaServer.sendJsonResponse(ctx, ApiResponse.error("缺少必需的series参数"));
+				return;
+			}
+			long now = System.currentTimeMillis();
+			long to = parseLong(params.get("to"), now);
+			long from = parseLong(params.get("from"), to - parseLong(params.get("last"), 3600) * 1000);
+			if (from >= to) {
+				LlamaServer.sendJsonResponse(ctx, ApiResponse.error("from必须早于to"));
+				return;
+			}
+			int maxPoints = (int) Math.max(10, Math.min(5000, parseLong(params.get("maxPoints"), 500)));
+
+			MetricsStore store = MetricsStore.getInstance();
+			List<Map<String, Object>> results = new ArrayList<>();
+			for (String key : series.split(",")) {
+				key = key.trim();
+				if (key.isEmpty()) {
+					continue;
+				}
+				Map<String, Object> item = new HashMap<>();
+				item.put("key", key);
+				MetricsStore.SeriesData data = store.query(key, from, to, maxPoints);
+				if (data == null) {
+					item.put("resolution", null);
+					item.put("points", List.of());
+				} else {
+					List<double[]> points = new ArrayList<>(data.points().size());
+					for (double[] p : data.points()) {
+						points.add(new double[] { p[0], round(p[1]), round(p[2]), round(p[3]), round(p[4]), p[5] });
+					}
+					item.put("resolution", data.resolution());
+					item.put("points", points);
+				}
+				results.add(item);
+			}
+			Map<String, Object> data = new HashMap<>();
+			data.put("from", from);
+			data.put("to", to);
+			data.put("columns", List.of("time", "min", "max", "avg", "sum", "count"));
+			data.put("series", results);
+			LlamaServer.sendJsonResponse(ctx, ApiResponse.success(data));
+		} catch (Exception e) {
+			logger.info("查询时序数据时发生错误", e);
+			LlamaServer.sendJsonResponse(ctx, ApiResponse.error("查询时序数据失败: " + e.getMessage()));
+		}
+	}
+
+	private static long parseLong(String value, long fallback) {
+		if (value == null || value.isBlank()) {
+			return fallback;
+		}
+		try {
+			return Long.parseLong(value.trim());
+		} catch (NumberFormatException e) {
+			return fallback;
+		}
+	}
+
+	private static double round(double v) {
+		return Math.round(v * 1000.0) / 1000.0;
+	}
+}
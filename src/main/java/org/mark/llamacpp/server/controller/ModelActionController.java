@@ -23,8 +23,11 @@ import org.mark.llamacpp.gguf.GGUFModel;
 import org.mark.llamacpp.server.LlamaCppProcess;
 import org.mark.llamacpp.server.LlamaServer;
 import org.mark.llamacpp.server.LlamaServerManager;
+import org.mark.llamacpp.server.ModelCatalogWatcher;
 import org.mark.llamacpp.server.exception.RequestMethodException;
 import org.mark.llamacpp.server.service.BenchmarkService;
+import org.mark.llamacpp.server.service.LaunchTuningService;
+import org.mark.llamacpp.server.service.ModelCatalogQueryService;
 import org.mark.llamacpp.server.struct.ApiResponse;
 import org.mark.llamacpp.server.struct.StopModelRequest;
 import org.mark.llamacpp.server.tools.ChatTemplateFileTool;
@@ -38,6 +41,7 @@ import com.google.gson.JsonObject;
 
 import io.netty.channel.ChannelHandlerContext;
 import io.netty.handler.codec.http.FullHttpRequest;
+import io.netty.handler.codec.http.HttpHeaderNames;
 import io.netty.handler.codec.http.HttpMethod;
 import io.netty.util.CharsetUtil;
 
@@ -54,6 +58,11 @@ public class ModelActionController implements BaseController {
 	 */
 	private BenchmarkService benchmarkService = new BenchmarkService();
 	
+	/**
+	 * 	模型目录查询
+	 */
+	private ModelCatalogQueryService catalogQueryService = new ModelCatalogQueryService();
+	
 	
 	public ModelActionController() {
 		
@@ -71,6 +80,11 @@ public class ModelActionController implements BaseController {
 			this.handleModelListRequest(ctx, request);
 			return true;
 		}
+		// 分页、过滤查询模型目录
+		if (uri.startsWith("/api/models/query")) {
+			this.handleModelQueryRequest(ctx, request, uri);
+			return true;
+		}
 		// 查询已经被加载的模型
 		if (uri.startsWith("/api/models/loaded")) {
 			this.handleLoadedModelsRequest(ctx, request);
@@ -86,6 +100,11 @@ public class ModelActionController implements BaseController {
 			this.handleStopModelRequest(ctx, request);
 			return true;
 		}
+		// 启动参数调优
+		if (uri.startsWith("/api/models/tune/")) {
+			this.handleModelTuneRequest(ctx, request, uri);
+			return true;
+		}
 		// 执行benchmark
 		if (uri.equals("/api/models/benchmark")) {
 			this.handleModelBenchmark(ctx, request);
@@ -116,6 +135,16 @@ public class ModelActionController implements BaseController {
 			return true;
 		}		
 		
+		// 从模型输出中解析的性能统计，不传modelId时返回全部已加载的模型
+		if (uri.startsWith("/api/models/logmetrics")) {
+			this.handleModelLogMetrics(ctx, request);
+			return true;
+		}
+		// 模型最近的输出行
+		if (uri.startsWith("/api/models/log/recent")) {
+			this.handleModelRecentLog(ctx, request);
+			return true;
+		}
 		// 对应URL-GET：/metrics
 		// 客户端传入modelId作为参数
 		if (uri.startsWith("/api/models/metrics")) {
@@ -145,12 +174,14 @@ public class ModelActionController implements BaseController {
 			// 获取LlamaServerManager实例并强制刷新模型列表
 			LlamaServerManager manager = LlamaServerManager.getInstance();
 			manager.listModel(true); // 传入true强制刷新
+			ModelCatalogWatcher.getInstance().refreshRoots();
 			// 刷新后回应给前端
 			// 构建响应
 			Map<String, Object> response = new HashMap<>();
 			response.put("success", true);
 			// response.put("models", modelList);
 			response.put("refreshed", true); // 标识这是刷新成功
+			response.put("scan", manager.getLastScanStats()); // 各阶段扫描耗时
 			LlamaServer.sendJsonResponse(ctx, response);
 		} catch (Exception e) {
 			logger.info("强制刷新模型列表时发生错误", e);
@@ -161,6 +192,84 @@ public class ModelActionController implements BaseController {
 		}
 	}
 	
+	/**
+	 * 处理模型目录查询请求。
+	 * 支持参数：q、architecture、quantization、minSize、maxSize、capabilities、favourite、loaded、
+	 * sort、order、limit、cursor、fields。客户端带上If-None-Match时，目录没有变化直接返回304。
+	 * 
+	 * @param ctx
+	 * @param request
+	 * @param uri
+	 * @throws RequestMethodException 
+	 */
+	private void handleModelQueryRequest(ChannelHandlerContext ctx, FullHttpRequest request, String uri) throws RequestMethodException {
+		this.assertRequestMethod(request.method() != HttpMethod.GET, "只支持GET请求");
+		try {
+			String etag = this.catalogQueryService.buildEtag(uri);
+			if (LlamaServer.etagMatches(request.headers().get(HttpHeaderNames.IF_NONE_MATCH), etag)) {
+				LlamaServer.sendNotModifiedResponse(ctx, etag);
+				return;
+			}
+			Map<String, Object> data = this.catalogQueryService.query(uri);
+			LlamaServer.sendJsonResponseWithEtag(ctx, ApiResponse.success(data), etag);
+		} catch (IllegalArgumentException e) {
+			LlamaServer.sendJsonResponse(ctx, ApiResponse.error(e.getMessage()));
+		} catch (Exception e) {
+			logger.info("查询模型目录时发生错误", e);
+			LlamaServer.sendJsonResponse(ctx, ApiResponse.error("查询模型目录失败: " + e.getMessage()));
+		}
+	}
+	
+	/**
+	 * 	启动参数调优：start（POST）、status、cancel（POST）、suggestions。
+	 * 
+	 * @param ctx
+	 * @param request
+	 * @param uri
+	 * @throws RequestMethodException 
+	 */
+	private void handleModelTuneRequest(ChannelHandlerContext ctx, FullHttpRequest request, String uri) throws RequestMethodException {
+		LaunchTuningService tuning = LaunchTuningService.getInstance();
+		String path = uri.contains("?") ? uri.substring(0, uri.indexOf('?')) : uri;
+		boolean post = path.equals("/api/models/tune/start") || path.equals("/api/models/tune/cancel");
+		this.assertRequestMethod(request.method() != (post ? HttpMethod.POST : HttpMethod.GET), post ? "只支持POST请求" : "只支持GET请求");
+		try {
+			if (path.equals("/api/models/tune/start")) {
+				String content = request.content().toString(CharsetUtil.UTF_8);
+				JsonObject json = content == null || content.isBlank() ? null : JsonUtil.fromJson(content, JsonObject.class);
+				if (json == null) {
+					LlamaServer.sendJsonResponse(ctx, ApiResponse.error("请求体解析失败"));
+					return;
+				}
+				LlamaServer.sendJsonResponse(ctx, ApiResponse.success(tuning.start(json)));
+				return;
+			}
+			Map<String, String> params = ParamTool.getQueryParam(uri);
+			if (path.equals("/api/models/tune/status")) {
+				LlamaServer.sendJsonResponse(ctx, ApiResponse.success(tuning.status(params.get("jobId"), params.get("modelId"))));
+				return;
+			}
+			if (path.equals("/api/models/tune/cancel")) {
+				LlamaServer.sendJsonResponse(ctx, ApiResponse.success(tuning.cancel(params.get("jobId"), params.get("modelId"))));
+				return;
+			}
+			if (path.equals("/api/models/tune/suggestions")) {
+				String modelId = params.get("modelId");
+				Map<String, Object> data = new HashMap<>();
+				data.put("modelId", modelId);
+				data.put("suggestions", tuning.suggestions(modelId));
+				LlamaServer.sendJsonResponse(ctx, ApiResponse.success(data));
+				return;
+			}
+			LlamaServer.sendJsonResponse(ctx, ApiResponse.error("未知的调优接口: " + path));
+		} catch (IllegalArgumentException | IllegalStateException e) {
+			LlamaServer.sendJsonResponse(ctx, ApiResponse.error(e.getMessage()));
+		} catch (Exception e) {
+			logger.info("处理参数调优请求时发生错误", e);
+			LlamaServer.sendJsonResponse(ctx, ApiResponse.error("参数调优失败: " + e.getMessage()));
+		}
+	}
+	
 	/**
 	 * 处理模型列表请求
 	 * 
@@ -257,6 +366,9 @@ public class ModelActionController implements BaseController {
 			Map<String, Object> response = new HashMap<>();
 			response.put("success", true);
 			response.put("models", modelList);
+			// 后台仍在加载模型目录时，列表可能不完整
+			response.put("partial", manager.isCatalogPartial());
+			response.put("version", manager.getCatalogVersion());
 			LlamaServer.sendJsonResponse(ctx, response);
 		} catch (Exception e) {
 			logger.info("获取模型列表时发生错误", e);
@@ -833,6 +945,81 @@ public class ModelActionController implements BaseController {
 	}
 	
 	
+	/**
+	 * 从模型输出中解析的性能统计
+	 * 
+	 * @param ctx
+	 * @param request
+	 * @throws RequestMethodException 
+	 */
+	private void handleModelLogMetrics(ChannelHandlerContext ctx, FullHttpRequest request) throws RequestMethodException {
+		this.assertRequestMethod(request.method() != HttpMethod.GET, "只支持GET请求");
+		try {
+			Map<String, String> params = ParamTool.getQueryParam(request.uri());
+			String modelId = params.get("modelId");
+			Map<String, LlamaCppProcess> processes = LlamaServerManager.getInstance().getLoadedProcesses();
+			if (modelId != null && !modelId.trim().isEmpty()) {
+				LlamaCppProcess process = processes.get(modelId);
+				if (process == null) {
+					LlamaServer.sendJsonResponse(ctx, ApiResponse.error("模型未加载: " + modelId));
+					return;
+				}
+				Map<String, Object> data = process.getLogMetrics().toMap();
+				data.put("modelId", modelId);
+				LlamaServer.sendJsonResponse(ctx, ApiResponse.success(data));
+				return;
+			}
+			List<Map<String, Object>> models = new ArrayList<>();
+			for (Map.Entry<String, LlamaCppProcess> e : processes.entrySet()) {
+				Map<String, Object> data = e.getValue().getLogMetrics().toMap();
+				data.put("modelId", e.getKey());
+				models.add(data);
+			}
+			Map<String, Object> data = new HashMap<>();
+			data.put("models", models);
+			LlamaServer.sendJsonResponse(ctx, ApiResponse.success(data));
+		} catch (Exception e) {
+			logger.info("获取模型性能统计时发生错误", e);
+			LlamaServer.sendJsonResponse(ctx, ApiResponse.error("获取模型性能统计失败: " + e.getMessage()));
+		}
+	}
+	
+	/**
+	 * 模型最近的输出行
+	 * 
+	 * @param ctx
+	 * @param request
+	 * @throws RequestMethodException 
+	 */
+	private void handleModelRecentLog(ChannelHandlerContext ctx, FullHttpRequest request) throws RequestMethodException {
+		this.assertRequestMethod(request.method() != HttpMethod.GET, "只支持GET请求");
+		try {
+			Map<String, String> params = ParamTool.getQueryParam(request.uri());
+			String modelId = params.get("modelId");
+			if (modelId == null || modelId.trim().isEmpty()) {
+				LlamaServer.sendJsonResponse(ctx, ApiResponse.error("缺少必需的modelId参数"));
+				return;
+			}
+			LlamaCppProcess process = LlamaServerManager.getInstance().getLoadedProcesses().get(modelId);
+			if (process == null) {
+				LlamaServer.sendJsonResponse(ctx, ApiResponse.error("模型未加载: " + modelId));
+				return;
+			}
+			int limit = 200;
+			try {
+				limit = Integer.parseInt(params.getOrDefault("limit", "200").trim());
+			} catch (NumberFormatException ignore) {
+			}
+			Map<String, Object> data = new HashMap<>();
+			data.put("modelId", modelId);
+			data.put("lines", process.getLogMetrics().getRecentLines(Math.max(1, limit)));
+			LlamaServer.sendJsonResponse(ctx, ApiResponse.success(data));
+		} catch (Exception e) {
+			logger.info("获取模型输出时发生错误", e);
+			LlamaServer.sendJsonResponse(ctx, ApiResponse.error("获取模型输出失败: " + e.getMessage()));
+		}
+	}
+	
 	/**
 	 * 加载指定模型指定slot的缓存
 	 * 
@@ -22,6 +22,7 @@ import org.mark.llamacpp.server.LlamaCppProcess;
 import org.mark.llamacpp.server.LlamaServer;
 import org.mark.llamacpp.server.LlamaServerManager;
 import org.mark.llamacpp.server.exception.RequestMethodException;
+import org.mark.llamacpp.server.service.TensorIndexService;
 import org.mark.llamacpp.server.struct.ApiResponse;
 import org.mark.llamacpp.server.tools.ChatTemplateFileTool;
 import org.mark.llamacpp.server.tools.JsonUtil;
@@ -89,6 +90,11 @@ public class ModelInfoController implements BaseController {
 			this.handleModelDetailsRequest(ctx, request);
 			return true;
 		}
+		// 模型的张量清单
+		if (uri.startsWith("/api/models/tensors")) {
+			this.handleModelTensorsRequest(ctx, request);
+			return true;
+		}
 		// 模型的能力设定
 		if(uri.startsWith("/api/models/capabilities/set")) {
 			this.handleModelCapabilitiesSetRequest(ctx, request);
@@ -320,6 +326,7 @@ public class ModelInfoController implements BaseController {
 			GGUFModel model = manager.findModelById(modelId);
 			if (model != null) {
 				model.setAlias(alias);
+				manager.markCatalogChanged();
 			}
 			Map<String, Object> data = new HashMap<>();
 			data.put("modelId", modelId);
@@ -371,6 +378,7 @@ public class ModelInfoController implements BaseController {
 
 			boolean next = !model.isFavourite();
 			model.setFavourite(next);
+			manager.markCatalogChanged();
 			ConfigManager configManager = ConfigManager.getInstance();
 			boolean saved = configManager.saveModelFavourite(modelId, next);
 
@@ -515,6 +523,39 @@ public class ModelInfoController implements BaseController {
 		}
 	}
 	
+	/**
+	 * 查询模型的张量清单，支持按文件、层、类型、名称过滤和分页，附带按层和按类型的汇总。
+	 * 
+	 * @param ctx
+	 * @param request
+	 * @throws RequestMethodException 
+	 */
+	private void handleModelTensorsRequest(ChannelHandlerContext ctx, FullHttpRequest request) throws RequestMethodException {
+		this.assertRequestMethod(request.method() != HttpMethod.GET, "只支持GET请求");
+		try {
+			Map<String, String> params = ParamTool.getQueryParam(request.uri());
+			String modelId = params.get("modelId");
+			if (modelId == null || modelId.trim().isEmpty()) {
+				LlamaServer.sendJsonResponse(ctx, ApiResponse.error("缺少必需的modelId参数"));
+				return;
+			}
+			LlamaServerManager manager = LlamaServerManager.getInstance();
+			manager.listModel();
+			GGUFModel model = manager.findModelById(modelId);
+			if (model == null) {
+				LlamaServer.sendJsonResponse(ctx, ApiResponse.error("未找到指定模型: " + modelId));
+				return;
+			}
+			Map<String, Object> data = TensorIndexService.getInstance().query(model, params);
+			LlamaServer.sendJsonResponse(ctx, ApiResponse.success(data));
+		} catch (IllegalArgumentException e) {
+			LlamaServer.sendJsonResponse(ctx, ApiResponse.error(e.getMessage()));
+		} catch (Exception e) {
+			logger.info("获取模型张量信息时发生错误", e);
+			LlamaServer.sendJsonResponse(ctx, ApiResponse.error("获取模型张量信息失败: " + e.getMessage()));
+		}
+	}
+	
 	/**
 	 * 处理器模型详情的请求
 	 * 
@@ -11,6 +11,7 @@ import java.util.Map;
 
 import org.mark.llamacpp.server.LlamaServer;
 import org.mark.llamacpp.server.LlamaServerManager;
+import org.mark.llamacpp.server.ModelCatalogWatcher;
 import org.mark.llamacpp.server.exception.RequestMethodException;
 import org.mark.llamacpp.server.struct.ApiResponse;
 import org.mark.llamacpp.server.struct.ModelPathConfig;
@@ -413,6 +414,8 @@ public class ModelPathController implements BaseController {
 				logger.info("刷新模型列表失败: {}", e.getMessage());
 			}
 		}
+		// 模型根目录可能变化，重新注册目录监听
+		ModelCatalogWatcher.getInstance().refreshRoots();
 	}
 	
 	/**
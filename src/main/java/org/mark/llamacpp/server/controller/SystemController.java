@@ -1,7 +1,6 @@
 package org.mark.llamacpp.server.controller;
 
 import java.io.File;
-import java.io.RandomAccessFile;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
@@ -13,6 +12,7 @@ import java.util.List;
 import java.util.Map;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
 import java.util.stream.Stream;
 
 import org.mark.llamacpp.lmstudio.LMStudio;
@@ -20,6 +20,9 @@ import org.mark.llamacpp.ollama.Ollama;
 import org.mark.llamacpp.server.LlamaServer;
 import org.mark.llamacpp.server.LlamaServerManager;
 import org.mark.llamacpp.server.exception.RequestMethodException;
+import org.mark.llamacpp.server.io.ConsoleBroadcastOutputStream;
+import org.mark.llamacpp.server.io.ConsoleLogStore;
+import org.mark.llamacpp.server.service.VramPlanService;
 import org.mark.llamacpp.server.struct.ApiResponse;
 import org.mark.llamacpp.server.tools.CommandLineRunner;
 import org.mark.llamacpp.server.tools.JsonUtil;
@@ -33,6 +36,7 @@ import com.google.gson.JsonObject;
 import io.netty.channel.ChannelHandlerContext;
 import io.netty.handler.codec.http.FullHttpRequest;
 import io.netty.handler.codec.http.HttpMethod;
+import io.netty.handler.codec.http.HttpResponseStatus;
 import io.netty.util.CharsetUtil;
 
 
@@ -44,6 +48,10 @@ public class SystemController implements BaseController {
 
 	private static final Logger logger = LoggerFactory.getLogger(SystemController.class);
 	
+	/**
+	 * 	显存规划
+	 */
+	private VramPlanService vramPlanService = new VramPlanService();
 	
 	
 	public boolean handleRequest(String uri, ChannelHandlerContext ctx, FullHttpRequest request) throws RequestMethodException {
@@ -64,6 +72,16 @@ public class SystemController implements BaseController {
 			return true;
 		}
 		
+		// 显存估算曲线API
+		if (uri.startsWith("/api/models/vram/curve")) {
+			this.handleVramPlanRequest(ctx, request, false);
+			return true;
+		}
+		// 预算内最大上下文/并行数求解API
+		if (uri.startsWith("/api/models/vram/solve")) {
+			this.handleVramPlanRequest(ctx, request, true);
+			return true;
+		}
 		// 显存估算API
 		if (uri.startsWith("/api/models/vram/estimate")) {
 			this.handleVramEstimateRequest(ctx, request);
@@ -559,6 +577,15 @@ public class SystemController implements BaseController {
 	
 	/**
 	 * 处理控制台的请求。
+	 * <p>
+	 * 不带参数时返回最后256KB的文本，和原来一样。其他用法返回JSON：
+	 * <ul>
+	 * <li>offset、maxBytes：从offset开始追踪新输出，下次传入返回的nextOffset；offset为-1时从末尾开始</li>
+	 * <li>/api/sys/console/range?from=&to=：按时间读取，毫秒时间戳</li>
+	 * <li>/api/sys/console/search?q=（或regex=）：搜索，可以加from、to、ignoreCase</li>
+	 * <li>/api/sys/console/segments：分段列表和捕获计数</li>
+	 * </ul>
+	 * 以上都可以用model只看某个模型的输出，用limit限制行数。
 	 * 
 	 * @param ctx
 	 * @param request
@@ -568,32 +595,129 @@ public class SystemController implements BaseController {
 		// 断言一下请求方式
 		this.assertRequestMethod(request.method() != HttpMethod.GET, "只支持GET请求");
 		try {
-			Path logPath = LlamaServer.getConsoleLogPath();
-			File file = logPath.toFile();
-			if (!file.exists()) {
-				LlamaServer.sendTextResponse(ctx, "");
+			ConsoleLogStore store = LlamaServer.getConsoleLog();
+			if (store == null) {
+				LlamaServer.sendJsonResponse(ctx, ApiResponse.error("控制台日志未启用"));
 				return;
 			}
-			long max = 1L * 256 * 1024;
-			try (RandomAccessFile raf = new RandomAccessFile(file, "r")) {
-				long len = raf.length();
-				long start = Math.max(0, len - max);
-				raf.seek(start);
-				int toRead = (int) Math.min(max, len - start);
-				byte[] buf = new byte[toRead];
-				int read = raf.read(buf);
-				if (read <= 0) {
-					LlamaServer.sendTextResponse(ctx, "");
+			String uri = request.uri();
+			String path = uri.contains("?") ? uri.substring(0, uri.indexOf('?')) : uri;
+			Map<String, String> params = ParamTool.getQueryParam(uri);
+			String model = params.get("model");
+			if (model != null && model.isBlank()) {
+				model = null;
+			}
+			int limit = (int) Math.max(1, Math.min(20000, parseLongOrDefault(params.get("limit"), 2000)));
+			long from = parseLongOrDefault(params.get("from"), 0);
+			long to = parseLongOrDefault(params.get("to"), Long.MAX_VALUE);
+
+			if (path.startsWith("/api/sys/console/segments")) {
+				LlamaServer.sendJsonResponse(ctx, ApiResponse.success(this.buildConsoleSegments(store)));
+				return;
+			}
+			if (path.startsWith("/api/sys/console/range")) {
+				ConsoleLogStore.QueryResult result = store.range(from, to, model, limit);
+				LlamaServer.sendJsonResponse(ctx, ApiResponse.success(this.buildConsoleQuery(store, result)));
+				return;
+			}
+			if (path.startsWith("/api/sys/console/search")) {
+				String q = params.get("q");
+				String regex = params.get("regex");
+				boolean ignoreCase = "true".equalsIgnoreCase(params.get("ignoreCase"));
+				if ((q == null || q.isEmpty()) && (regex == null || regex.isEmpty())) {
+					LlamaServer.sendJsonResponse(ctx, ApiResponse.error("缺少必需的q或regex参数"));
 					return;
 				}
-				String text = new String(buf, 0, read, StandardCharsets.UTF_8);
-				LlamaServer.sendTextResponse(ctx, text);
+				Pattern pattern = null;
+				if (regex != null && !regex.isEmpty()) {
+					pattern = Pattern.compile(regex, ignoreCase ? Pattern.CASE_INSENSITIVE | Pattern.UNICODE_CASE : 0);
+				} else if (ignoreCase) {
+					// 忽略大小写的子串按正则匹配
+					pattern = Pattern.compile(Pattern.quote(q), Pattern.CASE_INSENSITIVE | Pattern.UNICODE_CASE);
+					q = null;
+				}
+				ConsoleLogStore.QueryResult result = store.search(q, pattern, model, from, to, limit);
+				LlamaServer.sendJsonResponse(ctx, ApiResponse.success(this.buildConsoleQuery(store, result)));
+				return;
+			}
+			int maxBytes = (int) Math.max(1024, Math.min(4L * 1024 * 1024, parseLongOrDefault(params.get("maxBytes"), 256 * 1024)));
+			if (!params.containsKey("offset") && model == null) {
+				LlamaServer.sendTextResponse(ctx, store.tail(-1, maxBytes, null).text());
+				return;
 			}
+			ConsoleLogStore.TailResult tail = store.tail(parseLongOrDefault(params.get("offset"), -1), maxBytes, model);
+			Map<String, Object> data = new HashMap<>();
+			data.put("text", tail.text());
+			data.put("offset", tail.startOffset());
+			data.put("nextOffset", tail.nextOffset());
+			data.put("firstOffset", tail.firstOffset());
+			data.put("endOffset", store.getEndOffset());
+			data.put("truncated", tail.truncated());
+			LlamaServer.sendJsonResponse(ctx, ApiResponse.success(data));
+		} catch (PatternSyntaxException e) {
+			LlamaServer.sendJsonResponse(ctx, ApiResponse.error("正则表达式无效: " + e.getDescription()));
 		} catch (Exception e) {
+			logger.info("读取控制台日志时发生错误", e);
 			LlamaServer.sendJsonResponse(ctx, ApiResponse.error("读取控制台日志失败: " + e.getMessage()));
 		}
 	}
 	
+	private Map<String, Object> buildConsoleQuery(ConsoleLogStore store, ConsoleLogStore.QueryResult result) {
+		List<Map<String, Object>> lines = new ArrayList<>(result.lines().size());
+		for (ConsoleLogStore.LogLine line : result.lines()) {
+			Map<String, Object> item = new HashMap<>();
+			item.put("offset", line.offset());
+			item.put("time", line.time());
+			item.put("text", line.text());
+			lines.add(item);
+		}
+		Map<String, Object> data = new HashMap<>();
+		data.put("lines", lines);
+		data.put("count", lines.size());
+		data.put("truncated", result.truncated());
+		data.put("scannedBytes", result.scannedBytes());
+		data.put("firstOffset", store.getFirstOffset());
+		data.put("endOffset", store.getEndOffset());
+		return data;
+	}
+	
+	private Map<String, Object> buildConsoleSegments(ConsoleLogStore store) {
+		List<Map<String, Object>> segments = new ArrayList<>();
+		for (ConsoleLogStore.Segment s : store.getSegments()) {
+			Map<String, Object> item = new HashMap<>();
+			item.put("file", s.getFileName());
+			item.put("offset", s.getBase());
+			item.put("size", s.getSize());
+			item.put("firstTime", s.getFirstTime());
+			item.put("lastTime", s.getLastTime());
+			item.put("indexEntries", s.getIndexEntries());
+			segments.add(item);
+		}
+		Map<String, Object> data = new HashMap<>();
+		data.put("directory", store.getDirectory().toAbsolutePath().toString());
+		data.put("segments", segments);
+		data.put("firstOffset", store.getFirstOffset());
+		data.put("endOffset", store.getEndOffset());
+		ConsoleBroadcastOutputStream capture = LlamaServer.getConsoleCapture();
+		if (capture != null) {
+			data.put("capturedBytes", capture.getCapturedBytes());
+			data.put("droppedBytes", capture.getDroppedBytes());
+			data.put("pendingBytes", capture.getPendingBytes());
+		}
+		return data;
+	}
+	
+	private static long parseLongOrDefault(String value, long fallback) {
+		if (value == null || value.isBlank()) {
+			return fallback;
+		}
+		try {
+			return Long.parseLong(value.trim());
+		} catch (NumberFormatException e) {
+			return fallback;
+		}
+	}
+	
 	
 	/**
 	 * 处理设备列表请求 执行 llama-bench --list-devices 命令获取可用设备列表
@@ -718,4 +842,31 @@ public class SystemController implements BaseController {
 			LlamaServer.sendJsonResponse(ctx, ApiResponse.error("估算显存失败: " + e.getMessage()));
 		}
 	}
+	
+	/**
+	 * 	批量估算显存曲线，或在预算内求解最大上下文/并行数。
+	 * @param ctx
+	 * @param request
+	 * @param solve
+	 * @throws RequestMethodException
+	 */
+	private void handleVramPlanRequest(ChannelHandlerContext ctx, FullHttpRequest request, boolean solve) throws RequestMethodException {
+		this.assertRequestMethod(request.method() != HttpMethod.POST, "只支持POST请求");
+		try {
+			String content = request.content().toString(CharsetUtil.UTF_8);
+			JsonElement root = content == null || content.isBlank() ? null : JsonUtil.fromJson(content, JsonElement.class);
+			if (root == null || !root.isJsonObject()) {
+				LlamaServer.sendJsonResponse(ctx, ApiResponse.error("请求体必须为JSON对象"));
+				return;
+			}
+			JsonObject obj = root.getAsJsonObject();
+			Map<String, Object> data = solve ? this.vramPlanService.solve(obj) : this.vramPlanService.curve(obj);
+			LlamaServer.sendJsonResponse(ctx, ApiResponse.success(data));
+		} catch (IllegalArgumentException e) {
+			LlamaServer.sendJsonResponse(ctx, HttpResponseStatus.BAD_REQUEST, ApiResponse.error(e.getMessage()));
+		} catch (Exception e) {
+			logger.info("估算显存时发生错误", e);
+			LlamaServer.sendJsonResponse(ctx, ApiResponse.error("估算显存失败: " + e.getMessage()));
+		}
+	}
 }
@@ -0,0 +1,120 @@
+package org.mark.llamacpp.server.io;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 多生产者、单消费者的字节环形缓冲区，不加锁。
+ * <p>
+ * 每次写入是一条记录：4字节长度头加数据，按4字节对齐。生产者用CAS占位，复制数据后再写长度头（release），
+ * 消费者看到非0的长度头（acquire）才读取，读完把这段清零再前移读指针。记录放不下到末尾时，
+ * 先写一条负长度的填充记录跳到开头。空间不够时直接丢弃这次写入，由调用方计数。
+ */
+final class ByteRingBuffer {
+
+    private static final int HEADER = 4;
+
+    private static final VarHandle INT = MethodHandles.byteArrayViewVarHandle(int[].class, ByteOrder.nativeOrder());
+
+    /**
+     * 读到的一条记录
+     */
+    @FunctionalInterface
+    interface Reader {
+        void accept(byte[] buffer, int offset, int length);
+    }
+
+    private final byte[] buffer;
+    private final int mask;
+    private final AtomicLong tail = new AtomicLong();
+    private volatile long head;
+
+    /**
+     * @param capacity 会向上取到2的幂
+     */
+    ByteRingBuffer(int capacity) {
+        int size = Integer.highestOneBit(Math.max(capacity, 1024) - 1) << 1;
+        this.buffer = new byte[size];
+        this.mask = size - 1;
+    }
+
+    int capacity() {
+        return this.buffer.length;
+    }
+
+    /**
+     * 写入一段字节。
+     * @return 空间不够时返回false，什么也不写
+     */
+    boolean offer(byte[] b, int off, int len) {
+        if (len <= 0) {
+            return true;
+        }
+        int need = align(HEADER + len);
+        int capacity = this.buffer.length;
+        if (need > capacity / 2) {
+            return false;
+        }
+        while (true) {
+            long t = this.tail.get();
+            int index = (int) (t & this.mask);
+            int toEnd = capacity - index;
+            long claim = need <= toEnd ? need : toEnd + need;
+            if (t + claim - this.head > capacity) {
+                return false;
+            }
+            if (!this.tail.compareAndSet(t, t + claim)) {
+                continue;
+            }
+            if (need > toEnd) {
+                INT.setRelease(this.buffer, index, -toEnd);
+                index = 0;
+            }
+            System.arraycopy(b, off, this.buffer, index + HEADER, len);
+            INT.setRelease(this.buffer, index, len);
+            return true;
+        }
+    }
+
+    /**
+     * 读出所有已经写完的记录，只能由消费者线程调用。
+     * @return 读到的数据字节数
+     */
+    long drain(Reader reader) {
+        long h = this.head;
+        long bytes = 0;
+        while (true) {
+            int index = (int) (h & this.mask);
+            int header = (int) INT.getAcquire(this.buffer, index);
+            if (header == 0) {
+                break;
+            }
+            int size;
+            if (header < 0) {
+                size = -header;
+            } else {
+                reader.accept(this.buffer, index + HEADER, header);
+                bytes += header;
+                size = align(HEADER + header);
+            }
+            Arrays.fill(this.buffer, index, index + size, (byte) 0);
+            h += size;
+            this.head = h;
+        }
+        return bytes;
+    }
+
+    /**
+     * 已占用的字节数（包括还没写完的记录）
+     */
+    long used() {
+        return this.tail.get() - this.head;
+    }
+
+    private static int align(int n) {
+        return (n + 3) & ~3;
+    }
+}
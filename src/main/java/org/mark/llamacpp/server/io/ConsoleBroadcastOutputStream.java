@@ -1,72 +1,366 @@
 package org.mark.llamacpp.server.io;
 
+import java.io.BufferedOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
+import java.io.PrintStream;
 import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
 
 import org.mark.llamacpp.server.LlamaServer;
 
 
 /**
- * 	重定向用的输出流。
+ * 重定向用的输出流。
+ * <p>
+ * 写入只把字节放进无锁的环形缓冲区，不等待文件、控制台和WebSocket。
+ * 后台的单个线程按行切分，写日志文件和原来的标准输出，每隔几毫秒把这段时间的行按模型合并成console事件发出：
+ * 带有线程名 [llama-server-模型ID] 的行发到 console:模型ID，其余发到 console。
+ * 没有输出时后台线程休眠，由写入方唤醒。
+ * 缓冲区满时丢弃输出并计数，随后在输出里插入一行丢弃提示。
  */
 public class ConsoleBroadcastOutputStream extends OutputStream {
+
+    /**
+     * 环形缓冲区大小
+     */
+    private static final int RING_BYTES = 4 * 1024 * 1024;
+
+    /**
+     * 合并发送的间隔
+     */
+    private static final long BATCH_INTERVAL_NANOS = TimeUnit.MILLISECONDS.toNanos(10);
+
+    /**
+     * 没有数据时消费者最长休眠的时间，有写入时由生产者唤醒，这里只是兜底
+     */
+    private static final long IDLE_PARK_NANOS = TimeUnit.SECONDS.toNanos(1);
+
+    /**
+     * 有生产者占了位置但还没写完时，消费者等待的时间
+     */
+    private static final long WRITING_PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
+
+    /**
+     * 单条事件最多合并的字节数
+     */
+    private static final int MAX_BATCH_BYTES = 256 * 1024;
+
+    /**
+     * 超过这个长度的行强制断开
+     */
+    private static final int MAX_LINE_BYTES = 64 * 1024;
+
+    /**
+     * 模型进程输出行的线程名前缀
+     */
+    private static final String MODEL_MARKER = "[llama-server-";
+
+    /**
+     * 一个模型在本轮合并的行
+     */
+    private static final class Batch {
+        final StringBuilder text = new StringBuilder();
+        int lines;
+    }
+
     private final OutputStream delegate;
     private final Charset charset;
-    private final StringBuilder buffer = new StringBuilder();
+    private final ByteRingBuffer ring = new ByteRingBuffer(RING_BYTES);
+    private final Thread consumer;
     private volatile boolean closed = false;
-    
+    /**
+     * 消费者是否准备休眠，生产者写入后据此决定是否唤醒
+     */
+    private volatile boolean parked = false;
+
+    private final AtomicLong capturedBytes = new AtomicLong();
+    private final AtomicLong droppedBytes = new AtomicLong();
+    private final AtomicLong droppedWrites = new AtomicLong();
+    private final AtomicLong deliveredLines = new AtomicLong();
+    private final AtomicLong deliveredBatches = new AtomicLong();
+
+    // 以下字段只在消费者线程中使用
+    private final OutputStream file;
+    private final PrintStream stdout;
+    private byte[] echo = new byte[64 * 1024];
+    private int echoLength;
+    private byte[] partial = new byte[1024];
+    private int partialLength;
+    private final Map<String, Batch> batches = new LinkedHashMap<>();
+    private int batchBytes;
+    private int batchLines;
+    private long batchStarted;
+    private long reportedDropped;
+    private boolean deliver;
+
     public ConsoleBroadcastOutputStream(OutputStream delegate, Charset charset) {
         this.delegate = delegate;
         this.charset = charset;
+        this.file = new BufferedOutputStream(delegate, 64 * 1024);
+        this.stdout = LlamaServer.out;
+        this.consumer = new Thread(this::runConsumer, "console-capture");
+        this.consumer.setDaemon(true);
+        this.consumer.start();
     }
 
     @Override
-    public synchronized void write(int b) throws IOException {
-        delegate.write(b);
-        char c = (char) (b & 0xFF);
-        if (c == '\n') {
-            String line = buffer.toString();
-            LlamaServer.sendConsoleLineEvent(null, line);
-            LlamaServer.out.println(line);
-            buffer.setLength(0);
-        } else if (c != '\r') {
-            buffer.append(c);
-        }
+    public void write(int b) throws IOException {
+        this.write(new byte[] { (byte) b }, 0, 1);
     }
 
     @Override
-    public synchronized void write(byte[] b, int off, int len) throws IOException {
-        delegate.write(b, off, len);
-        String text = new String(b, off, len, charset);
-        int start = 0;
-        for (int i = 0; i < text.length(); i++) {
-            char c = text.charAt(i);
-            if (c == '\n') {
-                if (i > start) buffer.append(text, start, i);
-                String line = buffer.toString();
-                LlamaServer.sendConsoleLineEvent(null, line);
-                LlamaServer.out.println(line);
-                buffer.setLength(0);
-                start = i + 1;
-            } else if (c == '\r') {
-                if (i > start) buffer.append(text, start, i);
-                start = i + 1;
-            }
+    public void write(byte[] b, int off, int len) throws IOException {
+        if (this.closed || len <= 0) {
+            return;
+        }
+        if (this.ring.offer(b, off, len)) {
+            this.capturedBytes.addAndGet(len);
+        } else {
+            this.droppedBytes.addAndGet(len);
+            this.droppedWrites.incrementAndGet();
+        }
+        if (this.parked) {
+            LockSupport.unpark(this.consumer);
         }
-        if (start < text.length()) buffer.append(text.substring(start));
     }
 
+    /**
+     * 由后台线程写出，这里不等待。
+     */
     @Override
     public void flush() throws IOException {
-        delegate.flush();
     }
 
     @Override
-    public synchronized void close() throws IOException {
-        if (!closed) {
-            closed = true;
-            delegate.close();
+    public void close() throws IOException {
+        if (this.closed) {
+            return;
+        }
+        this.closed = true;
+        LockSupport.unpark(this.consumer);
+        try {
+            this.consumer.join(TimeUnit.SECONDS.toMillis(5));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        this.delegate.close();
+    }
+
+    public long getCapturedBytes() {
+        return capturedBytes.get();
+    }
+
+    public long getDroppedBytes() {
+        return droppedBytes.get();
+    }
+
+    public long getDroppedWrites() {
+        return droppedWrites.get();
+    }
+
+    public long getDeliveredLines() {
+        return deliveredLines.get();
+    }
+
+    public long getDeliveredBatches() {
+        return deliveredBatches.get();
+    }
+
+    /**
+     * 环形缓冲区中还没处理的字节数
+     */
+    public long getPendingBytes() {
+        return ring.used();
+    }
+
+    private void runConsumer() {
+        while (true) {
+            boolean stopping = this.closed;
+            long read = 0;
+            try {
+                // 没有页面连接时不必解码和合并
+                this.deliver = LlamaServer.getWebSocketConnectionCount() > 0;
+                read = this.ring.drain(this::onBytes);
+                this.reportDrops();
+                if (this.echoLength > 0) {
+                    // 原来的标准输出每次写入都会刷新，攒一轮再写
+                    this.stdout.write(this.echo, 0, this.echoLength);
+                    this.stdout.flush();
+                    this.echoLength = 0;
+                    if (this.echo.length > MAX_BATCH_BYTES) {
+                        this.echo = new byte[64 * 1024];
+                    }
+                }
+                if (read > 0) {
+                    this.file.flush();
+                }
+                if (this.batchLines > 0 && (stopping || System.nanoTime() - this.batchStarted >= BATCH_INTERVAL_NANOS)) {
+                    this.ship();
+                }
+            } catch (Throwable t) {
+                // 不能再往System.out写，避免递归
+                t.printStackTrace(this.stdout);
+            }
+            if (stopping) {
+                try {
+                    this.file.flush();
+                } catch (IOException ignored) {
+                }
+                return;
+            }
+            if (read == 0) {
+                this.idle();
+            }
+        }
+    }
+
+    /**
+     * 没有数据时休眠，直到生产者写入、合并的行到了发送时间或者兜底超时。
+     * 先置parked再检查缓冲区，生产者先写缓冲区再检查parked，两边至少有一边能看到对方，不会漏掉唤醒。
+     */
+    private void idle() {
+        this.parked = true;
+        try {
+            if (this.closed) {
+                return;
+            }
+            long wait = IDLE_PARK_NANOS;
+            if (this.batchLines > 0) {
+                wait = this.batchStarted + BATCH_INTERVAL_NANOS - System.nanoTime();
+            }
+            if (this.ring.used() > 0) {
+                wait = Math.min(wait, WRITING_PARK_NANOS);
+            }
+            if (wait > 0) {
+                LockSupport.parkNanos(this, wait);
+            }
+        } finally {
+            this.parked = false;
+        }
+    }
+
+    private void onBytes(byte[] buffer, int offset, int length) {
+        try {
+            this.file.write(buffer, offset, length);
+        } catch (IOException e) {
+            // 日志文件写不进去时仍然推送到页面
+        }
+        this.appendEcho(buffer, offset, length);
+        int start = offset;
+        int end = offset + length;
+        for (int i = offset; i < end; i++) {
+            if (buffer[i] == '\n') {
+                this.appendPartial(buffer, start, i - start);
+                this.endLine();
+                start = i + 1;
+            }
+        }
+        if (start < end) {
+            this.appendPartial(buffer, start, end - start);
+            if (this.partialLength >= MAX_LINE_BYTES) {
+                this.endLine();
+            }
+        }
+    }
+
+    private void appendEcho(byte[] buffer, int offset, int length) {
+        if (this.echoLength + length > this.echo.length) {
+            this.echo = Arrays.copyOf(this.echo, Math.max(this.echo.length * 2, this.echoLength + length));
+        }
+        System.arraycopy(buffer, offset, this.echo, this.echoLength, length);
+        this.echoLength += length;
+    }
+
+    private void appendPartial(byte[] buffer, int offset, int length) {
+        if (length <= 0) {
+            return;
+        }
+        if (this.partialLength + length > this.partial.length) {
+            this.partial = Arrays.copyOf(this.partial, Math.max(this.partial.length * 2, this.partialLength + length));
+        }
+        System.arraycopy(buffer, offset, this.partial, this.partialLength, length);
+        this.partialLength += length;
+    }
+
+    private void endLine() {
+        int len = this.partialLength;
+        while (len > 0 && this.partial[len - 1] == '\r') {
+            len--;
+        }
+        if (this.deliver) {
+            this.addLine(new String(this.partial, 0, len, this.charset));
+        }
+        this.partialLength = 0;
+        if (this.partial.length > MAX_LINE_BYTES) {
+            this.partial = new byte[1024];
+        }
+    }
+
+    private void addLine(String line) {
+        if (!this.deliver) {
+            return;
+        }
+        if (this.batchLines == 0) {
+            this.batchStarted = System.nanoTime();
+        }
+        Batch b = this.batches.computeIfAbsent(modelOf(line), k -> new Batch());
+        if (b.lines > 0) {
+            b.text.append('\n');
+        }
+        b.text.append(line);
+        b.lines++;
+        this.batchLines++;
+        this.batchBytes += line.length() + 1;
+        if (this.batchBytes >= MAX_BATCH_BYTES) {
+            this.ship();
+        }
+    }
+
+    /**
+     * 行所属的模型：日志格式里第一个方括号是线程名，模型进程的输出线程名为 llama-server-模型ID
+     */
+    static String modelOf(String line) {
+        int start = line.indexOf('[');
+        if (start < 0 || !line.startsWith(MODEL_MARKER, start)) {
+            return "";
+        }
+        int from = start + MODEL_MARKER.length();
+        int end = line.indexOf(']', from);
+        return end <= from ? "" : line.substring(from, end);
+    }
+
+    /**
+     * 缓冲区满丢弃过输出时，插入一行提示
+     */
+    private void reportDrops() throws IOException {
+        long dropped = this.droppedBytes.get();
+        if (dropped == this.reportedDropped) {
+            return;
+        }
+        String notice = "[console] 输出过快，已丢弃 " + (dropped - this.reportedDropped) + " 字节（累计 " + dropped + " 字节，"
+                + this.droppedWrites.get() + " 次写入）";
+        this.reportedDropped = dropped;
+        byte[] bytes = (notice + System.lineSeparator()).getBytes(this.charset);
+        this.file.write(bytes);
+        this.appendEcho(bytes, 0, bytes.length);
+        this.addLine(notice);
+    }
+
+    private void ship() {
+        for (Map.Entry<String, Batch> e : this.batches.entrySet()) {
+            Batch b = e.getValue();
+            LlamaServer.sendConsoleBatchEvent(e.getKey(), b.text.toString(), b.lines);
+            this.deliveredBatches.incrementAndGet();
         }
+        this.deliveredLines.addAndGet(this.batchLines);
+        this.batches.clear();
+        this.batchBytes = 0;
+        this.batchLines = 0;
     }
 }
@@ -0,0 +1,826 @@
+package org.mark.llamacpp.server.io;
+
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.stream.Stream;
+
+/**
+ * 控制台日志，按大小和时间切分成多个分段文件。
+ * <p>
+ * 所有分段共用一个递增的全局字节偏移，文件名就是分段起始偏移，重启后继续累加，客户端可以用偏移追踪新输出。
+ * 每个分段旁边有一个稀疏索引文件，每64KB或每秒在行首记录一条（偏移, 行号, 时间），
+ * 按时间读取和搜索时用它定位，日志行本身只有时分秒。查询时把分段映射到内存，多个分段并行搜索。
+ * 模型进程的输出行带有线程名 [llama-server-模型ID]，按模型过滤时匹配这个标记。
+ */
+public class ConsoleLogStore extends OutputStream {
+
+    /**
+     * 单个分段的最大字节数
+     */
+    private static final long SEGMENT_BYTES = 16L * 1024 * 1024;
+
+    /**
+     * 单个分段最长的时间跨度
+     */
+    private static final long SEGMENT_MILLIS = 60L * 60 * 1000;
+
+    /**
+     * 保留的分段个数
+     */
+    private static final int MAX_SEGMENTS = 32;
+
+    private static final long INDEX_EVERY_BYTES = 64L * 1024;
+
+    private static final long INDEX_EVERY_MILLIS = 1000;
+
+    private static final int INDEX_RECORD_BYTES = 24;
+
+    /**
+     * 扫描时每次映射的最大字节数，超过2GB的文件不能一次映射
+     */
+    private static final long SCAN_WINDOW_BYTES = 256L * 1024 * 1024;
+
+    private static final Pattern SEGMENT_NAME = Pattern.compile("^console-(\\d{16})\\.log$");
+
+    /**
+     * 一行日志
+     * @param offset 行首的全局偏移
+     * @param time 所在索引项的时间，精度为索引间隔
+     * @param text 内容，不含换行
+     */
+    public record LogLine(long offset, long time, String text) {
+    }
+
+    /**
+     * 追踪读取的结果
+     * @param startOffset 本次读取的起始偏移
+     * @param nextOffset 下次读取时传入的偏移
+     * @param firstOffset 还保留着的最早偏移
+     * @param truncated 请求的偏移已经被清理，从最早的位置开始返回
+     * @param text 文本，只包含完整的行
+     */
+    public record TailResult(long startOffset, long nextOffset, long firstOffset, boolean truncated, String text) {
+    }
+
+    /**
+     * 按时间读取或搜索的结果
+     * @param lines 按偏移升序
+     * @param truncated 匹配的行超过了上限
+     * @param scannedBytes 扫描的字节数
+     */
+    public record QueryResult(List<LogLine> lines, boolean truncated, long scannedBytes) {
+    }
+
+    /**
+     * 一个分段
+     */
+    public static final class Segment {
+        private final long base;
+        private final Path path;
+        private final Path indexPath;
+        private final long createdAt;
+        private volatile long size;
+        private volatile long lastTime;
+        /**
+         * 索引项：偏移、行号、时间
+         */
+        private final List<long[]> index = new ArrayList<>();
+
+        private Segment(long base, Path path, long createdAt) {
+            this.base = base;
+            this.path = path;
+            this.indexPath = indexPathOf(path);
+            this.createdAt = createdAt;
+            this.lastTime = createdAt;
+        }
+
+        public long getBase() {
+            return base;
+        }
+
+        public long getSize() {
+            return size;
+        }
+
+        public long getEnd() {
+            return base + size;
+        }
+
+        public String getFileName() {
+            return path.getFileName().toString();
+        }
+
+        public long getFirstTime() {
+            synchronized (index) {
+                return index.isEmpty() ? createdAt : index.get(0)[2];
+            }
+        }
+
+        public long getLastTime() {
+            return lastTime;
+        }
+
+        public int getIndexEntries() {
+            synchronized (index) {
+                return index.size();
+            }
+        }
+
+        private long[][] indexSnapshot() {
+            synchronized (index) {
+                return index.toArray(new long[0][]);
+            }
+        }
+    }
+
+    private final Path dir;
+    private final List<Segment> segments = new CopyOnWriteArrayList<>();
+    private final List<Path> pendingDeletes = new ArrayList<>();
+
+    // 以下字段由this保护，只有写入线程修改
+    private Segment active;
+    private FileChannel channel;
+    private DataOutputStream indexOut;
+    private long lineNo;
+    private long lastIndexOffset = -1;
+    private long lastIndexTime;
+    private boolean atLineStart = true;
+    private boolean closed;
+
+    /**
+     * 打开日志目录，已有分段保留，新输出写入新的分段。
+     * @param dir 分段所在目录
+     * @param legacyFile 旧版本的单个日志文件，存在时把末尾部分切成分段迁移进来，可以为null
+     * @throws IOException
+     */
+    public ConsoleLogStore(Path dir, Path legacyFile) throws IOException {
+        this.dir = dir;
+        Files.createDirectories(dir);
+        this.load(legacyFile);
+        long base = this.segments.isEmpty() ? 0 : this.segments.get(this.segments.size() - 1).getEnd();
+        this.openSegment(base, System.currentTimeMillis());
+    }
+
+    public Path getDirectory() {
+        return dir;
+    }
+
+    public List<Segment> getSegments() {
+        return List.copyOf(segments);
+    }
+
+    /**
+     * 当前末尾的全局偏移
+     */
+    public long getEndOffset() {
+        Segment last = this.segments.get(this.segments.size() - 1);
+        return last.getEnd();
+    }
+
+    public long getFirstOffset() {
+        return this.segments.get(0).base;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        this.write(new byte[] { (byte) b }, 0, 1);
+    }
+
+    /**
+     * 写入输出。只在行首切换分段和记录索引，同一分段内连续的行合并成一次写入。
+     */
+    @Override
+    public synchronized void write(byte[] b, int off, int len) throws IOException {
+        if (this.closed || len <= 0) {
+            return;
+        }
+        long now = System.currentTimeMillis();
+        int end = off + len;
+        int pending = off;
+        int p = off;
+        while (p < end) {
+            if (this.atLineStart) {
+                long written = p - pending;
+                if (this.active.size + written > 0
+                        && (this.active.size + written >= SEGMENT_BYTES || now - this.active.createdAt >= SEGMENT_MILLIS)) {
+                    this.append(b, pending, p - pending);
+                    pending = p;
+                    this.rotate(now);
+                    written = 0;
+                }
+                long offset = this.active.getEnd() + written;
+                if (this.lastIndexOffset < this.active.base || offset - this.lastIndexOffset >= INDEX_EVERY_BYTES
+                        || now - this.lastIndexTime >= INDEX_EVERY_MILLIS) {
+                    this.addIndex(offset, now);
+                }
+            }
+            int nl = indexOf(b, p, end);
+            if (nl < 0) {
+                this.atLineStart = false;
+                p = end;
+            } else {
+                this.atLineStart = true;
+                this.lineNo++;
+                p = nl + 1;
+            }
+        }
+        this.append(b, pending, end - pending);
+        this.active.lastTime = now;
+    }
+
+    @Override
+    public synchronized void flush() throws IOException {
+        if (this.indexOut != null) {
+            this.indexOut.flush();
+        }
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        if (this.closed) {
+            return;
+        }
+        this.closed = true;
+        this.indexOut.close();
+        this.channel.close();
+    }
+
+    /**
+     * 从offset开始读取新输出；offset小于0时返回最后maxBytes字节。
+     * @param offset 全局偏移
+     * @param maxBytes 最多读取的字节数
+     * @param model 只返回该模型的行，可以为null
+     * @return
+     * @throws IOException
+     */
+    public TailResult tail(long offset, int maxBytes, String model) throws IOException {
+        List<Segment> snapshot = List.copyOf(this.segments);
+        long first = snapshot.get(0).base;
+        long end = snapshot.get(snapshot.size() - 1).getEnd();
+        boolean truncated = false;
+        long start;
+        if (offset < 0) {
+            start = Math.max(first, end - maxBytes);
+        } else if (offset < first) {
+            start = first;
+            truncated = true;
+        } else {
+            start = Math.min(offset, end);
+        }
+        byte[] data = readRange(snapshot, start, (int) Math.min(end - start, maxBytes));
+        int from = 0;
+        if (offset < 0 && start > first) {
+            // 从中间开始时跳过不完整的第一行
+            int nl = indexOf(data, 0, data.length);
+            from = nl < 0 ? data.length : nl + 1;
+        }
+        int to = data.length;
+        if (start + data.length < end || (data.length > 0 && data[data.length - 1] != '\n')) {
+            // 只返回完整的行，剩下的下次再读；一行超过maxBytes时整段返回
+            int last = lastIndexOf(data, from, data.length);
+            if (last >= from) {
+                to = last + 1;
+            } else if (start + data.length < end) {
+                to = data.length;
+            } else {
+                to = from;
+            }
+        }
+        String text;
+        if (model == null) {
+            text = new String(data, from, to - from, StandardCharsets.UTF_8);
+        } else {
+            byte[] marker = modelMarker(model);
+            StringBuilder sb = new StringBuilder();
+            int ls = from;
+            while (ls < to) {
+                int nl = indexOf(data, ls, to);
+                int le = nl < 0 ? to : nl;
+                if (contains(data, ls, le, marker)) {
+                    sb.append(new String(data, ls, le - ls, StandardCharsets.UTF_8)).append('\n');
+                }
+                ls = le + 1;
+            }
+            text = sb.toString();
+        }
+        return new TailResult(start + from, start + to, first, truncated, text);
+    }
+
+    /**
+     * 读取时间范围内的行。
+     * @param fromMillis 包含
+     * @param toMillis 包含
+     * @param model 可以为null
+     * @param maxLines 最多返回的行数，超过时返回最早的maxLines行
+     * @return
+     * @throws IOException
+     * @throws InterruptedException
+     */
+    public QueryResult range(long fromMillis, long toMillis, String model, int maxLines) throws IOException, InterruptedException {
+        return this.query(fromMillis, toMillis, model, null, null, maxLines, false);
+    }
+
+    /**
+     * 在时间范围内搜索，各分段并行扫描。
+     * @param text 子串，regex为null时使用
+     * @param regex 正则表达式，可以为null
+     * @param model 可以为null
+     * @param fromMillis 0表示不限
+     * @param toMillis Long.MAX_VALUE表示不限
+     * @param maxMatches 最多返回的行数，超过时返回最新的maxMatches行
+     * @return
+     * @throws IOException
+     * @throws InterruptedException
+     */
+    public QueryResult search(String text, Pattern regex, String model, long fromMillis, long toMillis, int maxMatches)
+            throws IOException, InterruptedException {
+        return this.query(fromMillis, toMillis, model, text, regex, maxMatches, true);
+    }
+
+    private QueryResult query(long fromMillis, long toMillis, String model, String text, Pattern regex, int maxLines, boolean newest)
+            throws IOException, InterruptedException {
+        List<Segment> snapshot = new ArrayList<>();
+        for (Segment s : this.segments) {
+            if (s.size > 0 && s.getLastTime() >= fromMillis && s.getFirstTime() <= toMillis) {
+                snapshot.add(s);
+            }
+        }
+        byte[] marker = model == null ? null : modelMarker(model);
+        byte[] needle = text == null || text.isEmpty() ? null : text.getBytes(StandardCharsets.UTF_8);
+        List<Future<ScanResult>> futures = new ArrayList<>();
+        try (ExecutorService pool = Executors.newVirtualThreadPerTaskExecutor()) {
+            for (Segment s : snapshot) {
+                futures.add(pool.submit(() -> scan(s, fromMillis, toMillis, marker, needle, regex, maxLines, newest)));
+            }
+            List<LogLine> all = new ArrayList<>();
+            boolean truncated = false;
+            long scanned = 0;
+            for (Future<ScanResult> f : futures) {
+                ScanResult r = f.get();
+                all.addAll(r.lines);
+                truncated |= r.truncated;
+                scanned += r.scanned;
+            }
+            all.sort(Comparator.comparingLong(LogLine::offset));
+            if (all.size() > maxLines) {
+                truncated = true;
+                all = newest ? new ArrayList<>(all.subList(all.size() - maxLines, all.size())) : new ArrayList<>(all.subList(0, maxLines));
+            }
+            return new QueryResult(all, truncated, scanned);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException io) {
+                throw io;
+            }
+            throw new IOException(cause);
+        }
+    }
+
+    private record ScanResult(List<LogLine> lines, boolean truncated, long scanned) {
+    }
+
+    /**
+     * 扫描一个分段，用索引确定时间范围对应的字节区间。
+     */
+    private static ScanResult scan(Segment s, long fromMillis, long toMillis, byte[] marker, byte[] needle, Pattern regex,
+            int maxLines, boolean newest) throws IOException {
+        long size = s.size;
+        long[][] index = s.indexSnapshot();
+        int startEntry = 0;
+        for (int i = 0; i < index.length; i++) {
+            if (index[i][2] <= fromMillis) {
+                startEntry = i;
+            } else {
+                break;
+            }
+        }
+        long startOffset = index.length == 0 ? s.base : index[startEntry][0];
+        long endOffset = s.base + size;
+        for (long[] e : index) {
+            if (e[2] > toMillis) {
+                endOffset = Math.min(endOffset, e[0]);
+                break;
+            }
+        }
+        ArrayDeque<LogLine> out = new ArrayDeque<>();
+        boolean truncated = false;
+        if (endOffset <= startOffset) {
+            return new ScanResult(List.of(), false, 0);
+        }
+        long from = startOffset - s.base;
+        long to = endOffset - s.base;
+        int entry = startEntry;
+        Matcher matcher = regex == null ? null : regex.matcher("");
+        // 分窗口映射，窗口从行首开始；跨窗口的行留到下一个窗口
+        long ws = from;
+        scan:
+        while (ws < to) {
+            int limit = (int) Math.min(to - ws, SCAN_WINDOW_BYTES);
+            boolean lastWindow = ws + limit >= to;
+            MappedByteBuffer mb;
+            try (FileChannel ch = FileChannel.open(s.path, StandardOpenOption.READ)) {
+                mb = ch.map(FileChannel.MapMode.READ_ONLY, ws, limit);
+            }
+            int ls = 0;
+            while (ls < limit) {
+                int le = indexOf(mb, ls, limit);
+                if (le < 0 && !lastWindow && ls > 0) {
+                    break;
+                }
+                // 比窗口还长的行在窗口末尾断开
+                int lineEnd = le < 0 ? limit : le;
+                long offset = s.base + ws + ls;
+                while (entry + 1 < index.length && index[entry + 1][0] <= offset) {
+                    entry++;
+                }
+                long time = index.length == 0 ? s.createdAt : index[entry][2];
+                if (time >= fromMillis && time <= toMillis
+                        && (marker == null || contains(mb, ls, lineEnd, marker))
+                        && (needle == null || contains(mb, ls, lineEnd, needle))) {
+                    String line = null;
+                    if (matcher != null) {
+                        line = decode(mb, ls, lineEnd);
+                        if (!matcher.reset(line).find()) {
+                            ls = lineEnd + 1;
+                            continue;
+                        }
+                    }
+                    out.addLast(new LogLine(offset, time, line != null ? line : decode(mb, ls, lineEnd)));
+                    if (out.size() > maxLines) {
+                        truncated = true;
+                        if (newest) {
+                            out.removeFirst();
+                        } else {
+                            out.removeLast();
+                            ws += ls;
+                            break scan;
+                        }
+                    }
+                }
+                ls = lineEnd + 1;
+            }
+            ws += Math.min(ls, limit);
+        }
+        return new ScanResult(new ArrayList<>(out), truncated, Math.max(0, ws - from));
+    }
+
+    private void append(byte[] b, int off, int len) throws IOException {
+        if (len <= 0) {
+            return;
+        }
+        ByteBuffer buf = ByteBuffer.wrap(b, off, len);
+        while (buf.hasRemaining()) {
+            this.channel.write(buf);
+        }
+        this.active.size += len;
+    }
+
+    private void addIndex(long offset, long time) throws IOException {
+        synchronized (this.active.index) {
+            this.active.index.add(new long[] { offset, this.lineNo, time });
+        }
+        this.indexOut.writeLong(offset);
+        this.indexOut.writeLong(this.lineNo);
+        this.indexOut.writeLong(time);
+        this.lastIndexOffset = offset;
+        this.lastIndexTime = time;
+    }
+
+    private void rotate(long now) throws IOException {
+        long base = this.active.getEnd();
+        this.indexOut.close();
+        this.channel.close();
+        this.openSegment(base, now);
+        this.enforceRetention();
+    }
+
+    private void openSegment(long base, long now) throws IOException {
+        Path path = this.dir.resolve(String.format("console-%016d.log", base));
+        Segment s = new Segment(base, path, now);
+        this.channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+        this.indexOut = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(s.indexPath), 4096));
+        this.active = s;
+        this.segments.add(s);
+        this.atLineStart = true;
+    }
+
+    /**
+     * 删除超出数量的旧分段。被映射着的文件在Windows上删不掉，留到下次再删。
+     */
+    private void enforceRetention() {
+        while (this.segments.size() > MAX_SEGMENTS) {
+            Segment old = this.segments.remove(0);
+            this.pendingDeletes.add(old.path);
+            this.pendingDeletes.add(old.indexPath);
+        }
+        this.pendingDeletes.removeIf(p -> {
+            try {
+                Files.deleteIfExists(p);
+                return true;
+            } catch (IOException e) {
+                return false;
+            }
+        });
+    }
+
+    /**
+     * 加载已有分段和索引，行号从最后一个分段继续
+     */
+    private void load(Path legacyFile) throws IOException {
+        List<Path> files;
+        try (Stream<Path> list = Files.list(this.dir)) {
+            files = list.filter(p -> SEGMENT_NAME.matcher(p.getFileName().toString()).matches()).sorted().toList();
+        }
+        if (files.isEmpty() && legacyFile != null && Files.isRegularFile(legacyFile) && Files.size(legacyFile) > 0) {
+            files = this.importLegacy(legacyFile);
+        }
+        for (Path file : files) {
+            Matcher m = SEGMENT_NAME.matcher(file.getFileName().toString());
+            m.matches();
+            long size = Files.size(file);
+            if (size == 0) {
+                Files.deleteIfExists(file);
+                Files.deleteIfExists(indexPathOf(file));
+                continue;
+            }
+            Segment s = new Segment(Long.parseLong(m.group(1)), file, Files.getLastModifiedTime(file).toMillis());
+            s.size = size;
+            readIndex(s);
+            this.segments.add(s);
+        }
+        if (!this.segments.isEmpty()) {
+            Segment last = this.segments.get(this.segments.size() - 1);
+            long[][] index = last.indexSnapshot();
+            long[] tailEntry = index.length == 0 ? new long[] { last.base, 0, 0 } : index[index.length - 1];
+            this.lineNo = tailEntry[1] + countLines(last, tailEntry[0] - last.base);
+        }
+        this.enforceRetention();
+    }
+
+    /**
+     * 把旧版本的单个日志文件迁移成分段。旧文件一直增长，可能有几个GB，只导入保留数量以内的末尾部分，
+     * 从完整的行开始，到SEGMENT_BYTES后在换行处切分。旧日志没有时间信息，都按文件的最后修改时间算。
+     * @return 生成的分段文件
+     */
+    private List<Path> importLegacy(Path legacyFile) throws IOException {
+        long mtime = Files.getLastModifiedTime(legacyFile).toMillis();
+        List<Path> files = new ArrayList<>();
+        byte[] chunk = new byte[1024 * 1024];
+        ByteBuffer buf = ByteBuffer.wrap(chunk);
+        FileChannel out = null;
+        long base = 0;
+        long segSize = 0;
+        long lines = 0;
+        try (FileChannel in = FileChannel.open(legacyFile, StandardOpenOption.READ)) {
+            long size = in.size();
+            // 留一个位置给新的活动分段
+            long pos = Math.max(0, size - (MAX_SEGMENTS - 1) * SEGMENT_BYTES);
+            boolean skipPartial = pos > 0;
+            while (pos < size) {
+                buf.clear();
+                int n = in.read(buf, pos);
+                if (n <= 0) {
+                    break;
+                }
+                pos += n;
+                int c = 0;
+                if (skipPartial) {
+                    int nl = indexOf(chunk, 0, n);
+                    if (nl < 0) {
+                        continue;
+                    }
+                    skipPartial = false;
+                    c = nl + 1;
+                }
+                while (c < n) {
+                    if (out == null) {
+                        Path target = this.dir.resolve(String.format("console-%016d.log", base));
+                        out = FileChannel.open(target, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+                        try (DataOutputStream idx = new DataOutputStream(Files.newOutputStream(indexPathOf(target)))) {
+                            idx.writeLong(base);
+                            idx.writeLong(lines);
+                            idx.writeLong(mtime);
+                        }
+                        files.add(target);
+                        segSize = 0;
+                    }
+                    int take = n - c;
+                    boolean cut = false;
+                    long room = SEGMENT_BYTES - segSize;
+                    if (take >= room) {
+                        int nl = indexOf(chunk, c + (int) Math.max(0, room - 1), n);
+                        if (nl >= 0) {
+                            take = nl + 1 - c;
+                            cut = true;
+                        } else if (segSize + take >= 2 * SEGMENT_BYTES) {
+                            // 没有换行的超长内容也要断开
+                            take = (int) Math.max(1, 2 * SEGMENT_BYTES - segSize);
+                            cut = true;
+                        }
+                    }
+                    ByteBuffer w = ByteBuffer.wrap(chunk, c, take);
+                    while (w.hasRemaining()) {
+                        out.write(w);
+                    }
+                    for (int i = c; i < c + take; i++) {
+                        if (chunk[i] == '\n') {
+                            lines++;
+                        }
+                    }
+                    c += take;
+                    segSize += take;
+                    base += take;
+                    if (cut) {
+                        out.close();
+                        out = null;
+                    }
+                }
+            }
+        } finally {
+            if (out != null) {
+                out.close();
+            }
+        }
+        Files.delete(legacyFile);
+        return files;
+    }
+
+    private static void readIndex(Segment s) throws IOException {
+        if (!Files.isRegularFile(s.indexPath)) {
+            return;
+        }
+        long time = s.createdAt;
+        try (InputStream in = Files.newInputStream(s.indexPath); DataInputStream data = new DataInputStream(new java.io.BufferedInputStream(in))) {
+            long records = Files.size(s.indexPath) / INDEX_RECORD_BYTES;
+            for (long i = 0; i < records; i++) {
+                long offset = data.readLong();
+                long line = data.readLong();
+                time = data.readLong();
+                if (offset < s.base || offset > s.base + s.size) {
+                    break;
+                }
+                s.index.add(new long[] { offset, line, time });
+            }
+        } catch (EOFException ignored) {
+            // 写了一半的索引项
+        }
+        s.lastTime = Math.max(time, s.createdAt);
+    }
+
+    private static long countLines(Segment s, long from) throws IOException {
+        if (s.size <= from) {
+            return 0;
+        }
+        byte[] chunk = new byte[64 * 1024];
+        ByteBuffer buf = ByteBuffer.wrap(chunk);
+        long n = 0;
+        try (FileChannel ch = FileChannel.open(s.path, StandardOpenOption.READ)) {
+            long pos = from;
+            while (pos < s.size) {
+                buf.clear();
+                int r = ch.read(buf, pos);
+                if (r <= 0) {
+                    break;
+                }
+                for (int i = 0; i < r; i++) {
+                    if (chunk[i] == '\n') {
+                        n++;
+                    }
+                }
+                pos += r;
+            }
+        }
+        return n;
+    }
+
+    /**
+     * 读取[start, start + length)的字节，可以跨分段
+     */
+    private static byte[] readRange(List<Segment> snapshot, long start, int length) throws IOException {
+        long end = start + Math.max(0, length);
+        byte[] out = new byte[Math.max(0, length)];
+        int pos = 0;
+        for (Segment s : snapshot) {
+            long segEnd = s.base + s.size;
+            if (segEnd <= start || s.base >= end) {
+                continue;
+            }
+            long from = Math.max(start, s.base) - s.base;
+            long to = Math.min(end, segEnd) - s.base;
+            try (FileChannel ch = FileChannel.open(s.path, StandardOpenOption.READ)) {
+                ByteBuffer buf = ByteBuffer.wrap(out, pos, (int) (to - from));
+                long p = from;
+                while (buf.hasRemaining()) {
+                    int n = ch.read(buf, p);
+                    if (n < 0) {
+                        break;
+                    }
+                    p += n;
+                }
+                pos += (int) (to - from);
+            }
+        }
+        return pos == out.length ? out : java.util.Arrays.copyOf(out, pos);
+    }
+
+    private static Path indexPathOf(Path segment) {
+        String name = segment.getFileName().toString();
+        return segment.resolveSibling(name.substring(0, name.length() - ".log".length()) + ".idx");
+    }
+
+    private static byte[] modelMarker(String model) {
+        return ("[llama-server-" + model + "]").getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static String decode(MappedByteBuffer mb, int from, int to) {
+        int end = to;
+        if (end > from && mb.get(end - 1) == '\r') {
+            end--;
+        }
+        byte[] bytes = new byte[end - from];
+        mb.get(from, bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private static int indexOf(byte[] b, int from, int to) {
+        for (int i = from; i < to; i++) {
+            if (b[i] == '\n') {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private static int lastIndexOf(byte[] b, int from, int to) {
+        for (int i = to - 1; i >= from; i--) {
+            if (b[i] == '\n') {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private static int indexOf(MappedByteBuffer mb, int from, int to) {
+        for (int i = from; i < to; i++) {
+            if (mb.get(i) == '\n') {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private static boolean contains(byte[] b, int from, int to, byte[] needle) {
+        int last = to - needle.length;
+        outer:
+        for (int i = from; i <= last; i++) {
+            for (int j = 0; j < needle.length; j++) {
+                if (b[i + j] != needle[j]) {
+                    continue outer;
+                }
+            }
+            return true;
+        }
+        return false;
+    }
+
+    private static boolean contains(MappedByteBuffer mb, int from, int to, byte[] needle) {
+        int last = to - needle.length;
+        byte first = needle[0];
+        outer:
+        for (int i = from; i <= last; i++) {
+            if (mb.get(i) != first) {
+                continue;
+            }
+            for (int j = 1; j < needle.length; j++) {
+                if (mb.get(i + j) != needle[j]) {
+                    continue outer;
+                }
+            }
+            return true;
+        }
+        return false;
+    }
+}
@@ -0,0 +1,417 @@
+package org.mark.llamacpp.server.metrics;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * 	直接读取/proc和/sys的系统信息采集器，不启动子进程。
+ * <p>
+ * 	每次采集读取 /proc/stat、/proc/meminfo、/proc/loadavg、/proc/net/tcp(6)，
+ * 	每个模型进程的 /proc/&lt;pid&gt;/stat、status、io，以及amdgpu的
+ * 	mem_info_vram_used、mem_info_vram_total、gpu_busy_percent。
+ * 	CPU和读写速率按两次采集的差值计算。文件读入复用的缓冲区后直接按字节解析，不逐行创建字符串。
+ * 	根目录可以指定，便于对着构造的假目录验证。不是线程安全的，由单个调度线程使用。
+ */
+public class LinuxSystemCollector {
+
+	/**
+	 * 	/proc/&lt;pid&gt;/stat中时间的单位，Linux上固定为100
+	 */
+	private static final int CLOCK_TICKS = 100;
+
+	/**
+	 * 	一个要采集的进程
+	 */
+	public record ProcessRef(String name, long pid) {
+	}
+
+	/**
+	 * 	进程的采集结果，速率和CPU在第一次采集时为NaN
+	 */
+	public record ProcessStats(String name, long pid, boolean alive, long rssBytes, long swapBytes, int threads,
+			double cpuPercent, long readBytes, long writeBytes, double readBytesPerSecond, double writeBytesPerSecond) {
+	}
+
+	/**
+	 * 	一块amdgpu的采集结果
+	 */
+	public record GpuStats(String card, long vramUsedBytes, long vramTotalBytes, double busyPercent) {
+	}
+
+	/**
+	 * 	一次采集的结果
+	 */
+	public record Snapshot(long timestamp, double cpuPercent, int cpuCount, long memTotalBytes, long memAvailableBytes,
+			long swapTotalBytes, long swapFreeBytes, double load1, double load5, double load15, int processCount,
+			int tcpConnections, List<GpuStats> gpus, List<ProcessStats> processes) {
+
+		public long memUsedBytes() {
+			return memTotalBytes - memAvailableBytes;
+		}
+
+		public double memUsagePercent() {
+			return memTotalBytes <= 0 ? 0 : (memTotalBytes - memAvailableBytes) * 100.0 / memTotalBytes;
+		}
+	}
+
+	private final Path proc;
+	private final Path sys;
+
+	private byte[] buf = new byte[16 * 1024];
+	private int len;
+	private int pos;
+
+	private long prevCpuTotal = -1;
+	private long prevCpuIdle;
+	private final Map<Long, long[]> prevProcess = new HashMap<>();
+	private List<Path> gpuDirs;
+
+	public LinuxSystemCollector() {
+		this(Paths.get("/proc"), Paths.get("/sys"));
+	}
+
+	public LinuxSystemCollector(Path proc, Path sys) {
+		this.proc = proc;
+		this.sys = sys;
+	}
+
+	/**
+	 * 	当前系统能否使用
+	 */
+	public static boolean isSupported() {
+		return Files.isReadable(Paths.get("/proc/stat")) && Files.isReadable(Paths.get("/proc/meminfo"));
+	}
+
+	/**
+	 * 	采集一次
+	 * @param processes 要采集的进程
+	 * @return
+	 * @throws IOException /proc/stat或/proc/meminfo读取失败
+	 */
+	public Snapshot collect(List<ProcessRef> processes) throws IOException {
+		long now = System.currentTimeMillis();
+
+		// CPU：第一行是合计，后面的cpuN行数就是核数
+		this.read(this.proc.resolve("stat"));
+		double cpuPercent = Double.NaN;
+		int cpuCount = 0;
+		int at = this.find("cpu ", 0);
+		if (at >= 0) {
+			this.pos = at + 4;
+			long total = 0;
+			long idle = 0;
+			for (int i = 0; i < 8; i++) {
+				long v = this.nextLong();
+				if (v < 0) {
+					break;
+				}
+				total += v;
+				// idle和iowait
+				if (i == 3 || i == 4) {
+					idle += v;
+				}
+			}
+			if (this.prevCpuTotal >= 0 && total > this.prevCpuTotal) {
+				long dt = total - this.prevCpuTotal;
+				cpuPercent = (dt - (idle - this.prevCpuIdle)) * 100.0 / dt;
+			}
+			this.prevCpuTotal = total;
+			this.prevCpuIdle = idle;
+		}
+		for (int i = this.find("\ncpu", 0); i >= 0; i = this.find("\ncpu", i + 4)) {
+			if (i + 4 < this.len && this.buf[i + 4] >= '0' && this.buf[i + 4] <= '9') {
+				cpuCount++;
+			}
+		}
+
+		// 内存，单位kB
+		this.read(this.proc.resolve("meminfo"));
+		long memTotal = this.valueOf("MemTotal:") * 1024;
+		long memAvailable = this.valueOf("MemAvailable:");
+		if (memAvailable < 0) {
+			// 老内核没有MemAvailable
+			memAvailable = Math.max(0, this.valueOf("MemFree:")) + Math.max(0, this.valueOf("Buffers:")) + Math.max(0, this.valueOf("Cached:"));
+		}
+		memAvailable *= 1024;
+		long swapTotal = Math.max(0, this.valueOf("SwapTotal:")) * 1024;
+		long swapFree = Math.max(0, this.valueOf("SwapFree:")) * 1024;
+
+		double load1 = Double.NaN, load5 = Double.NaN, load15 = Double.NaN;
+		if (this.tryRead(this.proc.resolve("loadavg"))) {
+			this.pos = 0;
+			load1 = this.nextDouble();
+			load5 = this.nextDouble();
+			load15 = this.nextDouble();
+		}
+
+		int tcp = Math.max(0, this.countLines(this.proc.resolve("net").resolve("tcp")) - 1)
+				+ Math.max(0, this.countLines(this.proc.resolve("net").resolve("tcp6")) - 1);
+
+		return new Snapshot(now, cpuPercent, cpuCount, memTotal, memAvailable, swapTotal, swapFree, load1, load5, load15,
+				this.countProcesses(), tcp, this.collectGpus(), this.collectProcesses(processes, now));
+	}
+
+	private List<ProcessStats> collectProcesses(List<ProcessRef> processes, long now) {
+		List<ProcessStats> out = new ArrayList<>(processes.size());
+		Map<Long, Boolean> seen = new HashMap<>();
+		for (ProcessRef ref : processes) {
+			Path dir = this.proc.resolve(Long.toString(ref.pid()));
+			if (ref.pid() <= 0 || !this.tryRead(dir.resolve("stat"))) {
+				out.add(new ProcessStats(ref.name(), ref.pid(), false, 0, 0, 0, Double.NaN, 0, 0, Double.NaN, Double.NaN));
+				continue;
+			}
+			seen.put(ref.pid(), Boolean.TRUE);
+			// 进程名可能带空格和括号，从最后一个')'之后数：state是第3个字段，utime和stime是第14、15个
+			long ticks = -1;
+			int close = this.findLast((byte) ')');
+			if (close >= 0) {
+				this.pos = close + 1;
+				this.skipTokens(11);
+				long utime = this.nextLong();
+				long stime = this.nextLong();
+				if (utime >= 0 && stime >= 0) {
+					ticks = utime + stime;
+				}
+			}
+			long rss = 0, swap = 0;
+			int threads = 0;
+			if (this.tryRead(dir.resolve("status"))) {
+				rss = Math.max(0, this.valueOf("VmRSS:")) * 1024;
+				swap = Math.max(0, this.valueOf("VmSwap:")) * 1024;
+				threads = (int) Math.max(0, this.valueOf("Threads:"));
+			}
+			// 其他用户的进程没有权限读取io
+			long read = -1, write = -1;
+			if (this.tryRead(dir.resolve("io"))) {
+				read = this.valueOf("read_bytes:");
+				write = this.valueOf("write_bytes:");
+			}
+			double cpu = Double.NaN, readRate = Double.NaN, writeRate = Double.NaN;
+			long[] prev = this.prevProcess.get(ref.pid());
+			if (prev == null) {
+				prev = new long[4];
+				this.prevProcess.put(ref.pid(), prev);
+			} else if (now > prev[0]) {
+				double seconds = (now - prev[0]) / 1000.0;
+				if (ticks >= 0 && prev[1] >= 0) {
+					cpu = (ticks - prev[1]) * 100.0 / CLOCK_TICKS / seconds;
+				}
+				if (read >= 0 && prev[2] >= 0) {
+					readRate = (read - prev[2]) / seconds;
+				}
+				if (write >= 0 && prev[3] >= 0) {
+					writeRate = (write - prev[3]) / seconds;
+				}
+			}
+			prev[0] = now;
+			prev[1] = ticks;
+			prev[2] = read;
+			prev[3] = write;
+			out.add(new ProcessStats(ref.name(), ref.pid(), true, rss, swap, threads, cpu, Math.max(0, read), Math.max(0, write), readRate, writeRate));
+		}
+		// 已经退出的进程不再保留上次的值
+		Iterator<Long> it = this.prevProcess.keySet().iterator();
+		while (it.hasNext()) {
+			if (!seen.containsKey(it.next())) {
+				it.remove();
+			}
+		}
+		return out;
+	}
+
+	private List<GpuStats> collectGpus() {
+		if (this.gpuDirs == null) {
+			this.gpuDirs = new ArrayList<>();
+			Path drm = this.sys.resolve("class").resolve("drm");
+			try (DirectoryStream<Path> ds = Files.newDirectoryStream(drm, "card*")) {
+				for (Path card : ds) {
+					Path device = card.resolve("device");
+					if (!card.getFileName().toString().contains("-") && Files.exists(device.resolve("mem_info_vram_total"))) {
+						this.gpuDirs.add(device);
+					}
+				}
+			} catch (IOException e) {
+				// 没有drm目录
+			}
+			this.gpuDirs.sort(null);
+		}
+		List<GpuStats> out = new ArrayList<>(this.gpuDirs.size());
+		for (Path device : this.gpuDirs) {
+			long used = this.readLong(device.resolve("mem_info_vram_used"));
+			long total = this.readLong(device.resolve("mem_info_vram_total"));
+			long busy = this.readLong(device.resolve("gpu_busy_percent"));
+			out.add(new GpuStats(device.getParent().getFileName().toString(), Math.max(0, used), Math.max(0, total), busy < 0 ? Double.NaN : busy));
+		}
+		return out;
+	}
+
+	/**
+	 * 	/proc下数字命名的目录数
+	 */
+	private int countProcesses() {
+		int n = 0;
+		try (DirectoryStream<Path> ds = Files.newDirectoryStream(this.proc)) {
+			for (Path p : ds) {
+				String name = p.getFileName().toString();
+				if (!name.isEmpty() && name.charAt(0) >= '0' && name.charAt(0) <= '9') {
+					n++;
+				}
+			}
+		} catch (IOException e) {
+			return 0;
+		}
+		return n;
+	}
+
+	private int countLines(Path path) {
+		if (!this.tryRead(path)) {
+			return 0;
+		}
+		int n = 0;
+		for (int i = 0; i < this.len; i++) {
+			if (this.buf[i] == '\n') {
+				n++;
+			}
+		}
+		return n;
+	}
+
+	private long readLong(Path path) {
+		if (!this.tryRead(path)) {
+			return -1;
+		}
+		this.pos = 0;
+		return this.nextLong();
+	}
+
+	private boolean tryRead(Path path) {
+		try {
+			this.read(path);
+			return true;
+		} catch (IOException e) {
+			this.len = 0;
+			return false;
+		}
+	}
+
+	/**
+	 * 	把文件读入复用的缓冲区。/proc下的文件大小都是0，只能读到结束
+	 */
+	private void read(Path path) throws IOException {
+		this.len = 0;
+		try (FileChannel ch = FileChannel.open(path, StandardOpenOption.READ)) {
+			while (true) {
+				if (this.len == this.buf.length) {
+					this.buf = Arrays.copyOf(this.buf, this.buf.length * 2);
+				}
+				int n = ch.read(ByteBuffer.wrap(this.buf, this.len, this.buf.length - this.len));
+				if (n < 0) {
+					break;
+				}
+				this.len += n;
+			}
+		}
+	}
+
+	/**
+	 * 	key之后的第一个整数，找不到时返回-1
+	 */
+	private long valueOf(String key) {
+		int at = this.find(key, 0);
+		if (at < 0) {
+			return -1;
+		}
+		this.pos = at + key.length();
+		return this.nextLong();
+	}
+
+	/**
+	 * 	查找key。不以换行开头的key只在行首匹配，避免"Cached:"匹配到"SwapCached:"
+	 */
+	private int find(String key, int from) {
+		int n = key.length();
+		int last = this.len - n;
+		boolean lineStart = key.charAt(0) != '\n';
+		outer:
+		for (int i = from; i <= last; i++) {
+			if (lineStart && i > 0 && this.buf[i - 1] != '\n') {
+				continue;
+			}
+			for (int j = 0; j < n; j++) {
+				if (this.buf[i + j] != (byte) key.charAt(j)) {
+					continue outer;
+				}
+			}
+			return i;
+		}
+		return -1;
+	}
+
+	private int findLast(byte b) {
+		for (int i = this.len - 1; i >= 0; i--) {
+			if (this.buf[i] == b) {
+				return i;
+			}
+		}
+		return -1;
+	}
+
+	private void skipSpaces() {
+		while (this.pos < this.len && (this.buf[this.pos] == ' ' || this.buf[this.pos] == '\t' || this.buf[this.pos] == '\n')) {
+			this.pos++;
+		}
+	}
+
+	private void skipTokens(int n) {
+		for (int i = 0; i < n; i++) {
+			this.skipSpaces();
+			while (this.pos < this.len && this.buf[this.pos] != ' ' && this.buf[this.pos] != '\n') {
+				this.pos++;
+			}
+		}
+	}
+
+	/**
+	 * 	下一个非负整数，没有时返回-1
+	 */
+	private long nextLong() {
+		this.skipSpaces();
+		long v = 0;
+		int start = this.pos;
+		while (this.pos < this.len && this.buf[this.pos] >= '0' && this.buf[this.pos] <= '9') {
+			v = v * 10 + (this.buf[this.pos] - '0');
+			this.pos++;
+		}
+		return this.pos == start ? -1 : v;
+	}
+
+	private double nextDouble() {
+		long whole = this.nextLong();
+		if (whole < 0) {
+			return Double.NaN;
+		}
+		double v = whole;
+		if (this.pos < this.len && this.buf[this.pos] == '.') {
+			this.pos++;
+			double scale = 0.1;
+			while (this.pos < this.len && this.buf[this.pos] >= '0' && this.buf[this.pos] <= '9') {
+				v += (this.buf[this.pos] - '0') * scale;
+				scale *= 0.1;
+				this.pos++;
+			}
+		}
+		return v;
+	}
+}
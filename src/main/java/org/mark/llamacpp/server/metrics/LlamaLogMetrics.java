@@ -0,0 +1,265 @@
+package org.mark.llamacpp.server.metrics;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 	一个llama-server进程的日志统计：最近的输出行，以及从输出里解析出的计数和直方图。
+ * <p>
+ * 	由进程的读取线程调用{@link #accept(String)}，查询可以在任意线程。
+ */
+public class LlamaLogMetrics {
+
+	/**
+	 * 	保留的最近输出行数
+	 */
+	private static final int RECENT_LINES = 2000;
+
+	private final String name;
+	private final long startedAt = System.currentTimeMillis();
+	private final LlamaLogParser parser = new LlamaLogParser();
+
+	// 最近的输出行，由recent保护
+	private final String[] recent = new String[RECENT_LINES];
+	private long written;
+
+	final AtomicLong lines = new AtomicLong();
+	final AtomicLong tasksStarted = new AtomicLong();
+	final AtomicLong requests = new AtomicLong();
+	final AtomicLong promptTokens = new AtomicLong();
+	final AtomicLong promptMicros = new AtomicLong();
+	final AtomicLong generatedTokens = new AtomicLong();
+	final AtomicLong generatedMicros = new AtomicLong();
+	final AtomicLong promptTokensRequested = new AtomicLong();
+	final AtomicLong cachedTokens = new AtomicLong();
+	final AtomicLong draftAccepted = new AtomicLong();
+	final AtomicLong draftGenerated = new AtomicLong();
+	final AtomicLong contextShifts = new AtomicLong();
+	final AtomicLong sendErrors = new AtomicLong();
+	private final Map<Integer, AtomicLong> httpStatus = new ConcurrentHashMap<>();
+
+	private final LogHistogram promptTps = new LogHistogram(LogHistogram.TOKENS_PER_SECOND);
+	private final LogHistogram generationTps = new LogHistogram(LogHistogram.TOKENS_PER_SECOND);
+	private final LogHistogram promptMillis = new LogHistogram(LogHistogram.MILLIS);
+	private final LogHistogram totalMillis = new LogHistogram(LogHistogram.MILLIS);
+	private final LogHistogram promptSize = new LogHistogram(LogHistogram.TOKENS);
+
+	private volatile double lastPromptTps = Double.NaN;
+	private volatile double lastGenerationTps = Double.NaN;
+	private volatile long lastRequestAt;
+
+	public LlamaLogMetrics(String name) {
+		this.name = name;
+	}
+
+	/**
+	 * 	处理一行输出
+	 */
+	public void accept(String line) {
+		synchronized (this.recent) {
+			this.recent[(int) (this.written % RECENT_LINES)] = line;
+			this.written++;
+		}
+		this.lines.incrementAndGet();
+		this.parser.parse(this, line);
+	}
+
+	/**
+	 * 	最近的输出行，按时间升序
+	 * @param limit 最多返回的行数
+	 */
+	public List<String> getRecentLines(int limit) {
+		synchronized (this.recent) {
+			int n = (int) Math.min(Math.min(limit, RECENT_LINES), this.written);
+			List<String> out = new ArrayList<>(Math.max(n, 0));
+			for (long i = this.written - n; i < this.written; i++) {
+				out.add(this.recent[(int) (i % RECENT_LINES)]);
+			}
+			return out;
+		}
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	void recordPrompt(long tokens, double ms) {
+		this.promptTokens.addAndGet(tokens);
+		this.promptMicros.addAndGet(Math.round(ms * 1000));
+		this.promptMillis.record(ms);
+		this.promptSize.record(tokens);
+		if (ms > 0 && tokens > 0) {
+			double tps = tokens * 1000.0 / ms;
+			this.promptTps.record(tps);
+			this.lastPromptTps = tps;
+		}
+	}
+
+	void recordGeneration(long tokens, double ms) {
+		this.generatedTokens.addAndGet(tokens);
+		this.generatedMicros.addAndGet(Math.round(ms * 1000));
+		if (ms > 0 && tokens > 0) {
+			double tps = tokens * 1000.0 / ms;
+			this.generationTps.record(tps);
+			this.lastGenerationTps = tps;
+		}
+	}
+
+	void recordTotal(long tokens, double ms) {
+		this.requests.incrementAndGet();
+		this.totalMillis.record(ms);
+		this.lastRequestAt = System.currentTimeMillis();
+	}
+
+	void recordPromptRequested(long tokens) {
+		if (tokens > 0) {
+			this.promptTokensRequested.addAndGet(tokens);
+		}
+	}
+
+	void recordCacheReuse(long tokens) {
+		if (tokens > 0) {
+			this.cachedTokens.addAndGet(tokens);
+		}
+	}
+
+	void recordDraft(long accepted, long generated) {
+		this.draftAccepted.addAndGet(accepted);
+		this.draftGenerated.addAndGet(generated);
+	}
+
+	void recordHttpStatus(int status) {
+		this.httpStatus.computeIfAbsent(status, k -> new AtomicLong()).incrementAndGet();
+	}
+
+	public long getRequests() {
+		return requests.get();
+	}
+
+	public long getPromptTokens() {
+		return promptTokens.get();
+	}
+
+	public long getGeneratedTokens() {
+		return generatedTokens.get();
+	}
+
+	public double getPromptSeconds() {
+		return promptMicros.get() / 1e6;
+	}
+
+	public double getGeneratedSeconds() {
+		return generatedMicros.get() / 1e6;
+	}
+
+	public long getPromptTokensRequested() {
+		return promptTokensRequested.get();
+	}
+
+	public long getCachedTokens() {
+		return cachedTokens.get();
+	}
+
+	public long getDraftAccepted() {
+		return draftAccepted.get();
+	}
+
+	public long getDraftGenerated() {
+		return draftGenerated.get();
+	}
+
+	public long getContextShifts() {
+		return contextShifts.get();
+	}
+
+	public long getSendErrors() {
+		return sendErrors.get();
+	}
+
+	public long getLines() {
+		return lines.get();
+	}
+
+	public Map<Integer, Long> getHttpStatus() {
+		Map<Integer, Long> out = new TreeMap<>();
+		this.httpStatus.forEach((k, v) -> out.put(k, v.get()));
+		return out;
+	}
+
+	public LogHistogram getPromptTpsHistogram() {
+		return promptTps;
+	}
+
+	public LogHistogram getGenerationTpsHistogram() {
+		return generationTps;
+	}
+
+	public LogHistogram getPromptMillisHistogram() {
+		return promptMillis;
+	}
+
+	public LogHistogram getTotalMillisHistogram() {
+		return totalMillis;
+	}
+
+	public LogHistogram getPromptSizeHistogram() {
+		return promptSize;
+	}
+
+	public double getLastPromptTps() {
+		return lastPromptTps;
+	}
+
+	public double getLastGenerationTps() {
+		return lastGenerationTps;
+	}
+
+	public long getLastRequestAt() {
+		return lastRequestAt;
+	}
+
+	/**
+	 * 	转为接口返回的结构
+	 */
+	public Map<String, Object> toMap() {
+		Map<String, Object> data = new HashMap<>();
+		data.put("name", this.name);
+		data.put("startedAt", this.startedAt);
+		data.put("lines", this.lines.get());
+		data.put("tasksStarted", this.tasksStarted.get());
+		data.put("requests", this.requests.get());
+		data.put("promptTokens", this.promptTokens.get());
+		data.put("promptSeconds", LogHistogram.round(this.getPromptSeconds()));
+		data.put("generatedTokens", this.generatedTokens.get());
+		data.put("generatedSeconds", LogHistogram.round(this.getGeneratedSeconds()));
+		data.put("avgPromptTps", this.getPromptSeconds() > 0 ? LogHistogram.round(this.promptTokens.get() / this.getPromptSeconds()) : null);
+		data.put("avgGenerationTps", this.getGeneratedSeconds() > 0 ? LogHistogram.round(this.generatedTokens.get() / this.getGeneratedSeconds()) : null);
+		data.put("lastPromptTps", Double.isNaN(this.lastPromptTps) ? null : LogHistogram.round(this.lastPromptTps));
+		data.put("lastGenerationTps", Double.isNaN(this.lastGenerationTps) ? null : LogHistogram.round(this.lastGenerationTps));
+		data.put("lastRequestAt", this.lastRequestAt == 0 ? null : this.lastRequestAt);
+		long requested = this.promptTokensRequested.get();
+		data.put("promptTokensRequested", requested);
+		data.put("cachedTokens", this.cachedTokens.get());
+		data.put("cacheHitRatio", requested > 0 ? LogHistogram.round(this.cachedTokens.get() * 100.0 / requested) / 100.0 : null);
+		data.put("draftAccepted", this.draftAccepted.get());
+		data.put("draftGenerated", this.draftGenerated.get());
+		data.put("contextShifts", this.contextShifts.get());
+		data.put("sendErrors", this.sendErrors.get());
+		Map<String, Long> status = new TreeMap<>();
+		this.getHttpStatus().forEach((k, v) -> status.put(String.valueOf(k), v));
+		data.put("httpStatus", status);
+		Map<String, Object> histograms = new HashMap<>();
+		histograms.put("promptTps", this.promptTps.toMap());
+		histograms.put("generationTps", this.generationTps.toMap());
+		histograms.put("promptMillis", this.promptMillis.toMap());
+		histograms.put("totalMillis", this.totalMillis.toMap());
+		histograms.put("promptTokens", this.promptSize.toMap());
+		data.put("histograms", histograms);
+		return data;
+	}
+}
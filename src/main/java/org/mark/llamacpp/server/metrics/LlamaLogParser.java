@@ -0,0 +1,163 @@
+package org.mark.llamacpp.server.metrics;
+
+/**
+ * 	从llama-server的输出里提取性能数据。
+ * <p>
+ * 	每行先用几个固定的子串判断类型，不匹配的行（绝大多数）只经过这几次查找，数字手工解析，不用正则。
+ * 	识别的行：
+ * <pre>
+ * prompt eval time =      27.53 ms /    12 tokens (    2.29 ms per token,   435.90 tokens per second)
+ *        eval time =     513.24 ms /    40 tokens (   12.83 ms per token,    77.94 tokens per second)
+ *       total time =     540.77 ms /    52 tokens
+ * draft acceptance rate = 0.57000 (   57 accepted /   100 generated)
+ * slot update_slots: id  0 | task 0 | new prompt, n_ctx_slot = 4096, n_keep = 0, n_prompt_tokens = 12
+ * slot update_slots: id  0 | task 0 | kv cache rm [10, end)        （新版本为 memory_seq_rm [10, end)）
+ * slot update_slots: id  0 | task 0 | slot context shift, n_keep = 0, n_left = 4094, n_discard = 2047
+ * srv  log_server_r: request: POST /v1/chat/completions 127.0.0.1 200
+ * srv    send_error: task id = 5, error: ...
+ * </pre>
+ * 	只在读取线程中使用。
+ */
+final class LlamaLogParser {
+
+	/**
+	 * 	当前任务的提示词数量，用来算缓存命中的比例
+	 */
+	private long pendingPromptTokens = -1;
+
+	/**
+	 * 	解析一行，结果记入metrics
+	 */
+	void parse(LlamaLogMetrics metrics, String line) {
+		int i = line.indexOf(" time =");
+		if (i >= 0) {
+			this.parseTiming(metrics, line, i);
+			return;
+		}
+		if (line.indexOf("update_slots") >= 0) {
+			this.parseSlotUpdate(metrics, line);
+			return;
+		}
+		if (line.indexOf("log_server_r") >= 0) {
+			this.parseRequest(metrics, line);
+			return;
+		}
+		if ((i = line.indexOf("draft acceptance rate")) >= 0) {
+			this.parseDraft(metrics, line, i);
+			return;
+		}
+		if (line.indexOf("send_error") >= 0) {
+			metrics.sendErrors.incrementAndGet();
+			return;
+		}
+		if (line.indexOf("launch_slot_") >= 0 && line.indexOf("processing task") >= 0) {
+			metrics.tasksStarted.incrementAndGet();
+		}
+	}
+
+	private void parseTiming(LlamaLogMetrics metrics, String line, int at) {
+		int eq = at + " time =".length();
+		double ms = number(line, eq);
+		int slash = line.indexOf('/', eq);
+		double tokens = slash < 0 ? Double.NaN : number(line, slash + 1);
+		if (Double.isNaN(ms) || Double.isNaN(tokens)) {
+			return;
+		}
+		if (endsWithAt(line, at, "prompt eval")) {
+			metrics.recordPrompt((long) tokens, ms);
+		} else if (endsWithAt(line, at, "eval")) {
+			metrics.recordGeneration((long) tokens, ms);
+		} else if (endsWithAt(line, at, "total")) {
+			metrics.recordTotal((long) tokens, ms);
+		}
+	}
+
+	private void parseSlotUpdate(LlamaLogMetrics metrics, String line) {
+		int i;
+		if ((i = line.indexOf("n_prompt_tokens = ")) >= 0) {
+			this.pendingPromptTokens = (long) number(line, i + "n_prompt_tokens = ".length());
+			metrics.recordPromptRequested(this.pendingPromptTokens);
+		} else if (line.indexOf("new prompt") >= 0 && (i = line.indexOf("task.n_tokens = ")) >= 0) {
+			this.pendingPromptTokens = (long) number(line, i + "task.n_tokens = ".length());
+			metrics.recordPromptRequested(this.pendingPromptTokens);
+		} else if ((i = line.indexOf("cache rm [")) >= 0 || (i = line.indexOf("_seq_rm [")) >= 0) {
+			// 从第N个token开始删除，说明前N个token复用了缓存
+			int start = line.indexOf('[', i) + 1;
+			double reused = number(line, start);
+			if (!Double.isNaN(reused) && this.pendingPromptTokens >= 0) {
+				metrics.recordCacheReuse((long) Math.min(reused, this.pendingPromptTokens));
+				this.pendingPromptTokens = -1;
+			}
+		} else if (line.indexOf("context shift") >= 0) {
+			metrics.contextShifts.incrementAndGet();
+		}
+	}
+
+	private void parseRequest(LlamaLogMetrics metrics, String line) {
+		// 行尾是状态码
+		int end = line.length();
+		while (end > 0 && line.charAt(end - 1) == ' ') {
+			end--;
+		}
+		int start = end;
+		while (start > 0 && Character.isDigit(line.charAt(start - 1))) {
+			start--;
+		}
+		if (end - start != 3) {
+			return;
+		}
+		metrics.recordHttpStatus(Integer.parseInt(line, start, end, 10));
+	}
+
+	private void parseDraft(LlamaLogMetrics metrics, String line, int at) {
+		int open = line.indexOf('(', at);
+		if (open < 0) {
+			return;
+		}
+		double accepted = number(line, open + 1);
+		int slash = line.indexOf('/', open);
+		double generated = slash < 0 ? Double.NaN : number(line, slash + 1);
+		if (!Double.isNaN(accepted) && !Double.isNaN(generated)) {
+			metrics.recordDraft((long) accepted, (long) generated);
+		}
+	}
+
+	private static boolean endsWithAt(String line, int end, String word) {
+		int start = end - word.length();
+		if (start < 0 || !line.startsWith(word, start)) {
+			return false;
+		}
+		// "eval" 不能是 "prompt eval" 的一部分
+		return start == 0 || line.charAt(start - 1) == ' ' || line.charAt(start - 1) == '\t';
+	}
+
+	/**
+	 * 	跳过空白和等号后解析一个非负数，没有数字时返回NaN
+	 */
+	static double number(String s, int from) {
+		int i = from;
+		int n = s.length();
+		while (i < n && (s.charAt(i) == ' ' || s.charAt(i) == '=' || s.charAt(i) == '\t')) {
+			i++;
+		}
+		long whole = 0;
+		int digits = 0;
+		while (i < n && s.charAt(i) >= '0' && s.charAt(i) <= '9') {
+			whole = whole * 10 + (s.charAt(i) - '0');
+			i++;
+			digits++;
+		}
+		double value = whole;
+		if (i < n && s.charAt(i) == '.') {
+			i++;
+			double scale = 0.1;
+			while (i < n && s.charAt(i) >= '0' && s.charAt(i) <= '9') {
+				value += (s.charAt(i) - '0') * scale;
+				scale *= 0.1;
+				i++;
+				digits++;
+			}
+		}
+		return digits == 0 ? Double.NaN : value;
+	}
+}
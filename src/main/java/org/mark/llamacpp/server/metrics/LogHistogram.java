@@ -0,0 +1,135 @@
+package org.mark.llamacpp.server.metrics;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.DoubleAdder;
+
+/**
+ * 	固定分桶的直方图。
+ * 	分桶上界在创建时确定，最后一个桶是+Inf；记录时只做一次查找和一次原子加。
+ */
+public final class LogHistogram {
+
+	/**
+	 * 	每秒token数的分桶
+	 */
+	public static final double[] TOKENS_PER_SECOND = { 1, 2, 5, 10, 20, 30, 50, 75, 100, 150, 200, 300, 500, 1000, 2000, 5000, 10000 };
+
+	/**
+	 * 	毫秒耗时的分桶
+	 */
+	public static final double[] MILLIS = { 10, 25, 50, 100, 250, 500, 1000, 2500, 5000, 10000, 30000, 60000, 120000, 300000 };
+
+	/**
+	 * 	token数量的分桶
+	 */
+	public static final double[] TOKENS = { 16, 64, 256, 1024, 4096, 16384, 65536, 262144 };
+
+	private final double[] bounds;
+	private final AtomicLongArray counts;
+	private final DoubleAdder sum = new DoubleAdder();
+
+	public LogHistogram(double[] bounds) {
+		this.bounds = bounds;
+		this.counts = new AtomicLongArray(bounds.length + 1);
+	}
+
+	public void record(double value) {
+		if (Double.isNaN(value)) {
+			return;
+		}
+		int i = 0;
+		while (i < this.bounds.length && value > this.bounds[i]) {
+			i++;
+		}
+		this.counts.incrementAndGet(i);
+		this.sum.add(value);
+	}
+
+	public double[] getBounds() {
+		return this.bounds.clone();
+	}
+
+	/**
+	 * 	各桶的计数（非累计），长度比分桶上界多一个
+	 */
+	public long[] getCounts() {
+		long[] out = new long[this.counts.length()];
+		for (int i = 0; i < out.length; i++) {
+			out[i] = this.counts.get(i);
+		}
+		return out;
+	}
+
+	public double getSum() {
+		return this.sum.sum();
+	}
+
+	public long getCount() {
+		long n = 0;
+		for (int i = 0; i < this.counts.length(); i++) {
+			n += this.counts.get(i);
+		}
+		return n;
+	}
+
+	/**
+	 * 	按桶内线性插值估算分位数，没有数据时返回NaN
+	 */
+	public double quantile(double q) {
+		long[] c = this.getCounts();
+		long total = 0;
+		for (long v : c) {
+			total += v;
+		}
+		if (total == 0) {
+			return Double.NaN;
+		}
+		double rank = q * total;
+		long seen = 0;
+		for (int i = 0; i < c.length; i++) {
+			if (seen + c[i] >= rank && c[i] > 0) {
+				double lower = i == 0 ? 0 : this.bounds[i - 1];
+				if (i == this.bounds.length) {
+					return lower;
+				}
+				double upper = this.bounds[i];
+				return lower + (upper - lower) * ((rank - seen) / c[i]);
+			}
+			seen += c[i];
+		}
+		return this.bounds[this.bounds.length - 1];
+	}
+
+	public Map<String, Object> toMap() {
+		Map<String, Object> data = new HashMap<>();
+		List<Double> b = new ArrayList<>(this.bounds.length);
+		for (double v : this.bounds) {
+			b.add(v);
+		}
+		long[] c = this.getCounts();
+		List<Long> counts = new ArrayList<>(c.length);
+		long total = 0;
+		for (long v : c) {
+			counts.add(v);
+			total += v;
+		}
+		data.put("bounds", b);
+		data.put("counts", counts);
+		data.put("count", total);
+		data.put("sum", round(this.getSum()));
+		if (total > 0) {
+			data.put("p50", round(this.quantile(0.5)));
+			data.put("p90", round(this.quantile(0.9)));
+			data.put("p99", round(this.quantile(0.99)));
+		}
+		return data;
+	}
+
+	static double round(double v) {
+		return Math.round(v * 100.0) / 100.0;
+	}
+}
@@ -0,0 +1,336 @@
+package org.mark.llamacpp.server.metrics;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.mark.llamacpp.server.LlamaServer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * 	进程内的时序数据存储。
+ * <p>
+ * 	系统监控、slot轮询和转发请求把数值写到这里，每个序列在四种分辨率下各有一个环形缓冲区
+ * 	（10秒保留1小时、1分钟保留1天、10分钟保留7天、1小时保留90天），桶里汇总最小、最大、平均和次数，
+ * 	内存固定，序列数量也有上限。每分钟把各分辨率写到cache/metrics下的二进制文件，启动时加载回来。
+ * 	超过最长保留时间没有新数据的序列（卸载或改名后的模型）在保存和加载时清除，不占用序列名额。
+ * <p>
+ * 	序列名为 指标 或 指标:实体，例如 {@code cpu.usage}、{@code proxy.latency_ms:<modelId>}。
+ */
+public class MetricsStore {
+
+	private static final Logger logger = LoggerFactory.getLogger(MetricsStore.class);
+
+	/**
+	 * 	分辨率（毫秒）和桶数
+	 */
+	private static final long[][] LAYOUT = {
+			{ 10_000L, 360 },
+			{ 60_000L, 1440 },
+			{ 600_000L, 1008 },
+			{ 3_600_000L, 2160 } };
+
+	/**
+	 * 	序列数量上限，每个序列约100KB
+	 */
+	private static final int MAX_SERIES = 1024;
+
+	/**
+	 * 	序列闲置多久后清除，等于最粗分辨率的保留时长
+	 */
+	private static final long IDLE_MILLIS = LAYOUT[LAYOUT.length - 1][0] * LAYOUT[LAYOUT.length - 1][1];
+
+	private static final int MAGIC = 0x4C4D5453;
+
+	private static final int VERSION = 1;
+
+	private static volatile MetricsStore instance;
+
+	public static MetricsStore getInstance() {
+		if (instance == null) {
+			synchronized (MetricsStore.class) {
+				if (instance == null) {
+					instance = new MetricsStore(LlamaServer.getCachePath().resolve("metrics"));
+				}
+			}
+		}
+		return instance;
+	}
+
+	/**
+	 * 	查询结果
+	 * @param key 序列名
+	 * @param resolution 桶的时长（毫秒）
+	 * @param points 每个点为 [时间, 最小, 最大, 平均, 总和, 次数]
+	 */
+	public record SeriesData(String key, long resolution, List<double[]> points) {
+	}
+
+	private final Path dir;
+	private final Map<String, TimeSeries> series = new ConcurrentHashMap<>();
+	private ScheduledExecutorService flusher;
+	/**
+	 * 	因为序列数量达到上限而丢弃的数据点
+	 */
+	private final LongAdder droppedSamples = new LongAdder();
+	private long reportedDropped;
+
+	MetricsStore(Path dir) {
+		this.dir = dir;
+		this.load();
+	}
+
+	/**
+	 * 	启动定时保存
+	 */
+	public synchronized void start() {
+		if (this.flusher != null) {
+			return;
+		}
+		this.flusher = Executors.newSingleThreadScheduledExecutor(r -> {
+			Thread t = new Thread(r, "metrics-flush");
+			t.setDaemon(true);
+			return t;
+		});
+		this.flusher.scheduleWithFixedDelay(this::flushQuietly, 1, 1, TimeUnit.MINUTES);
+		Runtime.getRuntime().addShutdownHook(new Thread(this::flushQuietly, "metrics-flush-exit"));
+	}
+
+	public static String key(String metric, String entity) {
+		return entity == null || entity.isEmpty() ? metric : metric + ":" + entity;
+	}
+
+	/**
+	 * 	记录一个系统级的值
+	 */
+	public void record(String metric, double value) {
+		this.record(key(metric, null), System.currentTimeMillis(), value);
+	}
+
+	/**
+	 * 	记录某个实体（模型、显卡）的值
+	 */
+	public void record(String metric, String entity, double value) {
+		this.record(key(metric, entity), System.currentTimeMillis(), value);
+	}
+
+	public void record(String key, long time, double value) {
+		TimeSeries s = this.series.get(key);
+		if (s == null) {
+			if (this.series.size() >= MAX_SERIES) {
+				// 计数，保存时汇总打印
+				this.droppedSamples.increment();
+				return;
+			}
+			s = this.series.computeIfAbsent(key, k -> new TimeSeries(k, LAYOUT));
+		}
+		s.record(time, value);
+	}
+
+	/**
+	 * 	记录一次转发到模型的请求：次数、耗时，以及失败（状态码不是2xx或者转发出错）。累计值同时记入ProxyStats
+	 * @param modelId 模型
+	 * @param status 状态码，转发出错时为-1
+	 * @param startedNanos 开始时的System.nanoTime()
+	 */
+	public void recordProxy(String modelId, int status, long startedNanos) {
+		if (modelId == null || modelId.isEmpty()) {
+			return;
+		}
+		long now = System.currentTimeMillis();
+		double millis = (System.nanoTime() - startedNanos) / 1e6;
+		ProxyStats.getInstance().record(modelId, status, millis);
+		this.record(key("proxy.requests", modelId), now, 1);
+		this.record(key("proxy.latency_ms", modelId), now, millis);
+		if (status < 200 || status >= 300) {
+			this.record(key("proxy.errors", modelId), now, 1);
+		}
+	}
+	
+	/**
+	 * 	列出所有序列，以及最新的值
+	 */
+	public List<Map<String, Object>> listSeries() {
+		List<Map<String, Object>> out = new ArrayList<>();
+		for (TimeSeries s : this.series.values()) {
+			Map<String, Object> item = new HashMap<>();
+			String key = s.getKey();
+			int i = key.indexOf(':');
+			item.put("key", key);
+			item.put("metric", i < 0 ? key : key.substring(0, i));
+			item.put("entity", i < 0 ? null : key.substring(i + 1));
+			item.put("lastTime", s.getLastTime() == 0 ? null : s.getLastTime());
+			item.put("lastValue", Double.isNaN(s.getLastValue()) ? null : s.getLastValue());
+			out.add(item);
+		}
+		out.sort((a, b) -> ((String) a.get("key")).compareTo((String) b.get("key")));
+		return out;
+	}
+
+	/**
+	 * 	查询一个序列，自动选择分辨率
+	 * @param key 序列名
+	 * @param from 毫秒时间戳
+	 * @param to 毫秒时间戳
+	 * @param maxPoints 最多的点数，用于选择分辨率
+	 * @return 序列不存在时返回null
+	 */
+	public SeriesData query(String key, long from, long to, int maxPoints) {
+		TimeSeries s = this.series.get(key);
+		if (s == null) {
+			return null;
+		}
+		long now = System.currentTimeMillis();
+		return s.query(from, Math.min(to, now), Math.max(1, maxPoints), now);
+	}
+
+	/**
+	 * 	因为序列数量达到上限而丢弃的数据点总数
+	 */
+	public long getDroppedSamples() {
+		return this.droppedSamples.sum();
+	}
+
+	public int getSeriesCount() {
+		return this.series.size();
+	}
+
+	/**
+	 * 	清除闲置超过最长保留时间的序列
+	 * @return 清除的数量
+	 */
+	int evictIdle(long now) {
+		int n = 0;
+		for (TimeSeries s : this.series.values()) {
+			if (now - s.getLastTime() > IDLE_MILLIS && this.series.remove(s.getKey(), s)) {
+				n++;
+			}
+		}
+		return n;
+	}
+
+	/**
+	 * 	各分辨率的保留时长
+	 */
+	public List<Map<String, Object>> getResolutions() {
+		List<Map<String, Object>> out = new ArrayList<>();
+		for (long[] l : LAYOUT) {
+			Map<String, Object> item = new HashMap<>();
+			item.put("resolution", l[0]);
+			item.put("retention", l[0] * l[1]);
+			out.add(item);
+		}
+		return out;
+	}
+
+	private void flushQuietly() {
+		try {
+			this.flush();
+		} catch (Exception e) {
+			logger.info("保存时序数据时发生错误", e);
+		}
+	}
+
+	/**
+	 * 	每种分辨率写一个文件，先写临时文件再替换
+	 */
+	public synchronized void flush() throws IOException {
+		long now = System.currentTimeMillis();
+		int evicted = this.evictIdle(now);
+		if (evicted > 0) {
+			logger.info("已清除 {} 个闲置的时序序列", evicted);
+		}
+		long dropped = this.droppedSamples.sum();
+		if (dropped > this.reportedDropped) {
+			logger.info("时序序列数量已达上限 {}，新序列的 {} 个数据点被丢弃（累计 {}）", MAX_SERIES, dropped - this.reportedDropped, dropped);
+			this.reportedDropped = dropped;
+		}
+		if (this.series.isEmpty()) {
+			return;
+		}
+		Files.createDirectories(this.dir);
+		List<TimeSeries> snapshot = new ArrayList<>(this.series.values());
+		for (int tier = 0; tier < LAYOUT.length; tier++) {
+			Path file = this.tierFile(tier);
+			Path tmp = file.resolveSibling(file.getFileName() + ".tmp");
+			try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tmp), 64 * 1024))) {
+				out.writeInt(MAGIC);
+				out.writeInt(VERSION);
+				out.writeLong(LAYOUT[tier][0]);
+				out.writeInt(snapshot.size());
+				for (TimeSeries s : snapshot) {
+					out.writeUTF(s.getKey());
+					s.write(out, tier, now);
+				}
+			}
+			try {
+				Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+			} catch (AtomicMoveNotSupportedException e) {
+				Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING);
+			}
+		}
+	}
+
+	/**
+	 * 	加载各分辨率的文件。先全部读入，去掉已经闲置的序列，仍然超过上限时保留最近更新的
+	 */
+	private void load() {
+		Map<String, TimeSeries> loaded = new HashMap<>();
+		for (int tier = 0; tier < LAYOUT.length; tier++) {
+			Path file = this.tierFile(tier);
+			if (!Files.isRegularFile(file)) {
+				continue;
+			}
+			try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file), 64 * 1024))) {
+				if (in.readInt() != MAGIC || in.readInt() != VERSION || in.readLong() != LAYOUT[tier][0]) {
+					logger.info("忽略格式不符的时序文件: {}", file);
+					continue;
+				}
+				int n = in.readInt();
+				for (int i = 0; i < n; i++) {
+					String key = in.readUTF();
+					loaded.computeIfAbsent(key, k -> new TimeSeries(k, LAYOUT)).read(in, tier);
+				}
+			} catch (IOException e) {
+				logger.info("加载时序文件失败: {}", file, e);
+			}
+		}
+		long now = System.currentTimeMillis();
+		List<TimeSeries> kept = new ArrayList<>();
+		for (TimeSeries s : loaded.values()) {
+			if (now - s.getLastTime() <= IDLE_MILLIS) {
+				kept.add(s);
+			}
+		}
+		if (kept.size() > MAX_SERIES) {
+			kept.sort((a, b) -> Long.compare(b.getLastTime(), a.getLastTime()));
+			kept = kept.subList(0, MAX_SERIES);
+		}
+		for (TimeSeries s : kept) {
+			this.series.put(s.getKey(), s);
+		}
+		if (kept.size() < loaded.size()) {
+			logger.info("加载时序数据时跳过了 {} 个闲置或超出上限的序列", loaded.size() - kept.size());
+		}
+	}
+
+	private Path tierFile(int tier) {
+		return this.dir.resolve("tier-" + (LAYOUT[tier][0] / 1000) + "s.bin");
+	}
+}
@@ -0,0 +1,369 @@
+package org.mark.llamacpp.server.metrics;
+
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import org.mark.llamacpp.server.LlamaCppProcess;
+import org.mark.llamacpp.server.LlamaServer;
+import org.mark.llamacpp.server.LlamaServerManager;
+import org.mark.llamacpp.server.SystemMonitorService;
+import org.mark.llamacpp.server.io.ConsoleBroadcastOutputStream;
+
+/**
+ * 	Prometheus文本格式的/metrics。
+ * <p>
+ * 	内容包括本程序自己的计数（转发请求、从模型输出解析的性能数据、系统监控、控制台捕获），
+ * 	以及每个已加载的llama-server的/metrics（需要以--metrics启动），后者加上model和replica标签后按指标族合并。
+ * 	各模型并发抓取，结果缓存2秒，同一模型同时只有一个抓取在进行，频繁的采集不会反复请求模型进程。
+ */
+public class PrometheusExporter {
+
+	private static final PrometheusExporter INSTANCE = new PrometheusExporter();
+
+	public static PrometheusExporter getInstance() {
+		return INSTANCE;
+	}
+
+	private static final String PREFIX = "llamacpp_server_";
+
+	/**
+	 * 	上游结果的缓存时长
+	 */
+	private static final long CACHE_MILLIS = 2000;
+
+	/**
+	 * 	单个上游的超时
+	 */
+	private static final Duration UPSTREAM_TIMEOUT = Duration.ofSeconds(3);
+
+	/**
+	 * 	一次抓取的结果
+	 * @param ok 是否成功
+	 * @param body 成功时的文本
+	 * @param seconds 耗时
+	 * @param fetchedAt 完成时间
+	 */
+	private record Upstream(boolean ok, String body, double seconds, long fetchedAt) {
+	}
+
+	private record Pending(int port, CompletableFuture<Upstream> future) {
+	}
+
+	/**
+	 * 	一个指标族
+	 */
+	private static final class Family {
+		String help;
+		String type;
+		final List<String> samples = new ArrayList<>();
+	}
+
+	private final HttpClient client = HttpClient.newBuilder()
+			.connectTimeout(Duration.ofSeconds(1))
+			.executor(Executors.newVirtualThreadPerTaskExecutor())
+			.build();
+
+	private final Map<String, Pending> upstreams = new ConcurrentHashMap<>();
+	private final long startedAt = System.currentTimeMillis();
+
+	private PrometheusExporter() {
+	}
+
+	/**
+	 * 	生成完整的导出文本，上游全部完成或超时后结束
+	 */
+	public CompletableFuture<String> scrape() {
+		Map<String, LlamaCppProcess> processes = LlamaServerManager.getInstance().getLoadedProcesses();
+		Map<String, Integer> ports = new LinkedHashMap<>();
+		Map<String, CompletableFuture<Upstream>> futures = new LinkedHashMap<>();
+		for (String modelId : processes.keySet()) {
+			Integer port = LlamaServerManager.getInstance().getModelPort(modelId);
+			if (port == null) {
+				continue;
+			}
+			ports.put(modelId, port);
+			futures.put(modelId, this.fetch(modelId, port));
+		}
+		// 已经卸载的模型不再保留，也不再导出它的转发统计
+		this.upstreams.keySet().retainAll(ports.keySet());
+		ProxyStats.getInstance().retainModels(processes.keySet());
+		return CompletableFuture.allOf(futures.values().toArray(new CompletableFuture<?>[0]))
+				.completeOnTimeout(null, UPSTREAM_TIMEOUT.toMillis() + 500, TimeUnit.MILLISECONDS)
+				.handle((v, e) -> this.render(processes, ports, futures));
+	}
+
+	/**
+	 * 	取缓存的结果，过期后发起新的抓取；进行中的抓取被所有调用方共享
+	 */
+	private CompletableFuture<Upstream> fetch(String modelId, int port) {
+		long now = System.currentTimeMillis();
+		Pending p = this.upstreams.compute(modelId, (k, old) -> {
+			if (old != null && old.port == port) {
+				CompletableFuture<Upstream> f = old.future;
+				if (!f.isDone()) {
+					return old;
+				}
+				Upstream u = f.getNow(null);
+				if (u != null && now - u.fetchedAt < CACHE_MILLIS) {
+					return old;
+				}
+			}
+			return new Pending(port, this.request(port));
+		});
+		return p.future;
+	}
+
+	private CompletableFuture<Upstream> request(int port) {
+		long started = System.nanoTime();
+		HttpRequest req = HttpRequest.newBuilder(URI.create("http://127.0.0.1:" + port + "/metrics"))
+				.timeout(UPSTREAM_TIMEOUT)
+				.GET()
+				.build();
+		return this.client.sendAsync(req, HttpResponse.BodyHandlers.ofString(StandardCharsets.UTF_8))
+				.handle((resp, e) -> {
+					double seconds = (System.nanoTime() - started) / 1e9;
+					boolean ok = e == null && resp.statusCode() == 200;
+					return new Upstream(ok, ok ? resp.body() : null, seconds, System.currentTimeMillis());
+				});
+	}
+
+	private String render(Map<String, LlamaCppProcess> processes, Map<String, Integer> ports,
+			Map<String, CompletableFuture<Upstream>> futures) {
+		Map<String, Family> families = new LinkedHashMap<>();
+
+		// 本程序
+		gauge(families, "uptime_seconds", "服务运行时间", (System.currentTimeMillis() - this.startedAt) / 1000.0, null);
+		gauge(families, "loaded_models", "已加载的模型数", processes.size(), null);
+		gauge(families, "websocket_connections", "WebSocket连接数", LlamaServer.getWebSocketConnectionCount(), null);
+		ConsoleBroadcastOutputStream console = LlamaServer.getConsoleCapture();
+		if (console != null) {
+			counter(families, "console_captured_bytes_total", "捕获的控制台输出字节数", console.getCapturedBytes(), null);
+			counter(families, "console_dropped_bytes_total", "缓冲区满时丢弃的控制台输出字节数", console.getDroppedBytes(), null);
+		}
+
+		MetricsStore store = MetricsStore.getInstance();
+		gauge(families, "metrics_series", "内存中的时序序列数", store.getSeriesCount(), null);
+		counter(families, "metrics_dropped_samples_total", "时序序列数量达到上限后丢弃的数据点", store.getDroppedSamples(), null);
+
+		// 转发
+		for (Map.Entry<String, ProxyStats.Entry> e : ProxyStats.getInstance().getModels().entrySet()) {
+			String model = e.getKey();
+			for (Map.Entry<Integer, Long> s : e.getValue().getStatus().entrySet()) {
+				counter(families, "proxy_requests_total", "转发到模型的请求数，status为-1表示转发出错", s.getValue(),
+						labels("model", model, "status", String.valueOf(s.getKey())));
+			}
+			histogram(families, "proxy_request_duration_milliseconds", "转发请求的耗时", e.getValue().getLatency(), labels("model", model));
+		}
+
+		// 从模型输出解析的数据
+		for (Map.Entry<String, LlamaCppProcess> e : processes.entrySet()) {
+			String l = labels("model", e.getKey());
+			LlamaLogMetrics m = e.getValue().getLogMetrics();
+			counter(families, "model_requests_total", "模型完成的请求数（来自输出日志）", m.getRequests(), l);
+			counter(families, "model_prompt_tokens_total", "处理的提示词token数", m.getPromptTokens(), l);
+			counter(families, "model_prompt_seconds_total", "处理提示词的耗时", m.getPromptSeconds(), l);
+			counter(families, "model_generated_tokens_total", "生成的token数", m.getGeneratedTokens(), l);
+			counter(families, "model_generated_seconds_total", "生成的耗时", m.getGeneratedSeconds(), l);
+			counter(families, "model_prompt_tokens_requested_total", "请求中的提示词token数", m.getPromptTokensRequested(), l);
+			counter(families, "model_cached_tokens_total", "复用缓存的提示词token数", m.getCachedTokens(), l);
+			counter(families, "model_draft_accepted_tokens_total", "投机解码接受的token数", m.getDraftAccepted(), l);
+			counter(families, "model_draft_generated_tokens_total", "投机解码生成的token数", m.getDraftGenerated(), l);
+			counter(families, "model_context_shifts_total", "上下文平移次数", m.getContextShifts(), l);
+			counter(families, "model_send_errors_total", "模型返回错误的次数", m.getSendErrors(), l);
+			histogram(families, "model_prompt_tokens_per_second", "每个请求的提示词处理速度", m.getPromptTpsHistogram(), l);
+			histogram(families, "model_generation_tokens_per_second", "每个请求的生成速度", m.getGenerationTpsHistogram(), l);
+			histogram(families, "model_request_duration_milliseconds", "每个请求的总耗时", m.getTotalMillisHistogram(), l);
+		}
+
+		// 系统
+		LinuxSystemCollector.Snapshot s = SystemMonitorService.getInstance().getLastSnapshot();
+		if (s != null) {
+			gauge(families, "system_cpu_usage_percent", "CPU使用率", s.cpuPercent(), null);
+			gauge(families, "system_memory_total_bytes", "内存总量", s.memTotalBytes(), null);
+			gauge(families, "system_memory_used_bytes", "已用内存", s.memUsedBytes(), null);
+			gauge(families, "system_load1", "1分钟负载", s.load1(), null);
+			for (LinuxSystemCollector.GpuStats g : s.gpus()) {
+				String l = labels("card", g.card());
+				gauge(families, "gpu_busy_percent", "GPU使用率", g.busyPercent(), l);
+				gauge(families, "gpu_vram_used_bytes", "已用显存", g.vramUsedBytes(), l);
+				gauge(families, "gpu_vram_total_bytes", "显存总量", g.vramTotalBytes(), l);
+			}
+			for (LinuxSystemCollector.ProcessStats p : s.processes()) {
+				if (p.alive()) {
+					String l = labels("model", p.name());
+					gauge(families, "model_process_resident_bytes", "模型进程的常驻内存", p.rssBytes(), l);
+					gauge(families, "model_process_cpu_percent", "模型进程的CPU使用率（单核为100）", p.cpuPercent(), l);
+				}
+			}
+		}
+
+		// 上游
+		for (Map.Entry<String, CompletableFuture<Upstream>> e : futures.entrySet()) {
+			String model = e.getKey();
+			String replica = String.valueOf(ports.get(model));
+			Upstream u = e.getValue().getNow(null);
+			String l = labels("model", model, "replica", replica);
+			gauge(families, "upstream_up", "能否抓取模型的/metrics（llama-server需要--metrics参数）", u != null && u.ok ? 1 : 0, l);
+			if (u != null) {
+				gauge(families, "upstream_scrape_duration_seconds", "抓取模型/metrics的耗时", u.seconds, l);
+				if (u.ok) {
+					mergeUpstream(families, u.body, "model=\"" + escape(model) + "\",replica=\"" + escape(replica) + "\"");
+				}
+			}
+		}
+
+		StringBuilder sb = new StringBuilder(8192);
+		for (Map.Entry<String, Family> e : families.entrySet()) {
+			Family f = e.getValue();
+			if (f.help != null) {
+				sb.append("# HELP ").append(e.getKey()).append(' ').append(f.help).append('\n');
+			}
+			if (f.type != null) {
+				sb.append("# TYPE ").append(e.getKey()).append(' ').append(f.type).append('\n');
+			}
+			for (String sample : f.samples) {
+				sb.append(sample).append('\n');
+			}
+		}
+		return sb.toString();
+	}
+
+	/**
+	 * 	把上游的文本按指标族并入，样本加上model和replica标签
+	 */
+	private static void mergeUpstream(Map<String, Family> families, String body, String extraLabels) {
+		int pos = 0;
+		int n = body.length();
+		while (pos < n) {
+			int end = body.indexOf('\n', pos);
+			if (end < 0) {
+				end = n;
+			}
+			String line = body.substring(pos, end).trim();
+			pos = end + 1;
+			if (line.isEmpty()) {
+				continue;
+			}
+			if (line.startsWith("#")) {
+				String[] parts = line.split(" ", 4);
+				if (parts.length >= 4 && ("HELP".equals(parts[1]) || "TYPE".equals(parts[1]))) {
+					Family f = families.computeIfAbsent(parts[2], k -> new Family());
+					if ("HELP".equals(parts[1]) && f.help == null) {
+						f.help = parts[3];
+					} else if ("TYPE".equals(parts[1]) && f.type == null) {
+						f.type = parts[3];
+					}
+				}
+				continue;
+			}
+			int brace = line.indexOf('{');
+			int space = line.indexOf(' ');
+			if (space < 0) {
+				continue;
+			}
+			String relabelled;
+			String name;
+			if (brace >= 0 && brace < space) {
+				name = line.substring(0, brace);
+				String rest = line.substring(brace + 1);
+				relabelled = name + "{" + extraLabels + (rest.startsWith("}") ? "" : ",") + rest;
+			} else {
+				name = line.substring(0, space);
+				relabelled = name + "{" + extraLabels + "}" + line.substring(space);
+			}
+			families.computeIfAbsent(familyOf(families, name), k -> new Family()).samples.add(relabelled);
+		}
+	}
+
+	/**
+	 * 	样本所属的指标族：直方图和摘要的样本名带有后缀
+	 */
+	private static String familyOf(Map<String, Family> families, String name) {
+		if (families.containsKey(name)) {
+			return name;
+		}
+		for (String suffix : new String[] { "_bucket", "_sum", "_count", "_total", "_created" }) {
+			if (name.endsWith(suffix)) {
+				String base = name.substring(0, name.length() - suffix.length());
+				if (families.containsKey(base)) {
+					return base;
+				}
+			}
+		}
+		return name;
+	}
+
+	private static Family family(Map<String, Family> families, String name, String type, String help) {
+		Family f = families.computeIfAbsent(PREFIX + name, k -> new Family());
+		if (f.type == null) {
+			f.type = type;
+			f.help = help;
+		}
+		return f;
+	}
+
+	private static void gauge(Map<String, Family> families, String name, String help, double value, String labels) {
+		if (Double.isNaN(value)) {
+			return;
+		}
+		family(families, name, "gauge", help).samples.add(PREFIX + name + braces(labels) + " " + format(value));
+	}
+
+	private static void counter(Map<String, Family> families, String name, String help, double value, String labels) {
+		family(families, name, "counter", help).samples.add(PREFIX + name + braces(labels) + " " + format(value));
+	}
+
+	private static void histogram(Map<String, Family> families, String name, String help, LogHistogram h, String labels) {
+		Family f = family(families, name, "histogram", help);
+		double[] bounds = h.getBounds();
+		long[] counts = h.getCounts();
+		String prefix = labels == null ? "" : labels + ",";
+		long cumulative = 0;
+		for (int i = 0; i < counts.length; i++) {
+			cumulative += counts[i];
+			String le = i < bounds.length ? format(bounds[i]) : "+Inf";
+			f.samples.add(PREFIX + name + "_bucket{" + prefix + "le=\"" + le + "\"} " + cumulative);
+		}
+		f.samples.add(PREFIX + name + "_sum" + braces(labels) + " " + format(h.getSum()));
+		f.samples.add(PREFIX + name + "_count" + braces(labels) + " " + cumulative);
+	}
+
+	private static String labels(String... kv) {
+		StringBuilder sb = new StringBuilder();
+		for (int i = 0; i + 1 < kv.length; i += 2) {
+			if (sb.length() > 0) {
+				sb.append(',');
+			}
+			sb.append(kv[i]).append("=\"").append(escape(kv[i + 1])).append('"');
+		}
+		return sb.toString();
+	}
+
+	private static String braces(String labels) {
+		return labels == null || labels.isEmpty() ? "" : "{" + labels + "}";
+	}
+
+	private static String escape(String v) {
+		return v.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+	}
+
+	private static String format(double v) {
+		if (v == Math.rint(v) && Math.abs(v) < 1e15) {
+			return Long.toString((long) v);
+		}
+		return String.format(Locale.ROOT, "%.6g", v);
+	}
+}
@@ -0,0 +1,62 @@
+package org.mark.llamacpp.server.metrics;
+
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 	转发到各模型的请求的累计计数和耗时分布，供/metrics导出。
+ */
+public class ProxyStats {
+
+	private static final ProxyStats INSTANCE = new ProxyStats();
+
+	public static ProxyStats getInstance() {
+		return INSTANCE;
+	}
+
+	/**
+	 * 	一个模型的统计
+	 */
+	public static final class Entry {
+		private final Map<Integer, LongAdder> status = new ConcurrentHashMap<>();
+		private final LogHistogram latency = new LogHistogram(LogHistogram.MILLIS);
+
+		/**
+		 * 	各状态码的请求数，转发出错为-1
+		 */
+		public Map<Integer, Long> getStatus() {
+			Map<Integer, Long> out = new TreeMap<>();
+			this.status.forEach((k, v) -> out.put(k, v.sum()));
+			return out;
+		}
+
+		public LogHistogram getLatency() {
+			return latency;
+		}
+	}
+
+	private final Map<String, Entry> models = new ConcurrentHashMap<>();
+
+	private ProxyStats() {
+	}
+
+	void record(String modelId, int status, double millis) {
+		Entry e = this.models.computeIfAbsent(modelId, k -> new Entry());
+		e.status.computeIfAbsent(status, k -> new LongAdder()).increment();
+		e.latency.record(millis);
+	}
+
+	/**
+	 * 	只保留已加载的模型，卸载后的模型不再导出。重新加载后计数从0开始，Prometheus按计数器重置处理
+	 */
+	public void retainModels(Set<String> modelIds) {
+		this.models.keySet().retainAll(modelIds);
+	}
+
+	public Map<String, Entry> getModels() {
+		return new TreeMap<>(this.models);
+	}
+}
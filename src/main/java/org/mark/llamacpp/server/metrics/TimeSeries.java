@@ -0,0 +1,217 @@
+package org.mark.llamacpp.server.metrics;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * 	一个序列在几种分辨率下的环形缓冲区，内存固定。
+ * <p>
+ * 	每个桶保存最小、最大、总和与次数，桶的位置由时间计算，桶里记下自己所属的时间段，
+ * 	查询时时间段不对的桶（环形覆盖前的旧数据）当作空桶。
+ */
+final class TimeSeries {
+
+	/**
+	 * 	一种分辨率
+	 */
+	static final class Tier {
+		final long resolution;
+		final int capacity;
+		final int[] epoch;
+		final float[] min;
+		final float[] max;
+		final float[] sum;
+		final int[] count;
+
+		Tier(long resolution, int capacity) {
+			this.resolution = resolution;
+			this.capacity = capacity;
+			this.epoch = new int[capacity];
+			this.min = new float[capacity];
+			this.max = new float[capacity];
+			this.sum = new float[capacity];
+			this.count = new int[capacity];
+		}
+
+		/**
+		 * 	能覆盖的时间跨度
+		 */
+		long span() {
+			return this.resolution * this.capacity;
+		}
+
+		void record(long time, double value) {
+			int e = (int) (time / this.resolution);
+			int slot = Math.floorMod(e, this.capacity);
+			float v = (float) value;
+			if (this.epoch[slot] != e || this.count[slot] == 0) {
+				this.epoch[slot] = e;
+				this.min[slot] = v;
+				this.max[slot] = v;
+				this.sum[slot] = v;
+				this.count[slot] = 1;
+				return;
+			}
+			if (v < this.min[slot]) {
+				this.min[slot] = v;
+			}
+			if (v > this.max[slot]) {
+				this.max[slot] = v;
+			}
+			this.sum[slot] += v;
+			this.count[slot]++;
+		}
+
+		/**
+		 * 	合并一个已经汇总过的桶（从磁盘加载时使用）
+		 */
+		void merge(int e, float mn, float mx, float sm, int n) {
+			int slot = Math.floorMod(e, this.capacity);
+			if (n <= 0) {
+				return;
+			}
+			if (this.epoch[slot] != e || this.count[slot] == 0) {
+				this.epoch[slot] = e;
+				this.min[slot] = mn;
+				this.max[slot] = mx;
+				this.sum[slot] = sm;
+				this.count[slot] = n;
+				return;
+			}
+			this.min[slot] = Math.min(this.min[slot], mn);
+			this.max[slot] = Math.max(this.max[slot], mx);
+			this.sum[slot] += sm;
+			this.count[slot] += n;
+		}
+
+		/**
+		 * 	[from, to]内的非空桶，按时间升序
+		 */
+		List<double[]> range(long from, long to) {
+			List<double[]> out = new ArrayList<>();
+			long first = Math.max(from / this.resolution, to / this.resolution - this.capacity + 1);
+			long last = to / this.resolution;
+			for (long e = first; e <= last; e++) {
+				int slot = (int) Math.floorMod(e, (long) this.capacity);
+				if (this.epoch[slot] != e || this.count[slot] == 0) {
+					continue;
+				}
+				int n = this.count[slot];
+				out.add(new double[] { e * this.resolution, this.min[slot], this.max[slot], this.sum[slot] / n, this.sum[slot], n });
+			}
+			return out;
+		}
+
+		/**
+		 * 	写出最近span内的非空桶
+		 */
+		void write(DataOutputStream out, long now) throws IOException {
+			int oldest = (int) ((now - span()) / this.resolution);
+			int n = 0;
+			for (int i = 0; i < this.capacity; i++) {
+				if (this.count[i] > 0 && this.epoch[i] > oldest) {
+					n++;
+				}
+			}
+			out.writeInt(n);
+			for (int i = 0; i < this.capacity; i++) {
+				if (this.count[i] > 0 && this.epoch[i] > oldest) {
+					out.writeInt(this.epoch[i]);
+					out.writeFloat(this.min[i]);
+					out.writeFloat(this.max[i]);
+					out.writeFloat(this.sum[i]);
+					out.writeInt(this.count[i]);
+				}
+			}
+		}
+
+		void read(DataInputStream in) throws IOException {
+			int n = in.readInt();
+			for (int i = 0; i < n; i++) {
+				this.merge(in.readInt(), in.readFloat(), in.readFloat(), in.readFloat(), in.readInt());
+			}
+		}
+
+		/**
+		 * 	最新的非空桶的起始时间，没有数据时为0
+		 */
+		long newest() {
+			long out = 0;
+			for (int i = 0; i < this.capacity; i++) {
+				if (this.count[i] > 0) {
+					out = Math.max(out, this.epoch[i] * this.resolution);
+				}
+			}
+			return out;
+		}
+	}
+
+	private final String key;
+	private final Tier[] tiers;
+	private volatile long lastTime;
+	private volatile double lastValue = Double.NaN;
+
+	TimeSeries(String key, long[][] layout) {
+		this.key = key;
+		this.tiers = new Tier[layout.length];
+		for (int i = 0; i < layout.length; i++) {
+			this.tiers[i] = new Tier(layout[i][0], (int) layout[i][1]);
+		}
+	}
+
+	String getKey() {
+		return key;
+	}
+
+	long getLastTime() {
+		return lastTime;
+	}
+
+	double getLastValue() {
+		return lastValue;
+	}
+
+	Tier[] getTiers() {
+		return tiers;
+	}
+
+	synchronized void record(long time, double value) {
+		if (Double.isNaN(value) || Double.isInfinite(value)) {
+			return;
+		}
+		for (Tier t : this.tiers) {
+			t.record(time, value);
+		}
+		if (time >= this.lastTime) {
+			this.lastTime = time;
+			this.lastValue = value;
+		}
+	}
+
+	/**
+	 * 	选择覆盖from且点数不超过maxPoints的最细分辨率，都不满足时用最粗的
+	 */
+	synchronized MetricsStore.SeriesData query(long from, long to, int maxPoints, long now) {
+		Tier chosen = this.tiers[this.tiers.length - 1];
+		for (Tier t : this.tiers) {
+			if (now - t.span() <= from + t.resolution && (to - from) / t.resolution <= maxPoints) {
+				chosen = t;
+				break;
+			}
+		}
+		return new MetricsStore.SeriesData(this.key, chosen.resolution, chosen.range(from, to));
+	}
+
+	synchronized void write(DataOutputStream out, int tier, long now) throws IOException {
+		this.tiers[tier].write(out, now);
+	}
+
+	synchronized void read(DataInputStream in, int tier) throws IOException {
+		this.tiers[tier].read(in);
+		// 加载的数据没有原始时间，用最新的桶代替，用于判断序列是否已经闲置
+		this.lastTime = Math.max(this.lastTime, this.tiers[tier].newest());
+	}
+}
@@ -11,6 +11,7 @@ import io.netty.channel.ChannelHandlerContext;
 import io.netty.handler.codec.http.*;
 import io.netty.util.CharsetUtil;
 import org.mark.llamacpp.server.LlamaServerManager;
+import org.mark.llamacpp.server.metrics.MetricsStore;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -169,7 +170,7 @@ public class AnthropicService {
             isStream = anthropicReq.get("stream").getAsBoolean();
         }
         // 开始转发
-        this.forwardRequestToLlamaCpp(ctx, request, content, port, "/v1/complete", isStream);
+        this.forwardRequestToLlamaCpp(ctx, request, content, modelName, port, "/v1/complete", isStream);
     }
     
     /**
@@ -231,7 +232,7 @@ public class AnthropicService {
             isStream = anthropicReq.get("stream").getAsBoolean();
         }
 
-        this.forwardRequestToLlamaCpp(ctx, request, content, port, "/v1/messages", isStream);
+        this.forwardRequestToLlamaCpp(ctx, request, content, modelName, port, "/v1/messages", isStream);
     }
     
     
@@ -288,7 +289,7 @@ public class AnthropicService {
             return;
         }
 
-        forwardRequestToLlamaCpp(ctx, request, content, port, "/v1/messages/count_tokens", false);
+        forwardRequestToLlamaCpp(ctx, request, content, modelName, port, "/v1/messages/count_tokens", false);
     }
     
     
@@ -297,11 +298,12 @@ public class AnthropicService {
      * @param ctx
      * @param request
      * @param requestBody
+     * @param modelName
      * @param port
      * @param endpoint
      * @param isStream
      */
-    private void forwardRequestToLlamaCpp(ChannelHandlerContext ctx, FullHttpRequest request, String requestBody, int port, String endpoint, boolean isStream) {
+    private void forwardRequestToLlamaCpp(ChannelHandlerContext ctx, FullHttpRequest request, String requestBody, String modelName, int port, String endpoint, boolean isStream) {
         HttpMethod method = request.method();
         Map<String, String> headers = new HashMap<>();
         for (Map.Entry<String, String> entry : request.headers()) {
@@ -310,6 +312,8 @@ public class AnthropicService {
 
         worker.execute(() -> {
             HttpURLConnection connection = null;
+            long started = System.nanoTime();
+            int responseCode = -1;
             try {
                 String targetUrl = String.format("http://localhost:%d%s", port, endpoint);
                 URL url = URI.create(targetUrl).toURL();
@@ -340,7 +344,7 @@ public class AnthropicService {
                     }
                 }
 
-                int responseCode = connection.getResponseCode();
+                responseCode = connection.getResponseCode();
 
                 if (isStream) {
                 	this.handleStreamResponse(ctx, connection, responseCode);
@@ -357,6 +361,7 @@ public class AnthropicService {
                 synchronized (this.channelConnectionMap) {
                     this.channelConnectionMap.remove(ctx);
                 }
+                MetricsStore.getInstance().recordProxy(modelName, responseCode, started);
             }
         });
     }
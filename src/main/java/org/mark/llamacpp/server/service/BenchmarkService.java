@@ -19,6 +19,7 @@ import java.util.concurrent.ConcurrentHashMap;
 import org.mark.llamacpp.server.LlamaCppProcess;
 import org.mark.llamacpp.server.LlamaServerManager;
 import org.mark.llamacpp.server.tools.JsonUtil;
+import org.mark.llamacpp.server.tools.ParamTool;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -111,6 +112,10 @@ public class BenchmarkService {
 			forward.add("messages", messages);
 			forward.addProperty("max_tokens", maxTokens.intValue());
 			forward.addProperty("stream", false);
+			// 调优等需要每次完整处理提示词的调用可以关闭提示词缓存
+			if (json.has("cachePrompt") && !json.get("cachePrompt").isJsonNull()) {
+				forward.addProperty("cache_prompt", ParamTool.parseJsonBoolean(json, "cachePrompt", true));
+			}
 
 			String targetUrl = String.format("http://localhost:%d/v1/chat/completions", port.intValue());
 			URL url = URI.create(targetUrl).toURL();
@@ -150,6 +155,10 @@ public class BenchmarkService {
 			data.put("maxTokens", maxTokens);
 			data.put("timings", JsonUtil.fromJson(timingsObj, Object.class));
 			data.put("llamaBinPath", llamaBinPath);
+			// 调优等内部调用不写入测试记录
+			if (!ParamTool.parseJsonBoolean(json, "save", true)) {
+				return data;
+			}
 
 			try {
 				String safeModelId = modelId.replaceAll("[^a-zA-Z0-9-_\\.]", "_");
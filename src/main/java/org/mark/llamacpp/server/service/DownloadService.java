@@ -1,13 +1,24 @@
 package org.mark.llamacpp.server.service;
 
+import java.nio.file.Path;
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Locale;
 import java.util.Map;
+import java.util.TreeMap;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
+import org.mark.llamacpp.crawler.HuggingFaceModelCrawler.GGUFCrawlResult;
+import org.mark.llamacpp.crawler.HuggingFaceModelCrawler.GGUFFileInfo;
+import org.mark.llamacpp.download.BandwidthScheduler;
+import org.mark.llamacpp.download.DownloadBundle;
 import org.mark.llamacpp.download.DownloadManager;
 import org.mark.llamacpp.download.DownloadTask;
 import org.mark.llamacpp.download.struct.DownloadState;
+import org.mark.llamacpp.server.LlamaServer;
 
 /**
  * 下载服务类，处理下载相关的业务逻辑
@@ -22,10 +33,19 @@ public class DownloadService {
 	}
 	
 	
+    /**
+     * 分卷文件名，例如 model-Q4_K_M-00001-of-00003.gguf
+     */
+    private static final Pattern SPLIT_PATTERN = Pattern.compile("-(\\d{5})-of-(\\d{5})\\.gguf$", Pattern.CASE_INSENSITIVE);
+    
     private final DownloadManager downloadManager;
     
     private DownloadService() {
         this.downloadManager = DownloadManager.getInstance();
+        this.downloadManager.setLimits(LlamaServer.getDownloadMaxConcurrent(), LlamaServer.getDownloadMaxConnections(),
+                LlamaServer.getDownloadMaxBandwidthKBps() * 1024);
+        // 上限生效后再恢复上次未完成的任务
+        this.downloadManager.resumePendingTasks();
     }
     
     /**
@@ -59,15 +79,23 @@ public class DownloadService {
     }
 
     public Map<String, Object> createModelDownloadTask(String url, String path, String fileName) {
+        return createModelDownloadTask(url, path, fileName, null);
+    }
+
+    /**
+     * 创建模型下载任务
+     * @param url 下载URL
+     * @param path 保存路径
+     * @param fileName 文件名（可选）
+     * @param expectedSha256 LFS oid（可选），下载时计算SHA-256并校验
+     * @return 创建结果
+     */
+    public Map<String, Object> createModelDownloadTask(String url, String path, String fileName, String expectedSha256) {
         Map<String, Object> result = new HashMap<>();
         
         try {
-            String taskId;
-            if (fileName != null && !fileName.trim().isEmpty()) {
-                taskId = downloadManager.createTask(url, path, fileName, org.mark.llamacpp.download.DownloadTask.DownloadTaskType.GGUF_MODEL);
-            } else {
-                taskId = downloadManager.createTask(url, path, null, org.mark.llamacpp.download.DownloadTask.DownloadTaskType.GGUF_MODEL);
-            }
+            String name = fileName != null && !fileName.trim().isEmpty() ? fileName : null;
+            String taskId = downloadManager.createTask(url, path, name, org.mark.llamacpp.download.DownloadTask.DownloadTaskType.GGUF_MODEL, expectedSha256);
             
             result.put("success", true);
             result.put("taskId", taskId);
@@ -179,6 +207,19 @@ public class DownloadService {
                 taskData.put("partsTotal", task.getPartsTotal());
                 taskData.put("partsCompleted", task.getPartsCompleted());
                 taskData.put("progressRatio", task.getProgressRatio());
+                taskData.put("priority", task.getPriority());
+                taskData.put("weight", task.getWeight());
+                if (task.getDownloader() != null && task.getState() == DownloadState.DOWNLOADING) {
+                    taskData.put("mirrors", task.getDownloader().getMirrorStats());
+                    taskData.put("hashedBytes", task.getDownloader().getHashedBytes());
+                }
+                if (task.getExpectedSha256() != null) {
+                    taskData.put("expectedSha256", task.getExpectedSha256());
+                }
+                if (task.getBundleId() != null) {
+                    taskData.put("bundleId", task.getBundleId());
+                }
+                taskData.put("hasPreview", downloadManager.getModelPreview(task.getTaskId()) != null);
                 taskData.put("createdAt", task.getCreatedAt().toString());
                 taskData.put("updatedAt", task.getUpdatedAt().toString());
                 
@@ -199,6 +240,30 @@ public class DownloadService {
         return result;
     }
     
+    /**
+     * 获取下载中模型的目录项（元数据和显存估算），指定taskId时只返回该任务的
+     * @param taskId 任务ID，可以为null
+     */
+    public Map<String, Object> getModelPreviews(String taskId) {
+        Map<String, Object> result = new HashMap<>();
+        if (taskId != null && !taskId.isEmpty()) {
+            Map<String, Object> preview = downloadManager.getModelPreview(taskId);
+            if (preview == null) {
+                result.put("success", false);
+                result.put("error", "任务不存在或还没有读取到模型信息");
+                return result;
+            }
+            result.put("success", true);
+            result.put("model", preview);
+            return result;
+        }
+        List<Map<String, Object>> list = downloadManager.getModelPreviews();
+        list.sort((a, b) -> Long.compare((Long) b.get("updatedAt"), (Long) a.get("updatedAt")));
+        result.put("success", true);
+        result.put("models", list);
+        return result;
+    }
+    
     /**
      * 获取下载统计信息
      * @return 统计信息
@@ -232,6 +297,10 @@ public class DownloadService {
             stats.put("failed", failedCount);
             stats.put("total", tasks.size());
             stats.put("maxConcurrent", downloadManager.getMaxConcurrentDownloads());
+            BandwidthScheduler bandwidth = downloadManager.getBandwidthScheduler();
+            stats.put("maxConnections", bandwidth.getMaxConnections());
+            stats.put("connections", bandwidth.getConnections());
+            stats.put("maxBandwidthKBps", bandwidth.getBytesPerSecond() / 1024);
             
             result.put("success", true);
             result.put("stats", stats);
@@ -242,4 +311,301 @@ public class DownloadService {
         
         return result;
     }
+    
+    /**
+     * 调整下载任务的优先级和带宽权重
+     * @param taskId 任务ID
+     * @param priority 优先级，数值越大越优先
+     * @param weight 同一优先级内的带宽权重
+     * @return 操作结果
+     */
+    public Map<String, Object> setTaskPriority(String taskId, int priority, int weight) {
+        Map<String, Object> result = new HashMap<>();
+        
+        try {
+            boolean success = downloadManager.setPriority(taskId, priority, weight);
+            result.put("success", success);
+            
+            if (success) {
+                result.put("message", "优先级已更新");
+            } else {
+                result.put("error", "任务不存在");
+            }
+        } catch (Exception e) {
+            result.put("success", false);
+            result.put("error", "更新优先级失败: " + e.getMessage());
+        }
+        
+        return result;
+    }
+    
+    /**
+     * 获取下载的全局上限
+     * @return 上限配置和当前占用
+     */
+    public Map<String, Object> getDownloadLimits() {
+        Map<String, Object> result = new HashMap<>();
+        BandwidthScheduler bandwidth = downloadManager.getBandwidthScheduler();
+        result.put("success", true);
+        result.put("maxConcurrent", downloadManager.getMaxConcurrentDownloads());
+        result.put("maxConnections", bandwidth.getMaxConnections());
+        result.put("maxBandwidthKBps", bandwidth.getBytesPerSecond() / 1024);
+        result.put("active", downloadManager.getActiveDownloadsCount());
+        result.put("pending", downloadManager.getPendingTasksCount());
+        result.put("connections", bandwidth.getConnections());
+        result.put("waiting", bandwidth.getWaiting());
+        return result;
+    }
+    
+    /**
+     * 修改下载的全局上限并保存到配置文件，未提供的项保持不变
+     * @param maxConcurrent 同时下载的任务数
+     * @param maxConnections 总连接数
+     * @param maxBandwidthKBps 总带宽，KiB/s，0表示不限
+     * @return 修改后的上限
+     */
+    public Map<String, Object> updateDownloadLimits(Integer maxConcurrent, Integer maxConnections, Long maxBandwidthKBps) {
+        int concurrent = maxConcurrent != null ? maxConcurrent : LlamaServer.getDownloadMaxConcurrent();
+        int connections = maxConnections != null ? maxConnections : LlamaServer.getDownloadMaxConnections();
+        long bandwidthKBps = maxBandwidthKBps != null ? maxBandwidthKBps : LlamaServer.getDownloadMaxBandwidthKBps();
+        if (concurrent < 1 || connections < 1 || bandwidthKBps < 0) {
+            throw new IllegalArgumentException("maxConcurrent和maxConnections必须大于0，maxBandwidthKBps不能为负数");
+        }
+        LlamaServer.setDownloadLimits(concurrent, connections, bandwidthKBps);
+        downloadManager.setLimits(concurrent, connections, bandwidthKBps * 1024);
+        return getDownloadLimits();
+    }
+    
+    /**
+     * 从仓库的文件列表中选出一个量化版本的全部文件：全部分卷，加上一个mmproj（如果有）。
+     * @param crawl 仓库的GGUF文件列表
+     * @param quant 量化类型，例如Q4_K_M，按完整的词匹配，Q4_K不会匹配到Q4_K_M
+     * @param paths 直接指定的文件路径，优先于quant
+     * @param mmproj mmproj文件路径；为空或auto时自动选择，none时不下载
+     * @return 选中的文件
+     */
+    public List<GGUFFileInfo> selectBundleFiles(GGUFCrawlResult crawl, String quant, List<String> paths, String mmproj) {
+        List<GGUFFileInfo> all = crawl.ggufFiles();
+        List<GGUFFileInfo> weights = new ArrayList<>();
+        List<GGUFFileInfo> projectors = new ArrayList<>();
+        for (GGUFFileInfo f : all) {
+            if (isMmproj(f.path())) {
+                projectors.add(f);
+            } else if (paths != null && !paths.isEmpty()) {
+                if (paths.contains(f.path())) {
+                    weights.add(f);
+                }
+            } else if (quant != null && matchesQuant(f.path(), quant)) {
+                weights.add(f);
+            }
+        }
+        if (weights.isEmpty()) {
+            throw new IllegalArgumentException("没有找到匹配的模型文件: " + (quant != null ? quant : paths));
+        }
+        checkSplitsComplete(weights);
+        
+        List<GGUFFileInfo> selected = new ArrayList<>(weights);
+        String choice = mmproj == null ? "auto" : mmproj.trim();
+        if ("none".equalsIgnoreCase(choice) || "false".equalsIgnoreCase(choice)) {
+            return selected;
+        }
+        if (!"auto".equalsIgnoreCase(choice) && !choice.isEmpty()) {
+            GGUFFileInfo p = projectors.stream().filter(f -> f.path().equals(choice)).findFirst().orElse(null);
+            if (p == null) {
+                throw new IllegalArgumentException("没有找到mmproj文件: " + choice);
+            }
+            selected.add(p);
+            return selected;
+        }
+        // 自动选择：优先F16，其次BF16，否则第一个
+        GGUFFileInfo best = null;
+        int bestRank = Integer.MAX_VALUE;
+        for (GGUFFileInfo p : projectors) {
+            String name = p.path().toLowerCase(Locale.ROOT);
+            int rank = name.contains("bf16") ? 1 : name.contains("f16") ? 0 : 2;
+            if (rank < bestRank) {
+                best = p;
+                bestRank = rank;
+            }
+        }
+        if (best != null) {
+            selected.add(best);
+        }
+        return selected;
+    }
+    
+    /**
+     * 创建多文件下载组
+     * @param crawl 仓库信息
+     * @param files 要下载的文件
+     * @param name 显示名称
+     * @param targetDir 最终的模型目录
+     * @return 创建结果
+     */
+    public Map<String, Object> createModelBundle(GGUFCrawlResult crawl, List<GGUFFileInfo> files, String name, Path targetDir) {
+        Map<String, Object> result = new HashMap<>();
+        try {
+            List<DownloadBundle.FileSpec> specs = new ArrayList<>();
+            for (GGUFFileInfo f : files) {
+                String fileName = Path.of(f.path()).getFileName().toString();
+                long size = f.lfsSize() != null ? f.lfsSize() : (f.size() != null ? f.size() : 0);
+                specs.add(new DownloadBundle.FileSpec(f.downloadUrl(), fileName, f.lfsOid(), size));
+            }
+            DownloadBundle bundle = downloadManager.createBundle(name, crawl.repoId(), crawl.revision(), targetDir, specs);
+            result.put("success", true);
+            result.put("bundle", toBundleData(bundle));
+        } catch (Exception e) {
+            e.printStackTrace();
+            result.put("success", false);
+            result.put("error", "创建下载组失败: " + e.getMessage());
+        }
+        return result;
+    }
+    
+    /**
+     * 获取全部下载组及其汇总进度
+     */
+    public Map<String, Object> getAllBundles() {
+        Map<String, Object> result = new HashMap<>();
+        List<Map<String, Object>> list = new ArrayList<>();
+        for (DownloadBundle bundle : downloadManager.getAllBundles()) {
+            list.add(toBundleData(bundle));
+        }
+        list.sort((a, b) -> String.valueOf(b.get("createdAt")).compareTo(String.valueOf(a.get("createdAt"))));
+        result.put("success", true);
+        result.put("bundles", list);
+        return result;
+    }
+    
+    /**
+     * 暂停、恢复或删除下载组
+     * @param bundleId 下载组ID
+     * @param action pause、resume或delete
+     */
+    public Map<String, Object> controlBundle(String bundleId, String action) {
+        Map<String, Object> result = new HashMap<>();
+        boolean ok = switch (action) {
+            case "pause" -> downloadManager.pauseBundle(bundleId);
+            case "resume" -> downloadManager.resumeBundle(bundleId);
+            case "delete" -> downloadManager.deleteBundle(bundleId);
+            default -> throw new IllegalArgumentException("未知操作: " + action);
+        };
+        result.put("success", ok);
+        if (!ok) {
+            result.put("error", "下载组不存在");
+        }
+        return result;
+    }
+    
+    private Map<String, Object> toBundleData(DownloadBundle bundle) {
+        List<DownloadTask> tasks = downloadManager.getBundleTasks(bundle);
+        long total = 0;
+        long downloaded = 0;
+        int completed = 0;
+        boolean failed = false;
+        boolean downloading = false;
+        List<Map<String, Object>> files = new ArrayList<>();
+        for (DownloadTask t : tasks) {
+            total += t.getTotalBytes();
+            downloaded += t.getState() == DownloadState.COMPLETED ? t.getTotalBytes() : t.getDownloadedBytes();
+            if (t.getState() == DownloadState.COMPLETED) completed++;
+            if (t.getState() == DownloadState.FAILED) failed = true;
+            if (t.getState() == DownloadState.DOWNLOADING || t.getState() == DownloadState.PREPARING) downloading = true;
+            Map<String, Object> f = new LinkedHashMap<>();
+            f.put("taskId", t.getTaskId());
+            f.put("fileName", t.getFileName());
+            f.put("state", t.getState().toString());
+            f.put("totalBytes", t.getTotalBytes());
+            f.put("downloadedBytes", t.getDownloadedBytes());
+            files.add(f);
+        }
+        String state;
+        if (bundle.isCompleted()) {
+            state = DownloadState.COMPLETED.toString();
+        } else if (failed || bundle.getErrorMessage() != null) {
+            state = DownloadState.FAILED.toString();
+        } else if (downloading) {
+            state = DownloadState.DOWNLOADING.toString();
+        } else {
+            state = DownloadState.IDLE.toString();
+        }
+        Map<String, Object> data = new LinkedHashMap<>();
+        data.put("bundleId", bundle.getBundleId());
+        data.put("name", bundle.getName());
+        data.put("repoId", bundle.getRepoId());
+        data.put("revision", bundle.getRevision());
+        data.put("targetDir", bundle.getTargetDir().toString());
+        data.put("state", state);
+        data.put("totalBytes", total);
+        data.put("downloadedBytes", downloaded);
+        data.put("progressRatio", total > 0 ? (double) downloaded / total : 0.0);
+        data.put("filesTotal", bundle.getTaskIds().size());
+        data.put("filesCompleted", completed);
+        data.put("files", files);
+        data.put("createdAt", bundle.getCreatedAt() != null ? bundle.getCreatedAt().toString() : null);
+        if (bundle.getErrorMessage() != null) {
+            data.put("errorMessage", bundle.getErrorMessage());
+        }
+        return data;
+    }
+    
+    private static boolean isMmproj(String path) {
+        String name = Path.of(path).getFileName().toString().toLowerCase(Locale.ROOT);
+        return name.contains("mmproj");
+    }
+    
+    /**
+     * quant作为一个完整的词出现在路径中：前后不是字母、数字或下划线
+     */
+    private static boolean matchesQuant(String path, String quant) {
+        String p = path.toLowerCase(Locale.ROOT);
+        String q = quant.trim().toLowerCase(Locale.ROOT);
+        if (q.isEmpty()) {
+            return false;
+        }
+        int from = 0;
+        int idx;
+        while ((idx = p.indexOf(q, from)) >= 0) {
+            int end = idx + q.length();
+            boolean startOk = idx == 0 || !isWordChar(p.charAt(idx - 1));
+            boolean endOk = end >= p.length() || !isWordChar(p.charAt(end));
+            if (startOk && endOk) {
+                return true;
+            }
+            from = idx + 1;
+        }
+        return false;
+    }
+    
+    private static boolean isWordChar(char c) {
+        return Character.isLetterOrDigit(c) || c == '_';
+    }
+    
+    /**
+     * 分卷必须齐全，而且只能属于同一组分卷
+     */
+    private static void checkSplitsComplete(List<GGUFFileInfo> weights) {
+        Map<String, TreeMap<Integer, String>> groups = new HashMap<>();
+        Map<String, Integer> expected = new HashMap<>();
+        int singles = 0;
+        for (GGUFFileInfo f : weights) {
+            Matcher m = SPLIT_PATTERN.matcher(f.path());
+            if (!m.find()) {
+                singles++;
+                continue;
+            }
+            String prefix = f.path().substring(0, m.start());
+            groups.computeIfAbsent(prefix, k -> new TreeMap<>()).put(Integer.parseInt(m.group(1)), f.path());
+            expected.put(prefix, Integer.parseInt(m.group(2)));
+        }
+        if (groups.size() + singles > 1) {
+            throw new IllegalArgumentException("匹配到多个模型文件，请指定更精确的量化类型或文件列表");
+        }
+        for (Map.Entry<String, TreeMap<Integer, String>> e : groups.entrySet()) {
+            int n = expected.get(e.getKey());
+            if (e.getValue().size() != n || e.getValue().firstKey() != 1 || e.getValue().lastKey() != n) {
+                throw new IllegalArgumentException("分卷不完整: " + e.getKey() + "，需要" + n + "个，找到" + e.getValue().size() + "个");
+            }
+        }
+    }
 }
@@ -0,0 +1,940 @@
+package org.mark.llamacpp.server.service;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.mark.llamacpp.gguf.GGUFMetaData;
+import org.mark.llamacpp.gguf.GGUFModel;
+import org.mark.llamacpp.gguf.GGUFTensorIndex;
+import org.mark.llamacpp.server.ConfigManager;
+import org.mark.llamacpp.server.LlamaServer;
+import org.mark.llamacpp.server.LlamaServerManager;
+import org.mark.llamacpp.server.tools.ChatTemplateFileTool;
+import org.mark.llamacpp.server.tools.JsonUtil;
+import org.mark.llamacpp.server.tools.ParamTool;
+import org.mark.llamacpp.server.tools.VramEstimator;
+import org.mark.llamacpp.server.tools.VramEstimator.KvCacheType;
+import org.mark.llamacpp.server.websocket.WebSocketEvent;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+
+
+/**
+ * 	启动参数调优。
+ * 	对-b、-ub、-t、-fa、-ctk/-ctv、-np的组合逐个启动llama-server并跑固定的基准测试，
+ * 	用逐次减半（successive halving）淘汰较慢的组合，最后把吞吐量与显存的帕累托最优组合保存为启动建议。
+ * 	同一时间只运行一个调优任务，调优期间的启动不会覆盖launch_config.json。
+ */
+public class LaunchTuningService {
+
+	private static final Logger logger = LoggerFactory.getLogger(LaunchTuningService.class);
+
+	private static final LaunchTuningService INSTANCE = new LaunchTuningService();
+
+	public static LaunchTuningService getInstance() {
+		return INSTANCE;
+	}
+
+	private static final long MIB = 1024L * 1024;
+
+	/**
+	 * 	单个任务最多评估的组合数
+	 */
+	private static final int MAX_CANDIDATES = 128;
+
+	/**
+	 * 	保留的历史任务数
+	 */
+	private static final int MAX_JOBS = 16;
+
+	/**
+	 * 	每个搜索维度对应的启动参数及其别名，调优时会先从基础命令中移除。
+	 */
+	private static final Map<String, Set<String>> DIMENSION_FLAGS = Map.of(
+			"batch", Set.of("-b", "--batch-size"),
+			"ubatch", Set.of("-ub", "--ubatch-size"),
+			"threads", Set.of("-t", "--threads"),
+			"flashAttn", Set.of("-fa", "--flash-attn"),
+			"cacheTypes", Set.of("-ctk", "--cache-type-k", "-ctv", "--cache-type-v"),
+			"parallel", Set.of("-np", "--parallel"));
+
+	private static final Set<String> CTX_FLAGS = Set.of("-c", "--ctx-size");
+
+	/**
+	 * 	-fa在旧版本中不带值，新版本为on/off/auto
+	 */
+	private static final Set<String> FLASH_ATTN_VALUES = Set.of("on", "off", "auto", "true", "false", "1", "0");
+
+	/**
+	 * 	一个待评估的参数组合。
+	 */
+	private static final class Candidate {
+		private final int id;
+		private final Map<String, Object> params;
+		private final String cmd;
+		private final int parallel;
+		private final long memoryBytes;
+		private int round = -1;
+		private int reps;
+		private double ppTps;
+		private double tgTps;
+		private double score;
+		private String error;
+
+		private Candidate(int id, Map<String, Object> params, String cmd, int parallel, long memoryBytes) {
+			this.id = id;
+			this.params = params;
+			this.cmd = cmd;
+			this.parallel = parallel;
+			this.memoryBytes = memoryBytes;
+		}
+
+		private Map<String, Object> toMap() {
+			Map<String, Object> m = new LinkedHashMap<>();
+			m.put("id", this.id);
+			m.put("params", this.params);
+			m.put("cmd", this.cmd);
+			m.put("memoryBytes", this.memoryBytes);
+			m.put("memoryMiB", this.memoryBytes / MIB);
+			m.put("round", this.round);
+			m.put("reps", this.reps);
+			m.put("ppTps", round2(this.ppTps));
+			m.put("tgTps", round2(this.tgTps));
+			m.put("score", round2(this.score));
+			m.put("error", this.error);
+			return m;
+		}
+	}
+
+	/**
+	 * 	调优任务的状态。
+	 */
+	private static final class TuneJob {
+		private final String jobId;
+		private final String modelId;
+		private final String llamaBinPath;
+		private final List<String> device;
+		private final Integer mg;
+		private final boolean enableVision;
+		private final int ctx;
+		private final int promptTokens;
+		private final int maxTokens;
+		private final int eta;
+		private final int baseReps;
+		private final long loadTimeoutMs;
+		private final int maxSuggestions;
+		private final List<Candidate> candidates;
+		private final long createdAt = System.currentTimeMillis();
+		private volatile String status = "pending";
+		private volatile String message;
+		private volatile int round;
+		private volatile int evaluated;
+		private volatile int planned;
+		private volatile Candidate current;
+		private volatile boolean canceled;
+		private volatile long finishedAt;
+		private volatile List<Map<String, Object>> suggestions = List.of();
+
+		private TuneJob(String jobId, String modelId, String llamaBinPath, List<String> device, Integer mg, boolean enableVision,
+				int ctx, int promptTokens, int maxTokens, int eta, int baseReps, long loadTimeoutMs, int maxSuggestions,
+				List<Candidate> candidates) {
+			this.jobId = jobId;
+			this.modelId = modelId;
+			this.llamaBinPath = llamaBinPath;
+			this.device = device;
+			this.mg = mg;
+			this.enableVision = enableVision;
+			this.ctx = ctx;
+			this.promptTokens = promptTokens;
+			this.maxTokens = maxTokens;
+			this.eta = eta;
+			this.baseReps = baseReps;
+			this.loadTimeoutMs = loadTimeoutMs;
+			this.maxSuggestions = maxSuggestions;
+			this.candidates = candidates;
+		}
+
+		private boolean isFinished() {
+			return "done".equals(this.status) || "failed".equals(this.status) || "canceled".equals(this.status);
+		}
+
+		private Map<String, Object> toMap(boolean withCandidates) {
+			Map<String, Object> m = new LinkedHashMap<>();
+			m.put("jobId", this.jobId);
+			m.put("modelId", this.modelId);
+			m.put("status", this.status);
+			m.put("message", this.message);
+			m.put("ctx", this.ctx);
+			m.put("round", this.round);
+			m.put("evaluated", this.evaluated);
+			m.put("planned", this.planned);
+			m.put("candidateCount", this.candidates.size());
+			Candidate c = this.current;
+			m.put("current", c == null ? null : c.params);
+			m.put("createdAt", this.createdAt);
+			m.put("finishedAt", this.finishedAt == 0 ? null : this.finishedAt);
+			m.put("suggestions", this.suggestions);
+			if (withCandidates) {
+				List<Map<String, Object>> list = new ArrayList<>();
+				for (Candidate x : this.candidates) {
+					list.add(x.toMap());
+				}
+				m.put("candidates", list);
+			}
+			return m;
+		}
+	}
+
+	private final Map<String, TuneJob> jobs = new ConcurrentHashMap<>();
+
+	private final AtomicInteger jobSeq = new AtomicInteger();
+
+	private final BenchmarkService benchmarkService = new BenchmarkService();
+
+	private volatile TuneJob running;
+
+
+	private LaunchTuningService() {
+
+	}
+
+	/**
+	 * 	创建并启动调优任务。
+	 * 	参数：modelId、llamaBinPath、cmd、extraParams、device、mg、enableVision（缺省时取该模型保存的启动配置）、
+	 * 	ctx、space（batch、ubatch、threads、flashAttn、cacheTypes、parallel，均为数组）、
+	 * 	promptTokens、maxTokens、eta、reps、maxCandidates、loadTimeoutSec、maxSuggestions。
+	 * @param obj
+	 * @return
+	 */
+	public Map<String, Object> start(JsonObject obj) {
+		String modelId = JsonUtil.getJsonString(obj, "modelId", null);
+		if (modelId == null || modelId.isBlank()) {
+			throw new IllegalArgumentException("缺少必需的modelId参数");
+		}
+		modelId = modelId.trim();
+		LlamaServerManager manager = LlamaServerManager.getInstance();
+		manager.listModel();
+		GGUFModel model = manager.findModelById(modelId);
+		if (model == null || model.getPrimaryModel() == null) {
+			throw new IllegalArgumentException("未找到指定模型: " + modelId);
+		}
+		if (manager.getLoadedProcesses().containsKey(modelId) || manager.isLoading(modelId)) {
+			throw new IllegalStateException("模型已加载或正在加载，请先停止后再调优");
+		}
+
+		// 未传的启动参数使用该模型上一次保存的启动配置
+		Map<String, Object> saved = ConfigManager.getInstance().loadAllLaunchConfigs().get(modelId);
+		if (saved == null) {
+			saved = Map.of();
+		}
+		String llamaBinPath = JsonUtil.getJsonString(obj, "llamaBinPath", stringValue(saved.get("llamaBinPath")));
+		if (llamaBinPath == null || llamaBinPath.isBlank()) {
+			throw new IllegalArgumentException("未提供llamaBinPath");
+		}
+		String cmd = JsonUtil.getJsonString(obj, "cmd", stringValue(saved.get("cmd")));
+		String extraParams = JsonUtil.getJsonString(obj, "extraParams", stringValue(saved.get("extraParams")));
+		List<String> device = obj.has("device") ? JsonUtil.getJsonStringList(obj.get("device")) : stringList(saved.get("device"));
+		Integer mg = JsonUtil.getJsonInt(obj, "mg", saved.get("mg") instanceof Number n ? n.intValue() : null);
+		boolean enableVision = ParamTool.parseJsonBoolean(obj, "enableVision",
+				saved.get("enableVision") == null || Boolean.parseBoolean(String.valueOf(saved.get("enableVision"))));
+
+		List<String> baseArgs = ParamTool.splitCmdArgs(((cmd == null ? "" : cmd) + " " + (extraParams == null ? "" : extraParams)).trim());
+		Integer cmdCtx = readIntFlag(baseArgs, CTX_FLAGS);
+		int ctx = JsonUtil.getJsonInt(obj, "ctx", cmdCtx != null && cmdCtx > 0 ? cmdCtx : 4096);
+		if (ctx <= 0) {
+			throw new IllegalArgumentException("ctx必须大于0");
+		}
+		int promptTokens = Math.max(16, JsonUtil.getJsonInt(obj, "promptTokens", 512));
+		int maxTokens = Math.max(8, JsonUtil.getJsonInt(obj, "maxTokens", 128));
+		int eta = Math.max(2, JsonUtil.getJsonInt(obj, "eta", 2));
+		int reps = Math.max(1, JsonUtil.getJsonInt(obj, "reps", 1));
+		int maxCandidates = Math.max(1, Math.min(MAX_CANDIDATES, JsonUtil.getJsonInt(obj, "maxCandidates", 32)));
+		long loadTimeoutMs = Math.max(10, JsonUtil.getJsonInt(obj, "loadTimeoutSec", 600)) * 1000L;
+		int maxSuggestions = Math.max(1, JsonUtil.getJsonInt(obj, "maxSuggestions", 8));
+
+		JsonObject space = obj.has("space") && obj.get("space").isJsonObject() ? obj.getAsJsonObject("space") : new JsonObject();
+		List<Candidate> candidates = this.buildCandidates(model, baseArgs, ctx, space, enableVision, maxCandidates);
+		// -np会把上下文平均分给每个槽位，单个槽位必须放得下测试请求
+		candidates.removeIf(c -> ctx / c.parallel < promptTokens + maxTokens);
+		if (candidates.isEmpty()) {
+			throw new IllegalArgumentException("搜索空间中没有有效的参数组合");
+		}
+
+		TuneJob job;
+		synchronized (this) {
+			TuneJob r = this.running;
+			if (r != null && !r.isFinished()) {
+				throw new IllegalStateException("已有调优任务在运行: " + r.jobId);
+			}
+			String jobId = "tune-" + System.currentTimeMillis() + "-" + this.jobSeq.incrementAndGet();
+			job = new TuneJob(jobId, modelId, llamaBinPath.trim(), device, mg, enableVision, ctx, promptTokens, maxTokens,
+					eta, reps, loadTimeoutMs, maxSuggestions, candidates);
+			job.planned = plannedEvaluations(candidates.size(), eta);
+			this.running = job;
+			this.jobs.put(jobId, job);
+			this.trimJobs();
+		}
+		final TuneJob target = job;
+		Thread.ofVirtual().name("launch-tune-" + job.jobId).start(() -> this.run(target));
+		return job.toMap(false);
+	}
+
+	/**
+	 * 	查询任务状态。jobId为空时返回该模型最近的任务。
+	 * @param jobId
+	 * @param modelId
+	 * @return
+	 */
+	public Map<String, Object> status(String jobId, String modelId) {
+		TuneJob job = this.findJob(jobId, modelId);
+		if (job == null) {
+			throw new IllegalArgumentException("未找到调优任务");
+		}
+		return job.toMap(true);
+	}
+
+	/**
+	 * 	取消任务，正在启动或运行的调优进程会被停止。
+	 * @param jobId
+	 * @return
+	 */
+	public Map<String, Object> cancel(String jobId, String modelId) {
+		TuneJob job = this.findJob(jobId, modelId);
+		if (job == null) {
+			throw new IllegalArgumentException("未找到调优任务");
+		}
+		if (!job.isFinished()) {
+			job.canceled = true;
+			if (job.current != null) {
+				LlamaServerManager.getInstance().stopModel(job.modelId);
+			}
+		}
+		return job.toMap(false);
+	}
+
+	/**
+	 * 	读取保存的启动建议。
+	 * @param modelId
+	 * @return
+	 */
+	public List<Map<String, Object>> suggestions(String modelId) {
+		if (modelId == null || modelId.isBlank()) {
+			throw new IllegalArgumentException("缺少必需的modelId参数");
+		}
+		return ConfigManager.getInstance().loadTuneSuggestions(modelId.trim());
+	}
+
+	private TuneJob findJob(String jobId, String modelId) {
+		if (jobId != null && !jobId.isBlank()) {
+			return this.jobs.get(jobId.trim());
+		}
+		if (modelId == null || modelId.isBlank()) {
+			return this.running;
+		}
+		TuneJob latest = null;
+		for (TuneJob j : this.jobs.values()) {
+			if (j.modelId.equals(modelId.trim()) && (latest == null || j.createdAt > latest.createdAt)) {
+				latest = j;
+			}
+		}
+		return latest;
+	}
+
+	private void trimJobs() {
+		while (this.jobs.size() > MAX_JOBS) {
+			TuneJob oldest = null;
+			for (TuneJob j : this.jobs.values()) {
+				if (j.isFinished() && (oldest == null || j.createdAt < oldest.createdAt)) {
+					oldest = j;
+				}
+			}
+			if (oldest == null) {
+				return;
+			}
+			this.jobs.remove(oldest.jobId);
+		}
+	}
+
+	//================================================================================================
+
+	/**
+	 * 	逐次减半：每轮评估全部存活的组合，保留得分最高的1/eta，下一轮重复次数翻倍。
+	 */
+	private void run(TuneJob job) {
+		job.status = "running";
+		this.sendEvent(job, "调优开始，共" + job.candidates.size() + "个组合");
+		try {
+			List<Candidate> alive = new ArrayList<>(job.candidates);
+			int reps = job.baseReps;
+			for (int round = 0;; round++) {
+				job.round = round;
+				for (Candidate c : alive) {
+					if (job.canceled) {
+						break;
+					}
+					job.current = c;
+					this.evaluate(job, c, round, reps);
+					job.evaluated++;
+					this.sendEvent(job, "评估完成: " + c.params);
+				}
+				job.current = null;
+				if (job.canceled) {
+					break;
+				}
+				List<Candidate> ranked = new ArrayList<>();
+				for (Candidate c : alive) {
+					if (c.score > 0) {
+						ranked.add(c);
+					}
+				}
+				ranked.sort((a, b) -> Double.compare(b.score, a.score));
+				int keep = (int) Math.ceil(ranked.size() / (double) job.eta);
+				if (keep <= 1) {
+					break;
+				}
+				alive = ranked.subList(0, keep);
+				reps *= 2;
+			}
+
+			List<Map<String, Object>> suggestions = this.paretoSuggestions(job);
+			job.suggestions = suggestions;
+			// 取消时只返回部分结果，不覆盖之前保存的建议
+			if (!job.canceled && !suggestions.isEmpty()) {
+				ConfigManager.getInstance().saveTuneSuggestions(job.modelId, suggestions);
+			}
+			if (job.canceled) {
+				job.status = "canceled";
+				job.message = "调优已取消";
+			} else if (suggestions.isEmpty()) {
+				job.status = "failed";
+				job.message = "没有可以成功启动的参数组合";
+			} else {
+				job.status = "done";
+				job.message = "调优完成，得到" + suggestions.size() + "个建议";
+			}
+		} catch (Exception e) {
+			logger.info("参数调优失败: {}", e.getMessage());
+			job.status = "failed";
+			job.message = "调优失败: " + e.getMessage();
+		} finally {
+			job.current = null;
+			job.finishedAt = System.currentTimeMillis();
+			this.sendEvent(job, job.message);
+		}
+	}
+
+	/**
+	 * 	启动一个组合并跑基准测试，结束后停止进程。
+	 */
+	private void evaluate(TuneJob job, Candidate c, int round, int reps) {
+		LlamaServerManager manager = LlamaServerManager.getInstance();
+		c.round = round;
+		c.reps = reps;
+		c.error = null;
+		try {
+			String error = this.launch(job, c);
+			if (error != null) {
+				c.error = error;
+				c.score = 0;
+				return;
+			}
+			// 预热一次，避免首个请求的初始化开销计入结果
+			this.benchmarkOnce(job, 16, 4, 1);
+			double pp = 0;
+			double tg = 0;
+			for (int i = 0; i < reps && !job.canceled; i++) {
+				double[] r = this.benchmarkOnce(job, job.promptTokens, job.maxTokens, c.parallel);
+				pp += r[0];
+				tg += r[1];
+			}
+			c.ppTps = pp / reps;
+			c.tgTps = tg / reps;
+			c.score = c.ppTps > 0 && c.tgTps > 0 ? Math.sqrt(c.ppTps * c.tgTps) : 0;
+		} catch (Exception e) {
+			c.error = e.getMessage();
+			c.score = 0;
+		} finally {
+			if (manager.getLoadedProcesses().containsKey(job.modelId) || manager.isLoading(job.modelId)) {
+				manager.stopModel(job.modelId);
+			}
+		}
+	}
+
+	/**
+	 * 	不保存启动配置地启动llama-server，等待加载完成。
+	 * @return 失败原因，成功时返回null
+	 */
+	private String launch(TuneJob job, Candidate c) throws InterruptedException {
+		LlamaServerManager manager = LlamaServerManager.getInstance();
+		String chatTemplateFilePath = ChatTemplateFileTool.getChatTemplateCacheFilePathIfExists(job.modelId);
+		boolean submitted = manager.loadModelAsyncFromCmd(job.modelId, job.llamaBinPath, job.device, job.mg, job.enableVision,
+				c.cmd, "", chatTemplateFilePath, false);
+		if (!submitted) {
+			return "提交加载任务失败";
+		}
+		long deadline = System.currentTimeMillis() + job.loadTimeoutMs;
+		while (System.currentTimeMillis() < deadline) {
+			if (job.canceled) {
+				return "已取消";
+			}
+			boolean loaded = manager.getLoadedProcesses().containsKey(job.modelId);
+			boolean loading = manager.isLoading(job.modelId);
+			// 加载成功后后台还会查询一次slots，等它结束再开始测试
+			if (loaded && !loading) {
+				return null;
+			}
+			if (!loaded && !loading) {
+				return "模型加载失败";
+			}
+			Thread.sleep(200);
+		}
+		return "模型加载超时";
+	}
+
+	/**
+	 * 	同时发出parallel个请求，返回合计的{prompt tps, generation tps}。
+	 */
+	private double[] benchmarkOnce(TuneJob job, int promptTokens, int maxTokens, int parallel) throws Exception {
+		JsonObject req = new JsonObject();
+		req.addProperty("modelId", job.modelId);
+		req.addProperty("promptTokens", promptTokens);
+		req.addProperty("maxTokens", maxTokens);
+		req.addProperty("save", false);
+		// 每轮都是同样的提示词，必须关闭提示词缓存，否则从第二次起prompt速度是命中KV缓存的结果
+		req.addProperty("cachePrompt", false);
+
+		List<Future<Map<String, Object>>> futures = new ArrayList<>();
+		try (ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor()) {
+			for (int i = 0; i < parallel; i++) {
+				futures.add(executor.submit(() -> this.benchmarkService.handleBenchmark(null, req.deepCopy())));
+			}
+		}
+		double pp = 0;
+		double tg = 0;
+		for (Future<Map<String, Object>> f : futures) {
+			Map<String, Object> data = f.get();
+			Object timings = data.get("timings");
+			if (timings instanceof Map<?, ?> t) {
+				pp += numberValue(t.get("prompt_per_second"));
+				tg += numberValue(t.get("predicted_per_second"));
+			}
+		}
+		return new double[] { pp, tg };
+	}
+
+	/**
+	 * 	帕累托前沿：不存在另一个组合在pp、tg都不低于它且显存不高于它（至少一项严格更好）。
+	 */
+	private List<Map<String, Object>> paretoSuggestions(TuneJob job) {
+		List<Candidate> ok = new ArrayList<>();
+		for (Candidate c : job.candidates) {
+			if (c.score > 0) {
+				ok.add(c);
+			}
+		}
+		List<Candidate> front = new ArrayList<>();
+		for (Candidate c : ok) {
+			boolean dominated = false;
+			for (Candidate d : ok) {
+				if (d == c) {
+					continue;
+				}
+				boolean noWorse = d.ppTps >= c.ppTps && d.tgTps >= c.tgTps && d.memoryBytes <= c.memoryBytes;
+				boolean better = d.ppTps > c.ppTps || d.tgTps > c.tgTps || d.memoryBytes < c.memoryBytes;
+				if (noWorse && better) {
+					dominated = true;
+					break;
+				}
+			}
+			if (!dominated) {
+				front.add(c);
+			}
+		}
+		// 经过更多轮验证的组合优先，其次按得分
+		front.sort((a, b) -> a.round != b.round ? Integer.compare(b.round, a.round) : Double.compare(b.score, a.score));
+
+		List<Map<String, Object>> out = new ArrayList<>();
+		String createdAt = ParamTool.getDate();
+		for (int i = 0; i < front.size() && out.size() < job.maxSuggestions; i++) {
+			Candidate c = front.get(i);
+			Map<String, Object> m = new LinkedHashMap<>();
+			m.put("rank", out.size() + 1);
+			m.put("params", c.params);
+			m.put("cmd", c.cmd);
+			m.put("llamaBinPath", job.llamaBinPath);
+			m.put("ctx", job.ctx);
+			m.put("ppTps", round2(c.ppTps));
+			m.put("tgTps", round2(c.tgTps));
+			m.put("score", round2(c.score));
+			m.put("memoryBytes", c.memoryBytes);
+			m.put("memoryMiB", c.memoryBytes / MIB);
+			m.put("round", c.round);
+			m.put("reps", c.reps);
+			m.put("promptTokens", job.promptTokens);
+			m.put("maxTokens", job.maxTokens);
+			m.put("jobId", job.jobId);
+			m.put("createdAt", createdAt);
+			out.add(m);
+		}
+		return out;
+	}
+
+	//================================================================================================
+
+	/**
+	 * 	按搜索空间生成组合。组合过多时用固定种子抽样，保证同样的请求得到同样的候选。
+	 */
+	private List<Candidate> buildCandidates(GGUFModel model, List<String> baseArgs, int ctx, JsonObject space,
+			boolean enableVision, int maxCandidates) {
+		List<Integer> batch = intList(space, "batch");
+		List<Integer> ubatch = intList(space, "ubatch");
+		List<Integer> threads = intList(space, "threads");
+		List<String> flashAttn = stringList(space, "flashAttn");
+		List<String> cacheTypes = stringList(space, "cacheTypes");
+		List<Integer> parallel = intList(space, "parallel");
+		if (batch.isEmpty() && ubatch.isEmpty() && threads.isEmpty() && flashAttn.isEmpty() && cacheTypes.isEmpty() && parallel.isEmpty()) {
+			batch = List.of(512, 2048);
+			ubatch = List.of(128, 512);
+			flashAttn = List.of("on", "off");
+			cacheTypes = List.of("f16", "q8_0");
+		}
+
+		// 只移除参与搜索的参数，其余保持用户原样
+		List<String> args = new ArrayList<>(baseArgs);
+		if (!batch.isEmpty()) args = removeFlags(args, DIMENSION_FLAGS.get("batch"), false);
+		if (!ubatch.isEmpty()) args = removeFlags(args, DIMENSION_FLAGS.get("ubatch"), false);
+		if (!threads.isEmpty()) args = removeFlags(args, DIMENSION_FLAGS.get("threads"), false);
+		if (!flashAttn.isEmpty()) args = removeFlags(args, DIMENSION_FLAGS.get("flashAttn"), true);
+		if (!cacheTypes.isEmpty()) args = removeFlags(args, DIMENSION_FLAGS.get("cacheTypes"), false);
+		if (!parallel.isEmpty()) args = removeFlags(args, DIMENSION_FLAGS.get("parallel"), false);
+		args = removeFlags(args, CTX_FLAGS, false);
+		String base = joinArgs(args);
+
+		// 未参与搜索的维度取基础命令里的值，用于估算显存
+		String baseFa = readStringFlag(baseArgs, DIMENSION_FLAGS.get("flashAttn"));
+		String baseK = readStringFlag(baseArgs, Set.of("-ctk", "--cache-type-k"));
+		String baseV = readStringFlag(baseArgs, Set.of("-ctv", "--cache-type-v"));
+		Integer baseNp = readIntFlag(baseArgs, DIMENSION_FLAGS.get("parallel"));
+
+		List<Integer> batchDim = batch.isEmpty() ? nullList() : batch;
+		List<Integer> ubatchDim = ubatch.isEmpty() ? nullList() : ubatch;
+		List<Integer> threadsDim = threads.isEmpty() ? nullList() : threads;
+		List<String> faDim = flashAttn.isEmpty() ? nullList() : flashAttn;
+		List<String> kvDim = cacheTypes.isEmpty() ? nullList() : cacheTypes;
+		List<Integer> npDim = parallel.isEmpty() ? nullList() : parallel;
+
+		File primary = new File(model.getPrimaryModel().getFilePath());
+		long mmprojBytes = mmprojBytes(model, enableVision);
+
+		List<Object[]> combos = new ArrayList<>();
+		for (Integer b : batchDim)
+			for (Integer ub : ubatchDim)
+				for (Integer t : threadsDim)
+					for (String fa : faDim)
+						for (String kv : kvDim)
+							for (Integer np : npDim) {
+								if (b != null && ub != null && ub > b) {
+									continue;
+								}
+								String faValue = fa != null ? fa.toLowerCase(Locale.ROOT) : baseFa;
+								String[] kvPair = kv != null ? kv.split("/") : new String[] { baseK, baseV };
+								String k = kvPair[0] != null ? kvPair[0] : "f16";
+								String v = kvPair.length > 1 && kvPair[1] != null ? kvPair[1] : (kv != null ? k : "f16");
+								// 量化的V缓存需要flash attention
+								if (!"f16".equalsIgnoreCase(v) && "off".equals(faValue)) {
+									continue;
+								}
+								combos.add(new Object[] { b, ub, t, fa, kv == null ? null : new String[] { k, v }, np, faValue, k, v });
+							}
+		if (combos.size() > maxCandidates) {
+			Collections.shuffle(combos, new Random(combos.size()));
+			combos = new ArrayList<>(combos.subList(0, maxCandidates));
+		}
+
+		List<Candidate> out = new ArrayList<>();
+		for (Object[] combo : combos) {
+			Integer b = (Integer) combo[0];
+			Integer ub = (Integer) combo[1];
+			Integer t = (Integer) combo[2];
+			String fa = (String) combo[3];
+			String[] kv = (String[]) combo[4];
+			Integer np = (Integer) combo[5];
+			String faValue = (String) combo[6];
+			int slots = np != null ? np : (baseNp != null && baseNp > 0 ? baseNp : 1);
+
+			Map<String, Object> params = new LinkedHashMap<>();
+			StringBuilder sb = new StringBuilder(base);
+			if (b != null) {
+				params.put("batch", b);
+				sb.append(" -b ").append(b);
+			}
+			if (ub != null) {
+				params.put("ubatch", ub);
+				sb.append(" -ub ").append(ub);
+			}
+			if (t != null) {
+				params.put("threads", t);
+				sb.append(" -t ").append(t);
+			}
+			if (fa != null) {
+				params.put("flashAttn", fa);
+				sb.append(" -fa ").append(fa);
+			}
+			if (kv != null) {
+				params.put("cacheTypeK", kv[0]);
+				params.put("cacheTypeV", kv[1]);
+				sb.append(" -ctk ").append(kv[0]).append(" -ctv ").append(kv[1]);
+			}
+			if (np != null) {
+				params.put("parallel", np);
+				sb.append(" -np ").append(np);
+			}
+			sb.append(" -c ").append(ctx);
+
+			long memory;
+			try {
+				memory = VramEstimator.estimate(primary, ctx, KvCacheType.from((String) combo[7]), KvCacheType.from((String) combo[8]),
+						!"off".equals(faValue), slots).totalBytes() + mmprojBytes;
+			} catch (IOException e) {
+				logger.info("估算显存失败 {}: {}", model.getModelId(), e.getMessage());
+				memory = 0;
+			}
+			out.add(new Candidate(out.size(), params, sb.toString().trim(), slots, memory));
+		}
+		return out;
+	}
+
+	private static int plannedEvaluations(int n, int eta) {
+		int total = 0;
+		int alive = n;
+		while (true) {
+			total += alive;
+			int keep = (int) Math.ceil(alive / (double) eta);
+			if (keep <= 1) {
+				return total;
+			}
+			alive = keep;
+		}
+	}
+
+	/**
+	 * 	移除参数及其取值。optionalValue为true时只有下一个值是合法取值才一起移除。
+	 */
+	private static List<String> removeFlags(List<String> args, Set<String> flags, boolean optionalValue) {
+		List<String> out = new ArrayList<>(args.size());
+		for (int i = 0; i < args.size(); i++) {
+			String a = args.get(i);
+			int eq = a.indexOf('=');
+			String name = eq > 0 ? a.substring(0, eq) : a;
+			if (!flags.contains(name)) {
+				out.add(a);
+				continue;
+			}
+			if (eq > 0 || i + 1 >= args.size()) {
+				continue;
+			}
+			String next = args.get(i + 1);
+			if (optionalValue) {
+				if (FLASH_ATTN_VALUES.contains(next.toLowerCase(Locale.ROOT))) {
+					i++;
+				}
+			} else if (!next.startsWith("-") || isNumber(next)) {
+				i++;
+			}
+		}
+		return out;
+	}
+
+	private static String readStringFlag(List<String> args, Set<String> flags) {
+		String value = null;
+		for (int i = 0; i < args.size(); i++) {
+			String a = args.get(i);
+			int eq = a.indexOf('=');
+			String name = eq > 0 ? a.substring(0, eq) : a;
+			if (!flags.contains(name)) {
+				continue;
+			}
+			if (eq > 0) {
+				value = a.substring(eq + 1);
+			} else if (i + 1 < args.size() && (!args.get(i + 1).startsWith("-") || isNumber(args.get(i + 1)))) {
+				value = args.get(i + 1);
+			} else {
+				// 旧版本的-fa不带值
+				value = "on";
+			}
+		}
+		return value == null ? null : value.toLowerCase(Locale.ROOT);
+	}
+
+	private static Integer readIntFlag(List<String> args, Set<String> flags) {
+		String v = readStringFlag(args, flags);
+		if (v == null) {
+			return null;
+		}
+		try {
+			return Integer.parseInt(v.trim());
+		} catch (NumberFormatException e) {
+			return null;
+		}
+	}
+
+	private static boolean isNumber(String s) {
+		try {
+			Double.parseDouble(s);
+			return true;
+		} catch (NumberFormatException e) {
+			return false;
+		}
+	}
+
+	private static String joinArgs(List<String> args) {
+		StringBuilder sb = new StringBuilder();
+		for (String a : args) {
+			if (sb.length() > 0) {
+				sb.append(' ');
+			}
+			sb.append(ParamTool.quoteIfNeeded(a));
+		}
+		return sb.toString();
+	}
+
+	private static long mmprojBytes(GGUFModel model, boolean enableVision) {
+		GGUFMetaData mmproj = model.getMmproj();
+		if (!enableVision || mmproj == null || mmproj.getFilePath() == null) {
+			return 0;
+		}
+		File f = new File(mmproj.getFilePath());
+		GGUFTensorIndex index = TensorIndexService.getInstance().get(f);
+		return index != null ? index.getTensorDataBytes() : f.length();
+	}
+
+	private void sendEvent(TuneJob job, String message) {
+		JsonObject event = new JsonObject();
+		event.addProperty("type", "modelTune");
+		event.addProperty("jobId", job.jobId);
+		event.addProperty("modelId", job.modelId);
+		event.addProperty("status", job.status);
+		event.addProperty("round", job.round);
+		event.addProperty("evaluated", job.evaluated);
+		event.addProperty("planned", job.planned);
+		event.addProperty("message", message == null ? "" : message);
+		event.addProperty("timestamp", System.currentTimeMillis());
+		LlamaServer.broadcastWebSocketMessage(WebSocketEvent.topic(WebSocketEvent.TUNING, job.modelId), JsonUtil.toJson(event));
+	}
+
+	@SuppressWarnings("unchecked")
+	private static <T> List<T> nullList() {
+		return (List<T>) Collections.singletonList(null);
+	}
+
+	/**
+	 * 	读取搜索空间中的整数维度，可以是单个值或数组，每个值必须是正整数
+	 */
+	private static List<Integer> intList(JsonObject space, String name) {
+		List<Integer> out = new ArrayList<>();
+		for (JsonElement e : dimensionValues(space, name)) {
+			Integer v = null;
+			if (e.isJsonPrimitive() && e.getAsJsonPrimitive().isNumber()) {
+				double d = e.getAsDouble();
+				if (d == Math.rint(d) && d > 0 && d <= Integer.MAX_VALUE) {
+					v = (int) d;
+				}
+			} else if (e.isJsonPrimitive() && e.getAsJsonPrimitive().isString()) {
+				try {
+					int i = Integer.parseInt(e.getAsString().trim());
+					v = i > 0 ? i : null;
+				} catch (NumberFormatException ignore) {
+				}
+			}
+			if (v == null) {
+				throw new IllegalArgumentException("space." + name + "必须是正整数或正整数数组: " + e);
+			}
+			out.add(v);
+		}
+		return out;
+	}
+
+	/**
+	 * 	读取搜索空间中的字符串维度，可以是单个值或数组
+	 */
+	private static List<String> stringList(JsonObject space, String name) {
+		List<String> out = new ArrayList<>();
+		for (JsonElement e : dimensionValues(space, name)) {
+			if (!e.isJsonPrimitive() || e.getAsString().isBlank()) {
+				throw new IllegalArgumentException("space." + name + "必须是字符串或字符串数组: " + e);
+			}
+			out.add(e.getAsString().trim());
+		}
+		return out;
+	}
+
+	private static List<JsonElement> dimensionValues(JsonObject space, String name) {
+		JsonElement el = space.get(name);
+		List<JsonElement> out = new ArrayList<>();
+		if (el == null || el.isJsonNull()) {
+			return out;
+		}
+		if (el.isJsonArray()) {
+			for (JsonElement e : el.getAsJsonArray()) {
+				if (e == null || e.isJsonNull()) {
+					throw new IllegalArgumentException("space." + name + "中不能有null");
+				}
+				out.add(e);
+			}
+		} else {
+			out.add(el);
+		}
+		return out;
+	}
+
+	private static List<String> stringList(Object value) {
+		if (!(value instanceof List<?> list)) {
+			return null;
+		}
+		List<String> out = new ArrayList<>();
+		for (Object o : list) {
+			if (o != null) {
+				out.add(String.valueOf(o));
+			}
+		}
+		return out;
+	}
+
+	private static String stringValue(Object value) {
+		return value == null ? null : String.valueOf(value);
+	}
+
+	private static double numberValue(Object value) {
+		if (value instanceof Number n) {
+			return n.doubleValue();
+		}
+		if (value != null) {
+			try {
+				return Double.parseDouble(String.valueOf(value));
+			} catch (NumberFormatException e) {
+				return 0;
+			}
+		}
+		return 0;
+	}
+
+	private static double round2(double v) {
+		return Math.round(v * 100.0) / 100.0;
+	}
+}
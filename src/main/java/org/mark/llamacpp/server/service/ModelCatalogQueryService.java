@@ -0,0 +1,404 @@
+package org.mark.llamacpp.server.service;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+import org.mark.llamacpp.gguf.GGUFMetaData;
+import org.mark.llamacpp.gguf.GGUFModel;
+import org.mark.llamacpp.server.LlamaServerManager;
+import org.mark.llamacpp.server.tools.JsonUtil;
+import org.mark.llamacpp.server.tools.ParamTool;
+
+import com.google.gson.JsonObject;
+
+
+/**
+ * 	模型目录的服务端查询：过滤、排序、游标分页和字段投影。
+ * 	查询基于模型目录快照建立的内存索引，目录版本变化时才重建。
+ */
+public class ModelCatalogQueryService {
+
+	private static final int DEFAULT_LIMIT = 50;
+
+	private static final int MAX_LIMIT = 500;
+
+	/**
+	 * 	可以投影的字段
+	 */
+	private static final List<String> ALL_FIELDS = List.of("id", "name", "alias", "path", "fileName", "size", "architecture",
+			"quantization", "contextLength", "multimodal", "favourite", "loaded", "capabilities");
+
+	/**
+	 * 	可以排序的字段
+	 */
+	private static final Set<String> SORT_FIELDS = Set.of("name", "size", "architecture", "quantization", "contextLength");
+
+	/**
+	 * 	可以过滤的能力
+	 */
+	private static final Set<String> CAPABILITIES = Set.of("tools", "thinking", "rerank", "embedding", "multimodal");
+
+	/**
+	 * 	单条模型的索引记录，字段都是预先计算好的。
+	 */
+	private static final class Entry {
+		private String id;
+		private String name;
+		private String alias;
+		private String path;
+		private String fileName;
+		private long size;
+		private String architecture;
+		private String quantization;
+		private long contextLength;
+		private boolean favourite;
+		private final Set<String> capabilities = new LinkedHashSet<>();
+		/**
+		 * 	用于关键字搜索的小写文本
+		 */
+		private String searchText;
+	}
+
+	/**
+	 * 	某个目录版本对应的索引。
+	 */
+	private static final class CatalogIndex {
+		private final long version;
+		private final List<Entry> entries;
+		private final Map<String, List<Entry>> byArchitecture;
+		private final Map<String, List<Entry>> byQuantization;
+
+		private CatalogIndex(long version, List<Entry> entries) {
+			this.version = version;
+			this.entries = entries;
+			this.byArchitecture = new HashMap<>();
+			this.byQuantization = new HashMap<>();
+			for (Entry e : entries) {
+				this.byArchitecture.computeIfAbsent(e.architecture, k -> new ArrayList<>()).add(e);
+				this.byQuantization.computeIfAbsent(e.quantization, k -> new ArrayList<>()).add(e);
+			}
+		}
+	}
+
+	private volatile CatalogIndex index;
+
+
+	public ModelCatalogQueryService() {
+
+	}
+
+	/**
+	 * 	计算本次查询的ETag。由目录版本、加载状态版本和查询条件决定，不需要执行查询。
+	 * 	查询条件按参数名排序后取SHA-256的前16位，不使用hashCode，避免不同的条件得到相同的ETag。
+	 * @param uri
+	 * @return
+	 */
+	public String buildEtag(String uri) {
+		LlamaServerManager manager = LlamaServerManager.getInstance();
+		StringBuilder canonical = new StringBuilder();
+		for (Map.Entry<String, String> e : new TreeMap<>(ParamTool.getQueryParam(uri)).entrySet()) {
+			canonical.append(e.getKey()).append('\0').append(e.getValue() == null ? "" : e.getValue()).append('\0');
+		}
+		String digest = ParamTool.buildEtag(canonical.toString().getBytes(StandardCharsets.UTF_8)).replace("\"", "");
+		return String.format("W/\"catalog-%d-%d-%s%s\"", manager.getCatalogVersion(), manager.getLoadedVersion(),
+				digest.substring(0, Math.min(16, digest.length())), manager.isCatalogPartial() ? "-p" : "");
+	}
+
+	/**
+	 * 	执行查询。
+	 * @param uri
+	 * @return
+	 */
+	public Map<String, Object> query(String uri) {
+		LlamaServerManager manager = LlamaServerManager.getInstance();
+		Map<String, String> params = ParamTool.getQueryParam(uri);
+		CatalogIndex idx = this.currentIndex(manager);
+		Set<String> loaded = manager.getLoadedProcesses().keySet();
+
+		// 过滤
+		// 索引中的架构名是小写的，查询时同样转成小写
+		List<String> archs = new ArrayList<>();
+		for (String a : splitList(params.get("architecture"), false)) {
+			archs.add(a.toLowerCase(Locale.ROOT));
+		}
+		List<String> quants = splitList(params.get("quantization"), true);
+		List<String> caps = splitList(params.get("capabilities"), false);
+		for (String c : caps) {
+			if (!CAPABILITIES.contains(c)) {
+				throw new IllegalArgumentException("不支持的能力: " + c);
+			}
+		}
+		String keyword = params.getOrDefault("q", "").trim().toLowerCase(Locale.ROOT);
+		Long minSize = parseLong(params.get("minSize"), "minSize");
+		Long maxSize = parseLong(params.get("maxSize"), "maxSize");
+		Boolean favourite = parseBoolean(params.get("favourite"));
+		Boolean loadedFilter = parseBoolean(params.get("loaded"));
+
+		List<Entry> candidates = idx.entries;
+		if (!archs.isEmpty()) {
+			candidates = collect(idx.byArchitecture, archs);
+		}
+		if (!quants.isEmpty()) {
+			List<Entry> byQuant = collect(idx.byQuantization, quants);
+			if (byQuant.size() < candidates.size()) {
+				Set<Entry> allowed = Collections.newSetFromMap(new IdentityHashMap<>());
+				allowed.addAll(candidates);
+				byQuant.removeIf(e -> !allowed.contains(e));
+				candidates = byQuant;
+			} else {
+				Set<String> q = new LinkedHashSet<>(quants);
+				candidates = new ArrayList<>(candidates);
+				candidates.removeIf(e -> !q.contains(e.quantization));
+			}
+		}
+		List<Entry> matched = new ArrayList<>();
+		for (Entry e : candidates) {
+			if (!keyword.isEmpty() && !e.searchText.contains(keyword)) continue;
+			if (minSize != null && e.size < minSize) continue;
+			if (maxSize != null && e.size > maxSize) continue;
+			if (favourite != null && e.favourite != favourite) continue;
+			if (loadedFilter != null && loaded.contains(e.id) != loadedFilter) continue;
+			if (!e.capabilities.containsAll(caps)) continue;
+			matched.add(e);
+		}
+
+		// 排序，主键相同时按id排序，保证游标稳定
+		String sort = params.getOrDefault("sort", "name");
+		if (!SORT_FIELDS.contains(sort)) {
+			throw new IllegalArgumentException("不支持的排序字段: " + sort);
+		}
+		boolean desc = "desc".equalsIgnoreCase(params.get("order"));
+		Comparator<Entry> cmp = (a, b) -> {
+			int c = compareKeys(sortKey(a, sort), sortKey(b, sort));
+			if (desc) c = -c;
+			return c != 0 ? c : a.id.compareTo(b.id);
+		};
+		matched.sort(cmp);
+
+		// 游标分页
+		int limit = DEFAULT_LIMIT;
+		if (params.containsKey("limit")) {
+			Long l = parseLong(params.get("limit"), "limit");
+			limit = (int) Math.max(1, Math.min(MAX_LIMIT, l));
+		}
+		int start = 0;
+		String cursor = params.get("cursor");
+		if (cursor != null && !cursor.isBlank()) {
+			start = this.locateCursor(matched, cursor, sort, desc);
+		}
+		int end = Math.min(matched.size(), start + limit);
+
+		// 字段投影
+		List<String> fields = splitList(params.get("fields"), false);
+		if (fields.isEmpty()) {
+			fields = ALL_FIELDS;
+		}
+		List<Map<String, Object>> items = new ArrayList<>(Math.max(0, end - start));
+		for (int i = start; i < end; i++) {
+			items.add(project(matched.get(i), fields, loaded));
+		}
+
+		Map<String, Object> data = new LinkedHashMap<>();
+		data.put("items", items);
+		data.put("total", matched.size());
+		data.put("nextCursor", end < matched.size() ? encodeCursor(matched.get(end - 1), sort) : null);
+		data.put("version", idx.version);
+		data.put("partial", manager.isCatalogPartial());
+		return data;
+	}
+
+	/**
+	 * 	获取当前版本的索引，版本变化时重建。
+	 * @param manager
+	 * @return
+	 */
+	private CatalogIndex currentIndex(LlamaServerManager manager) {
+		long version = manager.getCatalogVersion();
+		CatalogIndex idx = this.index;
+		if (idx != null && idx.version == version) {
+			return idx;
+		}
+		synchronized (this) {
+			idx = this.index;
+			if (idx == null || idx.version != version) {
+				// 先读版本再取快照，构建期间发生的变化会在下次查询时重建
+				List<Entry> entries = new ArrayList<>();
+				for (GGUFModel m : manager.snapshotModels()) {
+					entries.add(toEntry(manager, m));
+				}
+				idx = new CatalogIndex(version, entries);
+				this.index = idx;
+			}
+		}
+		return idx;
+	}
+
+	private static Entry toEntry(LlamaServerManager manager, GGUFModel m) {
+		GGUFMetaData primary = m.getPrimaryModel();
+		Entry e = new Entry();
+		e.id = m.getModelId();
+		e.name = m.getName();
+		e.alias = m.getAlias();
+		e.path = m.getPath();
+		e.fileName = primary == null ? null : primary.getFileName();
+		e.size = m.getSize();
+		String arch = ParamTool.readArchitecture(m);
+		e.architecture = arch == null ? "" : arch.toLowerCase(Locale.ROOT);
+		String quant = ParamTool.readQuantization(m);
+		e.quantization = quant == null ? "" : quant.toUpperCase(Locale.ROOT);
+		Integer ctx = primary == null ? null : primary.getContextLength();
+		e.contextLength = ctx == null ? -1 : ctx.longValue();
+		e.favourite = m.isFavourite();
+		if (m.getMmproj() != null) {
+			e.capabilities.add("multimodal");
+		}
+		JsonObject caps = manager.getModelCapabilities(e.id);
+		for (String c : List.of("tools", "thinking", "rerank", "embedding")) {
+			if (ParamTool.parseJsonBoolean(caps, c, false)) {
+				e.capabilities.add(c);
+			}
+		}
+		e.searchText = String.join(" ", String.valueOf(e.id), String.valueOf(e.name), String.valueOf(e.alias)).toLowerCase(Locale.ROOT);
+		return e;
+	}
+
+	private static Map<String, Object> project(Entry e, List<String> fields, Set<String> loaded) {
+		Map<String, Object> out = new LinkedHashMap<>();
+		for (String f : fields) {
+			switch (f) {
+			case "id" -> out.put("id", e.id);
+			case "name" -> out.put("name", e.name);
+			case "alias" -> out.put("alias", e.alias);
+			case "path" -> out.put("path", e.path);
+			case "fileName" -> out.put("fileName", e.fileName);
+			case "size" -> out.put("size", e.size);
+			case "architecture" -> out.put("architecture", e.architecture);
+			case "quantization" -> out.put("quantization", e.quantization);
+			case "contextLength" -> out.put("contextLength", e.contextLength < 0 ? null : e.contextLength);
+			case "multimodal" -> out.put("multimodal", e.capabilities.contains("multimodal"));
+			case "favourite" -> out.put("favourite", e.favourite);
+			case "loaded" -> out.put("loaded", loaded.contains(e.id));
+			case "capabilities" -> out.put("capabilities", new ArrayList<>(e.capabilities));
+			default -> throw new IllegalArgumentException("不支持的字段: " + f);
+			}
+		}
+		return out;
+	}
+
+	private static Comparable<?> sortKey(Entry e, String sort) {
+		return switch (sort) {
+		case "size" -> e.size;
+		case "contextLength" -> e.contextLength;
+		case "architecture" -> e.architecture;
+		case "quantization" -> e.quantization;
+		default -> e.name == null ? "" : e.name.toLowerCase(Locale.ROOT);
+		};
+	}
+
+	@SuppressWarnings({ "unchecked", "rawtypes" })
+	private static int compareKeys(Comparable a, Comparable b) {
+		return a.compareTo(b);
+	}
+
+	private static String encodeCursor(Entry last, String sort) {
+		JsonObject obj = new JsonObject();
+		obj.addProperty("s", sort);
+		Object key = sortKey(last, sort);
+		if (key instanceof Long) {
+			obj.addProperty("k", (Long) key);
+		} else {
+			obj.addProperty("k", (String) key);
+		}
+		obj.addProperty("id", last.id);
+		return Base64.getUrlEncoder().withoutPadding().encodeToString(obj.toString().getBytes(StandardCharsets.UTF_8));
+	}
+
+	/**
+	 * 	找到游标之后的第一条记录。按键值比较而不是按位置，目录变化后翻页也不会重复或遗漏。
+	 * @param sorted
+	 * @param cursor
+	 * @param sort
+	 * @param desc
+	 * @return
+	 */
+	private int locateCursor(List<Entry> sorted, String cursor, String sort, boolean desc) {
+		JsonObject obj;
+		try {
+			obj = JsonUtil.fromJson(new String(Base64.getUrlDecoder().decode(cursor), StandardCharsets.UTF_8), JsonObject.class);
+		} catch (Exception e) {
+			throw new IllegalArgumentException("无效的cursor");
+		}
+		if (obj == null || !sort.equals(JsonUtil.getJsonString(obj, "s", null)) || !obj.has("k") || !obj.has("id")) {
+			throw new IllegalArgumentException("cursor与当前排序不匹配");
+		}
+		Comparable<?> key = ("size".equals(sort) || "contextLength".equals(sort)) ? (Comparable<?>) obj.get("k").getAsLong() : obj.get("k").getAsString();
+		String id = obj.get("id").getAsString();
+		int lo = 0, hi = sorted.size();
+		while (lo < hi) {
+			int mid = (lo + hi) >>> 1;
+			Entry e = sorted.get(mid);
+			int c = compareKeys(sortKey(e, sort), key);
+			if (desc) c = -c;
+			if (c == 0) c = e.id.compareTo(id);
+			if (c <= 0) {
+				lo = mid + 1;
+			} else {
+				hi = mid;
+			}
+		}
+		return lo;
+	}
+
+	private static List<Entry> collect(Map<String, List<Entry>> map, List<String> keys) {
+		List<Entry> out = new ArrayList<>();
+		for (String k : new LinkedHashSet<>(keys)) {
+			List<Entry> found = map.get(k);
+			if (found != null) out.addAll(found);
+		}
+		return out;
+	}
+
+	private static List<String> splitList(String value, boolean upper) {
+		List<String> out = new ArrayList<>();
+		if (value == null || value.isBlank()) {
+			return out;
+		}
+		for (String part : value.split(",")) {
+			String p = part.trim();
+			if (p.isEmpty()) continue;
+			out.add(upper ? p.toUpperCase(Locale.ROOT) : p);
+		}
+		return out;
+	}
+
+	private static Long parseLong(String value, String name) {
+		if (value == null || value.isBlank()) {
+			return null;
+		}
+		try {
+			return Long.parseLong(value.trim());
+		} catch (NumberFormatException e) {
+			throw new IllegalArgumentException(name + "必须是整数");
+		}
+	}
+
+	private static Boolean parseBoolean(String value) {
+		if (value == null || value.isBlank()) {
+			return null;
+		}
+		String v = value.trim().toLowerCase(Locale.ROOT);
+		return "true".equals(v) || "1".equals(v) || "yes".equals(v);
+	}
+}
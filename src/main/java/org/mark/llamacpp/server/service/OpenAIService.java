@@ -20,7 +20,10 @@ import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 
 import org.mark.llamacpp.server.LlamaCppProcess;
+import org.mark.llamacpp.server.LlamaServer;
 import org.mark.llamacpp.server.LlamaServerManager;
+import org.mark.llamacpp.server.ModelCatalogSnapshot;
+import org.mark.llamacpp.server.metrics.MetricsStore;
 import org.mark.llamacpp.server.tools.JsonUtil;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -121,81 +124,99 @@ public class OpenAIService {
 				this.sendOpenAIErrorResponseWithCleanup(ctx, 405, null, "Only GET method is supported", "method");
 				return;
 			}
-			LlamaServerManager manager = LlamaServerManager.getInstance();
-			Map<String, LlamaCppProcess> loaded = manager.getLoadedProcesses();
+			// 列表在目录快照上只序列化一次，客户端缓存未过期时直接返回304
+			ModelCatalogSnapshot.View view = ModelCatalogSnapshot.current().view("openai.models", OpenAIService::buildOpenAIModelList);
+			if (LlamaServer.etagMatches(request.headers().get(HttpHeaderNames.IF_NONE_MATCH), view.getEtag())) {
+				LlamaServer.sendNotModifiedResponse(ctx, view.getEtag());
+				return;
+			}
+			this.sendOpenAIJsonBytes(ctx, view.getBytes(), view.getEtag());
+		} catch (Exception e) {
+			logger.info("获取模型列表时发生错误", e);
+			this.sendOpenAIErrorResponseWithCleanup(ctx, 500, null, e.getMessage(), null);
+		}
+	}
 
-			Map<String, JsonObject> modelsByKey = new LinkedHashMap<>();
-			Map<String, JsonObject> dataById = new LinkedHashMap<>();
+	/**
+	 * 	在目录快照上构建OpenAI格式的模型列表。
+	 * @param snapshot
+	 * @return
+	 */
+	private static JsonObject buildOpenAIModelList(ModelCatalogSnapshot snapshot) {
+		LlamaServerManager manager = LlamaServerManager.getInstance();
+		Map<String, LlamaCppProcess> loaded = snapshot.getLoaded();
 
-			for (Map.Entry<String, LlamaCppProcess> e : loaded.entrySet()) {
-				String modelId = e.getKey();
-				if (modelId == null || modelId.isBlank()) {
-					continue;
-				}
-				// 取出配置的上下文长度
-				int runtimeCtx = e.getValue().getCtxSize();
-				
-				JsonObject info = manager.getLoadedModelInfo(modelId);
-				if (info == null) {
-					try {
-						info = manager.handleModelInfo(modelId);
-					} catch (Exception ignore) {
-						info = null;
-					}
-				}
-				if (info == null) {
-					continue;
+		Map<String, JsonObject> modelsByKey = new LinkedHashMap<>();
+		Map<String, JsonObject> dataById = new LinkedHashMap<>();
+
+		for (Map.Entry<String, LlamaCppProcess> e : loaded.entrySet()) {
+			String modelId = e.getKey();
+			if (modelId == null || modelId.isBlank()) {
+				continue;
+			}
+			// 取出配置的上下文长度
+			int runtimeCtx = e.getValue().getCtxSize();
+			
+			JsonObject info = manager.getLoadedModelInfo(modelId);
+			if (info == null) {
+				try {
+					info = manager.handleModelInfo(modelId);
+				} catch (Exception ignore) {
+					info = null;
 				}
+			}
+			if (info == null) {
+				continue;
+			}
 
-				if (!info.has("items") || !info.get("items").isJsonArray()) {
+			if (!info.has("items") || !info.get("items").isJsonArray()) {
+				continue;
+			}
+			JsonArray items = info.getAsJsonArray("items");
+			for (JsonElement itemEl : items) {
+				if (itemEl == null || itemEl.isJsonNull() || !itemEl.isJsonObject()) {
 					continue;
 				}
-				JsonArray items = info.getAsJsonArray("items");
-				for (JsonElement itemEl : items) {
-					if (itemEl == null || itemEl.isJsonNull() || !itemEl.isJsonObject()) {
-						continue;
-					}
-					JsonObject item = itemEl.getAsJsonObject();
+				JsonObject item = itemEl.getAsJsonObject();
 
-					if (item.has("model") && item.get("model").isJsonObject()) {
-						JsonObject m = item.getAsJsonObject("model");
-						String key = JsonUtil.getJsonString(m, "model");
-						if (key.isEmpty()) {
-							key = JsonUtil.getJsonString(m, "name");
-						}
-						if (!key.isEmpty() && !modelsByKey.containsKey(key)) {
-							JsonObject mCopy = m.deepCopy();
-							mCopy.addProperty("runtimeCtx", runtimeCtx);
-							modelsByKey.put(key, mCopy);
-						}
+				if (item.has("model") && item.get("model").isJsonObject()) {
+					JsonObject m = item.getAsJsonObject("model");
+					String key = JsonUtil.getJsonString(m, "model");
+					if (key.isEmpty()) {
+						key = JsonUtil.getJsonString(m, "name");
 					}
-
-					if (item.has("data") && item.get("data").isJsonObject()) {
-						JsonObject d = item.getAsJsonObject("data");
-						String id = JsonUtil.getJsonString(d, "id");
-						if (!id.isEmpty() && !dataById.containsKey(id)) {
-							JsonObject dCopy = d.deepCopy();
-							dCopy.addProperty("runtimeCtx", runtimeCtx);
-							dataById.put(id, dCopy);
-						}
+					if (!key.isEmpty() && !modelsByKey.containsKey(key)) {
+						JsonObject mCopy = m.deepCopy();
+						mCopy.addProperty("runtimeCtx", runtimeCtx);
+						modelsByKey.put(key, mCopy);
 					}
 				}
-			}
 
-			JsonArray data = new JsonArray();
-			for (JsonObject d : dataById.values()) {
-				data.add(d);
+				if (item.has("data") && item.get("data").isJsonObject()) {
+					JsonObject d = item.getAsJsonObject("data");
+					String id = JsonUtil.getJsonString(d, "id");
+					if (!id.isEmpty() && !dataById.containsKey(id)) {
+						JsonObject dCopy = d.deepCopy();
+						dCopy.addProperty("runtimeCtx", runtimeCtx);
+						dataById.put(id, dCopy);
+					}
+				}
 			}
+		}
 
-			// OpenAI 标准格式：只返回 data 字段
-			JsonObject response = new JsonObject();
-			response.addProperty("object", "list");
-			response.add("data", data);
-			sendOpenAIJsonResponse(ctx, response);
-		} catch (Exception e) {
-			logger.info("获取模型列表时发生错误", e);
-			this.sendOpenAIErrorResponseWithCleanup(ctx, 500, null, e.getMessage(), null);
+		JsonArray data = new JsonArray();
+		for (JsonObject d : dataById.values()) {
+			data.add(d);
 		}
+
+		// OpenAI 标准格式：只返回 data 字段
+		JsonObject response = new JsonObject();
+		response.addProperty("object", "list");
+		response.add("data", data);
+		// 扩展字段：模型目录是否仍在后台加载，以及目录版本
+		response.addProperty("partial", snapshot.isPartial());
+		response.addProperty("catalog_version", snapshot.getCatalogVersion());
+		return response;
 	}
 	
 	
@@ -451,6 +472,8 @@ public class OpenAIService {
 		worker.execute(() -> {
 			// 添加断开连接的事件监听
 			HttpURLConnection connection = null;
+			long started = System.nanoTime();
+			int responseCode = -1;
 			try {
 				// 构建目标URL
 				String targetUrl = String.format("http://localhost:%d%s", port, endpoint);
@@ -492,7 +515,7 @@ public class OpenAIService {
 				}
 				
 				// 获取响应码
-				int responseCode = connection.getResponseCode();
+				responseCode = connection.getResponseCode();
 				logger.info("llama.cpp进程响应码: {}", responseCode);
 				
 				if (isStream) {
@@ -518,6 +541,7 @@ public class OpenAIService {
 				synchronized (this.channelConnectionMap) {
 					this.channelConnectionMap.remove(ctx);
 				}
+				MetricsStore.getInstance().recordProxy(modelName, responseCode, started);
 			}
 		});
 	}
@@ -751,11 +775,17 @@ public class OpenAIService {
 	private void sendOpenAIJsonResponse(ChannelHandlerContext ctx, Object data) {
 		String json = JsonUtil.toJson(data);
 		byte[] content = json.getBytes(StandardCharsets.UTF_8);
-
+		this.sendOpenAIJsonBytes(ctx, content, buildEtag(content));
+	}
+	
+	/**
+	 * 发送已经序列化好的OpenAI格式JSON响应
+	 */
+	private void sendOpenAIJsonBytes(ChannelHandlerContext ctx, byte[] content, String etag) {
 		FullHttpResponse response = new DefaultFullHttpResponse(HttpVersion.HTTP_1_1, HttpResponseStatus.OK);
 		response.headers().set(HttpHeaderNames.CONTENT_TYPE, "application/json; charset=utf-8");
 		response.headers().set(HttpHeaderNames.CONTENT_LENGTH, content.length);
-		response.headers().set(HttpHeaderNames.ETAG, buildEtag(content));
+		response.headers().set(HttpHeaderNames.ETAG, etag);
 		response.headers().set("X-Powered-By", "Express");
 		// 添加CORS头
 		response.headers().set(HttpHeaderNames.ACCESS_CONTROL_ALLOW_ORIGIN, "*");
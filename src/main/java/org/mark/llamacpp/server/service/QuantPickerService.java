@@ -0,0 +1,447 @@
+package org.mark.llamacpp.server.service;
+
+import java.io.IOException;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.nio.ByteBuffer;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.mark.llamacpp.crawler.HuggingFaceModelCrawler;
+import org.mark.llamacpp.crawler.HuggingFaceModelCrawler.GGUFCrawlResult;
+import org.mark.llamacpp.crawler.HuggingFaceModelCrawler.GGUFFileInfo;
+import org.mark.llamacpp.download.RemoteGGUFHeader;
+import org.mark.llamacpp.gguf.GGUFMetaData;
+import org.mark.llamacpp.gguf.GGUFMetaDataReader;
+import org.mark.llamacpp.gguf.GGUFTensorIndex;
+import org.mark.llamacpp.server.tools.VramEstimator;
+import org.mark.llamacpp.server.tools.VramEstimator.Estimate;
+import org.mark.llamacpp.server.tools.VramEstimator.KvCacheType;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+
+/**
+ * 	下载前挑选量化版本：只用HTTP Range读取仓库中每个GGUF的头部，估算指定上下文下的显存，按能否放下和质量排序。
+ * 	同一个仓库的各个量化版本架构参数相同，只有一个版本（最小的那个）读取完整头部用于估算KV缓存和运行时开销，
+ * 	其他版本只读取开头一小段得到量化类型和架构参数，权重按文件大小计算。读取结果按文件的LFS哈希缓存。
+ */
+public class QuantPickerService {
+
+	private static final Logger logger = LoggerFactory.getLogger(QuantPickerService.class);
+
+	private static final long MIB = 1024L * 1024;
+
+	/**
+	 * 	每个文件读取的开头字节数，general.*和架构参数在词表之前
+	 */
+	private static final int KV_PROBE_BYTES = 256 * 1024;
+
+	/**
+	 * 	同时读取的文件数
+	 */
+	private static final int MAX_PARALLEL_PROBES = 8;
+
+	/**
+	 * 	缓存的完整头部个数，词表大的模型头部有十几MB
+	 */
+	private static final int MAX_CACHED_HEADERS = 16;
+
+	private static final int MAX_CACHED_PROBES = 2048;
+
+	private static final String USER_AGENT = "hf-model-crawler/0.0.1 (+https://huggingface.co)";
+
+	private static final Pattern SPLIT_PATTERN = Pattern.compile("^(.*)-(\\d{5})-of-(\\d{5})\\.gguf$", Pattern.CASE_INSENSITIVE);
+
+	private static final QuantPickerService INSTANCE = new QuantPickerService();
+
+	public static QuantPickerService getInstance() {
+		return INSTANCE;
+	}
+
+	/**
+	 * 	一个量化版本的全部分卷。
+	 */
+	private static final class Quant {
+		private final String key;
+		private final List<GGUFFileInfo> files = new ArrayList<>();
+		private long size;
+		private Map<String, Object> meta;
+
+		private Quant(String key) {
+			this.key = key;
+		}
+
+		private GGUFFileInfo first() {
+			return this.files.get(0);
+		}
+	}
+
+	private record CachedHeader(ByteBuffer header, long fetchedAt) {
+	}
+
+	private final HttpClient client = HuggingFaceModelCrawler.sharedClient();
+
+	/**
+	 * 	文件开头的键值，按最近使用淘汰
+	 */
+	private final Map<String, Map<String, Object>> probes = Collections.synchronizedMap(
+			new LinkedHashMap<String, Map<String, Object>>(16, 0.75f, true) {
+				private static final long serialVersionUID = 1L;
+
+				@Override
+				protected boolean removeEldestEntry(Map.Entry<String, Map<String, Object>> eldest) {
+					return size() > MAX_CACHED_PROBES;
+				}
+			});
+
+	private final Map<String, CachedHeader> headers = new ConcurrentHashMap<>();
+
+	/**
+	 * 	正在读取的完整头部，同一个文件的并发请求共用一次读取，读完即移除
+	 */
+	private final Map<String, CompletableFuture<ByteBuffer>> fetching = new ConcurrentHashMap<>();
+
+
+	private QuantPickerService() {
+
+	}
+
+	/**
+	 * 	列出仓库中的量化版本并排序。
+	 * @param model 仓库ID或地址
+	 * @param base HuggingFace站点，可以为null
+	 * @param contextLength 上下文长度
+	 * @param kvCacheTypeK
+	 * @param kvCacheTypeV
+	 * @param flashAttention
+	 * @param budgetMiB 显存预算，0表示不判断能否放下，只按质量排序
+	 * @param enableVision 是否计入mmproj
+	 * @param timeoutSeconds 单个请求的超时时间
+	 * @return
+	 * @throws IOException
+	 * @throws InterruptedException
+	 */
+	public Map<String, Object> pick(String model, String base, int contextLength, KvCacheType kvCacheTypeK, KvCacheType kvCacheTypeV,
+			boolean flashAttention, long budgetMiB, boolean enableVision, int timeoutSeconds) throws IOException, InterruptedException {
+		if (contextLength <= 0) {
+			throw new IllegalArgumentException("ctx必须大于0");
+		}
+		Duration timeout = Duration.ofSeconds(Math.max(1, timeoutSeconds));
+		GGUFCrawlResult crawl = HuggingFaceModelCrawler.crawlGGUFFiles(model, timeoutSeconds, base);
+
+		// 按分卷分组，mmproj单独处理
+		Map<String, Quant> groups = new LinkedHashMap<>();
+		List<GGUFFileInfo> projectors = new ArrayList<>();
+		for (GGUFFileInfo f : crawl.ggufFiles()) {
+			if (fileName(f.path()).toLowerCase(Locale.ROOT).contains("mmproj")) {
+				projectors.add(f);
+				continue;
+			}
+			Matcher m = SPLIT_PATTERN.matcher(f.path());
+			String key = m.matches() ? m.group(1) : f.path().substring(0, f.path().length() - ".gguf".length());
+			Quant q = groups.computeIfAbsent(key, Quant::new);
+			q.files.add(f);
+			q.size += sizeOf(f);
+		}
+		if (groups.isEmpty()) {
+			throw new IllegalArgumentException("仓库中没有GGUF模型文件: " + crawl.repoId());
+		}
+		List<Quant> quants = new ArrayList<>(groups.values());
+		for (Quant q : quants) {
+			q.files.sort(Comparator.comparing(GGUFFileInfo::path));
+		}
+
+		// 并发读取每个版本第一卷的开头
+		Semaphore permits = new Semaphore(MAX_PARALLEL_PROBES);
+		try (ExecutorService pool = Executors.newVirtualThreadPerTaskExecutor()) {
+			List<Future<Map<String, Object>>> futures = new ArrayList<>();
+			for (Quant q : quants) {
+				futures.add(pool.submit(() -> {
+					permits.acquire();
+					try {
+						return this.probe(q.first(), timeout);
+					} finally {
+						permits.release();
+					}
+				}));
+			}
+			for (int i = 0; i < quants.size(); i++) {
+				try {
+					quants.get(i).meta = futures.get(i).get();
+				} catch (ExecutionException e) {
+					logger.info("读取GGUF头部失败 {}: {}", quants.get(i).first().path(), e.getCause() == null ? e.getMessage() : e.getCause().getMessage());
+				}
+			}
+		}
+
+		// 最小的版本读取完整头部，估算KV缓存和运行时开销
+		Quant reference = quants.stream().filter(q -> q.meta != null && !q.meta.isEmpty()).min(Comparator.comparingLong(q -> q.size))
+				.orElseThrow(() -> new IOException("无法读取任何GGUF文件的头部"));
+		GGUFFileInfo refFile = reference.first();
+		ByteBuffer refHeader = this.header(refFile, timeout);
+		if (refHeader == null) {
+			throw new IOException("无法读取GGUF头部: " + refFile.path());
+		}
+		long refFileSize = sizeOf(refFile);
+		GGUFTensorIndex refIndex = GGUFTensorIndex.parseHeader(refHeader, refFile.path(), refFileSize);
+		KvCacheType[] kv = { kvCacheTypeK, kvCacheTypeV };
+		Estimate refEstimate = VramEstimator.estimateFromHeader(refHeader, refFileSize, reference.size - refFileSize, List.of(contextLength),
+				List.<KvCacheType[]>of(kv), flashAttention).get(0);
+		String architecture = refEstimate.architecture();
+		// 单文件时可以从张量形状得到参数量，用于计算每个权重的平均位数
+		long parameters = 0;
+		if (reference.files.size() == 1) {
+			for (GGUFTensorIndex.Tensor t : refIndex.getTensors()) {
+				parameters += t.getElements();
+			}
+		}
+
+		long mmprojBytes = 0;
+		String mmprojPath = null;
+		if (enableVision && !projectors.isEmpty()) {
+			GGUFFileInfo p = pickProjector(projectors);
+			mmprojBytes = sizeOf(p);
+			mmprojPath = p.path();
+		}
+
+		long budgetBytes = budgetMiB > 0 ? budgetMiB * MIB : 0;
+		List<Map<String, Object>> items = new ArrayList<>();
+		for (Quant q : quants) {
+			if (q.meta == null || q.meta.isEmpty()) {
+				continue;
+			}
+			Estimate e = refEstimate;
+			if (q != reference && !sameArchitecture(q.meta, reference.meta)) {
+				// 仓库里放了不同结构的模型（比如草稿模型），单独读取完整头部
+				ByteBuffer h = this.header(q.first(), timeout);
+				if (h == null) {
+					continue;
+				}
+				e = VramEstimator.estimateFromHeader(h, sizeOf(q.first()), q.size - sizeOf(q.first()), List.of(contextLength),
+						List.<KvCacheType[]>of(kv), flashAttention).get(0);
+			}
+			// 键值区（主要是词表）各版本相同，只在第一卷中；其余分卷的头部只有本卷的张量信息，很小。
+			// 参考版本的头部包含键值区和张量信息，权重按全部分卷的大小减去一次头部计算
+			long weights = q == reference || e != refEstimate ? e.modelWeightsBytes()
+					: Math.max(0, q.size - refIndex.getDataOffset());
+			long total = weights + e.kvCacheBytes() + e.runtimeOverheadBytes() + mmprojBytes;
+
+			Map<String, Object> item = new LinkedHashMap<>();
+			item.put("quant", quantLabel(q));
+			item.put("files", q.files.stream().map(GGUFFileInfo::path).toList());
+			item.put("sizeBytes", q.size);
+			if (parameters > 0 && e == refEstimate) {
+				item.put("bitsPerWeight", Math.round(weights * 8.0 / parameters * 100) / 100.0);
+			}
+			item.put("weightsBytes", weights);
+			item.put("kvBytes", e.kvCacheBytes());
+			item.put("overheadBytes", e.runtimeOverheadBytes());
+			item.put("mmprojBytes", mmprojBytes);
+			item.put("totalBytes", total);
+			item.put("totalMiB", total / MIB);
+			item.put("fits", budgetBytes > 0 ? total <= budgetBytes : null);
+			items.add(item);
+		}
+
+		// 放得下的排在前面，按质量（权重大小）从高到低；放不下的按显存从小到大
+		items.sort((a, b) -> {
+			boolean fa = Boolean.TRUE.equals(a.get("fits"));
+			boolean fb = Boolean.TRUE.equals(b.get("fits"));
+			if (budgetBytes > 0 && fa != fb) {
+				return fa ? -1 : 1;
+			}
+			if (budgetBytes > 0 && !fa) {
+				return Long.compare((Long) a.get("totalBytes"), (Long) b.get("totalBytes"));
+			}
+			return Long.compare((Long) b.get("weightsBytes"), (Long) a.get("weightsBytes"));
+		});
+		for (int i = 0; i < items.size(); i++) {
+			items.get(i).put("rank", i + 1);
+		}
+
+		Map<String, Object> data = new LinkedHashMap<>();
+		data.put("repoId", crawl.repoId());
+		data.put("revision", crawl.revision());
+		data.put("architecture", architecture);
+		data.put("nLayer", refEstimate.nLayer());
+		data.put("trainContext", asLong(reference.meta.get(architecture + ".context_length")));
+		data.put("ctx", contextLength);
+		data.put("cacheTypeK", kvCacheTypeK.id());
+		data.put("cacheTypeV", kvCacheTypeV.id());
+		data.put("flashAttention", flashAttention);
+		data.put("budgetMiB", budgetMiB > 0 ? budgetMiB : null);
+		data.put("mmproj", mmprojPath);
+		data.put("referenceFile", refFile.path());
+		Object recommended = null;
+		if (budgetBytes > 0 && !items.isEmpty() && Boolean.TRUE.equals(items.get(0).get("fits"))) {
+			recommended = items.get(0).get("quant");
+		}
+		data.put("recommended", recommended);
+		data.put("quants", items);
+		return data;
+	}
+
+	/**
+	 * 	读取文件开头的键值，结果按文件缓存。
+	 */
+	private Map<String, Object> probe(GGUFFileInfo file, Duration timeout) throws IOException, InterruptedException {
+		String key = cacheKey(file);
+		Map<String, Object> meta = this.probes.get(key);
+		if (meta != null) {
+			return meta;
+		}
+		CachedHeader cached = this.headers.get(key);
+		ByteBuffer bytes;
+		if (cached != null) {
+			bytes = cached.header;
+		} else {
+			long end = sizeOf(file) > 0 ? Math.min(sizeOf(file), KV_PROBE_BYTES) - 1 : KV_PROBE_BYTES - 1;
+			bytes = ByteBuffer.wrap(this.reader(file, timeout).read(0, end));
+		}
+		meta = GGUFMetaDataReader.readPartial(bytes);
+		this.probes.put(key, meta);
+		return meta;
+	}
+
+	/**
+	 * 	读取完整头部，同一个文件并发请求时只读取一次。
+	 */
+	private ByteBuffer header(GGUFFileInfo file, Duration timeout) throws IOException, InterruptedException {
+		String key = cacheKey(file);
+		CachedHeader cached = this.headers.get(key);
+		if (cached != null) {
+			return cached.header.duplicate();
+		}
+		CompletableFuture<ByteBuffer> mine = new CompletableFuture<>();
+		CompletableFuture<ByteBuffer> running = this.fetching.putIfAbsent(key, mine);
+		if (running != null) {
+			ByteBuffer header = await(running);
+			return header == null ? null : header.duplicate();
+		}
+		try {
+			cached = this.headers.get(key);
+			ByteBuffer header = cached != null ? cached.header
+					: RemoteGGUFHeader.fetch(this.reader(file, timeout), sizeOf(file), RemoteGGUFHeader.PROBE_BYTES);
+			if (header != null && cached == null) {
+				header = header.asReadOnlyBuffer();
+				while (this.headers.size() >= MAX_CACHED_HEADERS) {
+					this.headers.entrySet().stream().min(Comparator.comparingLong(en -> en.getValue().fetchedAt))
+							.ifPresent(en -> this.headers.remove(en.getKey()));
+				}
+				this.headers.put(key, new CachedHeader(header, System.currentTimeMillis()));
+			}
+			mine.complete(header);
+			return header == null ? null : header.duplicate();
+		} catch (IOException | InterruptedException | RuntimeException e) {
+			mine.completeExceptionally(e);
+			throw e;
+		} finally {
+			this.fetching.remove(key, mine);
+		}
+	}
+
+	/**
+	 * 	等待其他请求的读取结果，异常原样抛出。
+	 */
+	private static ByteBuffer await(CompletableFuture<ByteBuffer> future) throws IOException, InterruptedException {
+		try {
+			return future.get();
+		} catch (ExecutionException e) {
+			Throwable cause = e.getCause();
+			if (cause instanceof IOException io) {
+				throw io;
+			}
+			if (cause instanceof InterruptedException) {
+				throw new IOException("读取GGUF头部被中断", cause);
+			}
+			if (cause instanceof RuntimeException re) {
+				throw re;
+			}
+			throw new IOException(cause);
+		}
+	}
+
+	private RemoteGGUFHeader.RangeReader reader(GGUFFileInfo file, Duration timeout) {
+		return RemoteGGUFHeader.http(this.client, URI.create(file.downloadUrl()), timeout, USER_AGENT, System.getenv("HF_TOKEN"));
+	}
+
+	/**
+	 * 	LFS哈希唯一确定文件内容，没有时用地址和大小。
+	 */
+	private static String cacheKey(GGUFFileInfo file) {
+		if (file.lfsOid() != null && !file.lfsOid().isBlank()) {
+			return file.lfsOid();
+		}
+		return file.downloadUrl() + "#" + sizeOf(file);
+	}
+
+	private static long sizeOf(GGUFFileInfo file) {
+		if (file.lfsSize() != null && file.lfsSize() > 0) {
+			return file.lfsSize();
+		}
+		return file.size() == null ? 0 : file.size();
+	}
+
+	private static boolean sameArchitecture(Map<String, Object> a, Map<String, Object> b) {
+		Object arch = a.get("general.architecture");
+		if (!Objects.equals(arch, b.get("general.architecture"))) {
+			return false;
+		}
+		for (String k : List.of(".block_count", ".embedding_length", ".attention.head_count", ".attention.head_count_kv")) {
+			String key = arch + k;
+			if (a.containsKey(key) && b.containsKey(key) && !Objects.equals(a.get(key), b.get(key))) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * 	量化类型优先取general.file_type，读不到时用文件名。
+	 */
+	private static String quantLabel(Quant q) {
+		Object fileType = q.meta.get("general.file_type");
+		String label = fileType instanceof Number ? GGUFMetaData.fileTypeToQuantizationName(((Number) fileType).intValue()) : null;
+		return label != null ? label : fileName(q.key);
+	}
+
+	private static GGUFFileInfo pickProjector(List<GGUFFileInfo> projectors) {
+		GGUFFileInfo best = projectors.get(0);
+		int bestRank = Integer.MAX_VALUE;
+		for (GGUFFileInfo p : projectors) {
+			String name = p.path().toLowerCase(Locale.ROOT);
+			int rank = name.contains("bf16") ? 1 : name.contains("f16") ? 0 : 2;
+			if (rank < bestRank) {
+				best = p;
+				bestRank = rank;
+			}
+		}
+		return best;
+	}
+
+	private static String fileName(String path) {
+		int i = path.lastIndexOf('/');
+		return i >= 0 ? path.substring(i + 1) : path;
+	}
+
+	private static Long asLong(Object o) {
+		return o instanceof Number ? ((Number) o).longValue() : null;
+	}
+}
@@ -0,0 +1,283 @@
+package org.mark.llamacpp.server.service;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.mark.llamacpp.gguf.GGUFBundle;
+import org.mark.llamacpp.gguf.GGUFMetaData;
+import org.mark.llamacpp.gguf.GGUFModel;
+import org.mark.llamacpp.gguf.GGUFTensorIndex;
+import org.mark.llamacpp.server.LlamaServer;
+import org.mark.llamacpp.server.tools.JsonUtil;
+import org.mark.llamacpp.server.tools.ParamTool;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+
+/**
+ * 	GGUF张量清单的缓存。
+ * 	每个文件只解析一次，结果保存在内存和cache/tensor-index目录下，文件大小或修改时间变化后重新解析。
+ */
+public class TensorIndexService {
+
+	private static final Logger logger = LoggerFactory.getLogger(TensorIndexService.class);
+
+	private static final String INDEX_DIR = "tensor-index";
+
+	private static final int DEFAULT_LIMIT = 200;
+
+	private static final int MAX_LIMIT = 2000;
+
+	private static final TensorIndexService INSTANCE = new TensorIndexService();
+
+	public static TensorIndexService getInstance() {
+		return INSTANCE;
+	}
+
+	private final Map<String, GGUFTensorIndex> cache = new ConcurrentHashMap<>();
+
+	private final Map<String, Object> locks = new ConcurrentHashMap<>();
+
+
+	private TensorIndexService() {
+
+	}
+
+	/**
+	 * 	获取文件的张量清单，读取失败时返回null。
+	 * @param file
+	 * @return
+	 */
+	public GGUFTensorIndex get(File file) {
+		if (file == null || !file.isFile()) {
+			return null;
+		}
+		String key = file.getAbsolutePath();
+		GGUFTensorIndex index = this.cache.get(key);
+		if (index != null && index.matches(file)) {
+			return index;
+		}
+		// 同一个文件并发请求时只解析一次
+		synchronized (this.locks.computeIfAbsent(key, k -> new Object())) {
+			index = this.cache.get(key);
+			if (index != null && index.matches(file)) {
+				return index;
+			}
+			index = this.readPersisted(file);
+			if (index == null) {
+				try {
+					index = GGUFTensorIndex.read(file);
+				} catch (Exception e) {
+					logger.info("读取GGUF张量信息失败 {}: {}", file.getName(), e.getMessage());
+					return null;
+				}
+				if (index == null) {
+					return null;
+				}
+				this.persist(file, index);
+			}
+			this.cache.put(key, index);
+			return index;
+		}
+	}
+
+	/**
+	 * 	查询模型全部文件（包括所有分卷）的张量，支持过滤和分页，并返回按层、按类型、按文件的汇总。
+	 * @param model
+	 * @param params 支持file、mmproj、layer（数字或none）、type、q、offset、limit
+	 * @return
+	 */
+	public Map<String, Object> query(GGUFModel model, Map<String, String> params) {
+		String fileFilter = params.get("file");
+		String layerParam = params.get("layer");
+		Integer layerFilter = null;
+		if (layerParam != null && !layerParam.isBlank()) {
+			if ("none".equalsIgnoreCase(layerParam.trim())) {
+				layerFilter = -1;
+			} else {
+				try {
+					layerFilter = Integer.parseInt(layerParam.trim());
+				} catch (NumberFormatException e) {
+					throw new IllegalArgumentException("layer必须是整数或none");
+				}
+			}
+		}
+		String typeFilter = params.get("type");
+		boolean includeMmproj = "true".equalsIgnoreCase(params.get("mmproj"));
+		String keyword = params.getOrDefault("q", "").trim().toLowerCase(Locale.ROOT);
+		int offset = parseInt(params.get("offset"), 0, "offset");
+		int limit = parseInt(params.get("limit"), DEFAULT_LIMIT, "limit");
+		offset = Math.max(0, offset);
+		limit = Math.max(1, Math.min(MAX_LIMIT, limit));
+
+		List<Map<String, Object>> files = new ArrayList<>();
+		Map<Integer, long[]> byLayer = new TreeMap<>();
+		Map<String, long[]> byType = new TreeMap<>();
+		List<Map<String, Object>> items = new ArrayList<>();
+		long totalBytes = 0;
+		int totalTensors = 0;
+		int matched = 0;
+
+		Map<File, Boolean> sources = this.sourceFiles(model);
+		for (Map.Entry<File, Boolean> source : sources.entrySet()) {
+			boolean mmproj = source.getValue();
+			GGUFTensorIndex index = this.get(source.getKey());
+			if (index == null) {
+				continue;
+			}
+			long fileBytes = index.getTensorDataBytes();
+			Map<String, Object> f = new LinkedHashMap<>();
+			f.put("fileName", index.getFileName());
+			f.put("tensors", index.getTensors().size());
+			f.put("bytes", fileBytes);
+			f.put("mmproj", mmproj);
+			files.add(f);
+			totalBytes += fileBytes;
+			totalTensors += index.getTensors().size();
+
+			if (fileFilter != null && !fileFilter.isBlank()) {
+				if (!fileFilter.equals(index.getFileName())) {
+					continue;
+				}
+			} else if (mmproj && !includeMmproj) {
+				// 视觉模块的层号与主模型无关，默认不计入汇总
+				continue;
+			}
+			for (GGUFTensorIndex.Tensor t : index.getTensors()) {
+				if (layerFilter != null && t.getLayer() != layerFilter) continue;
+				if (typeFilter != null && !typeFilter.isBlank() && !typeFilter.equalsIgnoreCase(t.getTypeName())) continue;
+				if (!keyword.isEmpty() && !t.getName().toLowerCase(Locale.ROOT).contains(keyword)) continue;
+
+				long[] layerAgg = byLayer.computeIfAbsent(t.getLayer(), k -> new long[2]);
+				layerAgg[0]++;
+				layerAgg[1] += t.getBytes();
+				long[] typeAgg = byType.computeIfAbsent(t.getTypeName(), k -> new long[2]);
+				typeAgg[0]++;
+				typeAgg[1] += t.getBytes();
+
+				if (matched >= offset && items.size() < limit) {
+					Map<String, Object> item = new LinkedHashMap<>();
+					item.put("name", t.getName());
+					item.put("type", t.getTypeName());
+					item.put("shape", t.getShape());
+					item.put("elements", t.getElements());
+					item.put("bytes", t.getBytes());
+					item.put("offset", index.getDataOffset() + t.getOffset());
+					item.put("layer", t.getLayer() < 0 ? null : t.getLayer());
+					item.put("file", index.getFileName());
+					items.add(item);
+				}
+				matched++;
+			}
+		}
+
+		List<Map<String, Object>> layers = new ArrayList<>();
+		for (Map.Entry<Integer, long[]> e : byLayer.entrySet()) {
+			Map<String, Object> m = new LinkedHashMap<>();
+			m.put("layer", e.getKey() < 0 ? null : e.getKey());
+			m.put("tensors", e.getValue()[0]);
+			m.put("bytes", e.getValue()[1]);
+			layers.add(m);
+		}
+		List<Map<String, Object>> types = new ArrayList<>();
+		for (Map.Entry<String, long[]> e : byType.entrySet()) {
+			Map<String, Object> m = new LinkedHashMap<>();
+			m.put("type", e.getKey());
+			m.put("tensors", e.getValue()[0]);
+			m.put("bytes", e.getValue()[1]);
+			types.add(m);
+		}
+		types.sort((a, b) -> Long.compare((Long) b.get("bytes"), (Long) a.get("bytes")));
+
+		Map<String, Object> data = new LinkedHashMap<>();
+		data.put("modelId", model.getModelId());
+		data.put("totalTensors", totalTensors);
+		data.put("totalBytes", totalBytes);
+		data.put("files", files);
+		data.put("byLayer", layers);
+		data.put("byType", types);
+		data.put("total", matched);
+		data.put("offset", offset);
+		data.put("limit", limit);
+		data.put("items", items);
+		return data;
+	}
+
+	/**
+	 * 	模型的全部文件：主模型的每个分卷（-0000N-of-0000M），以及视觉模块。
+	 * 	值表示是否为视觉模块。
+	 * @param model
+	 * @return
+	 */
+	private Map<File, Boolean> sourceFiles(GGUFModel model) {
+		Map<File, Boolean> files = new LinkedHashMap<>();
+		GGUFMetaData primary = model.getPrimaryModel();
+		if (primary != null && primary.getFilePath() != null) {
+			File primaryFile = new File(primary.getFilePath());
+			if (primaryFile.isFile()) {
+				for (File part : new GGUFBundle(primaryFile).getSplitFiles()) {
+					files.put(part.getAbsoluteFile(), Boolean.FALSE);
+				}
+			}
+		}
+		GGUFMetaData mmproj = model.getMmproj();
+		if (mmproj != null && mmproj.getFilePath() != null) {
+			files.put(new File(mmproj.getFilePath()).getAbsoluteFile(), Boolean.TRUE);
+		}
+		return files;
+	}
+
+	private Path indexFile(File file) {
+		String hash = ParamTool.buildEtag(file.getAbsolutePath().getBytes(StandardCharsets.UTF_8)).replace("\"", "");
+		return LlamaServer.getCachePath().resolve(INDEX_DIR).resolve(hash.substring(0, Math.min(32, hash.length())) + ".json");
+	}
+
+	private GGUFTensorIndex readPersisted(File file) {
+		try {
+			Path p = this.indexFile(file);
+			if (!Files.isRegularFile(p)) {
+				return null;
+			}
+			GGUFTensorIndex index = JsonUtil.fromJson(new String(Files.readAllBytes(p), StandardCharsets.UTF_8), GGUFTensorIndex.class);
+			if (index == null || !index.matches(file) || !file.getAbsolutePath().equals(index.getFilePath())) {
+				return null;
+			}
+			return index;
+		} catch (Exception e) {
+			return null;
+		}
+	}
+
+	private void persist(File file, GGUFTensorIndex index) {
+		try {
+			Path p = this.indexFile(file);
+			Files.createDirectories(p.getParent());
+			Path tmp = p.resolveSibling(p.getFileName() + ".tmp");
+			Files.write(tmp, JsonUtil.toJson(index).getBytes(StandardCharsets.UTF_8));
+			Files.move(tmp, p, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		} catch (Exception e) {
+			logger.info("保存GGUF张量信息失败 {}: {}", file.getName(), e.getMessage());
+		}
+	}
+
+	private static int parseInt(String value, int fallback, String name) {
+		if (value == null || value.isBlank()) {
+			return fallback;
+		}
+		try {
+			return Integer.parseInt(value.trim());
+		} catch (NumberFormatException e) {
+			throw new IllegalArgumentException(name + "必须是整数");
+		}
+	}
+}
@@ -0,0 +1,241 @@
+package org.mark.llamacpp.server.service;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+
+import org.mark.llamacpp.gguf.GGUFMetaData;
+import org.mark.llamacpp.gguf.GGUFModel;
+import org.mark.llamacpp.gguf.GGUFTensorIndex;
+import org.mark.llamacpp.server.LlamaServerManager;
+import org.mark.llamacpp.server.tools.JsonUtil;
+import org.mark.llamacpp.server.tools.ParamTool;
+import org.mark.llamacpp.server.tools.VramEstimator;
+import org.mark.llamacpp.server.tools.VramEstimator.CurvePoint;
+import org.mark.llamacpp.server.tools.VramEstimator.Estimate;
+import org.mark.llamacpp.server.tools.VramEstimator.KvCacheType;
+import org.mark.llamacpp.server.tools.VramEstimator.Solution;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+
+
+/**
+ * 	显存规划：批量估算曲线，以及在给定预算下求最大上下文或最大并行数。
+ * 	使用VramEstimator的解析估算，模型参数按文件缓存，不需要启动llama-server。
+ */
+public class VramPlanService {
+
+	private static final long MIB = 1024L * 1024;
+
+	/**
+	 * 	单次请求最多计算的点数
+	 */
+	private static final int MAX_POINTS = 4096;
+
+	private static final List<String> DEFAULT_CACHE_TYPES = List.of("f16", "q8_0", "q4_0");
+
+
+	public VramPlanService() {
+
+	}
+
+	/**
+	 * 	批量估算。参数：modelId、ctx（数组，可选）、cacheTypes（数组，"q8_0"或"q8_0/q4_0"）、parallel（数组）、flashAttention、enableVision。
+	 * @param obj
+	 * @return
+	 * @throws Exception
+	 */
+	public Map<String, Object> curve(JsonObject obj) throws Exception {
+		GGUFModel model = this.requireModel(obj);
+		File primary = new File(model.getPrimaryModel().getFilePath());
+		boolean flashAttention = ParamTool.parseJsonBoolean(obj, "flashAttention", true);
+		long extraBytes = this.mmprojBytes(model, ParamTool.parseJsonBoolean(obj, "enableVision", true));
+
+		List<Integer> contexts;
+		if (obj.has("ctx") && !obj.get("ctx").isJsonNull()) {
+			// 去掉非正数，去重并排序，基准估算取第一个有效值
+			contexts = new ArrayList<>(new TreeSet<>(intList(obj.get("ctx"))).tailSet(1));
+			if (contexts.isEmpty()) {
+				throw new IllegalArgumentException("ctx中没有有效的上下文长度");
+			}
+		} else {
+			contexts = defaultContexts(VramEstimator.trainContextLength(primary));
+		}
+		List<Integer> parallels = intList(obj.get("parallel"));
+		if (parallels.isEmpty()) {
+			parallels = List.of(1);
+		}
+		List<KvCacheType[]> kvTypes = kvTypeList(obj.get("cacheTypes"));
+		if ((long) contexts.size() * parallels.size() * kvTypes.size() > MAX_POINTS) {
+			throw new IllegalArgumentException("估算点数过多，最多" + MAX_POINTS + "个");
+		}
+
+		List<CurvePoint> points = VramEstimator.curve(primary, contexts, kvTypes, parallels, flashAttention);
+		Estimate base = VramEstimator.estimate(primary, contexts.get(0), kvTypes.get(0)[0], kvTypes.get(0)[1], flashAttention);
+
+		List<Map<String, Object>> items = new ArrayList<>(points.size());
+		for (CurvePoint p : points) {
+			Map<String, Object> item = new LinkedHashMap<>();
+			item.put("ctx", p.contextLength());
+			item.put("parallel", p.parallel());
+			item.put("cacheTypeK", p.kvCacheTypeK().id());
+			item.put("cacheTypeV", p.kvCacheTypeV().id());
+			item.put("kvBytes", p.kvCacheBytes());
+			item.put("overheadBytes", p.runtimeOverheadBytes());
+			item.put("totalBytes", p.totalBytes() + extraBytes);
+			item.put("totalMiB", (p.totalBytes() + extraBytes) / MIB);
+			items.add(item);
+		}
+
+		Map<String, Object> data = new LinkedHashMap<>();
+		data.put("modelId", model.getModelId());
+		data.put("architecture", base.architecture());
+		data.put("nLayer", base.nLayer());
+		data.put("kvLayerCount", base.kvLayerCount());
+		data.put("weightsBytes", base.modelWeightsBytes());
+		data.put("mmprojBytes", extraBytes);
+		data.put("flashAttention", flashAttention);
+		data.put("points", items);
+		return data;
+	}
+
+	/**
+	 * 	在预算内求解。参数：modelId、budgetMiB、solveFor（ctx或parallel）、cacheTypeK、cacheTypeV、flashAttention、
+	 * 	parallel（求ctx时）、ctxPerSlot（求parallel时）、maxCtx、maxParallel、align、enableVision。
+	 * @param obj
+	 * @return
+	 * @throws Exception
+	 */
+	public Map<String, Object> solve(JsonObject obj) throws Exception {
+		GGUFModel model = this.requireModel(obj);
+		File primary = new File(model.getPrimaryModel().getFilePath());
+		long budgetMiB = JsonUtil.getJsonLong(obj, "budgetMiB", 0);
+		if (budgetMiB <= 0) {
+			throw new IllegalArgumentException("缺少有效的budgetMiB参数");
+		}
+		long budgetBytes = budgetMiB * MIB;
+		boolean flashAttention = ParamTool.parseJsonBoolean(obj, "flashAttention", true);
+		KvCacheType k = KvCacheType.from(JsonUtil.getJsonString(obj, "cacheTypeK", "f16"));
+		KvCacheType v = KvCacheType.from(JsonUtil.getJsonString(obj, "cacheTypeV", k.id()));
+		long extraBytes = this.mmprojBytes(model, ParamTool.parseJsonBoolean(obj, "enableVision", true));
+		String solveFor = JsonUtil.getJsonString(obj, "solveFor", "ctx");
+
+		Solution solution;
+		if ("parallel".equalsIgnoreCase(solveFor)) {
+			int ctxPerSlot = JsonUtil.getJsonInt(obj, "ctxPerSlot", 4096);
+			int maxParallel = JsonUtil.getJsonInt(obj, "maxParallel", 64);
+			solution = VramEstimator.maxParallel(primary, budgetBytes, extraBytes, k, v, flashAttention, ctxPerSlot, maxParallel);
+		} else if ("ctx".equalsIgnoreCase(solveFor)) {
+			int parallel = Math.max(1, JsonUtil.getJsonInt(obj, "parallel", 1));
+			int maxCtx = JsonUtil.getJsonInt(obj, "maxCtx", 0);
+			int align = Math.max(1, JsonUtil.getJsonInt(obj, "align", 256));
+			solution = VramEstimator.maxContext(primary, budgetBytes, extraBytes, k, v, flashAttention, parallel, maxCtx, align);
+		} else {
+			throw new IllegalArgumentException("solveFor只支持ctx或parallel");
+		}
+
+		Estimate e = solution.estimate();
+		Map<String, Object> estimate = new LinkedHashMap<>();
+		estimate.put("ctx", e.contextLength());
+		estimate.put("weightsBytes", e.modelWeightsBytes());
+		estimate.put("mmprojBytes", extraBytes);
+		estimate.put("kvBytes", e.kvCacheBytes());
+		estimate.put("overheadBytes", e.runtimeOverheadBytes());
+		estimate.put("totalBytes", e.totalBytes() + extraBytes);
+		estimate.put("totalMiB", (e.totalBytes() + extraBytes) / MIB);
+
+		Map<String, Object> data = new LinkedHashMap<>();
+		data.put("modelId", model.getModelId());
+		data.put("solveFor", solveFor.toLowerCase());
+		data.put("budgetMiB", budgetMiB);
+		data.put("fits", solution.fits());
+		data.put("value", solution.value());
+		data.put("cacheTypeK", k.id());
+		data.put("cacheTypeV", v.id());
+		data.put("flashAttention", flashAttention);
+		data.put("estimate", estimate);
+		return data;
+	}
+
+	private GGUFModel requireModel(JsonObject obj) {
+		String modelId = JsonUtil.getJsonString(obj, "modelId", null);
+		if (modelId == null || modelId.isBlank()) {
+			throw new IllegalArgumentException("缺少必需的modelId参数");
+		}
+		LlamaServerManager manager = LlamaServerManager.getInstance();
+		manager.listModel();
+		GGUFModel model = manager.findModelById(modelId.trim());
+		if (model == null || model.getPrimaryModel() == null) {
+			throw new IllegalArgumentException("未找到指定模型: " + modelId);
+		}
+		return model;
+	}
+
+	private long mmprojBytes(GGUFModel model, boolean enableVision) {
+		GGUFMetaData mmproj = model.getMmproj();
+		if (!enableVision || mmproj == null || mmproj.getFilePath() == null) {
+			return 0;
+		}
+		File f = new File(mmproj.getFilePath());
+		GGUFTensorIndex index = TensorIndexService.getInstance().get(f);
+		return index != null ? index.getTensorDataBytes() : f.length();
+	}
+
+	/**
+	 * 	默认曲线：从2048开始按2倍递增到训练上下文。
+	 */
+	private static List<Integer> defaultContexts(long trainContext) {
+		long upper = trainContext > 0 ? Math.min(trainContext, 1L << 20) : 131072;
+		Set<Integer> out = new LinkedHashSet<>();
+		for (long c = 2048; c < upper; c *= 2) {
+			out.add((int) c);
+		}
+		out.add((int) upper);
+		return new ArrayList<>(out);
+	}
+
+	private static List<Integer> intList(JsonElement el) {
+		List<Integer> out = new ArrayList<>();
+		if (el == null || el.isJsonNull()) {
+			return out;
+		}
+		if (el.isJsonArray()) {
+			for (JsonElement e : el.getAsJsonArray()) {
+				out.add(e.getAsInt());
+			}
+		} else {
+			out.add(el.getAsInt());
+		}
+		return out;
+	}
+
+	private static List<KvCacheType[]> kvTypeList(JsonElement el) {
+		List<String> names = new ArrayList<>();
+		if (el != null && el.isJsonArray()) {
+			JsonArray arr = el.getAsJsonArray();
+			for (JsonElement e : arr) {
+				names.add(e.getAsString());
+			}
+		} else if (el != null && el.isJsonPrimitive()) {
+			names.add(el.getAsString());
+		}
+		if (names.isEmpty()) {
+			names = DEFAULT_CACHE_TYPES;
+		}
+		List<KvCacheType[]> out = new ArrayList<>();
+		for (String n : names) {
+			String[] kv = n.split("/");
+			KvCacheType k = KvCacheType.from(kv[0]);
+			KvCacheType v = kv.length > 1 ? KvCacheType.from(kv[1]) : k;
+			out.add(new KvCacheType[] { k, v });
+		}
+		return out;
+	}
+}
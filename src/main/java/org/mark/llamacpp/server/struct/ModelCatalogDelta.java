@@ -0,0 +1,61 @@
+package org.mark.llamacpp.server.struct;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.mark.llamacpp.gguf.GGUFModel;
+
+/**
+ * 	模型目录的增量变化。
+ */
+public class ModelCatalogDelta {
+
+	/**
+	 * 	新增的模型
+	 */
+	private final List<GGUFModel> added = new ArrayList<>();
+
+	/**
+	 * 	被移除的模型
+	 */
+	private final List<GGUFModel> removed = new ArrayList<>();
+
+	/**
+	 * 	文件发生变化的模型（分卷补齐、mmproj出现等）
+	 */
+	private final List<GGUFModel> updated = new ArrayList<>();
+
+	/**
+	 * 	变化后的目录版本号
+	 */
+	private long version;
+
+
+	public ModelCatalogDelta() {
+
+	}
+
+	public List<GGUFModel> getAdded() {
+		return added;
+	}
+
+	public List<GGUFModel> getRemoved() {
+		return removed;
+	}
+
+	public List<GGUFModel> getUpdated() {
+		return updated;
+	}
+
+	public long getVersion() {
+		return version;
+	}
+
+	public void setVersion(long version) {
+		this.version = version;
+	}
+
+	public boolean isEmpty() {
+		return added.isEmpty() && removed.isEmpty() && updated.isEmpty();
+	}
+}
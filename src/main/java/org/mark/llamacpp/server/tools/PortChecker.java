@@ -122,8 +122,11 @@ public class PortChecker {
             return result.contains(":" + port + " ") || result.contains(":" + port + "\n") ||
                    result.contains("0.0.0.0:" + port) || result.contains("127.0.0.1:" + port);
             
-        } catch (IOException | InterruptedException e) {
-            // 如果OS命令执行失败或被中断，回退到Socket方式
+        } catch (IOException e) {
+            // 如果OS命令执行失败（例如系统没有netstat），回退到Socket方式
+            return isPortInUse(port);
+        } catch (InterruptedException e) {
+            // 如果被中断，回退到Socket方式
             Thread.currentThread().interrupt(); // 恢复中断状态
             return isPortInUse(port);
         }
@@ -4,13 +4,17 @@ import java.io.EOFException;
 import java.io.File;
 import java.io.IOException;
 import java.io.RandomAccessFile;
+import java.nio.BufferUnderflowException;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
 import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
 import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Locale;
@@ -20,8 +24,10 @@ import java.util.Set;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
+import org.mark.llamacpp.gguf.GGUFTensorIndex;
+import org.mark.llamacpp.server.service.TensorIndexService;
+
 
-@Deprecated
 public final class VramEstimator {
 
 	public enum KvCacheType {
@@ -86,9 +92,43 @@ public final class VramEstimator {
 	}
 
 	private record ModelParams(String architecture, long nLayer, long nEmbd, long nHeadKv, long headDimK, long headDimV,
-			long slidingWindow, int[] headCountKvByLayer) {
+			long slidingWindow, int[] headCountKvByLayer, long contextTrain) {
+	}
+
+	/**
+	 * 	与上下文无关的模型参数，同一组文件只解析一次。
+	 */
+	private record ModelProfile(ModelParams params, long weightsBytes, KvLayerScanResult kvScan, String stamp) {
+	}
+
+	/**
+	 * 	估算曲线上的一个点。
+	 */
+	public record CurvePoint(int contextLength, int parallel, KvCacheType kvCacheTypeK, KvCacheType kvCacheTypeV,
+			boolean flashAttention, long kvCacheBytes, long runtimeOverheadBytes, long totalBytes) {
 	}
 
+	/**
+	 * 	求解结果，value为满足预算的最大上下文或最大并行数，不满足时为0。
+	 */
+	public record Solution(boolean fits, int value, Estimate estimate) {
+	}
+
+	/**
+	 * 	缓存的模型数上限。同一个文件变化后原地替换，改名或删除的文件按最近使用淘汰
+	 */
+	private static final int MAX_PROFILES = 128;
+
+	private static final Map<String, ModelProfile> PROFILE_CACHE = Collections.synchronizedMap(
+			new LinkedHashMap<String, ModelProfile>(16, 0.75f, true) {
+				private static final long serialVersionUID = 1L;
+
+				@Override
+				protected boolean removeEldestEntry(Map.Entry<String, ModelProfile> eldest) {
+					return size() > MAX_PROFILES;
+				}
+			});
+
 	private record ResolvedBundle(File primaryFile, List<File> parts) {
 	}
 
@@ -194,15 +234,191 @@ public final class VramEstimator {
 
 	public static Estimate estimate(File modelPath, int contextLength, KvCacheType kvCacheTypeK, KvCacheType kvCacheTypeV,
 			boolean flashAttention) throws IOException {
+		return estimate(modelPath, contextLength, kvCacheTypeK, kvCacheTypeV, flashAttention, 1);
+	}
+
+	/**
+	 * 	估算指定上下文和并行数（-np）下的显存占用。contextLength是全部槽位共享的总上下文。
+	 */
+	public static Estimate estimate(File modelPath, int contextLength, KvCacheType kvCacheTypeK, KvCacheType kvCacheTypeV,
+			boolean flashAttention, int parallel) throws IOException {
 		Objects.requireNonNull(modelPath, "modelPath");
 		if (contextLength <= 0) {
 			throw new IllegalArgumentException("contextLength 必须大于0");
 		}
+		return compute(profile(modelPath), contextLength, kvCacheTypeK, kvCacheTypeV, flashAttention, parallel);
+	}
+
+	/**
+	 * 	一次计算整条曲线：上下文 × KV类型 × 并行数。模型参数只解析一次。
+	 * @param modelPath
+	 * @param contexts
+	 * @param kvTypes 每个元素为{K类型, V类型}
+	 * @param parallels
+	 * @param flashAttention
+	 * @return
+	 * @throws IOException
+	 */
+	public static List<CurvePoint> curve(File modelPath, List<Integer> contexts, List<KvCacheType[]> kvTypes, List<Integer> parallels,
+			boolean flashAttention) throws IOException {
+		Objects.requireNonNull(modelPath, "modelPath");
+		ModelProfile profile = profile(modelPath);
+		List<CurvePoint> out = new ArrayList<>(contexts.size() * kvTypes.size() * parallels.size());
+		for (KvCacheType[] kv : kvTypes) {
+			for (int np : parallels) {
+				for (int ctx : contexts) {
+					if (ctx <= 0) {
+						continue;
+					}
+					Estimate e = compute(profile, ctx, kv[0], kv[1], flashAttention, np);
+					out.add(new CurvePoint(ctx, Math.max(1, np), kv[0], kv[1], flashAttention, e.kvCacheBytes, e.runtimeOverheadBytes,
+							e.totalBytes));
+				}
+			}
+		}
+		return out;
+	}
+
+	/**
+	 * 	二分查找满足预算的最大上下文，结果按align对齐。
+	 * @param modelPath
+	 * @param budgetBytes 可用显存（已扣除其它占用）
+	 * @param extraBytes 需要额外计入的字节数，例如mmproj
+	 * @param maxContext 上限，小于等于0时使用模型训练上下文
+	 * @param align
+	 * @return
+	 * @throws IOException
+	 */
+	public static Solution maxContext(File modelPath, long budgetBytes, long extraBytes, KvCacheType kvCacheTypeK, KvCacheType kvCacheTypeV,
+			boolean flashAttention, int parallel, int maxContext, int align) throws IOException {
+		ModelProfile profile = profile(modelPath);
+		int step = Math.max(1, align);
+		long upper = maxContext > 0 ? maxContext : (profile.params.contextTrain > 0 ? profile.params.contextTrain : 131072);
+		long hi = Math.max(1, upper / step);
+		long lo = 0;
+		// 单调性：上下文越大占用越大，找最后一个满足预算的倍数
+		while (lo < hi) {
+			long mid = (lo + hi + 1) >>> 1;
+			Estimate e = compute(profile, (int) (mid * step), kvCacheTypeK, kvCacheTypeV, flashAttention, parallel);
+			if (safeAdd(e.totalBytes, extraBytes) <= budgetBytes) {
+				lo = mid;
+			} else {
+				hi = mid - 1;
+			}
+		}
+		if (lo == 0) {
+			return new Solution(false, 0, compute(profile, step, kvCacheTypeK, kvCacheTypeV, flashAttention, parallel));
+		}
+		int ctx = (int) (lo * step);
+		return new Solution(true, ctx, compute(profile, ctx, kvCacheTypeK, kvCacheTypeV, flashAttention, parallel));
+	}
+
+	/**
+	 * 	二分查找满足预算的最大并行数，每个槽位的上下文固定为ctxPerSlot。
+	 */
+	public static Solution maxParallel(File modelPath, long budgetBytes, long extraBytes, KvCacheType kvCacheTypeK, KvCacheType kvCacheTypeV,
+			boolean flashAttention, int ctxPerSlot, int maxParallel) throws IOException {
+		if (ctxPerSlot <= 0) {
+			throw new IllegalArgumentException("ctxPerSlot 必须大于0");
+		}
+		ModelProfile profile = profile(modelPath);
+		int lo = 0;
+		int hi = Math.max(1, maxParallel);
+		while (lo < hi) {
+			int mid = (lo + hi + 1) >>> 1;
+			long ctx = (long) ctxPerSlot * mid;
+			if (ctx > Integer.MAX_VALUE) {
+				hi = mid - 1;
+				continue;
+			}
+			Estimate e = compute(profile, (int) ctx, kvCacheTypeK, kvCacheTypeV, flashAttention, mid);
+			if (safeAdd(e.totalBytes, extraBytes) <= budgetBytes) {
+				lo = mid;
+			} else {
+				hi = mid - 1;
+			}
+		}
+		if (lo == 0) {
+			return new Solution(false, 0, compute(profile, ctxPerSlot, kvCacheTypeK, kvCacheTypeV, flashAttention, 1));
+		}
+		return new Solution(true, lo, compute(profile, ctxPerSlot * lo, kvCacheTypeK, kvCacheTypeV, flashAttention, lo));
+	}
+
+	/**
+	 * 	模型的训练上下文长度，未知时返回0。
+	 */
+	public static long trainContextLength(File modelPath) throws IOException {
+		return profile(modelPath).params.contextTrain;
+	}
+
+	/**
+	 * 	只根据GGUF头部（键值区和张量信息表）估算，用于文件还没有下载完的时候。
+	 * @param header 从文件开头读取的字节，需要覆盖到张量信息表结束
+	 * @param fileSize 文件的完整大小
+	 * @param extraWeightsBytes 同一模型其他分卷的大小，计入权重
+	 * @param contexts
+	 * @param kvTypes 每个元素为{K类型, V类型}
+	 * @param flashAttention
+	 * @return
+	 * @throws IOException
+	 */
+	public static List<Estimate> estimateFromHeader(ByteBuffer header, long fileSize, long extraWeightsBytes, List<Integer> contexts,
+			List<KvCacheType[]> kvTypes, boolean flashAttention) throws IOException {
+		Objects.requireNonNull(header, "header");
+		ByteBuffer bytes = header.duplicate();
+		Map<String, Object> meta = readGgufMetadata(new ByteBufferChannel(bytes), Math.min(256L * 1024, bytes.remaining()), "header");
+		ModelParams params = extractModelParams(meta);
+		GGUFTensorIndex index;
+		try {
+			index = GGUFTensorIndex.parseHeader(header, "header", fileSize);
+		} catch (BufferUnderflowException e) {
+			throw new EOFException("GGUF头部不完整");
+		}
+		if (index == null) {
+			throw new IllegalArgumentException("不是有效GGUF文件");
+		}
+		long weightsBytes = safeAdd(index.getTensorDataBytes(), Math.max(0, extraWeightsBytes));
+		ModelProfile profile = new ModelProfile(params, weightsBytes, resolveKvLayers(index, params), "");
+		List<Estimate> out = new ArrayList<>(contexts.size() * kvTypes.size());
+		for (KvCacheType[] kv : kvTypes) {
+			for (int ctx : contexts) {
+				if (ctx > 0) {
+					out.add(compute(profile, ctx, kv[0], kv[1], flashAttention, 1));
+				}
+			}
+		}
+		return out;
+	}
+
+	private static Estimate compute(ModelProfile profile, int contextLength, KvCacheType kvCacheTypeK, KvCacheType kvCacheTypeV,
+			boolean flashAttention, int parallel) {
+		ModelParams params = profile.params;
+		KvLayerScanResult kvScan = profile.kvScan;
+		long kvCacheBytes = estimateKvCacheBytes(params, contextLength, kvCacheTypeK, kvCacheTypeV, kvScan, Math.max(1, parallel));
+		long runtimeOverhead = estimateRuntimeOverheadBytes(params, contextLength, kvCacheBytes, flashAttention);
+		long total = safeAdd(safeAdd(profile.weightsBytes, kvCacheBytes), runtimeOverhead);
 
+		return new Estimate(profile.weightsBytes, kvCacheBytes, runtimeOverhead, total, params.architecture, contextLength, kvCacheTypeK,
+				kvCacheTypeV, flashAttention, params.nLayer, kvScan.kvLayerCount, kvScan.heuristic, kvScan.layers);
+	}
+
+	/**
+	 * 	获取模型参数，文件大小和修改时间都没有变化时直接使用缓存。
+	 */
+	private static ModelProfile profile(File modelPath) throws IOException {
 		ResolvedBundle bundle = resolveBundle(modelPath);
 		if (bundle.primaryFile == null || bundle.parts.isEmpty()) {
 			throw new IllegalArgumentException("未找到可用的GGUF文件: " + modelPath.getAbsolutePath());
 		}
+		StringBuilder stamp = new StringBuilder();
+		for (File part : bundle.parts) {
+			stamp.append(part.getAbsolutePath()).append(':').append(part.length()).append(':').append(part.lastModified()).append(';');
+		}
+		String key = bundle.primaryFile.getAbsolutePath();
+		ModelProfile cached = PROFILE_CACHE.get(key);
+		if (cached != null && cached.stamp.contentEquals(stamp)) {
+			return cached;
+		}
 
 		Map<String, Object> meta = readGgufMetadata(bundle.primaryFile);
 		ModelParams params = extractModelParams(meta);
@@ -213,15 +429,20 @@ public final class VramEstimator {
 		}
 
 		KvLayerScanResult kvScan = resolveKvLayers(bundle.parts, params);
-		long kvCacheBytes = estimateKvCacheBytes(params, contextLength, kvCacheTypeK, kvCacheTypeV, kvScan);
-		long runtimeOverhead = estimateRuntimeOverheadBytes(params, contextLength, kvCacheBytes, flashAttention);
-		long total = safeAdd(safeAdd(weightsBytes, kvCacheBytes), runtimeOverhead);
-
-		return new Estimate(weightsBytes, kvCacheBytes, runtimeOverhead, total, params.architecture, contextLength, kvCacheTypeK,
-				kvCacheTypeV, flashAttention, params.nLayer, kvScan.kvLayerCount, kvScan.heuristic, kvScan.layers);
+		ModelProfile profile = new ModelProfile(params, weightsBytes, kvScan, stamp.toString());
+		PROFILE_CACHE.put(key, profile);
+		return profile;
 	}
 
 	private static KvLayerScanResult resolveKvLayers(List<File> ggufParts, ModelParams params) throws IOException {
+		KvLayerScanResult fromMeta = kvLayersFromMetadata(params);
+		return fromMeta != null ? fromMeta : scanKvLayers(ggufParts, params.nLayer);
+	}
+
+	/**
+	 * 	元数据中有逐层的head_count_kv时直接使用，没有时返回null。
+	 */
+	private static KvLayerScanResult kvLayersFromMetadata(ModelParams params) {
 		if (params.headCountKvByLayer != null && params.headCountKvByLayer.length > 0) {
 			Set<Integer> out = new LinkedHashSet<>();
 			for (int i = 0; i < params.headCountKvByLayer.length; i++) {
@@ -233,7 +454,12 @@ public final class VramEstimator {
 				return new KvLayerScanResult(out.size(), "head_count_kv", Set.copyOf(out));
 			}
 		}
-		return scanKvLayers(ggufParts, params.nLayer);
+		return null;
+	}
+
+	private static KvLayerScanResult resolveKvLayers(GGUFTensorIndex index, ModelParams params) {
+		KvLayerScanResult fromMeta = kvLayersFromMetadata(params);
+		return fromMeta != null ? fromMeta : scanKvLayers(index, params.nLayer);
 	}
 
 	private static KvLayerScanResult scanKvLayers(List<File> ggufParts, long expectedLayerCount) throws IOException {
@@ -247,7 +473,24 @@ public final class VramEstimator {
 		for (File part : ggufParts) {
 			scanPartForLayers(part, outputHit, kvHit, qkvHit);
 		}
+		return pickKvLayers(outputHit, kvHit, qkvHit);
+	}
 
+	/**
+	 * 	从一个张量清单判断哪些层有KV缓存，文件还没有下载完时使用。
+	 */
+	private static KvLayerScanResult scanKvLayers(GGUFTensorIndex index, long expectedLayerCount) {
+		if (expectedLayerCount <= 0) {
+			return new KvLayerScanResult(0, "none", Set.of());
+		}
+		boolean[] outputHit = new boolean[(int) Math.min(expectedLayerCount, Integer.MAX_VALUE)];
+		boolean[] kvHit = new boolean[outputHit.length];
+		boolean[] qkvHit = new boolean[outputHit.length];
+		markIndexLayers(index, outputHit, kvHit, qkvHit);
+		return pickKvLayers(outputHit, kvHit, qkvHit);
+	}
+
+	private static KvLayerScanResult pickKvLayers(boolean[] outputHit, boolean[] kvHit, boolean[] qkvHit) {
 		Set<Integer> out = new LinkedHashSet<>();
 		for (int i = 0; i < outputHit.length; i++) {
 			if (outputHit[i]) {
@@ -283,6 +526,12 @@ public final class VramEstimator {
 
 	private static void scanPartForLayers(File ggufFile, boolean[] outputHit, boolean[] kvHit, boolean[] qkvHit)
 			throws IOException {
+		// 优先使用缓存的张量清单，层号在建立清单时已经解析好
+		GGUFTensorIndex index = TensorIndexService.getInstance().get(ggufFile);
+		if (index != null) {
+			markIndexLayers(index, outputHit, kvHit, qkvHit);
+			return;
+		}
 		try (RandomAccessFile raf = new RandomAccessFile(ggufFile, "r"); FileChannel ch = raf.getChannel()) {
 			long fileSize = ch.size();
 			LeReader r = new LeReader(ch, Math.min(512L * 1024, fileSize));
@@ -316,24 +565,37 @@ public final class VramEstimator {
 				if (idx < 0 || idx >= outputHit.length) {
 					idx = extractFallbackLayerIndex(name, outputHit.length);
 				}
-				if (idx < 0 || idx >= outputHit.length) {
-					continue;
-				}
-
-				if (!outputHit[idx] && ATTN_OUTPUT_PATTERN.matcher(name).find()) {
-					outputHit[idx] = true;
-				}
-				if (!kvHit[idx] && KV_PROJ_PATTERN.matcher(name).find()) {
-					kvHit[idx] = true;
-				}
-				if (!qkvHit[idx] && QKV_PROJ_PATTERN.matcher(name).find()) {
-					qkvHit[idx] = true;
-				}
+				markLayerHits(name, idx, outputHit, kvHit, qkvHit);
 			}
 		} catch (EOFException eof) {
 		}
 	}
 
+	private static void markIndexLayers(GGUFTensorIndex index, boolean[] outputHit, boolean[] kvHit, boolean[] qkvHit) {
+		for (GGUFTensorIndex.Tensor t : index.getTensors()) {
+			int idx = t.getLayer();
+			if (idx < 0 || idx >= outputHit.length) {
+				idx = extractFallbackLayerIndex(t.getName(), outputHit.length);
+			}
+			markLayerHits(t.getName(), idx, outputHit, kvHit, qkvHit);
+		}
+	}
+
+	private static void markLayerHits(String name, int idx, boolean[] outputHit, boolean[] kvHit, boolean[] qkvHit) {
+		if (idx < 0 || idx >= outputHit.length) {
+			return;
+		}
+		if (!outputHit[idx] && ATTN_OUTPUT_PATTERN.matcher(name).find()) {
+			outputHit[idx] = true;
+		}
+		if (!kvHit[idx] && KV_PROJ_PATTERN.matcher(name).find()) {
+			kvHit[idx] = true;
+		}
+		if (!qkvHit[idx] && QKV_PROJ_PATTERN.matcher(name).find()) {
+			qkvHit[idx] = true;
+		}
+	}
+
 	private static int extractLayerIndex(String tensorName) {
 		if (tensorName == null || tensorName.isBlank()) {
 			return -1;
@@ -371,7 +633,7 @@ public final class VramEstimator {
 	}
 
 	private static long estimateKvCacheBytes(ModelParams params, long contextLength, KvCacheType kvTypeK, KvCacheType kvTypeV,
-			KvLayerScanResult kvScan) {
+			KvLayerScanResult kvScan, int parallel) {
 		long layers = (kvScan != null && kvScan.kvLayerCount > 0) ? kvScan.kvLayerCount : params.nLayer;
 		if (layers <= 0 || params.nHeadKv <= 0 || params.headDimK <= 0 || params.headDimV <= 0) {
 			return 0;
@@ -406,7 +668,7 @@ public final class VramEstimator {
 				globalLayers = layers;
 			}
 			long swaLayers = layers - globalLayers;
-			long swaCells = estimateGemmaSwaCells(params.slidingWindow, contextLength);
+			long swaCells = estimateGemmaSwaCells(params.slidingWindow, contextLength, parallel);
 			double perLayerBytes = bytesPerCell / Math.max(1.0, layers);
 			bytes = globalLayers * (double) contextLength * perLayerBytes + swaLayers * (double) swaCells * perLayerBytes;
 		} else {
@@ -453,11 +715,12 @@ public final class VramEstimator {
 		return (nLayer + 5) / 6;
 	}
 
-	private static long estimateGemmaSwaCells(long slidingWindow, long contextLength) {
+	private static long estimateGemmaSwaCells(long slidingWindow, long contextLength, int parallel) {
 		if (slidingWindow <= 0) {
 			return contextLength;
 		}
-		long cells = safeAdd(slidingWindow, safeAdd(slidingWindow, slidingWindow));
+		// 每个并行槽位各自保留一个滑动窗口
+		long cells = safeAdd(slidingWindow * Math.max(1, parallel), safeAdd(slidingWindow, slidingWindow));
 		return Math.min(contextLength, cells);
 	}
 
@@ -536,51 +799,55 @@ public final class VramEstimator {
 
 	private static Map<String, Object> readGgufMetadata(File ggufFile) throws IOException {
 		try (RandomAccessFile raf = new RandomAccessFile(ggufFile, "r"); FileChannel ch = raf.getChannel()) {
-			LeReader r = new LeReader(ch, Math.min(256L * 1024, ch.size()));
-			byte[] magic = r.readBytes(4);
-			String m = new String(magic, StandardCharsets.US_ASCII);
-			if (!"GGUF".equals(m)) {
-				throw new IllegalArgumentException("不是有效GGUF文件: " + ggufFile.getAbsolutePath());
-			}
-			r.readI32();
-			long tensorCount = r.readU64();
-			long kvCount = r.readU64();
-
-			Map<String, Object> out = new HashMap<>(32);
-			out.put("__tensor_count", tensorCount);
-			out.put("__kv_count", kvCount);
+			return readGgufMetadata(ch, Math.min(256L * 1024, ch.size()), ggufFile.getAbsolutePath());
+		}
+	}
 
-			for (long i = 0; i < kvCount; i++) {
-				String key = r.readGgufString();
-				int type = r.readI32();
-				boolean keep = isRequiredMetadataKey(key);
-				if (type == 9) {
-					int elemType = r.readI32();
-					long len = r.readU64();
-					if (keep && len <= 4096 && len <= Integer.MAX_VALUE) {
-						List<Object> arr = new ArrayList<>((int) len);
-						for (long j = 0; j < len; j++) {
-							arr.add(r.readGgufValue(elemType));
-						}
-						out.put(key, arr);
-					} else {
-						for (long j = 0; j < len; j++) {
-							r.skipGgufValue(elemType);
-						}
-						if (keep) {
-							out.put(key + ".size", len);
-						}
+	private static Map<String, Object> readGgufMetadata(ReadableByteChannel ch, long bufferSize, String source) throws IOException {
+		LeReader r = new LeReader(ch, bufferSize);
+		byte[] magic = r.readBytes(4);
+		String m = new String(magic, StandardCharsets.US_ASCII);
+		if (!"GGUF".equals(m)) {
+			throw new IllegalArgumentException("不是有效GGUF文件: " + source);
+		}
+		r.readI32();
+		long tensorCount = r.readU64();
+		long kvCount = r.readU64();
+
+		Map<String, Object> out = new HashMap<>(32);
+		out.put("__tensor_count", tensorCount);
+		out.put("__kv_count", kvCount);
+
+		for (long i = 0; i < kvCount; i++) {
+			String key = r.readGgufString();
+			int type = r.readI32();
+			boolean keep = isRequiredMetadataKey(key);
+			if (type == 9) {
+				int elemType = r.readI32();
+				long len = r.readU64();
+				if (keep && len <= 4096 && len <= Integer.MAX_VALUE) {
+					List<Object> arr = new ArrayList<>((int) len);
+					for (long j = 0; j < len; j++) {
+						arr.add(r.readGgufValue(elemType));
 					}
-				} else if (keep) {
-					Object val = r.readGgufValue(type);
-					out.put(key, val);
+					out.put(key, arr);
 				} else {
-					r.skipGgufValue(type);
+					for (long j = 0; j < len; j++) {
+						r.skipGgufValue(elemType);
+					}
+					if (keep) {
+						out.put(key + ".size", len);
+					}
 				}
+			} else if (keep) {
+				Object val = r.readGgufValue(type);
+				out.put(key, val);
+			} else {
+				r.skipGgufValue(type);
 			}
-
-			return out;
 		}
+
+		return out;
 	}
 
 	private static ModelParams extractModelParams(Map<String, Object> meta) {
@@ -636,10 +903,16 @@ public final class VramEstimator {
 			headDimV = headDimK;
 		}
 
-		return new ModelParams(arch, nLayer, nEmbd, nHeadKv, headDimK, headDimV, slidingWindow, headCountKvByLayer);
+		long contextTrain = firstLong(meta, arch + ".context_length", findKeyBySuffix(meta, ".context_length"));
+
+		return new ModelParams(arch, nLayer, nEmbd, nHeadKv, headDimK, headDimV, slidingWindow, headCountKvByLayer, contextTrain);
 	}
 
 	private static long estimateTensorDataBytes(File ggufFile) throws IOException {
+		GGUFTensorIndex index = TensorIndexService.getInstance().get(ggufFile);
+		if (index != null && !index.getTensors().isEmpty()) {
+			return index.getTensorDataBytes();
+		}
 		try {
 			Long monotonic = tryEstimateTensorDataBytesMonotonic(ggufFile);
 			if (monotonic != null) {
@@ -903,15 +1176,47 @@ public final class VramEstimator {
 		return key.equals("general.architecture") || key.endsWith(".architecture") || key.endsWith(".embedding_length")
 				|| key.endsWith(".block_count") || key.endsWith(".attention.head_count") || key.endsWith(".attention.head_count_kv")
 				|| key.endsWith(".attention.key_length") || key.endsWith(".attention.value_length")
-				|| key.endsWith(".attention.sliding_window");
+				|| key.endsWith(".attention.sliding_window") || key.endsWith(".context_length");
+	}
+
+	/**
+	 * 	把内存中的头部字节当作通道读取。
+	 */
+	private static final class ByteBufferChannel implements ReadableByteChannel {
+		private final ByteBuffer src;
+
+		ByteBufferChannel(ByteBuffer src) {
+			this.src = src;
+		}
+
+		@Override
+		public int read(ByteBuffer dst) {
+			if (!this.src.hasRemaining()) {
+				return -1;
+			}
+			int n = Math.min(dst.remaining(), this.src.remaining());
+			ByteBuffer slice = this.src.slice(this.src.position(), n);
+			dst.put(slice);
+			this.src.position(this.src.position() + n);
+			return n;
+		}
+
+		@Override
+		public boolean isOpen() {
+			return true;
+		}
+
+		@Override
+		public void close() {
+		}
 	}
 
 	private static final class LeReader {
-		private final FileChannel ch;
+		private final ReadableByteChannel ch;
 		private ByteBuffer buf;
 		private long pos;
 
-		LeReader(FileChannel ch, long bufferSize) {
+		LeReader(ReadableByteChannel ch, long bufferSize) {
 			this.ch = ch;
 			int cap = (int) Math.min(Integer.MAX_VALUE, Math.max(8192, bufferSize));
 			this.buf = ByteBuffer.allocate(cap);
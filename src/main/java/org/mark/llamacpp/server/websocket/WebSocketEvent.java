@@ -0,0 +1,41 @@
+package org.mark.llamacpp.server.websocket;
+
+/**
+ * WebSocket事件：主题、JSON文本，以及客户端处理不过来时能否丢弃。
+ * <p>
+ * 主题形如 {@code console:<modelId>}、{@code slots:<modelId>}、{@code downloads}，
+ * 订阅 {@code console} 会收到所有 {@code console:*} 事件，订阅 {@code *} 收到全部事件。
+ *
+ * @param topic 主题
+ * @param json 消息文本
+ * @param droppable 高频事件（控制台输出、槽位、下载进度等），队列满时丢弃最旧的
+ */
+public record WebSocketEvent(String topic, String json, boolean droppable) {
+
+    public static final String CONSOLE = "console";
+    public static final String SLOTS = "slots";
+    public static final String DOWNLOADS = "downloads";
+    public static final String MODELS = "models";
+    public static final String CATALOG = "catalog";
+    public static final String SYSTEM = "system";
+    public static final String TUNING = "tuning";
+    /**
+     * 心跳和没有指定主题的消息，所有连接都会收到
+     */
+    public static final String ALL = "*";
+
+    /**
+     * 带子键的主题，key为空时只有基础主题
+     */
+    public static String topic(String base, String key) {
+        return key == null || key.isEmpty() ? base : base + ":" + key;
+    }
+
+    /**
+     * 基础主题，即冒号前的部分
+     */
+    public static String baseOf(String topic) {
+        int i = topic.indexOf(':');
+        return i < 0 ? topic : topic.substring(0, i);
+    }
+}
@@ -1,38 +1,56 @@
 package org.mark.llamacpp.server.websocket;
 
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.buffer.ByteBufUtil;
 import io.netty.channel.ChannelHandlerContext;
-import io.netty.handler.codec.http.websocketx.TextWebSocketFrame;
 import java.nio.charset.StandardCharsets;
 import java.util.Base64;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
 
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
+import org.mark.llamacpp.gguf.GGUFMetaData;
+import org.mark.llamacpp.gguf.GGUFModel;
 import org.mark.llamacpp.server.LlamaServerManager;
+import org.mark.llamacpp.server.struct.ModelCatalogDelta;
 import org.mark.llamacpp.server.tools.JsonUtil;
 
 import com.google.gson.JsonArray;
 import com.google.gson.JsonObject;
 
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
 /**
  * WebSocket连接管理器
+ * <p>
+ * 事件按主题发布（见 {@link WebSocketEvent}），客户端发送 subscribe 消息后只接收订阅的主题，
+ * 没有订阅过的连接接收全部事件。
  */
 public class WebSocketManager {
     
     // 单例实例
     private static volatile WebSocketManager instance;
     
+    private static final Logger logger = LoggerFactory.getLogger(WebSocketManager.class);
+    
     // 存储所有活跃的WebSocket连接
-    private final ConcurrentMap<String, ChannelHandlerContext> connections = new ConcurrentHashMap<>();
+    private final ConcurrentMap<String, WebSocketSession> connections = new ConcurrentHashMap<>();
     
     // 存储连接的确认状态
     private final ConcurrentMap<String, Boolean> connectionStatus = new ConcurrentHashMap<>();
     
     // 连接计数器
-    private int connectionCounter = 0;
+    private final AtomicInteger connectionCounter = new AtomicInteger();
     
     // 定时任务执行器，用于发送心跳和定期消息
     private final ScheduledExecutorService scheduler = Executors.newScheduledThreadPool(2);
@@ -63,9 +81,8 @@ public class WebSocketManager {
      * 添加新的WebSocket连接
      */
     public String addConnection(ChannelHandlerContext ctx) {
-        connectionCounter++;
-        String connectionId = "conn-" + connectionCounter;
-        connections.put(connectionId, ctx);
+        String connectionId = "conn-" + connectionCounter.incrementAndGet();
+        connections.put(connectionId, new WebSocketSession(connectionId, ctx));
         connectionStatus.put(connectionId, false);
         return connectionId;
     }
@@ -74,19 +91,52 @@ public class WebSocketManager {
      * 移除WebSocket连接
      */
     public void removeConnection(String connectionId) {
-        connections.remove(connectionId);
+        WebSocketSession session = connections.remove(connectionId);
         connectionStatus.remove(connectionId);
+        if (session != null) {
+            session.clear();
+        }
+    }
+    
+    /**
+     * 订阅主题，第一次订阅后连接只接收订阅了的主题
+     * @return 当前订阅的主题
+     */
+    public Set<String> subscribe(String connectionId, Collection<String> topics) {
+        WebSocketSession session = connections.get(connectionId);
+        return session == null ? null : session.subscribe(topics);
+    }
+    
+    /**
+     * 取消订阅主题
+     * @return 当前订阅的主题，null表示接收全部
+     */
+    public Set<String> unsubscribe(String connectionId, Collection<String> topics) {
+        WebSocketSession session = connections.get(connectionId);
+        return session == null ? null : session.unsubscribe(topics);
+    }
+    
+    /**
+     * 连接恢复可写，继续发送排队的消息
+     */
+    public void onWritable(String connectionId) {
+        WebSocketSession session = connections.get(connectionId);
+        if (session != null) {
+            session.resume();
+        }
     }
     
     /**
      * 向指定连接发送消息
      */
     public void sendMessage(String connectionId, String message) {
-        ChannelHandlerContext ctx = connections.get(connectionId);
-        if (ctx != null && ctx.channel().isActive()) {
-            ctx.writeAndFlush(new TextWebSocketFrame(message));
+        WebSocketSession session = connections.get(connectionId);
+        if (session != null && session.isActive()) {
+            if (!session.offer(ByteBufUtil.writeUtf8(ByteBufAllocator.DEFAULT, message), false)) {
+                closeSlowConnection(session);
+            }
         } else {
-            connections.remove(connectionId);
+            removeConnection(connectionId);
         }
     }
     
@@ -94,20 +144,51 @@ public class WebSocketManager {
      * 向所有连接广播消息
      */
     public void broadcast(String message) {
-        //logger.info("向所有WebSocket客户端广播消息: {}", message);
-        
-        // 使用迭代器安全地遍历并发集合
-        connections.entrySet().removeIf(entry -> {
-            //String connectionId = entry.getKey();
-            ChannelHandlerContext ctx = entry.getValue();
-            
-            if (ctx.channel().isActive()) {
-                ctx.writeAndFlush(new TextWebSocketFrame(message));
-                return false;
-            } else {
-                return true;
+        publish(new WebSocketEvent(WebSocketEvent.ALL, message, false));
+    }
+    
+    /**
+     * 向订阅了该主题的连接广播消息
+     */
+    public void broadcast(String topic, String message, boolean droppable) {
+        publish(new WebSocketEvent(topic, message, droppable));
+    }
+    
+    /**
+     * 发布事件。消息只编码一次，各连接拿到的是同一块内存的引用。
+     */
+    public void publish(WebSocketEvent event) {
+        ByteBuf content = null;
+        try {
+            for (WebSocketSession session : connections.values()) {
+                if (!session.isActive()) {
+                    removeConnection(session.getConnectionId());
+                    continue;
+                }
+                if (!session.accepts(event.topic())) {
+                    continue;
+                }
+                if (content == null) {
+                    content = ByteBufUtil.writeUtf8(ByteBufAllocator.DEFAULT, event.json());
+                }
+                if (!session.offer(content.retainedDuplicate(), event.droppable())) {
+                    closeSlowConnection(session);
+                }
             }
-        });
+        } finally {
+            if (content != null) {
+                content.release();
+            }
+        }
+    }
+    
+    /**
+     * 队列里堆满了不能丢弃的消息，客户端已经跟不上，断开让它重连
+     */
+    private void closeSlowConnection(WebSocketSession session) {
+        logger.info("WebSocket连接 {} 消息积压超过 {} 条，关闭连接", session.getConnectionId(), WebSocketSession.MAX_QUEUED);
+        removeConnection(session.getConnectionId());
+        session.getContext().close();
     }
     
     /**
@@ -146,7 +227,7 @@ public class WebSocketManager {
     private void sendHeartbeat() {
         if (getConnectionCount() > 0) {
             long timestamp = System.currentTimeMillis();
-            broadcast("{\"type\":\"heartbeat\",\"timestamp\":" + timestamp + "}");
+            broadcast(WebSocketEvent.ALL, "{\"type\":\"heartbeat\",\"timestamp\":" + timestamp + "}", true);
         }
     }
     
@@ -167,7 +248,7 @@ public class WebSocketManager {
                     getConfirmedConnectionCount()
                 );
                 
-                broadcast(statusMessage);
+                broadcast(WebSocketEvent.SYSTEM, statusMessage, true);
             } catch (Exception e) {
             }
         }
@@ -190,7 +271,7 @@ public class WebSocketManager {
             System.currentTimeMillis()
         );
 
-        broadcast(eventMessage);
+        broadcast(WebSocketEvent.MODELS, eventMessage, false);
     }
 
     public void sendModelLoadStartEvent(String modelId, Integer port, String message) {
@@ -202,7 +283,7 @@ public class WebSocketManager {
             System.currentTimeMillis()
         );
 
-        broadcast(eventMessage);
+        broadcast(WebSocketEvent.MODELS, eventMessage, false);
     }
     
     /**
@@ -217,7 +298,7 @@ public class WebSocketManager {
             System.currentTimeMillis()
         );
         
-        broadcast(eventMessage);
+        broadcast(WebSocketEvent.MODELS, eventMessage, false);
     }
 
     public void sendModelSlotsEvent(String modelId, JsonArray slots) {
@@ -226,19 +307,73 @@ public class WebSocketManager {
         event.addProperty("modelId", modelId == null ? "" : modelId);
         event.add("slots", slots == null ? new JsonArray() : slots);
         event.addProperty("timestamp", System.currentTimeMillis());
-        broadcast(JsonUtil.toJson(event));
+        broadcast(WebSocketEvent.topic(WebSocketEvent.SLOTS, modelId), JsonUtil.toJson(event), true);
     }
     
-    public void sendConsoleLineEvent(String modelId, String line) {
-        byte[] bytes = line == null ? new byte[0] : line.getBytes(StandardCharsets.UTF_8);
-        String b64 = Base64.getEncoder().encodeToString(bytes);
-        String eventMessage = String.format(
-            "{\"type\":\"console\",\"modelId\":\"%s\",\"line64\":\"%s\",\"timestamp\":%d}",
-            modelId != null ? modelId.replace("\"", "\\\"") : "",
-            b64,
-            System.currentTimeMillis()
-        );
-        broadcast(eventMessage);
+    /**
+     * 发送模型目录的增量变化事件，客户端据此局部更新列表，不必重新拉取全部模型
+     */
+    public void sendModelCatalogEvent(ModelCatalogDelta delta) {
+        if (delta == null || delta.isEmpty()) {
+            return;
+        }
+        JsonObject event = new JsonObject();
+        event.addProperty("type", "model_catalog");
+        event.addProperty("version", delta.getVersion());
+        event.add("added", toCatalogItems(delta.getAdded()));
+        event.add("updated", toCatalogItems(delta.getUpdated()));
+        JsonArray removed = new JsonArray();
+        for (GGUFModel m : delta.getRemoved()) {
+            removed.add(m.getModelId());
+        }
+        event.add("removed", removed);
+        event.addProperty("timestamp", System.currentTimeMillis());
+        broadcast(WebSocketEvent.CATALOG, JsonUtil.toJson(event), false);
+    }
+    
+    /**
+     * 发送模型目录全量重载事件，客户端需要重新拉取列表
+     */
+    public void sendModelCatalogReloadEvent(long version) {
+        JsonObject event = new JsonObject();
+        event.addProperty("type", "model_catalog_reload");
+        event.addProperty("version", version);
+        event.addProperty("timestamp", System.currentTimeMillis());
+        broadcast(WebSocketEvent.CATALOG, JsonUtil.toJson(event), false);
+    }
+    
+    private static JsonArray toCatalogItems(Iterable<GGUFModel> models) {
+        JsonArray arr = new JsonArray();
+        for (GGUFModel m : models) {
+            GGUFMetaData primary = m.getPrimaryModel();
+            JsonObject item = new JsonObject();
+            item.addProperty("id", m.getModelId());
+            item.addProperty("name", m.getName());
+            item.addProperty("alias", m.getAlias());
+            item.addProperty("favourite", m.isFavourite());
+            item.addProperty("path", m.getPath());
+            item.addProperty("size", m.getSize());
+            item.addProperty("type", primary == null ? null : primary.getArchitecture());
+            item.addProperty("quantization", primary == null ? null : primary.getQuantizationType());
+            item.addProperty("contextLength", primary == null ? null : primary.getContextLength());
+            item.addProperty("isMultimodal", m.getMmproj() != null);
+            arr.add(item);
+        }
+        return arr;
+    }
+    
+    /**
+     * 发送合并后的多行控制台输出，行之间用换行分隔，客户端按普通console事件处理
+     */
+    public void sendConsoleBatchEvent(String modelId, String text, int lines) {
+        JsonObject event = new JsonObject();
+        event.addProperty("type", "console");
+        event.addProperty("modelId", modelId == null ? "" : modelId);
+        event.addProperty("line64", Base64.getEncoder().encodeToString(
+                text == null ? new byte[0] : text.getBytes(StandardCharsets.UTF_8)));
+        event.addProperty("lines", lines);
+        event.addProperty("timestamp", System.currentTimeMillis());
+        broadcast(WebSocketEvent.topic(WebSocketEvent.CONSOLE, modelId), JsonUtil.toJson(event), true);
     }
     
     /**
@@ -259,7 +394,38 @@ public class WebSocketManager {
             System.currentTimeMillis()
         );
         
-        broadcast(eventMessage);
+        broadcast(WebSocketEvent.DOWNLOADS, eventMessage, false);
+    }
+    
+    /**
+     * 发送多文件下载组的状态事件
+     */
+    public void sendDownloadBundleEvent(String bundleId, String name, String state, String path, String errorMessage) {
+        JsonObject event = new JsonObject();
+        event.addProperty("type", "download_bundle");
+        event.addProperty("bundleId", bundleId);
+        event.addProperty("name", name);
+        event.addProperty("state", state);
+        event.addProperty("path", path);
+        event.addProperty("errorMessage", errorMessage);
+        event.addProperty("timestamp", System.currentTimeMillis());
+        broadcast(WebSocketEvent.DOWNLOADS, JsonUtil.toJson(event), false);
+    }
+    
+    /**
+     * 发送下载中模型的目录项事件，preview为null表示该项已移除（下载完成后会收到正常的model_catalog事件）
+     */
+    public void sendModelDownloadingEvent(String taskId, Map<String, Object> preview) {
+        Map<String, Object> event = new LinkedHashMap<>();
+        event.put("type", "model_catalog_downloading");
+        event.put("taskId", taskId);
+        if (preview != null) {
+            event.put("item", preview);
+        } else {
+            event.put("removed", true);
+        }
+        event.put("timestamp", System.currentTimeMillis());
+        broadcast(WebSocketEvent.DOWNLOADS, JsonUtil.toJson(event), false);
     }
     
     /**
@@ -278,7 +444,7 @@ public class WebSocketManager {
             System.currentTimeMillis()
         );
         
-        broadcast(eventMessage);
+        broadcast(WebSocketEvent.DOWNLOADS, eventMessage, true);
     }
     
     /**
@@ -296,9 +462,10 @@ public class WebSocketManager {
         }
         
         // 关闭所有连接
-        connections.values().forEach(ctx -> {
-            if (ctx.channel().isActive()) {
-                ctx.close();
+        connections.values().forEach(session -> {
+            session.clear();
+            if (session.isActive()) {
+                session.getContext().close();
             }
         });
         connections.clear();
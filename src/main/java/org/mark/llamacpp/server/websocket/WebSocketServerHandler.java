@@ -1,10 +1,15 @@
 package org.mark.llamacpp.server.websocket;
 
 import com.google.gson.Gson;
+import com.google.gson.JsonArray;
 import com.google.gson.JsonElement;
 import com.google.gson.JsonObject;
 import com.google.gson.JsonSyntaxException;
 
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -81,6 +86,10 @@ public class WebSocketServerHandler extends SimpleChannelInboundHandler<WebSocke
                         // 处理连接确认消息
                         handleConnectMessage(ctx, jsonObject);
                         break;
+                    case "subscribe":
+                    case "unsubscribe":
+                        handleSubscribeMessage(ctx, messageType, jsonObject);
+                        break;
                     default:
                         
                         break;
@@ -119,6 +128,39 @@ public class WebSocketServerHandler extends SimpleChannelInboundHandler<WebSocke
         ctx.channel().writeAndFlush(new TextWebSocketFrame(response));
     }
     
+    /**
+     * 处理订阅消息：{"type":"subscribe","topics":["console:模型ID","slots","downloads"]}
+     */
+    private void handleSubscribeMessage(ChannelHandlerContext ctx, String messageType, JsonObject message) {
+        if (this.connectionId == null) {
+            return;
+        }
+        List<String> topics = new ArrayList<>();
+        if (message.has("topics") && message.get("topics").isJsonArray()) {
+            for (JsonElement el : message.getAsJsonArray("topics")) {
+                if (el != null && el.isJsonPrimitive() && !el.getAsString().isBlank()) {
+                    topics.add(el.getAsString().trim());
+                }
+            }
+        }
+        Set<String> current = "subscribe".equals(messageType)
+                ? this.wsManager.subscribe(this.connectionId, topics)
+                : this.wsManager.unsubscribe(this.connectionId, topics);
+        
+        JsonObject response = new JsonObject();
+        response.addProperty("type", "subscribed");
+        response.addProperty("connectionId", this.connectionId);
+        JsonArray arr = new JsonArray();
+        if (current == null) {
+            arr.add("*");
+        } else {
+            current.stream().sorted().forEach(arr::add);
+        }
+        response.add("topics", arr);
+        response.addProperty("timestamp", System.currentTimeMillis());
+        ctx.channel().writeAndFlush(new TextWebSocketFrame(gson.toJson(response)));
+    }
+    
     /**
      * 处理Ping帧
      */
@@ -150,6 +192,14 @@ public class WebSocketServerHandler extends SimpleChannelInboundHandler<WebSocke
         super.channelActive(ctx);
     }
     
+    @Override
+    public void channelWritabilityChanged(ChannelHandlerContext ctx) throws Exception {
+        if (ctx.channel().isWritable() && this.connectionId != null) {
+            this.wsManager.onWritable(this.connectionId);
+        }
+        super.channelWritabilityChanged(ctx);
+    }
+    
     @Override
     public void channelInactive(ChannelHandlerContext ctx) throws Exception {
         super.channelInactive(ctx);
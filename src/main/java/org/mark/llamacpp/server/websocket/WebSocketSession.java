@@ -0,0 +1,182 @@
+package org.mark.llamacpp.server.websocket;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.handler.codec.http.websocketx.TextWebSocketFrame;
+
+import java.util.ArrayDeque;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Set;
+
+/**
+ * 一个WebSocket连接：订阅的主题和待发送队列。
+ * <p>
+ * 消息先进入有上限的队列，在连接的EventLoop里写出，通道不可写（客户端读得慢）时暂停，
+ * 可写后继续。队列满时丢弃最旧的高频消息；队列里全是不能丢弃的消息时，
+ * 新来的高频消息直接丢弃，不能丢弃的消息则说明客户端已经卡死，由调用方关闭连接。
+ */
+final class WebSocketSession {
+
+    /**
+     * 每个连接最多排队的消息数
+     */
+    static final int MAX_QUEUED = 512;
+
+    private record Pending(ByteBuf content, boolean droppable) {
+    }
+
+    private final String connectionId;
+    private final ChannelHandlerContext ctx;
+
+    /**
+     * 订阅的主题，null表示接收全部（没有发送过订阅消息的旧客户端）
+     */
+    private volatile Set<String> topics;
+
+    // 以下字段由this保护
+    private final ArrayDeque<Pending> queue = new ArrayDeque<>();
+    private boolean draining;
+    private long dropped;
+
+    WebSocketSession(String connectionId, ChannelHandlerContext ctx) {
+        this.connectionId = connectionId;
+        this.ctx = ctx;
+    }
+
+    String getConnectionId() {
+        return connectionId;
+    }
+
+    ChannelHandlerContext getContext() {
+        return ctx;
+    }
+
+    boolean isActive() {
+        return ctx.channel().isActive();
+    }
+
+    /**
+     * 是否订阅了该主题
+     */
+    boolean accepts(String topic) {
+        Set<String> t = this.topics;
+        if (t == null || WebSocketEvent.ALL.equals(topic)) {
+            return true;
+        }
+        return t.contains(WebSocketEvent.ALL) || t.contains(topic) || t.contains(WebSocketEvent.baseOf(topic));
+    }
+
+    synchronized Set<String> subscribe(Collection<String> add) {
+        Set<String> next = this.topics == null ? new HashSet<>() : new HashSet<>(this.topics);
+        next.addAll(add);
+        this.topics = Collections.unmodifiableSet(next);
+        return this.topics;
+    }
+
+    synchronized Set<String> unsubscribe(Collection<String> remove) {
+        // 没有订阅过的连接原本接收全部，退订后从空集合开始，只保留心跳
+        Set<String> next = this.topics == null ? new HashSet<>() : new HashSet<>(this.topics);
+        next.removeAll(remove);
+        this.topics = Collections.unmodifiableSet(next);
+        return this.topics;
+    }
+
+    Set<String> getTopics() {
+        return topics;
+    }
+
+    synchronized long getDropped() {
+        return dropped;
+    }
+
+    /**
+     * 放入待发送队列，content的引用归本连接所有。
+     * @return false表示队列已满且无法腾出位置，应关闭连接
+     */
+    boolean offer(ByteBuf content, boolean droppable) {
+        synchronized (this) {
+            if (this.queue.size() >= MAX_QUEUED && !this.dropOldest()) {
+                if (droppable) {
+                    this.dropped++;
+                    content.release();
+                    return true;
+                }
+                content.release();
+                return false;
+            }
+            this.queue.add(new Pending(content, droppable));
+            if (this.draining) {
+                return true;
+            }
+            this.draining = true;
+        }
+        this.ctx.executor().execute(this::drain);
+        return true;
+    }
+
+    /**
+     * 通道恢复可写后继续发送
+     */
+    void resume() {
+        synchronized (this) {
+            if (this.draining || this.queue.isEmpty()) {
+                return;
+            }
+            this.draining = true;
+        }
+        this.ctx.executor().execute(this::drain);
+    }
+
+    /**
+     * 丢弃并释放所有未发送的消息
+     */
+    synchronized void clear() {
+        Pending p;
+        while ((p = this.queue.poll()) != null) {
+            p.content.release();
+        }
+    }
+
+    private boolean dropOldest() {
+        Iterator<Pending> it = this.queue.iterator();
+        while (it.hasNext()) {
+            Pending p = it.next();
+            if (p.droppable) {
+                it.remove();
+                p.content.release();
+                this.dropped++;
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void drain() {
+        Channel ch = this.ctx.channel();
+        boolean wrote = false;
+        while (true) {
+            Pending p;
+            synchronized (this) {
+                if (!ch.isActive()) {
+                    this.draining = false;
+                    this.clear();
+                    return;
+                }
+                if (this.queue.isEmpty() || !ch.isWritable()) {
+                    this.draining = false;
+                    break;
+                }
+                p = this.queue.poll();
+            }
+            this.ctx.write(new TextWebSocketFrame(p.content), this.ctx.voidPromise());
+            wrote = true;
+        }
+        if (wrote) {
+            this.ctx.flush();
+        }
+    }
+}